@@ -119,7 +119,14 @@ private boolean usePropFileConfigService(FileAccessService fas)
     public void stop(BundleContext bundleContext)
         throws Exception
     {
-        this.cs.storeConfiguration();
+        if (this.cs instanceof JdbcConfigService)
+        {
+            ((JdbcConfigService) this.cs).stop();
+        }
+        else
+        {
+            this.cs.storeConfiguration();
+        }
         this.cs = null;
     }
 
@@ -23,6 +23,7 @@
 import java.sql.Statement;
 import java.sql.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.regex.*;
 import org.apache.commons.lang3.*;
 import org.jitsi.service.configuration.*;
@@ -85,14 +86,78 @@
     private SetMultimap<String, PropertyChangeListener> listeners
         = HashMultimap.create();
 
+    /**
+     * The properties stored in the database, which serve all the reads. The
+     * database is only read once, when creating the service.
+     */
+    private final ConcurrentSkipListMap<String, String> properties
+        = new ConcurrentSkipListMap<String, String>();
+
+    /**
+     * The names of the properties in {@link #properties}, reversed, so that
+     * the names with a given suffix are next to each other.
+     */
+    private final ConcurrentSkipListSet<String> reversedNames
+        = new ConcurrentSkipListSet<String>();
+
+    /**
+     * The number of milliseconds the writes to the database are delayed to
+     * store the changes made in the meantime in the same batch.
+     */
+    private static final long WRITE_DELAY = 100;
+
+    /**
+     * The maximum number of milliseconds a failed write is retried after,
+     * the delay doubling with every consecutive failure up to it.
+     */
+    private static final long MAX_RETRY_DELAY = 60000;
+
+    /**
+     * The changes not yet written to the database in the order they were
+     * made. A <tt>null</tt> value is a removed property. Guarded by itself.
+     */
+    private final Map<String, String> pendingWrites
+        = new LinkedHashMap<String, String>();
+
+    /**
+     * The thread writing {@link #pendingWrites} to the database.
+     */
+    private final ScheduledExecutorService writer
+        = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "JdbcConfigWriter");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+    /**
+     * Whether a write of {@link #pendingWrites} is scheduled. Guarded by
+     * {@link #pendingWrites}.
+     */
+    private boolean writeScheduled = false;
+
+    /**
+     * The number of consecutive failed writes of {@link #pendingWrites}, which
+     * determines the delay before the next attempt. Guarded by
+     * {@link #pendingWrites}.
+     */
+    private int writeFailures = 0;
+
+    /**
+     * The lock held while using the database connection.
+     */
+    private final Object connectionLock = new Object();
+
     /**
      * Connection to the JDBC database.
      */
     private Connection connection;
 
     // SQL statements for queries against the database
-    private PreparedStatement selectExact;
-    private PreparedStatement selectLike;
     private PreparedStatement selectAll;
     private PreparedStatement insertOrUpdate;
     private PreparedStatement delete;
@@ -134,6 +199,11 @@ public JdbcConfigService(FileAccessService fas) throws Exception
         // open the connection
         Class.forName("org.hsqldb.jdbc.JDBCDriver");
         checkConnection();
+        ResultSet q = this.selectAll.executeQuery();
+        while (q.next())
+        {
+            putProperty(q.getString(1), q.getString(2));
+        }
 
         // then do the actual migration
         if (migrate)
@@ -141,14 +211,12 @@ public JdbcConfigService(FileAccessService fas) throws Exception
             Properties p = new Properties();
             p.load(new FileInputStream(oldProps));
 
-            this.connection.setAutoCommit(false);
             for (Map.Entry<Object, Object> e : p.entrySet())
             {
                 this.setProperty(e.getKey().toString(), e.getValue(), false);
             }
 
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
+            writePendingProperties();
         }
 
         // and finally load the (mandatory) system properties
@@ -206,10 +274,6 @@ private void checkConnection() throws SQLException
             + "k LONGVARCHAR UNIQUE, v LONGVARCHAR"
             + ")");
 
-        this.selectExact = this.connection.prepareStatement(
-            "SELECT v FROM Props WHERE k=?");
-        this.selectLike = this.connection.prepareStatement(
-            "SELECT k, v FROM Props WHERE k LIKE ?");
         this.selectAll = this.connection.prepareStatement(
             "SELECT k, v FROM Props");
         this.insertOrUpdate = this.connection.prepareStatement(
@@ -269,28 +333,198 @@ public synchronized void setProperty(String propertyName, Object property,
                 return;
             }
 
+            Object oldValue = this.getProperty(propertyName);
+            this.fireVetoableChange(propertyName, oldValue, property);
+            String value = (property == null) ? null : property.toString();
+            if (value == null)
+            {
+                removeProperty0(propertyName);
+            }
+            else
+            {
+                putProperty(propertyName, value);
+            }
+
+            scheduleWrite(propertyName, value);
+            this.fireChange(propertyName, oldValue, property);
+        }
+    }
+
+    /**
+     * Adds or replaces a property in the in-memory properties and their
+     * indexes.
+     *
+     * @param propertyName the name of the property
+     * @param value the value of the property
+     */
+    private void putProperty(String propertyName, String value)
+    {
+        if (this.properties.put(propertyName, value) == null)
+        {
+            this.reversedNames.add(reverse(propertyName));
+        }
+    }
+
+    /**
+     * Removes a property from the in-memory properties and their indexes.
+     *
+     * @param propertyName the name of the property
+     */
+    private void removeProperty0(String propertyName)
+    {
+        if (this.properties.remove(propertyName) != null)
+        {
+            this.reversedNames.remove(reverse(propertyName));
+        }
+    }
+
+    private static String reverse(String s)
+    {
+        return new StringBuilder(s).reverse().toString();
+    }
+
+    /**
+     * Queues a change to be written to the database with the changes made
+     * during the next {@link #WRITE_DELAY} milliseconds. A later change of the
+     * same property replaces the queued one.
+     *
+     * @param propertyName the name of the changed property
+     * @param value the new value of the property or <tt>null</tt> if it was
+     * removed
+     */
+    private void scheduleWrite(String propertyName, String value)
+    {
+        synchronized (this.pendingWrites)
+        {
+            this.pendingWrites.remove(propertyName);
+            this.pendingWrites.put(propertyName, value);
+            if (this.writeScheduled || this.schedulePendingWrites(WRITE_DELAY))
+            {
+                return;
+            }
+        }
+
+        // the writer was shut down by stop(), so write right away
+        writePendingProperties();
+    }
+
+    /**
+     * Schedules a write of {@link #pendingWrites}. Must be called while
+     * holding the lock on {@link #pendingWrites}.
+     *
+     * @param delay the number of milliseconds to delay the write
+     * @return <tt>false</tt> if the writer was shut down and the write could
+     * not be scheduled
+     */
+    private boolean schedulePendingWrites(long delay)
+    {
+        try
+        {
+            this.writer.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    writePendingProperties();
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            this.writeScheduled = true;
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the queued changes to the database in a single transaction.
+     * Changes which failed to be written are queued again unless they were
+     * replaced in the meantime, and retried with an exponential backoff.
+     */
+    private void writePendingProperties()
+    {
+        synchronized (this.connectionLock)
+        {
+            Map<String, String> writes;
+            synchronized (this.pendingWrites)
+            {
+                this.writeScheduled = false;
+                if (this.pendingWrites.isEmpty())
+                {
+                    return;
+                }
+
+                writes = new LinkedHashMap<String, String>(this.pendingWrites);
+                this.pendingWrites.clear();
+            }
+
             try
             {
                 this.checkConnection();
-                Object oldValue = this.getProperty(propertyName);
-                this.fireVetoableChange(propertyName, oldValue, property);
-                if (property == null)
+                this.connection.setAutoCommit(false);
+                try
                 {
-                    this.delete.setString(1, propertyName);
-                    this.delete.execute();
+                    for (Map.Entry<String, String> e : writes.entrySet())
+                    {
+                        if (e.getValue() == null)
+                        {
+                            this.delete.setString(1, e.getKey());
+                            this.delete.addBatch();
+                        }
+                        else
+                        {
+                            this.insertOrUpdate.setString(1, e.getKey());
+                            this.insertOrUpdate.setString(2, e.getValue());
+                            this.insertOrUpdate.addBatch();
+                        }
+                    }
+
+                    this.delete.executeBatch();
+                    this.insertOrUpdate.executeBatch();
+                    this.connection.commit();
                 }
-                else
+                catch (SQLException e)
+                {
+                    this.delete.clearBatch();
+                    this.insertOrUpdate.clearBatch();
+                    this.connection.rollback();
+                    throw e;
+                }
+                finally
                 {
-                    this.insertOrUpdate.setString(1, propertyName);
-                    this.insertOrUpdate.setString(2, property.toString());
-                    this.insertOrUpdate.execute();
+                    this.connection.setAutoCommit(true);
                 }
 
-                this.fireChange(propertyName, oldValue, property);
+                synchronized (this.pendingWrites)
+                {
+                    this.writeFailures = 0;
+                }
             }
             catch (SQLException e)
             {
-                throw new RuntimeException(e);
+                synchronized (this.pendingWrites)
+                {
+                    writes.keySet().removeAll(this.pendingWrites.keySet());
+                    writes.putAll(this.pendingWrites);
+                    this.pendingWrites.clear();
+                    this.pendingWrites.putAll(writes);
+
+                    long delay = Math.min(MAX_RETRY_DELAY,
+                        WRITE_DELAY << Math.min(this.writeFailures, 16));
+                    this.writeFailures++;
+                    if (this.writeScheduled
+                        || this.schedulePendingWrites(delay))
+                    {
+                        logger.error("Failed to write " + writes.size()
+                            + " properties, retrying in " + delay + "ms", e);
+                    }
+                    else
+                    {
+                        logger.error("Failed to write " + writes.size()
+                            + " properties while stopping", e);
+                    }
+                }
             }
         }
     }
@@ -305,21 +539,10 @@ public synchronized void setProperty(String propertyName, Object property,
     @Override
     public synchronized void setProperties(Map<String, Object> properties)
     {
-        try
-        {
-            checkConnection();
-            this.connection.setAutoCommit(false);
-            for (Map.Entry<String, Object> e : properties.entrySet())
-            {
-                this.setProperty(e.getKey(), e.getValue(), false);
-            }
-
-            this.connection.commit();
-            this.connection.setAutoCommit(true);
-        }
-        catch (SQLException e1)
+        // the changes are queued and written in the same batch
+        for (Map.Entry<String, Object> e : properties.entrySet())
         {
-            throw new RuntimeException(e1);
+            this.setProperty(e.getKey(), e.getValue(), false);
         }
     }
 
@@ -331,7 +554,7 @@ public synchronized void setProperties(Map<String, Object> properties)
      * .lang.String)
      */
     @Override
-    public synchronized Object getProperty(String propertyName)
+    public Object getProperty(String propertyName)
     {
         Object value = immutableDefaultProperties.get(propertyName);
         if (value != null)
@@ -339,22 +562,7 @@ public synchronized Object getProperty(String propertyName)
             return value;
         }
 
-        try
-        {
-            this.checkConnection();
-            this.selectExact.setString(1, propertyName);
-            ResultSet q = this.selectExact.executeQuery();
-            if (q.next())
-            {
-                value = q.getString(1);
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error("SQL failure", e);
-            throw new RuntimeException(e);
-        }
-
+        value = properties.get(propertyName);
         if (value != null)
         {
             return value;
@@ -401,20 +609,7 @@ public List<String> getAllPropertyNames()
         List<String> data = new ArrayList<String>(
             immutableDefaultProperties.keySet());
         data.addAll(defaultProperties.keySet());
-        try
-        {
-            this.checkConnection();
-            ResultSet q = this.selectAll.executeQuery();
-            while (q.next())
-            {
-                data.add(q.getString(1));
-            }
-        }
-        catch (SQLException e)
-        {
-            logger.error("SQL failure", e);
-            throw new RuntimeException(e);
-        }
+        data.addAll(properties.keySet());
 
         return data;
     }
@@ -430,46 +625,58 @@ public List<String> getAllPropertyNames()
     public List<String> getPropertyNamesByPrefix(String prefix,
         boolean exactPrefixMatch)
     {
-        try
+        List<String> resultSet = new ArrayList<String>(50);
+        for (String key : startingWith(properties.navigableKeySet(), prefix))
         {
-            List<String> resultSet = new ArrayList<String>(50);
-            this.checkConnection();
-            this.selectLike.setString(1, prefix + "%");
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
+            if(exactPrefixMatch)
             {
-                String key = q.getString(1);
-
-                if(exactPrefixMatch)
+                int ix = key.lastIndexOf('.');
+                if(ix == -1)
                 {
-                    int ix = key.lastIndexOf('.');
-                    if(ix == -1)
-                    {
-                        continue;
-                    }
+                    continue;
+                }
 
-                    String keyPrefix = key.substring(0, ix);
+                String keyPrefix = key.substring(0, ix);
 
-                    if(prefix.equals(keyPrefix))
-                    {
-                        resultSet.add(key);
-                    }
-                }
-                else
+                if(prefix.equals(keyPrefix))
                 {
-                    if(key.startsWith(prefix))
-                    {
-                        resultSet.add(key);
-                    }
+                    resultSet.add(key);
                 }
             }
+            else
+            {
+                resultSet.add(key);
+            }
+        }
 
-            return resultSet;
+        return resultSet;
+    }
+
+    /**
+     * Returns the strings of a sorted set which start with a prefix.
+     *
+     * @param set the sorted set
+     * @param prefix the prefix
+     * @return the view of the strings of <tt>set</tt> starting with
+     * <tt>prefix</tt>
+     */
+    private static NavigableSet<String> startingWith(NavigableSet<String> set,
+        String prefix)
+    {
+        if (prefix.length() == 0)
+        {
+            return set;
         }
-        catch (SQLException e)
+
+        // the first string following all those starting with the prefix
+        char last = prefix.charAt(prefix.length() - 1);
+        if (last == Character.MAX_VALUE)
         {
-            throw new RuntimeException(e);
+            return set.tailSet(prefix, true);
         }
+
+        String end = prefix.substring(0, prefix.length() - 1) + (char)(last + 1);
+        return set.subSet(prefix, true, end, false);
     }
 
     /*
@@ -482,26 +689,17 @@ public List<String> getPropertyNamesByPrefix(String prefix,
     @Override
     public List<String> getPropertyNamesBySuffix(String suffix)
     {
-        try
-        {
-            List<String> resultKeySet = new ArrayList<String>(20);
-            this.checkConnection();
-            this.selectLike.setString(1, "%" + suffix);
-            ResultSet q = this.selectLike.executeQuery();
-            while (q.next())
-            {
-                String key = q.getString(1);
-                int ix = key.lastIndexOf('.');
-                if (ix != -1 && suffix.equals(key.substring(ix + 1)))
-                    resultKeySet.add(key);
-            }
-
-            return resultKeySet;
-        }
-        catch (SQLException e)
+        List<String> resultKeySet = new ArrayList<String>(20);
+        for (String reversedKey
+            : startingWith(reversedNames, reverse("." + suffix)))
         {
-            throw new RuntimeException(e);
+            String key = reverse(reversedKey);
+            int ix = key.lastIndexOf('.');
+            if (suffix.equals(key.substring(ix + 1)))
+                resultKeySet.add(key);
         }
+
+        return resultKeySet;
     }
 
     /*
@@ -768,17 +966,43 @@ public void removeVetoableChangeListener(String propertyName,
     @Override
     public void storeConfiguration() throws IOException
     {
-        try
+        synchronized (this.connectionLock)
         {
-            this.connection.close();
+            writePendingProperties();
+            if (this.connection == null)
+            {
+                return;
+            }
+
+            try
+            {
+                this.connection.close();
+            }
+            catch (SQLException e)
+            {
+                logger.error("SQL failure", e);
+            }
+            finally
+            {
+                this.connection = null;
+            }
         }
-        catch (SQLException e)
+    }
+
+    /**
+     * Stops the thread writing the changes to the database and writes the
+     * changes still queued. Changes made afterwards are written right away.
+     */
+    void stop()
+    {
+        this.writer.shutdown();
+        try
         {
-            logger.error("SQL failure", e);
+            this.storeConfiguration();
         }
-        finally
+        catch (IOException e)
         {
-            this.connection = null;
+            logger.error("Failed to store the configuration", e);
         }
     }
 
@@ -801,16 +1025,29 @@ public void reloadConfiguration() throws IOException
     @Override
     public void purgeStoredConfiguration()
     {
-        try
+        synchronized (this.connectionLock)
         {
-            this.checkConnection();
-            Statement st = this.connection.createStatement();
-            st.executeUpdate("TRUNCATE TABLE Props");
-        }
-        catch (SQLException e)
-        {
-            logger.error("SQL failure", e);
-            throw new RuntimeException(e);
+            synchronized (this.pendingWrites)
+            {
+                this.pendingWrites.clear();
+            }
+
+            try
+            {
+                this.checkConnection();
+                Statement st = this.connection.createStatement();
+                st.executeUpdate("TRUNCATE TABLE Props");
+            }
+            catch (SQLException e)
+            {
+                logger.error("SQL failure", e);
+                throw new RuntimeException(e);
+            }
+            finally
+            {
+                this.properties.clear();
+                this.reversedNames.clear();
+            }
         }
     }
 
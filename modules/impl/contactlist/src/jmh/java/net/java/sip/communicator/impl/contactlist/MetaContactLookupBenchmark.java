@@ -0,0 +1,143 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.impl.protocol.mock.*;
+import net.java.sip.communicator.service.contactlist.*;
+
+import org.jitsi.service.resources.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the lookups of meta contacts by protocol contact through the
+ * <tt>MetaContactIndex</tt> with the recursive search of the
+ * <tt>MetaContactGroupImpl</tt>s, which the index replaced.
+ * <p>
+ * Run with <tt>mvn -Pjmh test-compile exec:exec</tt> in this module.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetaContactLookupBenchmark
+{
+    /**
+     * The number of groups the contacts are spread over.
+     */
+    private static final int GROUP_COUNT = 10;
+
+    /**
+     * The number of meta contacts in the contact list.
+     */
+    @Param({ "100", "1000", "10000" })
+    public int contactCount;
+
+    private MetaContactListServiceImpl mcl;
+
+    private MetaContactGroupImpl root;
+
+    private MockContact[] contacts;
+
+    private String accountID;
+
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        mcl = new MetaContactListServiceImpl(
+            (ResourceManagementService) Proxy.newProxyInstance(
+                ResourceManagementService.class.getClassLoader(),
+                new Class<?>[] { ResourceManagementService.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method,
+                                         Object[] args)
+                    {
+                        return method.getName().equals("getI18NString")
+                            ? "Contacts"
+                            : null;
+                    }
+                }));
+        root = (MetaContactGroupImpl) mcl.getRoot();
+
+        MockProvider provider = new MockProvider("benchmark");
+        accountID = provider.getAccountID().getAccountUniqueID();
+
+        MetaContactGroupImpl[] groups = new MetaContactGroupImpl[GROUP_COUNT];
+        for (int i = 0; i < groups.length; i++)
+        {
+            groups[i] = new MetaContactGroupImpl(mcl, "Group " + i, "g" + i);
+            root.addSubgroup(groups[i]);
+        }
+
+        contacts = new MockContact[contactCount];
+        for (int i = 0; i < contacts.length; i++)
+        {
+            contacts[i] = new MockContact("contact" + i + "@example.com",
+                provider);
+
+            MetaContactImpl metaContact = new MetaContactImpl();
+            metaContact.addProtoContact(contacts[i]);
+            groups[i % groups.length].addMetaContact(metaContact);
+        }
+    }
+
+    /**
+     * Looks up the contacts, one after the other, so that the recursive
+     * search walks half of the contact list on average.
+     */
+    private MockContact nextContact()
+    {
+        MockContact contact = contacts[next];
+        next = (next + 1) % contacts.length;
+        return contact;
+    }
+
+    @Benchmark
+    public MetaContact indexByContact()
+    {
+        return mcl.findMetaContactByContact(nextContact());
+    }
+
+    @Benchmark
+    public MetaContact recursiveByContact()
+    {
+        return root.findMetaContactByContact(nextContact());
+    }
+
+    @Benchmark
+    public MetaContact indexByAddress()
+    {
+        return mcl.findMetaContactByContact(nextContact().getAddress(),
+            accountID);
+    }
+
+    @Benchmark
+    public MetaContact recursiveByAddress()
+    {
+        return root.findMetaContactByContact(nextContact().getAddress(),
+            accountID);
+    }
+}
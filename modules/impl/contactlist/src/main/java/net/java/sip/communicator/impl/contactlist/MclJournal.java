@@ -0,0 +1,333 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+import javax.xml.transform.*;
+import javax.xml.transform.dom.*;
+import javax.xml.transform.stream.*;
+
+import lombok.extern.slf4j.*;
+
+import org.jitsi.util.xml.*;
+import org.w3c.dom.*;
+
+/**
+ * The journal of the changes made to the contact list document since its
+ * file was last written by <tt>MclStorageManager</tt>.
+ * <p>
+ * Every record stores the current state of a single meta contact or meta
+ * contact group node: either its serialized XML together with the UID of its
+ * parent group, or the fact that it was removed. Replaying the records in
+ * order over the last written document restores the document as it was when
+ * the last record was appended. A record which was only partially written,
+ * e.g. because the application crashed, ends the journal.
+ */
+@Slf4j
+class MclJournal
+{
+    /**
+     * The kind of the records storing meta contact nodes.
+     */
+    static final byte CONTACT = 1;
+
+    /**
+     * The kind of the records storing meta contact group nodes.
+     */
+    static final byte GROUP = 2;
+
+    /**
+     * The magic number starting the journal file.
+     */
+    private static final int HEADER_MAGIC = 0x4D434C4A;
+
+    /**
+     * The operation of the records storing the XML of a node.
+     */
+    private static final byte OP_PUT = 1;
+
+    /**
+     * The operation of the records storing the removal of a node.
+     */
+    private static final byte OP_REMOVE = 2;
+
+    /**
+     * The journal file.
+     */
+    private final File file;
+
+    /**
+     * Creates a journal stored in the specified file.
+     *
+     * @param file the journal file, which need not exist.
+     */
+    MclJournal(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Returns the size of the journal file.
+     *
+     * @return the size in bytes, 0 if there is no journal.
+     */
+    long length()
+    {
+        return file.length();
+    }
+
+    /**
+     * Appends records to the journal and makes sure they reached the disk.
+     *
+     * @param records the records to append, in the order of the changes.
+     * @throws IOException if writing the journal fails.
+     */
+    void append(List<Record> records)
+        throws IOException
+    {
+        if (records.isEmpty())
+            return;
+
+        boolean create = file.length() == 0;
+        FileOutputStream fos = new FileOutputStream(file, !create);
+        try
+        {
+            DataOutputStream out
+                = new DataOutputStream(new BufferedOutputStream(fos));
+
+            if (create)
+                out.writeInt(HEADER_MAGIC);
+
+            for (Record record : records)
+            {
+                out.writeByte(record.node == null ? OP_REMOVE : OP_PUT);
+                out.writeByte(record.kind);
+                out.writeUTF(record.uid);
+                if (record.node != null)
+                {
+                    byte[] xml = serialize(record.node);
+
+                    out.writeUTF(
+                        record.parentUID == null ? "" : record.parentUID);
+                    out.writeInt(xml.length);
+                    out.write(xml);
+                }
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        finally
+        {
+            fos.close();
+        }
+    }
+
+    /**
+     * Reads the records of the journal and drops a partially written last
+     * record, if any, so that the journal can be appended to again.
+     *
+     * @param doc the document in which to create the nodes of the records.
+     * @return the complete records of the journal in order.
+     * @throws IOException if reading the journal fails.
+     */
+    List<Record> read(Document doc)
+        throws IOException
+    {
+        List<Record> records = new ArrayList<Record>();
+        if (file.length() == 0)
+            return records;
+
+        DocumentBuilder builder;
+        try
+        {
+            builder = XMLUtils.newDocumentBuilderFactory().newDocumentBuilder();
+        }
+        catch (ParserConfigurationException ex)
+        {
+            throw new IOException("Failed to create a parser", ex);
+        }
+
+        long validLength = 0;
+        DataInputStream in
+            = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+        try
+        {
+            if (in.readInt() != HEADER_MAGIC)
+                throw new IOException("Not a contact list journal: " + file);
+            validLength = 4;
+
+            while (true)
+            {
+                byte op = in.readByte();
+                byte kind = in.readByte();
+                String uid = in.readUTF();
+                int length = 2 + 2 + utfLength(uid);
+                Record record;
+
+                if (op == OP_PUT)
+                {
+                    String parentUID = in.readUTF();
+                    byte[] xml = new byte[in.readInt()];
+
+                    in.readFully(xml);
+                    length += 2 + utfLength(parentUID) + 4 + xml.length;
+
+                    Element node
+                        = builder.parse(new ByteArrayInputStream(xml))
+                            .getDocumentElement();
+
+                    record = new Record(kind, uid,
+                        parentUID.length() == 0 ? null : parentUID,
+                        (Element) doc.importNode(node, true));
+                }
+                else if (op == OP_REMOVE)
+                {
+                    record = new Record(kind, uid, null, null);
+                }
+                else
+                {
+                    throw new IOException("Unknown journal record " + op);
+                }
+
+                records.add(record);
+                validLength += length;
+            }
+        }
+        catch (EOFException ex)
+        {
+            // the end of the journal or of the last complete record
+        }
+        catch (Exception ex)
+        {
+            logger.error("Ignoring the contact list journal after record "
+                + records.size(), ex);
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if (validLength < file.length())
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try
+            {
+                raf.setLength(validLength);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Removes all the records, once the contact list file has been written
+     * with all the changes they store.
+     */
+    void clear()
+    {
+        if (file.exists() && !file.delete())
+            logger.warn("Failed to delete the contact list journal " + file);
+    }
+
+    /**
+     * Serializes a node without XML declaration.
+     */
+    private static byte[] serialize(Element node)
+        throws IOException
+    {
+        try
+        {
+            Transformer transformer
+                = TransformerFactory.newInstance().newTransformer();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            transformer.setOutputProperty(
+                OutputKeys.OMIT_XML_DECLARATION, "yes");
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            transformer.transform(
+                new DOMSource(node), new StreamResult(bytes));
+            return bytes.toByteArray();
+        }
+        catch (TransformerException ex)
+        {
+            throw new IOException("Failed to serialize " + node, ex);
+        }
+    }
+
+    /**
+     * Returns the number of bytes of a string written with
+     * <tt>DataOutput.writeUTF</tt>, not counting its length.
+     */
+    private static int utfLength(String s)
+    {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F)
+                length++;
+            else if (c > 0x07FF)
+                length += 3;
+            else
+                length += 2;
+        }
+        return length;
+    }
+
+    /**
+     * The state of a meta contact or meta contact group node.
+     */
+    static class Record
+    {
+        /**
+         * <tt>CONTACT</tt> or <tt>GROUP</tt>.
+         */
+        final byte kind;
+
+        /**
+         * The UID of the meta contact or meta contact group.
+         */
+        final String uid;
+
+        /**
+         * The UID of the meta contact group containing the node or
+         * <tt>null</tt> for the root group or a removed node.
+         */
+        final String parentUID;
+
+        /**
+         * The node with all its children or <tt>null</tt> if it was removed.
+         */
+        final Element node;
+
+        Record(byte kind, String uid, String parentUID, Element node)
+        {
+            this.kind = kind;
+            this.uid = uid;
+            this.parentUID = parentUID;
+            this.node = node;
+        }
+    }
+}
@@ -73,6 +73,66 @@
      */
     private boolean multiTenantMode = false;
 
+    /**
+     * The property to enable the journal mode, in which every change of the
+     * contact list is appended to a journal next to the contact list file
+     * instead of rewriting the whole file. The file is then only rewritten
+     * periodically, when the journal is compacted.
+     */
+    private static final String JOURNAL_ENABLED_PROP =
+        "net.java.sip.communicator.impl.contactlist.JOURNAL_ENABLED";
+
+    /**
+     * The property specifying the maximum number of milliseconds between two
+     * compactions of a non empty journal.
+     */
+    private static final String JOURNAL_COMPACTION_INTERVAL_PROP =
+        "net.java.sip.communicator.impl.contactlist.JOURNAL_COMPACTION_INTERVAL";
+
+    /**
+     * The default value of <tt>JOURNAL_COMPACTION_INTERVAL_PROP</tt>.
+     */
+    private static final long DEFAULT_JOURNAL_COMPACTION_INTERVAL = 5 * 60000;
+
+    /**
+     * The size of the journal in bytes above which it is compacted before
+     * <tt>JOURNAL_COMPACTION_INTERVAL_PROP</tt> elapsed.
+     */
+    private static final long MAX_JOURNAL_SIZE = 256 * 1024;
+
+    /**
+     * Whether <tt>JOURNAL_ENABLED_PROP</tt> has been enabled.
+     */
+    private boolean journalEnabled = false;
+
+    /**
+     * The value of <tt>JOURNAL_COMPACTION_INTERVAL_PROP</tt>.
+     */
+    private long journalCompactionInterval
+        = DEFAULT_JOURNAL_COMPACTION_INTERVAL;
+
+    /**
+     * The journal of the changes made since the contact list file was last
+     * written. It is replayed when starting even if the journal mode is
+     * disabled, so that no change is lost when disabling it.
+     */
+    private MclJournal journal = null;
+
+    /**
+     * The UIDs of the meta contacts and meta contact groups changed since
+     * they were last appended to the journal, mapped to
+     * <tt>MclJournal.CONTACT</tt> or <tt>MclJournal.GROUP</tt>, in the order
+     * of their latest change. Only used in journal mode and guarded by
+     * <tt>contactListRWLock</tt>.
+     */
+    private final Map<String, Byte> journalChanges
+        = new LinkedHashMap<String, Byte>();
+
+    /**
+     * The time the contact list file was last written.
+     */
+    private long lastStoreTime = 0;
+
     /**
      * Indicates whether the storage manager has been properly started or in
      * other words that it has successfully found and read the xml contact list
@@ -109,6 +169,25 @@
      */
     private Document contactListDocument = null;
 
+    /**
+     * The meta contact nodes of <tt>indexedDocument</tt> by UID.
+     */
+    private final Map<String, Element> metaContactNodes
+        = new HashMap<String, Element>();
+
+    /**
+     * The meta contact group nodes of <tt>indexedDocument</tt> by UID.
+     */
+    private final Map<String, Element> metaContactGroupNodes
+        = new HashMap<String, Element>();
+
+    /**
+     * The document indexed in <tt>metaContactNodes</tt> and
+     * <tt>metaContactGroupNodes</tt>, which are rebuilt when
+     * <tt>contactListDocument</tt> is replaced.
+     */
+    private Document indexedDocument = null;
+
     /**
      * A reference to the file containing the locally stored meta contact list.
      */
@@ -334,6 +413,13 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
 
         multiTenantMode = configurationService.getBoolean(
             MULTI_TENANT_MODE_PROP, multiTenantMode);
+        journalEnabled = configurationService.getBoolean(
+            JOURNAL_ENABLED_PROP, journalEnabled);
+        journalCompactionInterval = configurationService.getLong(
+            JOURNAL_COMPACTION_INTERVAL_PROP, journalCompactionInterval);
+        journal = new MclJournal(
+            new File(contactlistFile.getPath() + ".journal"));
+        lastStoreTime = System.currentTimeMillis();
 
         // create the failsafe transaction and restore the file if needed
         try
@@ -361,6 +447,7 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
                 // if the contact list does not exist - create it.
                 contactListDocument = builder.newDocument();
                 initVirginDocument(mclServImpl, contactListDocument);
+                journal.clear();
 
                 // write the contact list so that it is there for the parser
                 storeContactList0();
@@ -370,6 +457,7 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
                 try
                 {
                     contactListDocument = builder.parse(contactlistFile);
+                    replayJournal();
                 }
                 catch (Throwable ex)
                 {
@@ -381,6 +469,7 @@ void start(BundleContext bc, MetaContactListServiceImpl mclServImpl)
                     contactlistFile.createNewFile();
                     contactListDocument = builder.newDocument();
                     initVirginDocument(mclServImpl, contactListDocument);
+                    journal.clear();
 
                     // write the contact list so that it is there for the parser
                     storeContactList0();
@@ -417,6 +506,255 @@ private void scheduleContactListStorage() throws IOException
         }
     }
 
+    /**
+     * Stores the contact list after the node of a single meta contact or meta
+     * contact group was changed, which is only appended to the journal in
+     * journal mode.
+     *
+     * @param kind <tt>MclJournal.CONTACT</tt> or <tt>MclJournal.GROUP</tt>
+     * @param uid the UID of the changed meta contact or meta contact group.
+     * @throws IOException if writing fails.
+     */
+    private void scheduleContactListStorage(byte kind, String uid)
+        throws IOException
+    {
+        if (!journalEnabled)
+        {
+            scheduleContactListStorage();
+            return;
+        }
+
+        synchronized (contactListRWLock)
+        {
+            if (!isStarted())
+                return;
+
+            // records are written from the current state of the nodes, so
+            // they have to follow the order of the latest changes for a node
+            // to be written after its new parent
+            journalChanges.remove(uid);
+            journalChanges.put(uid, kind);
+            contactListRWLock.notifyAll();
+        }
+    }
+
+    /**
+     * Appends the nodes changed since the last call to the journal. Must be
+     * called while holding <tt>contactListRWLock</tt>.
+     *
+     * @throws IOException if writing the journal fails.
+     */
+    private void appendJournalChanges() throws IOException
+    {
+        if (journalChanges.isEmpty())
+            return;
+
+        Map<String, Element> nodes = new LinkedHashMap<String, Element>();
+        Set<String> groupUIDs = new HashSet<String>();
+        for (Map.Entry<String, Byte> change : journalChanges.entrySet())
+        {
+            String uid = change.getKey();
+            Element node;
+
+            if (change.getValue() == MclJournal.GROUP)
+            {
+                node = findMetaContactGroupNode(uid);
+                if (node != null)
+                    groupUIDs.add(uid);
+            }
+            else
+                node = findMetaContactNode(uid);
+            nodes.put(uid, node);
+        }
+
+        List<MclJournal.Record> records = new ArrayList<MclJournal.Record>();
+        for (Map.Entry<String, Byte> change : journalChanges.entrySet())
+        {
+            String uid = change.getKey();
+            byte kind = change.getValue();
+            Element node = nodes.get(uid);
+            String parentUID = null;
+
+            // the record of a group holds its whole subtree already
+            if (node != null && isInGroup(node, groupUIDs))
+                continue;
+
+            if (node != null)
+            {
+                // meta contacts are in the child-contacts node of their group
+                // and groups in the subgroups node of their parent group.
+                Node parent = node.getParentNode().getParentNode();
+
+                if (parent instanceof Element
+                        && GROUP_NODE_NAME.equals(parent.getNodeName()))
+                    parentUID = ((Element) parent).getAttribute(UID_ATTR_NAME);
+            }
+            records.add(new MclJournal.Record(kind, uid, parentUID, node));
+        }
+        journalChanges.clear();
+
+        journal.append(records);
+    }
+
+    /**
+     * Determines whether a node is contained in one of the specified meta
+     * contact groups.
+     *
+     * @param node the node of a meta contact or meta contact group
+     * @param groupUIDs the UIDs of the meta contact groups
+     * @return <tt>true</tt> if an ancestor of <tt>node</tt> is one of the
+     *         groups
+     */
+    private static boolean isInGroup(Element node, Set<String> groupUIDs)
+    {
+        for (Node parent = node.getParentNode();
+                parent instanceof Element;
+                parent = parent.getParentNode())
+        {
+            if (GROUP_NODE_NAME.equals(parent.getNodeName())
+                && groupUIDs.contains(
+                    ((Element) parent).getAttribute(UID_ATTR_NAME)))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replays the journal over the contact list document just parsed from the
+     * contact list file and schedules a compaction if it was not empty.
+     */
+    private void replayJournal()
+    {
+        List<MclJournal.Record> records;
+        try
+        {
+            records = journal.read(contactListDocument);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Failed to read the contact list journal", ex);
+            return;
+        }
+
+        for (MclJournal.Record record : records)
+        {
+            Map<String, Element> nodes
+                = (record.kind == MclJournal.GROUP)
+                    ? metaContactGroupNodes
+                    : metaContactNodes;
+            Element oldNode = findNode(nodes, record.uid);
+
+            if (record.node == null)
+            {
+                if (oldNode != null)
+                    oldNode.getParentNode().removeChild(oldNode);
+                continue;
+            }
+
+            Node container;
+            if (record.parentUID == null)
+            {
+                container = contactListDocument.getDocumentElement();
+            }
+            else
+            {
+                Element parent = findMetaContactGroupNode(record.parentUID);
+                if (parent == null)
+                {
+                    logger.error("Skipping journal record for " + record.uid
+                        + " without parent " + record.parentUID);
+                    continue;
+                }
+                container
+                    = XMLUtils.findChild(parent,
+                        (record.kind == MclJournal.GROUP)
+                            ? SUBGROUPS_NODE_NAME
+                            : CHILD_CONTACTS_NODE_NAME);
+            }
+
+            // the nodes in a group record may have been moved into the group
+            // from elsewhere, where they must not remain as duplicates
+            if (record.kind == MclJournal.GROUP)
+                removeNodesOutside(record.node, oldNode);
+
+            if (oldNode != null && oldNode.getParentNode() == container)
+            {
+                container.replaceChild(record.node, oldNode);
+            }
+            else
+            {
+                if (oldNode != null)
+                    oldNode.getParentNode().removeChild(oldNode);
+                container.appendChild(record.node);
+            }
+
+            // index the new node and, for groups, all the nodes it contains
+            indexNodes(record.node);
+        }
+
+        if (!records.isEmpty())
+        {
+            if (logger.isInfoEnabled())
+                logger.info("Replayed " + records.size()
+                    + " contact list journal records");
+            isModified = true;
+        }
+    }
+
+    /**
+     * Removes from the contact list document the meta contact and meta
+     * contact group nodes with the UIDs of the nodes contained in a replayed
+     * group node, except for those in the group node it replaces.
+     *
+     * @param node the replayed group node, not in the document yet
+     * @param oldNode the node replaced by <tt>node</tt> or <tt>null</tt>
+     */
+    private void removeNodesOutside(Element node, Element oldNode)
+    {
+        for (String name
+                : new String[] { META_CONTACT_NODE_NAME, GROUP_NODE_NAME })
+        {
+            Map<String, Element> nodes
+                = GROUP_NODE_NAME.equals(name)
+                    ? metaContactGroupNodes
+                    : metaContactNodes;
+            NodeList list = node.getElementsByTagName(name);
+
+            for (int i = 0; i < list.getLength(); i++)
+            {
+                String uid
+                    = ((Element) list.item(i)).getAttribute(UID_ATTR_NAME);
+                Element existing;
+
+                while ((existing = findNode(nodes, uid)) != null
+                        && !isDescendant(existing, oldNode))
+                    existing.getParentNode().removeChild(existing);
+            }
+        }
+    }
+
+    /**
+     * Determines whether a node is contained in another one.
+     *
+     * @param node the node
+     * @param ancestor the possible ancestor or <tt>null</tt>
+     * @return <tt>true</tt> if <tt>ancestor</tt> contains <tt>node</tt>
+     */
+    private static boolean isDescendant(Node node, Node ancestor)
+    {
+        if (ancestor == null)
+            return false;
+
+        for (Node parent = node.getParentNode();
+                parent != null;
+                parent = parent.getParentNode())
+        {
+            if (parent == ancestor)
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Writes the contact list on the hard disk.
      *
@@ -442,6 +780,21 @@ private void storeContactList0() throws IOException
                 logger.error("the contactlist file is missing", e);
             }
 
+            // make sure the journal is complete in case we fail before
+            // clearing it, as its records are replayed over the new file then
+            if (journalEnabled)
+            {
+                try
+                {
+                    appendJournalChanges();
+                }
+                catch (IOException ex)
+                {
+                    logger.error("Appending to the contact list journal "
+                        + "failed", ex);
+                }
+            }
+
             // really write the modification
             OutputStream stream = new FileOutputStream(contactlistFile);
             XMLUtils.indentedWriteXML(contactListDocument, stream);
@@ -456,6 +809,9 @@ private void storeContactList0() throws IOException
             {
                 logger.error("the contactlist file is missing", e);
             }
+
+            journal.clear();
+            lastStoreTime = System.currentTimeMillis();
         }
     }
 
@@ -478,10 +834,24 @@ public void run()
                         while (isStarted())
                         {
                             contactListRWLock.wait(5000);
-                            if (isModified)
+                            if (isModified || isJournalCompactionDue())
                             {
-                                storeContactList0();
                                 isModified = false;
+                                storeContactList0();
+                            }
+                            else if (journalEnabled)
+                            {
+                                try
+                                {
+                                    appendJournalChanges();
+                                }
+                                catch (IOException ex)
+                                {
+                                    // the next pass writes the whole file
+                                    logger.error("Appending to the contact "
+                                        + "list journal failed", ex);
+                                    isModified = true;
+                                }
                             }
                         }
                     }
@@ -501,6 +871,23 @@ public void run()
         }.start();
     }
 
+    /**
+     * Determines whether the journal has to be compacted by rewriting the
+     * contact list file, because it grew too large or because it was not
+     * compacted for too long.
+     *
+     * @return <tt>true</tt> if the contact list file has to be rewritten.
+     */
+    private boolean isJournalCompactionDue()
+    {
+        long length = journal.length();
+
+        return length > 0
+            && (length >= MAX_JOURNAL_SIZE
+                || System.currentTimeMillis() - lastStoreTime
+                    >= journalCompactionInterval);
+    }
+
     /**
      * Stops the storage manager and performs a final write
      */
@@ -511,6 +898,20 @@ public void storeContactListAndStopStorageManager()
             if (!isStarted())
                 return;
 
+            // the changes not yet in the journal are lost otherwise
+            if (journalEnabled)
+            {
+                try
+                {
+                    appendJournalChanges();
+                }
+                catch (IOException ex)
+                {
+                    logger.error("Failed to append to the contact list "
+                        + "journal before stopping", ex);
+                }
+            }
+
             started = false;
 
             // make sure everyone gets released after we finish.
@@ -1167,6 +1568,7 @@ private Element createMetaContactNode(MetaContact metaContact)
 
         metaContactElement
             .setAttribute(UID_ATTR_NAME, metaContact.getMetaUID());
+        indexNode(metaContactNodes, metaContactElement);
 
         // create the display name node
         Element displayNameNode =
@@ -1213,6 +1615,7 @@ private Element createMetaContactGroupNode(MetaContactGroup metaGroup)
             .getGroupName());
 
         metaGroupElement.setAttribute(UID_ATTR_NAME, metaGroup.getMetaUID());
+        indexNode(metaContactGroupNodes, metaGroupElement);
 
         // create and fill the proto groups node
         Element protoGroupsElement =
@@ -1306,7 +1709,8 @@ public void metaContactAdded(MetaContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.CONTACT, evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1360,7 +1764,9 @@ public void metaContactGroupAdded(MetaContactGroupEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.GROUP,
+                evt.getSourceMetaContactGroup().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1399,7 +1805,9 @@ public void metaContactGroupRemoved(MetaContactGroupEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.GROUP,
+                evt.getSourceMetaContactGroup().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1458,7 +1866,8 @@ public void metaContactMoved(MetaContactMovedEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.CONTACT, evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1544,7 +1953,8 @@ public void metaContactRemoved(MetaContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.CONTACT, evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1599,7 +2009,8 @@ public void metaContactRenamed(MetaContactRenamedEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.CONTACT, evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1639,7 +2050,8 @@ public void protoContactModified(ProtoContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.CONTACT, evt.getParent().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1785,7 +2197,8 @@ else if (oldValue != null && newValue != null)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.CONTACT, evt.getSourceMetaContact().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1827,7 +2240,8 @@ public void protoContactRemoved(ProtoContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.CONTACT, evt.getOldParent().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1895,7 +2309,8 @@ public void metaContactGroupModified(MetaContactGroupEvent evt)
 
             try
             {
-                scheduleContactListStorage();
+                scheduleContactListStorage(
+                    MclJournal.GROUP, mcGroup.getMetaUID());
             }
             catch (IOException ex)
             {
@@ -1918,7 +2333,8 @@ public void metaContactGroupModified(MetaContactGroupEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.GROUP, mcGroup.getMetaUID());
         }
         catch (IOException ex)
         {
@@ -1967,7 +2383,8 @@ public void protoContactAdded(ProtoContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.CONTACT, evt.getParent().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -2025,7 +2442,10 @@ public void protoContactMoved(ProtoContactEvent evt)
 
         try
         {
-            scheduleContactListStorage();
+            scheduleContactListStorage(
+                MclJournal.CONTACT, evt.getOldParent().getMetaUID());
+            scheduleContactListStorage(
+                MclJournal.CONTACT, evt.getNewParent().getMetaUID());
         }
         catch (IOException ex)
         {
@@ -2051,10 +2471,7 @@ public void protoContactMoved(ProtoContactEvent evt)
      */
     private Element findMetaContactNode(String metaContactUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
-
-        return XMLUtils.locateElement(root, META_CONTACT_NODE_NAME,
-            UID_ATTR_NAME, metaContactUID);
+        return findNode(metaContactNodes, metaContactUID);
     }
 
     /**
@@ -2069,10 +2486,146 @@ private Element findMetaContactNode(String metaContactUID)
      */
     private Element findMetaContactGroupNode(String metaContactGroupUID)
     {
-        Element root = (Element) contactListDocument.getFirstChild();
+        return findNode(metaContactGroupNodes, metaContactGroupUID);
+    }
+
+    /**
+     * Returns the node with the specified UID from one of the node indexes.
+     * The index is rebuilt from the document when it was not built for the
+     * current document yet or when the indexed node was removed from the
+     * document since, so that a node is found the same way as when walking
+     * the whole document.
+     *
+     * @param nodes <tt>metaContactNodes</tt> or
+     *            <tt>metaContactGroupNodes</tt>
+     * @param uid the UID of the node we are looking for.
+     * @return the first node in document order with the specified UID or
+     *         null if there is no such node in the contact list document.
+     */
+    private synchronized Element findNode(Map<String, Element> nodes,
+        String uid)
+    {
+        if (indexedDocument != contactListDocument)
+            indexNodes();
+
+        Element node = nodes.get(uid);
+        if (node != null && !isInDocument(node, uid))
+        {
+            // the node was removed or changed since it was indexed
+            indexNodes();
+            node = nodes.get(uid);
+        }
+        return node;
+    }
+
+    /**
+     * Adds a newly created meta contact or meta contact group node to its
+     * index, replacing any node previously indexed with the same UID unless
+     * that one is still in the document.
+     *
+     * @param nodes <tt>metaContactNodes</tt> or
+     *            <tt>metaContactGroupNodes</tt>
+     * @param node the new node
+     */
+    private synchronized void indexNode(Map<String, Element> nodes,
+        Element node)
+    {
+        // a node of another document is indexed when the index is rebuilt
+        if (indexedDocument == contactListDocument
+            && indexedDocument == node.getOwnerDocument())
+        {
+            String uid = node.getAttribute(UID_ATTR_NAME);
+            Element indexed = nodes.get(uid);
+
+            if (indexed == null || !isInDocument(indexed, uid))
+                nodes.put(uid, node);
+        }
+    }
+
+    /**
+     * Rebuilds the meta contact and meta contact group node indexes from the
+     * current contact list document.
+     */
+    private void indexNodes()
+    {
+        metaContactNodes.clear();
+        metaContactGroupNodes.clear();
+        indexedDocument = contactListDocument;
+
+        if (indexedDocument == null)
+            return;
+
+        indexNodes(metaContactNodes, META_CONTACT_NODE_NAME);
+        indexNodes(metaContactGroupNodes, GROUP_NODE_NAME);
+    }
+
+    /**
+     * Indexes all the nodes with a specific name in the contact list document,
+     * keeping the first in document order when several have the same UID.
+     *
+     * @param nodes the index to fill
+     * @param nodeName the name of the nodes to index
+     */
+    private void indexNodes(Map<String, Element> nodes, String nodeName)
+    {
+        NodeList list = indexedDocument.getElementsByTagName(nodeName);
+        for (int i = 0; i < list.getLength(); i++)
+        {
+            Element node = (Element) list.item(i);
+            String uid = node.getAttribute(UID_ATTR_NAME);
+
+            if (!nodes.containsKey(uid))
+                nodes.put(uid, node);
+        }
+    }
+
+    /**
+     * Indexes a node inserted in the contact list document together with all
+     * the meta contact and meta contact group nodes it contains.
+     *
+     * @param node the inserted node
+     */
+    private synchronized void indexNodes(Element node)
+    {
+        if (indexedDocument != contactListDocument)
+            return;
+
+        List<Element> nodes = new ArrayList<Element>();
+        nodes.add(node);
+        for (String name
+                : new String[] { META_CONTACT_NODE_NAME, GROUP_NODE_NAME })
+        {
+            NodeList list = node.getElementsByTagName(name);
+            for (int i = 0; i < list.getLength(); i++)
+                nodes.add((Element) list.item(i));
+        }
+
+        for (Element e : nodes)
+        {
+            if (META_CONTACT_NODE_NAME.equals(e.getNodeName()))
+                indexNode(metaContactNodes, e);
+            else if (GROUP_NODE_NAME.equals(e.getNodeName()))
+                indexNode(metaContactGroupNodes, e);
+        }
+    }
+
+    /**
+     * Determines whether an indexed node still has the specified UID and is
+     * still part of the contact list document.
+     *
+     * @param node the indexed node
+     * @param uid the UID it was indexed with
+     * @return <tt>true</tt> if <tt>node</tt> can be returned for <tt>uid</tt>
+     */
+    private boolean isInDocument(Element node, String uid)
+    {
+        if (!uid.equals(node.getAttribute(UID_ATTR_NAME)))
+            return false;
 
-        return XMLUtils.locateElement(root, GROUP_NODE_NAME, UID_ATTR_NAME,
-            metaContactGroupUID);
+        Node parent = node.getParentNode();
+        while (parent != null && parent != contactListDocument)
+            parent = parent.getParentNode();
+        return parent != null;
     }
 
     /**
@@ -2081,6 +2634,8 @@ private Element findMetaContactGroupNode(String metaContactGroupUID)
     void removeContactListFile()
     {
         this.contactlistFile.delete();
+        if (journal != null)
+            journal.clear();
     }
 
     /**
@@ -708,6 +708,10 @@ void addMetaContact(MetaContactImpl metaContact)
         metaContact.setParentGroup(this);
 
         lightAddMetaContact(metaContact);
+
+        MetaContactIndex metaContactIndex = getMetaContactIndex();
+        if (metaContactIndex != null)
+            metaContactIndex.metaContactAdded(metaContact);
     }
 
     /**
@@ -763,6 +767,10 @@ void lightRemoveMetaContact(MetaContactImpl metaContact)
      */
     void removeMetaContact(MetaContactImpl metaContact)
     {
+        MetaContactIndex metaContactIndex = getMetaContactIndex();
+        if (metaContactIndex != null)
+            metaContactIndex.metaContactRemoved(metaContact);
+
         metaContact.unsetParentGroup(this);
         lightRemoveMetaContact(metaContact);
     }
@@ -975,6 +983,10 @@ void addSubgroup(MetaContactGroup subgroup)
 
         this.subgroupsOrderedCopy =
             new LinkedList<MetaContactGroup>(subgroups);
+
+        MetaContactIndex metaContactIndex = getMetaContactIndex();
+        if (metaContactIndex != null)
+            metaContactIndex.groupAdded(subgroup);
     }
 
     /**
@@ -992,6 +1004,10 @@ MetaContactGroupImpl removeSubgroup(int index)
 
         subgroupsOrderedCopy = new LinkedList<MetaContactGroup>(subgroups);
 
+        MetaContactIndex metaContactIndex = getMetaContactIndex();
+        if (metaContactIndex != null)
+            metaContactIndex.groupRemoved(subgroup);
+
         return subgroup;
     }
 
@@ -1024,6 +1040,18 @@ final MetaContactListServiceImpl getMclServiceImpl()
         return mclServiceImpl;
     }
 
+    /**
+     * Returns the index of the meta contacts of the
+     * <tt>MetaContactListService</tt> to which this group belongs.
+     * @return the index or <tt>null</tt> if it is not created yet
+     */
+    final MetaContactIndex getMetaContactIndex()
+    {
+        return (mclServiceImpl == null)
+            ? null
+            : mclServiceImpl.getMetaContactIndex();
+    }
+
     /**
      * Implements {@link MetaContactGroup#getData(Object)}.
      * @return the data value corresponding to the given key
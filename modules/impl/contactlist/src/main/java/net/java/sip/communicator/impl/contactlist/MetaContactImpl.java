@@ -713,6 +713,10 @@ void addProtoContact(Contact contact)
             if (parentGroup != null)
                 parentGroup.lightAddMetaContact(this);
 
+            MetaContactIndex metaContactIndex = getMetaContactIndex();
+            if (metaContactIndex != null)
+                metaContactIndex.contactAdded(this, contact);
+
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
 
@@ -806,6 +810,10 @@ void removeProtoContact(Contact contact)
             if (parentGroup != null)
                 parentGroup.lightAddMetaContact(this);
 
+            MetaContactIndex metaContactIndex = getMetaContactIndex();
+            if (metaContactIndex != null)
+                metaContactIndex.contactRemoved(this, contact);
+
             ProtocolProviderService contactProvider
                 = contact.getProtocolProvider();
 
@@ -836,6 +844,7 @@ boolean removeContactsForProvider(ProtocolProviderService provider)
     {
         boolean modified = false;
         Iterator<Contact> contactsIter = protoContacts.iterator();
+        MetaContactIndex metaContactIndex = getMetaContactIndex();
 
         while(contactsIter.hasNext())
         {
@@ -845,6 +854,8 @@ boolean removeContactsForProvider(ProtocolProviderService provider)
             {
                 contactsIter.remove();
                 modified = true;
+                if (metaContactIndex != null)
+                    metaContactIndex.contactRemoved(this, contact);
             }
         }
 
@@ -869,6 +880,7 @@ boolean removeContactsForGroup(ContactGroup protoGroup)
     {
         boolean modified = false;
         Iterator<Contact> contactsIter = protoContacts.iterator();
+        MetaContactIndex metaContactIndex = getMetaContactIndex();
 
         while(contactsIter.hasNext())
         {
@@ -878,6 +890,8 @@ boolean removeContactsForGroup(ContactGroup protoGroup)
             {
                 contactsIter.remove();
                 modified = true;
+                if (metaContactIndex != null)
+                    metaContactIndex.contactRemoved(this, contact);
             }
         }
 
@@ -1166,6 +1180,19 @@ private void addCapabilities(   Contact contact,
         }
     }
 
+    /**
+     * Returns the index of the contact list containing this meta contact.
+     *
+     * @return the index or <tt>null</tt> if this meta contact is not in a
+     * group
+     */
+    private MetaContactIndex getMetaContactIndex()
+    {
+        MetaContactGroupImpl parentGroup = this.parentGroup;
+
+        return (parentGroup == null) ? null : parentGroup.getMetaContactIndex();
+    }
+
     /**
      * Gets the sync lock for use when modifying {@link #parentGroup}.
      *
@@ -0,0 +1,285 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Indexes the meta contacts of a <tt>MetaContactListServiceImpl</tt> by meta
+ * UID and by the account and address of their protocol contacts, so that
+ * looking one up does not walk the whole contact list.
+ * <p>
+ * Meta contacts and protocol contacts are indexed as they are added to the
+ * contact list by <tt>MetaContactGroupImpl</tt> and
+ * <tt>MetaContactImpl</tt>, and unindexed as they are removed. Because a
+ * meta contact may also be detached from the contact list without going
+ * through these paths, a meta contact found in the index is only returned
+ * if it still belongs to the contact list and still has the looked up UID
+ * or protocol contact.
+ */
+class MetaContactIndex
+{
+    /**
+     * The root of the indexed contact list.
+     */
+    private final MetaContactGroupImpl root;
+
+    /**
+     * The meta contacts by meta UID.
+     */
+    private final ConcurrentMap<String, MetaContactImpl> metaContactsByUID
+        = new ConcurrentHashMap<String, MetaContactImpl>();
+
+    /**
+     * The meta contacts by the account unique ID and the address of their
+     * protocol contacts.
+     */
+    private final ConcurrentMap<ContactKey, MetaContactImpl>
+        metaContactsByContact
+            = new ConcurrentHashMap<ContactKey, MetaContactImpl>();
+
+    /**
+     * Creates an empty index.
+     *
+     * @param root the root group of the indexed contact list.
+     */
+    MetaContactIndex(MetaContactGroupImpl root)
+    {
+        this.root = root;
+    }
+
+    /**
+     * Returns the meta contact with the specified meta UID.
+     *
+     * @param metaUID the meta UID of the meta contact.
+     * @return the meta contact or <tt>null</tt> if it is not in the contact
+     * list.
+     */
+    MetaContact findMetaContactByMetaUID(String metaUID)
+    {
+        MetaContactImpl metaContact = metaContactsByUID.get(metaUID);
+
+        if (metaContact != null
+            && !(metaContact.getMetaUID().equals(metaUID)
+                    && isInContactList(metaContact)))
+        {
+            metaContactsByUID.remove(metaUID, metaContact);
+            metaContact = null;
+        }
+        return metaContact;
+    }
+
+    /**
+     * Returns the meta contact containing a protocol contact with the
+     * specified address from the account with the specified unique ID.
+     *
+     * @param contactAddress the address of the protocol contact.
+     * @param accountID the unique ID of the account of the protocol contact.
+     * @return the meta contact or <tt>null</tt> if there is no such protocol
+     * contact in the contact list.
+     */
+    MetaContact findMetaContactByContact(String contactAddress,
+                                         String accountID)
+    {
+        ContactKey key = new ContactKey(accountID, contactAddress);
+        MetaContactImpl metaContact = metaContactsByContact.get(key);
+
+        if (metaContact != null
+            && !(metaContact.getContact(contactAddress, accountID) != null
+                    && isInContactList(metaContact)))
+        {
+            metaContactsByContact.remove(key, metaContact);
+            metaContact = null;
+        }
+        return metaContact;
+    }
+
+    /**
+     * Returns the meta contact containing a protocol contact with the address
+     * and the provider of the specified one.
+     *
+     * @param protoContact the protocol contact.
+     * @return the meta contact or <tt>null</tt> if the index does not have a
+     * meta contact for <tt>protoContact</tt>.
+     */
+    MetaContact findMetaContactByContact(Contact protoContact)
+    {
+        ContactKey key = new ContactKey(protoContact);
+        MetaContactImpl metaContact = metaContactsByContact.get(key);
+
+        if (metaContact != null
+            && !(metaContact.getContact(
+                        protoContact.getAddress(),
+                        protoContact.getProtocolProvider()) != null
+                    && isInContactList(metaContact)))
+        {
+            metaContactsByContact.remove(key, metaContact);
+            metaContact = null;
+        }
+        return metaContact;
+    }
+
+    /**
+     * Indexes a protocol contact added to a meta contact.
+     *
+     * @param metaContact the meta contact.
+     * @param protoContact the protocol contact added to <tt>metaContact</tt>.
+     */
+    void contactAdded(MetaContactImpl metaContact, Contact protoContact)
+    {
+        metaContactsByContact.put(new ContactKey(protoContact), metaContact);
+    }
+
+    /**
+     * Unindexes a protocol contact removed from a meta contact.
+     *
+     * @param metaContact the meta contact.
+     * @param protoContact the protocol contact removed from
+     * <tt>metaContact</tt>.
+     */
+    void contactRemoved(MetaContactImpl metaContact, Contact protoContact)
+    {
+        metaContactsByContact.remove(
+            new ContactKey(protoContact), metaContact);
+    }
+
+    /**
+     * Indexes a meta contact added to a group and its protocol contacts.
+     *
+     * @param metaContact the meta contact.
+     */
+    void metaContactAdded(MetaContactImpl metaContact)
+    {
+        metaContactsByUID.put(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            contactAdded(metaContact, contacts.next());
+    }
+
+    /**
+     * Unindexes a meta contact removed from its group and its protocol
+     * contacts.
+     *
+     * @param metaContact the meta contact.
+     */
+    void metaContactRemoved(MetaContactImpl metaContact)
+    {
+        metaContactsByUID.remove(metaContact.getMetaUID(), metaContact);
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while (contacts.hasNext())
+            contactRemoved(metaContact, contacts.next());
+    }
+
+    /**
+     * Indexes the meta contacts of a group, and of its subgroups, added to
+     * another group.
+     *
+     * @param group the added group.
+     */
+    void groupAdded(MetaContactGroup group)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            metaContactAdded((MetaContactImpl) metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            groupAdded(subgroups.next());
+    }
+
+    /**
+     * Unindexes the meta contacts of a group, and of its subgroups, removed
+     * from its parent group.
+     *
+     * @param group the removed group.
+     */
+    void groupRemoved(MetaContactGroup group)
+    {
+        Iterator<MetaContact> metaContacts = group.getChildContacts();
+        while (metaContacts.hasNext())
+            metaContactRemoved((MetaContactImpl) metaContacts.next());
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+        while (subgroups.hasNext())
+            groupRemoved(subgroups.next());
+    }
+
+    /**
+     * Determines whether a meta contact is in one of the groups of the
+     * indexed contact list.
+     *
+     * @param metaContact the meta contact.
+     * @return <tt>true</tt> if <tt>root</tt> is an ancestor of
+     * <tt>metaContact</tt>.
+     */
+    private boolean isInContactList(MetaContact metaContact)
+    {
+        MetaContactGroup group = metaContact.getParentMetaContactGroup();
+
+        while (group != null && group != root)
+            group = group.getParentMetaContactGroup();
+        return group == root;
+    }
+
+    /**
+     * The key of a protocol contact: the unique ID of its account and its
+     * address.
+     */
+    private static class ContactKey
+    {
+        private final String accountID;
+
+        private final String address;
+
+        ContactKey(String accountID, String address)
+        {
+            this.accountID = accountID;
+            this.address = address;
+        }
+
+        ContactKey(Contact contact)
+        {
+            this(contact.getProtocolProvider().getAccountID()
+                    .getAccountUniqueID(),
+                contact.getAddress());
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof ContactKey))
+                return false;
+
+            ContactKey other = (ContactKey) obj;
+            return Objects.equals(accountID, other.accountID)
+                && Objects.equals(address, other.address);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(accountID, address);
+        }
+    }
+}
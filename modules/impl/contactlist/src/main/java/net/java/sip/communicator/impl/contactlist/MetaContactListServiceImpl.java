@@ -41,7 +41,7 @@
 public class MetaContactListServiceImpl
     implements MetaContactListService,
                ServiceListener,
-               ContactPresenceStatusListener,
+               ContactPresenceStatusBatchListener,
                ContactCapabilitiesListener
 {
     /**
@@ -66,6 +66,11 @@
      */
     final MetaContactGroupImpl rootMetaGroup;
 
+    /**
+     * The index of the meta contacts in the meta contact list.
+     */
+    private final MetaContactIndex metaContactIndex;
+
     /**
      * The event handler that will be handling our subscription events.
      */
@@ -134,6 +139,17 @@ public MetaContactListServiceImpl(ResourceManagementService res)
             = new MetaContactGroupImpl(
                     this, res.getI18NString(
                         "service.gui.CONTACTS"), "RootMetaContactGroup");
+        metaContactIndex = new MetaContactIndex(rootMetaGroup);
+    }
+
+    /**
+     * Returns the index of the meta contacts in the meta contact list.
+     *
+     * @return the index of the meta contacts in the meta contact list.
+     */
+    MetaContactIndex getMetaContactIndex()
+    {
+        return metaContactIndex;
     }
 
     /**
@@ -1644,7 +1660,7 @@ private void locallyRemoveAllContactsForProvider(
      */
     public MetaContact findMetaContactByContact(Contact contact)
     {
-        return rootMetaGroup.findMetaContactByContact(contact);
+        return metaContactIndex.findMetaContactByContact(contact);
     }
 
     /**
@@ -1667,8 +1683,8 @@ public MetaContact findMetaContactByContact(Contact contact)
     public MetaContact findMetaContactByContact(String contactAddress,
                                                 String accountID)
     {
-        return rootMetaGroup.findMetaContactByContact(contactAddress
-                                                      , accountID);
+        return metaContactIndex.findMetaContactByContact(contactAddress
+                                                         , accountID);
     }
 
     /**
@@ -1681,8 +1697,7 @@ public MetaContact findMetaContactByContact(String contactAddress,
      */
     public MetaContact findMetaContactByMetaUID(String metaContactID)
     {
-
-        return rootMetaGroup.findMetaContactByMetaUID(metaContactID);
+        return metaContactIndex.findMetaContactByMetaUID(metaContactID);
     }
 
     /**
@@ -3149,27 +3164,82 @@ else if (eventName.equals(ProtoContactEvent.PROTO_CONTACT_MODIFIED))
      */
     public void contactPresenceStatusChanged(
         ContactPresenceStatusChangeEvent evt)
+    {
+        MetaContactGroup reorderedGroup = reevalContact(evt);
+
+        if(reorderedGroup != null)
+        {
+            fireMetaContactGroupEvent(
+                reorderedGroup
+                , evt.getSourceProvider()
+                , null
+                , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
+        }
+    }
+
+    /**
+     * Updates the ordering of the meta contacts of a batch of status
+     * notifications, and notifies the reordering of each of their parent
+     * groups once for the whole batch.
+     *
+     * @param evts the ContactPresenceStatusChangeEvents describing the status
+     * changes.
+     */
+    public void contactPresenceStatusesChanged(
+        List<ContactPresenceStatusChangeEvent> evts)
+    {
+        Map<MetaContactGroup, ProtocolProviderService> reorderedGroups
+            = new LinkedHashMap<MetaContactGroup, ProtocolProviderService>();
+
+        for (ContactPresenceStatusChangeEvent evt : evts)
+        {
+            MetaContactGroup reorderedGroup = reevalContact(evt);
+
+            if(reorderedGroup != null
+                && !reorderedGroups.containsKey(reorderedGroup))
+            {
+                reorderedGroups.put(reorderedGroup, evt.getSourceProvider());
+            }
+        }
+
+        for (Map.Entry<MetaContactGroup, ProtocolProviderService> entry
+                : reorderedGroups.entrySet())
+        {
+            fireMetaContactGroupEvent(
+                entry.getKey()
+                , entry.getValue()
+                , null
+                , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
+        }
+    }
+
+    /**
+     * Finds the meta contact of a status notification and updates its
+     * ordering in its parent group.
+     *
+     * @param evt the ContactPresenceStatusChangeEvent describing the status
+     * change.
+     * @return the parent group of the meta contact if the meta contact has
+     * moved in it, <tt>null</tt> otherwise.
+     */
+    private MetaContactGroup reevalContact(
+        ContactPresenceStatusChangeEvent evt)
     {
         MetaContactImpl metaContactImpl =
             (MetaContactImpl) findMetaContactByContact(evt.getSourceContact());
 
         //ignore if we have no meta contact.
         if(metaContactImpl == null)
-            return;
+            return null;
 
         int oldContactIndex = metaContactImpl.getParentGroup()
             .indexOf(metaContactImpl);
 
         int newContactIndex = metaContactImpl.reevalContact();
 
-        if(oldContactIndex != newContactIndex)
-        {
-            fireMetaContactGroupEvent(
-                findParentMetaContactGroup(metaContactImpl)
-                , evt.getSourceProvider()
-                , null
-                , MetaContactGroupEvent.CHILD_CONTACTS_REORDERED);
-        }
+        return (oldContactIndex != newContactIndex)
+            ? findParentMetaContactGroup(metaContactImpl)
+            : null;
     }
 
 
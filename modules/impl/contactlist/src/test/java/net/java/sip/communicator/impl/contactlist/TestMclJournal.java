@@ -0,0 +1,258 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.contactlist;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.util.*;
+
+import javax.xml.parsers.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.contactlist.event.*;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.jitsi.service.resources.*;
+import org.osgi.framework.*;
+import org.w3c.dom.*;
+
+/**
+ * Tests that the changes appended to the journal of the
+ * <tt>MclStorageManager</tt> are replayed after a restart which did not
+ * rewrite the contact list file, like after a crash.
+ */
+public class TestMclJournal
+    extends TestCase
+{
+    private File directory;
+
+    private BundleContext bundleContext;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("mcl-journal").toFile();
+
+        Map<Class<?>, Object> services = new HashMap<Class<?>, Object>();
+        services.put(ConfigurationService.class,
+            proxy(ConfigurationService.class, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    if (method.getName().equals("getBoolean")
+                        && ((String) args[0]).endsWith("JOURNAL_ENABLED"))
+                        return Boolean.TRUE;
+                    return (args != null && args.length == 2)
+                        ? args[1]
+                        : null;
+                }
+            }));
+        services.put(FileAccessService.class,
+            proxy(FileAccessService.class, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    if (method.getName().equals("getPrivatePersistentFile"))
+                        return new File(directory, (String) args[0]);
+                    if (method.getName().equals("createFailSafeTransaction"))
+                        return proxy(FailSafeTransaction.class, null);
+                    return null;
+                }
+            }));
+        bundleContext = proxy(BundleContext.class, new ServiceRegistry(
+            services));
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        File[] files = directory.listFiles();
+        if (files != null)
+        {
+            for (File file : files)
+                file.delete();
+        }
+        directory.delete();
+    }
+
+    /**
+     * Creates a group, moves an existing contact into it and reloads the
+     * contact list from the file and the journal. The contact has to be in
+     * the new group, and only there.
+     */
+    public void testCreateGroupAndMoveContact()
+        throws Exception
+    {
+        String xml = "<sip-communicator>"
+            + "<group name=\"Contacts\" uid=\"RootMetaContactGroup\">"
+            + "<proto-groups/><subgroups>"
+            + "<group name=\"Old\" uid=\"old\"><proto-groups/><subgroups/>"
+            + "<child-contacts><meta-contact uid=\"contact\">"
+            + "<display-name>Contact</display-name></meta-contact>"
+            + "</child-contacts></group>"
+            + "</subgroups><child-contacts/></group>"
+            + "</sip-communicator>";
+        Files.write(new File(directory, "contactlist.xml").toPath(),
+            xml.getBytes("UTF-8"));
+
+        MetaContactListServiceImpl mcl = createMetaContactList();
+        MetaContactGroupImpl root = (MetaContactGroupImpl) mcl.getRoot();
+        MetaContactGroupImpl oldGroup
+            = new MetaContactGroupImpl(mcl, "Old", "old");
+        root.addSubgroup(oldGroup);
+        MetaContactImpl contact = new MetaContactImpl("contact", null);
+        contact.setDisplayName("Contact");
+        oldGroup.addMetaContact(contact);
+
+        MclStorageManager storage = new MclStorageManager();
+        storage.start(bundleContext, mcl);
+
+        MetaContactGroupImpl newGroup
+            = new MetaContactGroupImpl(mcl, "New");
+        root.addSubgroup(newGroup);
+        storage.metaContactGroupAdded(new MetaContactGroupEvent(
+            newGroup, null, null,
+            MetaContactGroupEvent.META_CONTACT_GROUP_ADDED));
+
+        oldGroup.removeMetaContact(contact);
+        newGroup.addMetaContact(contact);
+        storage.metaContactMoved(
+            new MetaContactMovedEvent(contact, oldGroup, newGroup));
+
+        // wait for the storage thread to flush the journal and stop without
+        // rewriting the contact list file
+        File journal = new File(directory, "contactlist.xml.journal");
+        for (int i = 0; i < 50 && journal.length() == 0; i++)
+            Thread.sleep(100);
+        Thread.sleep(500);
+        storage.stop();
+        assertTrue("the changes were not journaled", journal.length() > 0);
+
+        // the replayed changes get written to the contact list file, which
+        // clears the journal
+        MclStorageManager reloaded = new MclStorageManager();
+        reloaded.start(bundleContext, createMetaContactList());
+        for (int i = 0; i < 100 && journal.exists(); i++)
+            Thread.sleep(100);
+        reloaded.stop();
+        assertFalse("the journal was not replayed", journal.exists());
+
+        Document document = DocumentBuilderFactory.newInstance()
+            .newDocumentBuilder().parse(new File(directory, "contactlist.xml"));
+        List<Element> nodes = new ArrayList<Element>();
+        NodeList list = document.getElementsByTagName("meta-contact");
+        for (int i = 0; i < list.getLength(); i++)
+        {
+            Element node = (Element) list.item(i);
+            if (contact.getMetaUID().equals(node.getAttribute("uid")))
+                nodes.add(node);
+        }
+
+        assertEquals("the contact was lost or duplicated", 1, nodes.size());
+        Element group
+            = (Element) nodes.get(0).getParentNode().getParentNode();
+        assertEquals(newGroup.getMetaUID(), group.getAttribute("uid"));
+    }
+
+    private static MetaContactListServiceImpl createMetaContactList()
+    {
+        return new MetaContactListServiceImpl(
+            proxy(ResourceManagementService.class, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    return method.getName().equals("getI18NString")
+                        ? "Contacts"
+                        : null;
+                }
+            }));
+    }
+
+    /**
+     * Creates a proxy of an interface whose methods are handled by
+     * <tt>handler</tt> or all return <tt>null</tt>.
+     */
+    private static <T> T proxy(Class<T> type, final InvocationHandler handler)
+    {
+        return type.cast(Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                    throws Throwable
+                {
+                    if (method.getDeclaringClass() == Object.class)
+                    {
+                        if (method.getName().equals("equals"))
+                            return proxy == args[0];
+                        if (method.getName().equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        return type.getName();
+                    }
+                    return handler == null
+                        ? null
+                        : handler.invoke(proxy, method, args);
+                }
+            }));
+    }
+
+    /**
+     * Answers the service lookups of the <tt>BundleContext</tt> proxy.
+     */
+    private static class ServiceRegistry
+        implements InvocationHandler
+    {
+        private final Map<Class<?>, Object> services;
+
+        private final Map<ServiceReference<?>, Object> references
+            = new HashMap<ServiceReference<?>, Object>();
+
+        ServiceRegistry(Map<Class<?>, Object> services)
+        {
+            this.services = services;
+        }
+
+        public synchronized Object invoke(Object proxy, Method method,
+                                          Object[] args)
+        {
+            if (method.getName().equals("getServiceReference")
+                && args[0] instanceof Class)
+            {
+                Object service = services.get(args[0]);
+                if (service == null)
+                    return null;
+
+                ServiceReference<?> reference
+                    = proxy(ServiceReference.class, null);
+                references.put(reference, service);
+                return reference;
+            }
+            if (method.getName().equals("getService"))
+                return references.get(args[0]);
+            return null;
+        }
+    }
+}
@@ -25,6 +25,7 @@
 import java.text.*;
 import java.util.*;
 import java.util.Map;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import javax.swing.*;
@@ -147,6 +148,46 @@
         "([^<]*+)(?:<(?:[^>\"]*(?:\"[^\"]*+\"?)*)*+>?)?",
         Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
 
+    /**
+     * A regular expression matching the ids of the messages of processed
+     * messages. The id of the message is group 1.
+     */
+    private static final Pattern MESSAGE_ID_PATTERN
+        = Pattern.compile(
+            "<div[^>]*\\sid=\"" + ChatHtmlUtils.MESSAGE_TEXT_ID
+                + "([^\"]*)\"");
+
+    /**
+     * The max number of threads replacing the text of the messages of all
+     * chats.
+     */
+    private static final int REPLACEMENT_THREAD_COUNT = 4;
+
+    /**
+     * The executor running the <tt>ReplacementWorker</tt>s of all chats.
+     */
+    private static ExecutorService replacementExecutor;
+
+    /**
+     * The length the document is trimmed to once it exceeds
+     * <tt>Chat.CHAT_BUFFER_SIZE</tt>, so that the oldest messages are removed
+     * in batches rather than one at a time with each new message.
+     */
+    private static final int TRIMMED_DOCUMENT_SIZE
+        = Chat.CHAT_BUFFER_SIZE * 3 / 4;
+
+    /**
+     * The length beyond which the document is trimmed even while the user is
+     * reading older messages.
+     */
+    private static final int MAX_DOCUMENT_SIZE = Chat.CHAT_BUFFER_SIZE * 2;
+
+    /**
+     * The maximum number of message elements remembered by
+     * {@link #getMessageElement(String)}.
+     */
+    private static final int MAX_MESSAGE_ELEMENTS = 64;
+
     /**
      * List for observing text messages.
      */
@@ -236,6 +277,23 @@
 
     private String lastMessageUID = null;
 
+    /**
+     * The last looked up message elements by id, so that the last message,
+     * which is looked up for each new message, isn't searched for in the
+     * whole document each time.
+     */
+    private final Map<String, Element> messageElements
+        = new LinkedHashMap<String, Element>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Element> e)
+            {
+                return size() > MAX_MESSAGE_ELEMENTS;
+            }
+        };
+
     private boolean isSimpleTheme = true;
 
     private ShowPreviewDialog showPreview
@@ -425,6 +483,32 @@ public void componentResized(ComponentEvent e)
 
         chatTextPane.addComponentListener(componentListener);
         getViewport().addComponentListener(componentListener);
+
+        /*
+         * When the user scrolls back to the top of a chat, the messages
+         * before the first one are loaded from the history.
+         */
+        if (chatContainer instanceof ChatPanel)
+        {
+            getVerticalScrollBar().addAdjustmentListener(
+                new AdjustmentListener()
+                {
+                    private int lastValue = 0;
+
+                    public void adjustmentValueChanged(AdjustmentEvent e)
+                    {
+                        int value = e.getValue();
+                        boolean reachedTop
+                            = value < lastValue
+                                && value
+                                    == getVerticalScrollBar().getMinimum();
+
+                        lastValue = value;
+                        if (reachedTop)
+                            ((ChatPanel) chatContainer).loadScrollback();
+                    }
+                });
+        }
     }
 
     /**
@@ -465,10 +549,7 @@ public void setBounds(int x, int y, int width, int height)
      */
     public String getMessageContents(String messageUID)
     {
-        Element root = document.getDefaultRootElement();
-        Element e = document.getElement(
-            root,
-            Attribute.ID,
+        Element e = getMessageElement(
             ChatHtmlUtils.MESSAGE_TEXT_ID + messageUID);
         if (e == null)
         {
@@ -723,7 +804,7 @@ public void run()
             return;
         }
 
-        Element lastMsgElement = document.getElement(
+        Element lastMsgElement = getMessageElement(
             ChatHtmlUtils.MESSAGE_TEXT_ID + previousMessageUID);
 
         String contactAddress
@@ -803,11 +884,8 @@ public void run()
             lastMessageUID = chatMessage.getMessageUID();
         }
 
-        Element root = document.getDefaultRootElement();
         Element correctedMsgElement
-            = document.getElement(root,
-                                  Attribute.ID,
-                                  ChatHtmlUtils.MESSAGE_TEXT_ID + correctedUID);
+            = getMessageElement(ChatHtmlUtils.MESSAGE_TEXT_ID + correctedUID);
 
         if (correctedMsgElement == null)
         {
@@ -938,6 +1016,134 @@ public void run()
         }
     }
 
+    /**
+     * Processes a message to be inserted before the first message of the
+     * conversation with {@link #prependMessages(String)}. Unlike
+     * {@link #processMessage(ChatMessage, ProtocolProviderService, String)},
+     * the message is never appended to the previous one and doesn't change
+     * the message the next messages are appended to.
+     *
+     * @param chatMessage the message
+     * @param protocolProvider the protocol provider of the message
+     * @param contactAddress the address of the contact of the message
+     * @return the processed message
+     */
+    public String processPrependedMessage(
+        ChatMessage chatMessage,
+        ProtocolProviderService protocolProvider,
+        String contactAddress)
+    {
+        String lastMessageUID = this.lastMessageUID;
+        Date lastMessageTimestamp = this.lastMessageTimestamp;
+        Date lastIncomingMsgTimestamp = this.lastIncomingMsgTimestamp;
+
+        try
+        {
+            this.lastMessageUID = null;
+            return processMessage(
+                chatMessage, null, protocolProvider, contactAddress);
+        }
+        finally
+        {
+            this.lastMessageUID = lastMessageUID;
+            this.lastMessageTimestamp = lastMessageTimestamp;
+            this.lastIncomingMsgTimestamp = lastIncomingMsgTimestamp;
+        }
+    }
+
+    /**
+     * Inserts messages processed with
+     * {@link #processPrependedMessage(ChatMessage, ProtocolProviderService,
+     * String)} before the first message of the conversation, keeping the
+     * messages the user is looking at in place. The messages are refused if
+     * the document could exceed <tt>MAX_DOCUMENT_SIZE</tt> with them, as they
+     * would be removed again with the next message.
+     *
+     * @param messages the processed messages
+     * @return <tt>false</tt> if the messages were refused, <tt>true</tt> if
+     * they were inserted or are to be inserted on the event dispatch thread
+     */
+    public boolean prependMessages(final String messages)
+    {
+        if (!SwingUtilities.isEventDispatchThread())
+        {
+            SwingUtilities.invokeLater(new Runnable()
+            {
+                public void run()
+                {
+                    prependMessages(messages);
+                }
+            });
+            return true;
+        }
+
+        // the text of the messages is never longer than their HTML
+        if (document.getLength() + messages.length() > MAX_DOCUMENT_SIZE)
+            return false;
+
+        final JScrollBar verticalScrollBar = getVerticalScrollBar();
+        final int value = verticalScrollBar.getValue();
+        final int maximum = verticalScrollBar.getMaximum();
+        Element root = document.getDefaultRootElement();
+
+        try
+        {
+            document.insertAfterStart(
+                        // the body element
+                        root.getElement(root.getElementCount() - 1),
+                        // the messages to insert
+                        messages);
+        }
+        catch (BadLocationException e)
+        {
+            logger.error("Insert in the HTMLDocument failed.", e);
+            return true;
+        }
+        catch (IOException e)
+        {
+            logger.error("Insert in the HTMLDocument failed.", e);
+            return true;
+        }
+
+        // Scroll down by the height of the inserted messages once they are
+        // laid out.
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                verticalScrollBar.setValue(
+                    value + verticalScrollBar.getMaximum() - maximum);
+            }
+        });
+
+        ConfigurationService cfg = GuiActivator.getConfigurationService();
+
+        if (cfg.getBoolean(ReplacementProperty.REPLACEMENT_ENABLE, true)
+                ||cfg.getBoolean(ReplacementProperty.REPLACEMENT_PROPOSAL, true)
+                || cfg.getBoolean(
+                        ReplacementProperty.getPropertyName("SMILEY"),
+                        true))
+        {
+            Matcher m = MESSAGE_ID_PATTERN.matcher(messages);
+
+            while (m.find())
+            {
+                String messageUID = m.group(1);
+                String content = getElementContent(messageUID, messages);
+
+                if (content != null)
+                {
+                    new ReplacementWorker(
+                            ChatHtmlUtils.MESSAGE_TEXT_ID + messageUID,
+                            content,
+                            false)
+                        .start(getReplacementExecutor());
+                }
+            }
+        }
+        return true;
+    }
+
     /**
      * Performs all operations needed in order to finish the adding of the
      * message to the document.
@@ -970,98 +1176,184 @@ private void finishMessageAdd(final String message)
 
     /**
     * Formats the given message. Processes the messages and replaces links to
-    * video/image sources with their previews or any other substitution. Spawns
-    * a separate thread for replacement.
+    * video/image sources with their previews or any other substitution. The
+    * replacement runs on a thread of a pool shared by all chats.
     *
     * @param messageID the messageID element.
     * @param chatString the message.
     */
     void processReplacement(final String messageID, final String chatString)
     {
-        new ReplacementWorker(messageID, chatString).start();
+        new ReplacementWorker(messageID, chatString, true)
+            .start(getReplacementExecutor());
     }
 
     /**
-     * Ensures that the document won't become too big. When the document reaches
-     * a certain size the first message in the page is removed.
+     * Returns the executor running the <tt>ReplacementWorker</tt>s of all
+     * chats, creating it if needed. The number of its threads is bounded so
+     * that a busy chat room doesn't start a thread for each message.
+     *
+     * @return the executor running the <tt>ReplacementWorker</tt>s
+     */
+    private static synchronized ExecutorService getReplacementExecutor()
+    {
+        if (replacementExecutor == null)
+        {
+            ThreadPoolExecutor executor
+                = new ThreadPoolExecutor(
+                        REPLACEMENT_THREAD_COUNT, REPLACEMENT_THREAD_COUNT,
+                        60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory()
+                        {
+                            public Thread newThread(Runnable r)
+                            {
+                                Thread t
+                                    = new Thread(r, "ChatReplacementWorker");
+
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+
+            executor.allowCoreThreadTimeOut(true);
+            replacementExecutor = executor;
+        }
+        return replacementExecutor;
+    }
+
+    /**
+     * Ensures that the document won't become too big. The removed messages
+     * are loaded back from the history if the user scrolls back to them.
      */
     private void ensureDocumentSize()
     {
-        if (document.getLength() > Chat.CHAT_BUFFER_SIZE)
-        {
-            String[] ids = new String[]
-                                      {ChatHtmlUtils.MESSAGE_TEXT_ID,
-                                       "statusMessage",
-                                       "systemMessage",
-                                       "actionMessage"};
+        trimDocument(document, isScrolledToBottom());
+    }
 
-            Element firstMsgElement = findElement(Attribute.ID, ids);
+    /**
+     * Removes the oldest messages of a conversation document once it exceeds
+     * <tt>Chat.CHAT_BUFFER_SIZE</tt>, all at once until it is back to
+     * <tt>TRIMMED_DOCUMENT_SIZE</tt>. Whole children of the body are removed,
+     * so that a header is never removed without its messages, and the last
+     * one is kept as the next messages may be appended to it.
+     *
+     * @param document the conversation document
+     * @param scrolledToBottom whether the conversation is scrolled to its last
+     * message, the messages the user scrolled back to being kept until the
+     * document exceeds <tt>MAX_DOCUMENT_SIZE</tt>
+     */
+    static void trimDocument(HTMLDocument document, boolean scrolledToBottom)
+    {
+        int length = document.getLength();
 
-            int startIndex = firstMsgElement.getStartOffset();
-            int endIndex = firstMsgElement.getEndOffset();
+        if (length <= Chat.CHAT_BUFFER_SIZE)
+            return;
 
-            try
-            {
-                // Remove the message.
-                this.document.remove(startIndex, endIndex - startIndex);
-            }
-            catch (BadLocationException e)
-            {
-                logger.error("Error removing messages from chat: ", e);
-            }
+        // Don't remove the messages the user scrolled back to, unless the
+        // document really becomes too big.
+        if (length <= MAX_DOCUMENT_SIZE && !scrolledToBottom)
+            return;
 
-            if(firstMsgElement.getName().equals("table"))
-            {
-                // as we have removed a header for maybe several messages,
-                // delete all messages without header
-                deleteAllMessagesWithoutHeader();
-            }
+        Element root = document.getDefaultRootElement();
+        Element body = root.getElement(root.getElementCount() - 1);
+        int lastIndex = body.getElementCount() - 1;
+
+        if (lastIndex < 1)
+            return;
+
+        int startIndex = body.getElement(0).getStartOffset();
+        int endIndex = startIndex;
+
+        for (int i = 0;
+                i < lastIndex && length - (endIndex - startIndex)
+                    > TRIMMED_DOCUMENT_SIZE;
+                i++)
+        {
+            endIndex = body.getElement(i).getEndOffset();
+        }
+
+        try
+        {
+            // Remove the messages.
+            document.remove(startIndex, endIndex - startIndex);
+        }
+        catch (BadLocationException e)
+        {
+            logger.error("Error removing messages from chat: ", e);
         }
     }
 
     /**
-     * Deletes all messages "div"s that are missing their header the table tag.
-     * The method calls itself recursively.
+     * Checks whether the conversation is scrolled to its last message.
+     *
+     * @return <tt>true</tt> if the conversation is scrolled to its bottom
      */
-    private void deleteAllMessagesWithoutHeader()
+    private boolean isScrolledToBottom()
     {
-        String[] ids = new String[]
-            {ChatHtmlUtils.MESSAGE_TEXT_ID,
-                "statusMessage",
-                "systemMessage",
-                "actionMessage"};
+        JScrollBar verticalScrollBar = getVerticalScrollBar();
+
+        if (verticalScrollBar == null || !verticalScrollBar.isVisible())
+            return true;
+
+        BoundedRangeModel model = verticalScrollBar.getModel();
+
+        return model.getValue() + model.getExtent() >= model.getMaximum();
+    }
 
-        Element firstMsgElement = findElement(Attribute.ID, ids);
+    /**
+     * Returns the message element with the given id, remembering it so that
+     * the next lookups of the same element don't search the whole document.
+     *
+     * @param id the id of the element
+     * @return the element, or <tt>null</tt> if it isn't in the document
+     */
+    private Element getMessageElement(String id)
+    {
+        HTMLDocument document = this.document;
+        Element element;
 
-        if(firstMsgElement == null
-            || !firstMsgElement.getName().equals("div"))
+        synchronized (messageElements)
         {
-            return;
+            element = messageElements.get(id);
         }
 
-        int startIndex = firstMsgElement.getStartOffset();
-        int endIndex = firstMsgElement.getEndOffset();
+        if (element != null && isInDocument(document, element))
+            return element;
 
-        try
+        element = document.getElement(id);
+        synchronized (messageElements)
         {
-            // Remove the message.
-            if(endIndex - startIndex < document.getLength())
-                this.document.remove(startIndex, endIndex - startIndex);
+            if (element == null)
+                messageElements.remove(id);
             else
-            {
-                // currently there is a problem of deleting the last message
-                // if it is the last message on the view
-                return;
-            }
+                messageElements.put(id, element);
         }
-        catch (BadLocationException e)
+        return element;
+    }
+
+    /**
+     * Checks whether an element is still in a document, i.e. it wasn't
+     * removed or replaced since it was looked up.
+     *
+     * @param document the document
+     * @param element the element
+     * @return <tt>true</tt> if <tt>element</tt> is in <tt>document</tt>
+     */
+    private static boolean isInDocument(HTMLDocument document, Element element)
+    {
+        Element parent = element.getParentElement();
+
+        while (parent != null)
         {
-            logger.error("Error removing messages from chat: ", e);
+            int index = parent.getElementIndex(element.getStartOffset());
 
-            return;
+            if (index < 0 || parent.getElement(index) != element)
+                return false;
+            element = parent;
+            parent = element.getParentElement();
         }
-
-        deleteAllMessagesWithoutHeader();
+        return element == document.getDefaultRootElement();
     }
 
     /**
@@ -1343,6 +1635,10 @@ public void copyConversation()
     public void clear()
     {
         this.document = (HTMLDocument) editorKit.createDefaultDocument();
+        synchronized (messageElements)
+        {
+            messageElements.clear();
+        }
         Constants.loadSimpleStyle(
             document.getStyleSheet(), chatTextPane.getFont());
         this.isSimpleTheme = ConfigurationUtils.isChatSimpleThemeEnabled();
@@ -1445,7 +1741,7 @@ public Date getPageLastMsgTimestamp()
         if (lastMessageUID != null)
         {
             Element lastMsgElement
-                = document.getElement(
+                = getMessageElement(
                         ChatHtmlUtils.MESSAGE_TEXT_ID + lastMessageUID);
 
             if (lastMsgElement != null)
@@ -1709,7 +2005,7 @@ private boolean isConsecutiveMessage(ChatMessage chatMessage)
         if (lastMessageUID == null)
             return false;
 
-        Element lastMsgElement = document.getElement(
+        Element lastMsgElement = getMessageElement(
             ChatHtmlUtils.MESSAGE_TEXT_ID + lastMessageUID);
 
         if (lastMsgElement == null)
@@ -1778,20 +2074,6 @@ public void dispose()
         clear();
     }
 
-    /**
-     *
-     * @param attribute
-     * @param matchStrings
-     * @return
-     */
-    private Element findElement(HTML.Attribute attribute,
-                                String[] matchStrings)
-    {
-        return findFirstElement(document.getDefaultRootElement(),
-                                attribute,
-                                matchStrings);
-    }
-
     /**
      * Finds the first element with <tt>name</tt>.
      * @param name the name to search for.
@@ -1802,39 +2084,6 @@ private Element findFirstElement(String name)
         return findFirstElement(document.getDefaultRootElement(), name);
     }
 
-    /**
-     *
-     * @param element
-     * @param attrName
-     * @param matchStrings
-     * @return
-     */
-    private Element findFirstElement(   Element element,
-                                        HTML.Attribute attrName,
-                                        String[] matchStrings)
-    {
-        String attr = (String) element.getAttributes().getAttribute(attrName);
-
-        if(attr != null)
-            for (String matchString : matchStrings)
-                if (attr.startsWith(matchString))
-                    return element;
-
-        Element resultElement = null;
-
-        // Count how many messages we have in the document.
-        for (int i = 0; i < element.getElementCount(); i++)
-        {
-            resultElement = findFirstElement(element.getElement(i),
-                                        attrName,
-                                        matchStrings);
-            if (resultElement != null)
-                return resultElement;
-        }
-
-        return null;
-    }
-
     /**
      * Finds the first element with <tt>name</tt> among the child elements of
      * <tt>element</tt>.
@@ -1921,6 +2170,23 @@ public ChatConversationEditorKit(JComponent container)
             super(container);
         }
 
+        /**
+         * Creates a document whose images are taken from the
+         * <tt>PreviewCache</tt>, so that the previews of the links are not
+         * downloaded again each time they are shown.
+         *
+         * @return the new document
+         */
+        @Override
+        public Document createDefaultDocument()
+        {
+            Document doc = super.createDefaultDocument();
+
+            doc.putProperty(
+                "imageCache", PreviewCache.getInstance().getImageCache());
+            return doc;
+        }
+
         /**
          * Clears any left img view and removes any listener was added.
          */
@@ -2049,17 +2315,28 @@ public void debug()
          */
         private final boolean isProposalEnabled;
 
+        /**
+         * Whether to scroll to the bottom of the conversation once the
+         * message is replaced.
+         */
+        private final boolean scrollToBottom;
+
         /**
          * Constructs worker.
          *
          * @param messageID the messageID element.
          * @param chatString the messages.
+         * @param scrollToBottom whether to scroll to the bottom of the
+         * conversation once the message is replaced, <tt>false</tt> for
+         * messages inserted before the ones the user is looking at.
          */
         private ReplacementWorker(final String messageID,
-            final String chatString)
+            final String chatString,
+            final boolean scrollToBottom)
         {
             this.messageID = messageID;
             this.chatString = chatString;
+            this.scrollToBottom = scrollToBottom;
 
             ConfigurationService cfg = GuiActivator.getConfigurationService();
             isEnabled = cfg.getBoolean(
@@ -2096,11 +2373,17 @@ public void finished()
                     messageID, newMessage);
                 synchronized (scrollToBottomRunnable)
                 {
-                    scrollToBottomIsPending = true;
+                    Element elem = getMessageElement(messageID);
+
+                    // the message may have been removed from the document
+                    if (elem == null)
+                        return;
+
+                    if (scrollToBottom)
+                        scrollToBottomIsPending = true;
 
                     try
                     {
-                        Element elem = document.getElement(messageID);
                         document.setOuterHTML(elem, newMessage);
                     }
                     catch (BadLocationException ex)
@@ -2129,33 +2412,27 @@ public Object construct() throws Exception
                 closingTag = divMatcher.group(3);
             }
 
-            StringBuilder msgBuff;
-            for (Map.Entry<String, ReplacementService> entry : GuiActivator
-                .getReplacementSources().entrySet())
-            {
-                msgBuff = new StringBuilder();
-                processReplacementService(entry.getValue(), msgStore, msgBuff);
-                msgStore = msgBuff.toString();
-            }
+            ReplacementEngine engine
+                = ReplacementEngine.getInstance(
+                    GuiActivator.getReplacementSources());
+            StringBuilder msgBuff = new StringBuilder();
+
+            processReplacements(engine, msgStore, msgBuff);
+            msgStore = msgBuff.toString();
 
             return openingTag + msgStore + closingTag;
         }
 
         /**
-         * Process message for a ReplacementService.
+         * Process message for all ReplacementServices at once.
          *
-         * @param service the service.
+         * @param engine the engine finding the text the services replace.
          * @param msg the message.
          * @param buff current accumulated buffer.
          */
-        private void processReplacementService(final ReplacementService service,
+        private void processReplacements(final ReplacementEngine engine,
             final String msg, final StringBuilder buff)
         {
-            String sourcePattern = service.getPattern();
-            Pattern pattern =
-                Pattern.compile(sourcePattern, Pattern.CASE_INSENSITIVE
-                    | Pattern.DOTALL);
-
             int startPos = 0;
 
             Matcher plainTextInHtmlMatcher =
@@ -2184,7 +2461,7 @@ private void processReplacementService(final ReplacementService service,
                     final boolean isURL =
                         URL_PATTERN.matcher(plaintext).matches();
 
-                    processText(plaintext, buff, pattern, service, isURL);
+                    processText(plaintext, buff, engine, isURL);
 
                     startPos = endMatchPosition;
                 }
@@ -2199,15 +2476,13 @@ private void processReplacementService(final ReplacementService service,
          *
          * @param plainText the nodes text.
          * @param msgBuff the currently accumulated buffer.
-         * @param pattern the pattern for current replacement service, created
-         *            earlier so we don't create it for every text we check.
-         * @param rService the replacement service.
+         * @param engine the engine finding the text the replacement services
+         *            replace, compiled once for all messages.
          * @param isURL whether this content matches the URL pattern
          */
         private void processText(final String plainText,
                                  final StringBuilder msgBuff,
-                                 final Pattern pattern,
-                                 final ReplacementService rService,
+                                 final ReplacementEngine engine,
                                  final boolean isURL)
         {
             final ShowPreviewDialog previewDialog = showPreview;
@@ -2220,28 +2495,35 @@ private void processText(final String plainText,
                 return;
             }
 
-            Matcher m = pattern.matcher(plainText);
+            ReplacementEngine.ReplacementMatcher m
+                = engine.matcher(plainText);
+            PreviewCache previewCache = PreviewCache.getInstance();
 
             ConfigurationService cfg = GuiActivator.getConfigurationService();
-            boolean isSmiley
-                = rService instanceof SmiliesReplacementService;
-            boolean isDirectImage
-                = rService instanceof DirectImageReplacementService;
-            boolean isEnabledForSource
-                = cfg.getBoolean(
-                ReplacementProperty.getPropertyName(
-                    rService.getSourceName()), true);
 
             int startPos = 0;
             while (m.find())
             {
+                ReplacementService rService = m.getSource();
+                boolean isSmiley
+                    = rService instanceof SmiliesReplacementService;
+                boolean isDirectImage
+                    = rService instanceof DirectImageReplacementService;
+                boolean isEnabledForSource
+                    = cfg.getBoolean(
+                    ReplacementProperty.getPropertyName(
+                        rService.getSourceName()), true);
+
                 msgBuff.append(StringEscapeUtils.escapeHtml4(plainText
                     .substring(startPos, m.start())));
                 startPos = m.end();
 
                 String group = m.group();
-                String temp = rService.getReplacement(group);
-                String group0 = m.group(0);
+                String temp
+                    = isSmiley
+                        ? rService.getReplacement(group)
+                        : previewCache.getReplacement(rService, group);
+                String group0 = group;
 
                 if (!temp.equals(group0) || isDirectImage)
                 {
@@ -2287,9 +2569,9 @@ else if (isEnabled && isEnabledForSource)
                         {
                             DirectImageReplacementService service
                                 = (DirectImageReplacementService) rService;
-                            if (service.isDirectImage(group)
-                                && service.getImageSize(group) != -1)
+                            if (previewCache.isDirectImage(service, group))
                             {
+                                previewCache.fetchImage(temp);
                                 msgBuff.append(
                                     "<IMG HEIGHT=\"90\" "
                                         + "WIDTH=\"120\" SRC=\"");
@@ -2306,6 +2588,7 @@ else if (isEnabled && isEnabledForSource)
                         }
                         else
                         {
+                            previewCache.fetchImage(temp);
                             msgBuff.append(
                                 "<IMG HEIGHT=\"90\" "
                                     + "WIDTH=\"120\" SRC=\"");
@@ -156,6 +156,19 @@
 
     private boolean isHistoryLoaded;
 
+    /**
+     * Whether a page of history is being loaded to be inserted before the
+     * first message of the conversation.
+     */
+    private boolean isScrollbackLoading = false;
+
+    /**
+     * The date of the first message of the conversation when a page of
+     * history was refused because the conversation was too long, so that no
+     * more history is loaded until older messages are removed.
+     */
+    private Date scrollbackStopTimestamp = null;
+
     /**
      * Stores all active  file transfer requests and effective transfers with
      * the identifier of the transfer.
@@ -813,8 +826,25 @@ public boolean isPrivateMessagingChat()
      */
     private void processHistory( Collection<Object> historyList,
                                 String escapedMessageID)
+    {
+        processHistory(historyList, escapedMessageID, false);
+    }
+
+    /**
+     * Process history messages.
+     *
+     * @param historyList The collection of messages coming from history.
+     * @param escapedMessageID The incoming message needed to be ignored if
+     * contained in history.
+     * @param prepend <tt>true</tt> to insert the messages before the first
+     * message of the conversation, <tt>false</tt> to append them
+     */
+    private void processHistory( Collection<Object> historyList,
+                                String escapedMessageID,
+                                boolean prepend)
     {
         Iterator<Object> iterator = historyList.iterator();
+        StringBuilder prependedMessages = new StringBuilder();
 
         String messageType;
 
@@ -845,7 +875,8 @@ private void processHistory( Collection<Object> historyList,
                             messageType,
                             evt.getSourceMessage().getContent(),
                             evt.getSourceMessage().getContentType(),
-                            evt.getSourceMessage().getMessageUID());
+                            evt.getSourceMessage().getMessageUID(),
+                            prepend);
             }
             else if(o instanceof MessageReceivedEvent)
             {
@@ -869,7 +900,8 @@ else if(o instanceof MessageReceivedEvent)
                                 messageType,
                                 evt.getSourceMessage().getContent(),
                                 evt.getSourceMessage().getContentType(),
-                                evt.getSourceMessage().getMessageUID());
+                                evt.getSourceMessage().getMessageUID(),
+                                prepend);
                 }
             }
             else if(o instanceof ChatRoomMessageDeliveredEvent)
@@ -889,7 +921,8 @@ else if(o instanceof ChatRoomMessageDeliveredEvent)
                             Chat.HISTORY_OUTGOING_MESSAGE,
                             evt.getMessage().getContent(),
                             evt.getMessage().getContentType(),
-                            evt.getMessage().getMessageUID());
+                            evt.getMessage().getMessageUID(),
+                            prepend);
             }
             else if(o instanceof ChatRoomMessageReceivedEvent)
             {
@@ -906,10 +939,11 @@ else if(o instanceof ChatRoomMessageReceivedEvent)
                             Chat.HISTORY_INCOMING_MESSAGE,
                             evt.getMessage().getContent(),
                             evt.getMessage().getContentType(),
-                            evt.getMessage().getMessageUID());
+                            evt.getMessage().getMessageUID(),
+                            prepend);
                 }
             }
-            else if (o instanceof FileRecord)
+            else if (o instanceof FileRecord && !prepend)
             {
                 FileRecord fileRecord = (FileRecord) o;
 
@@ -922,11 +956,23 @@ else if (o instanceof FileRecord)
                 }
             }
 
-            if (historyString != null)
+            if (historyString == null)
+                continue;
+            if (prepend)
+                prependedMessages.append(historyString);
+            else
                 conversationPanel.appendMessageToEnd(
                     historyString, ChatHtmlUtils.HTML_CONTENT_TYPE);
         }
 
+        if (prependedMessages.length() > 0
+            && !conversationPanel.prependMessages(
+                    prependedMessages.toString()))
+        {
+            scrollbackStopTimestamp
+                = conversationPanel.getPageFirstMsgTimestamp();
+        }
+
         fireChatHistoryChange();
     }
 
@@ -1160,6 +1206,8 @@ private void applyMessageCorrection(ChatMessage message)
      * @param message The message text.
      * @param contentType the content type of the message (html or plain text)
      * @param messageId The ID of the message.
+     * @param prepend whether the message is to be inserted before the first
+     * message of the conversation.
      *
      * @return a string containing the processed message.
      */
@@ -1169,16 +1217,22 @@ private String processHistoryMessage(String contactName,
                                          String messageType,
                                          String message,
                                          String contentType,
-                                         String messageId)
+                                         String messageId,
+                                         boolean prepend)
     {
         ChatMessage chatMessage = new ChatMessage(
             contactName, contactDisplayName, date,
                 messageType, null, message, contentType, messageId, null);
+        ChatTransport chatTransport = chatSession.getCurrentChatTransport();
 
-        String processedMessage =
-            this.conversationPanel.processMessage(chatMessage,
-                chatSession.getCurrentChatTransport().getProtocolProvider(),
-                chatSession.getCurrentChatTransport().getName());
+        String processedMessage
+            = prepend
+                ? conversationPanel.processPrependedMessage(chatMessage,
+                    chatTransport.getProtocolProvider(),
+                    chatTransport.getName())
+                : conversationPanel.processMessage(chatMessage,
+                    chatTransport.getProtocolProvider(),
+                    chatTransport.getName());
 
         if (chatSession instanceof ConferenceChatSession)
         {
@@ -2265,6 +2319,68 @@ public void finished()
         worker.start();
     }
 
+    /**
+     * Loads the page of history before the first message of the conversation
+     * and inserts it before that message, when the user scrolls back to the
+     * top of the conversation. The conversation only keeps the last messages,
+     * so older messages are read from the history again as they are needed.
+     */
+    void loadScrollback()
+    {
+        if (isScrollbackLoading
+            || !isHistoryLoaded
+            || !ConfigurationUtils.isHistoryShown()
+            || GuiActivator.getMetaHistoryService() == null)
+        {
+            return;
+        }
+
+        final Date firstMsgDate = conversationPanel.getPageFirstMsgTimestamp();
+
+        // there is no message to load the history before, no older one, or
+        // no room for it
+        if (firstMsgDate.getTime() == Long.MAX_VALUE
+            || (firstHistoryMsgTimestamp != null
+                && !firstMsgDate.after(firstHistoryMsgTimestamp))
+            || firstMsgDate.equals(scrollbackStopTimestamp))
+        {
+            return;
+        }
+
+        isScrollbackLoading = true;
+
+        SwingWorker worker = new SwingWorker()
+        {
+            private Collection<Object> historyList;
+
+            @Override
+            public Object construct() throws Exception
+            {
+                historyList = chatSession.getHistoryBeforeDate(
+                    firstMsgDate,
+                    MESSAGES_PER_PAGE);
+
+                return historyList;
+            }
+
+            @Override
+            public void finished()
+            {
+                isScrollbackLoading = false;
+
+                // make sure the conversation didn't change in the meantime
+                if (historyList != null
+                    && historyList.size() > 0
+                    && firstMsgDate.equals(
+                        conversationPanel.getPageFirstMsgTimestamp()))
+                {
+                    processHistory(historyList, null, true);
+                }
+            }
+        };
+        worker.start();
+    }
+
     /**
      * From a given collection of messages shows the history in the chat window.
      */
@@ -0,0 +1,1055 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+
+import javax.swing.*;
+
+import lombok.extern.slf4j.*;
+
+import net.java.sip.communicator.impl.gui.*;
+import net.java.sip.communicator.service.replacement.*;
+import net.java.sip.communicator.service.replacement.directimage.*;
+import net.java.sip.communicator.util.FileUtils;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * A cache of the previews shown in place of the links of the chat messages,
+ * so that showing a conversation again doesn't download anything.
+ * <p>
+ * The cache keeps the replacements the <tt>ReplacementService</tt>s return
+ * for the links, which may be looked up on the network, the links the
+ * <tt>DirectImageReplacementService</tt>s found to be images and the images
+ * of the previews. They are saved in a directory of the cache of the
+ * application, one file per entry named after the digest of its key, and the
+ * least recently used entries are deleted when the files exceed the size of
+ * the cache. Only positive answers are saved: a link which couldn't be
+ * replaced may have failed because of the network, so it is only remembered
+ * until the application is restarted.
+ * <p>
+ * The last used images are also kept decoded in memory. The documents of the
+ * chats get their images through {@link #getImageCache()}, which serves the
+ * images in memory right away and fetches the other previews in the
+ * background, from the directory of the cache or from the network. The
+ * images it returns for them are produced once the fetches complete, so
+ * neither the <tt>ImageView</tt>s nor the replacement of the messages wait
+ * for them.
+ */
+@Slf4j
+class PreviewCache
+{
+    /**
+     * The property of the size in bytes of the files of the cache.
+     */
+    private static final String PNAME_CACHE_SIZE
+        = "net.java.sip.communicator.impl.gui.main.chat.PREVIEW_CACHE_SIZE";
+
+    /**
+     * The default size in bytes of the files of the cache.
+     */
+    private static final long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
+
+    /**
+     * The name of the directory of the cache.
+     */
+    private static final String CACHE_DIR = "previewcache";
+
+    /**
+     * The maximum size in bytes of an image.
+     */
+    static final int MAX_IMAGE_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * The maximum number of decoded images kept in memory.
+     */
+    private static final int MAX_DECODED_IMAGES = 64;
+
+    /**
+     * The maximum number of replacements kept in memory.
+     */
+    private static final int MAX_REPLACEMENTS = 1024;
+
+    /**
+     * The timeout in milliseconds of the connections downloading images.
+     */
+    private static final int TIMEOUT = 15000;
+
+    /**
+     * The max number of threads fetching images.
+     */
+    private static final int FETCH_THREAD_COUNT = 2;
+
+    /**
+     * The extension of the files holding replacements.
+     */
+    private static final String REPLACEMENT_EXTENSION = ".rpl";
+
+    /**
+     * The extension of the files holding images.
+     */
+    private static final String IMAGE_EXTENSION = ".img";
+
+    /**
+     * The marker of the links found not to be images.
+     */
+    private static final String NOT_AN_IMAGE = "";
+
+    /**
+     * The cache shared by all chats.
+     */
+    private static PreviewCache instance;
+
+    /**
+     * The directory of the cache, <tt>null</tt> to only keep it in memory.
+     */
+    private final File dir;
+
+    /**
+     * The maximum size in bytes of the files of the cache.
+     */
+    private final long maxSize;
+
+    /**
+     * The sizes of the files of the cache by name, least recently used first.
+     */
+    private final LinkedHashMap<String, Long> files
+        = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+    /**
+     * The sum of the sizes of {@link #files}.
+     */
+    private long size = 0;
+
+    /**
+     * Whether {@link #files} was read from the directory of the cache.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The last used replacements by key, including the ones which were not
+     * saved.
+     */
+    private final Map<String, String> replacements
+        = new LinkedHashMap<String, String>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> e)
+            {
+                return size() > MAX_REPLACEMENTS;
+            }
+        };
+
+    /**
+     * The last used decoded images by URL.
+     */
+    private final Map<String, Image> images
+        = new LinkedHashMap<String, Image>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Image> e)
+            {
+                return size() > MAX_DECODED_IMAGES;
+            }
+        };
+
+    /**
+     * The fetches of images in progress by URL.
+     */
+    private final Map<String, ImageFetch> fetches
+        = new HashMap<String, ImageFetch>();
+
+    /**
+     * The executor running the {@link #fetches}, created when the first one
+     * starts.
+     */
+    private ExecutorService fetchExecutor;
+
+    /**
+     * The image cache of the documents of the chats.
+     */
+    private final Dictionary<URL, Image> imageCache = new ImageCache();
+
+    /**
+     * Creates a cache.
+     *
+     * @param dir the directory of the cache, or <tt>null</tt> to only keep
+     * the cache in memory
+     * @param maxSize the maximum size in bytes of the files of the cache
+     */
+    PreviewCache(File dir, long maxSize)
+    {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the cache shared by all chats, creating it in the cache
+     * directory of the application if needed.
+     *
+     * @return the cache shared by all chats
+     */
+    static synchronized PreviewCache getInstance()
+    {
+        if (instance == null)
+        {
+            File dir = null;
+            long maxSize = DEFAULT_CACHE_SIZE;
+
+            try
+            {
+                FileAccessService fileAccessService
+                    = GuiActivator.getFileAccessService();
+
+                if (fileAccessService != null)
+                {
+                    dir = fileAccessService.getPrivatePersistentDirectory(
+                        CACHE_DIR, FileCategory.CACHE);
+                }
+            }
+            catch (Exception e)
+            {
+                logger.warn("Cannot access the preview cache directory", e);
+            }
+
+            ConfigurationService cfg = GuiActivator.getConfigurationService();
+
+            if (cfg != null)
+            {
+                maxSize = cfg.getLong(PNAME_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+            }
+
+            instance = new PreviewCache(dir, maxSize);
+        }
+        return instance;
+    }
+
+    /**
+     * Returns the image cache to set as the <tt>"imageCache"</tt> property of
+     * the documents showing the previews.
+     *
+     * @return the image cache of the documents
+     */
+    Dictionary<URL, Image> getImageCache()
+    {
+        return imageCache;
+    }
+
+    /**
+     * Returns the replacement of a link by a source, asking the source only
+     * if the replacement isn't cached.
+     *
+     * @param source the replacement source
+     * @param link the link
+     * @return the replacement of <tt>link</tt>
+     */
+    String getReplacement(ReplacementService source, String link)
+    {
+        String key = source.getSourceName() + ' ' + link;
+        String replacement = getString(key);
+
+        if (replacement == null)
+        {
+            replacement = source.getReplacement(link);
+            putString(key, replacement, !replacement.equals(link));
+        }
+        return replacement;
+    }
+
+    /**
+     * Checks whether a link is an image a direct image source can show,
+     * asking the source only if the answer isn't cached.
+     *
+     * @param source the direct image source
+     * @param link the link
+     * @return <tt>true</tt> if <tt>link</tt> is an image which isn't too big
+     */
+    boolean isDirectImage(DirectImageReplacementService source, String link)
+    {
+        String key = "?" + source.getSourceName() + ' ' + link;
+        String image = getString(key);
+
+        if (image == null)
+        {
+            boolean isDirectImage
+                = source.isDirectImage(link)
+                    && source.getImageSize(link) != -1;
+
+            image = isDirectImage ? link : NOT_AN_IMAGE;
+            putString(key, image, isDirectImage);
+        }
+        return !NOT_AN_IMAGE.equals(image);
+    }
+
+    /**
+     * Returns the image at a URL, downloading it if it isn't cached. To be
+     * called outside the event dispatch thread.
+     *
+     * @param url the URL of the image
+     * @return the image, or <tt>null</tt> if it can't be downloaded
+     */
+    Image getImage(String url)
+    {
+        Image image = getCachedImage(url);
+
+        if (image != null)
+            return image;
+
+        byte[] data = download(url);
+
+        if (data == null)
+            return null;
+
+        image = decode(data);
+        if (image != null)
+        {
+            synchronized (this)
+            {
+                images.put(url, image);
+            }
+            writeFile(getFileName(url, IMAGE_EXTENSION), data);
+        }
+        return image;
+    }
+
+    /**
+     * Starts fetching an image in the background, from the directory of the
+     * cache or from the network, unless it is in memory or already being
+     * fetched.
+     *
+     * @param url the URL of the image
+     * @return the producer of the image, which delivers it to its consumers
+     * once it is fetched
+     */
+    synchronized ImageProducer fetchImage(String url)
+    {
+        Image image = images.get(url);
+
+        if (image != null)
+            return image.getSource();
+
+        ImageFetch fetch = fetches.get(url);
+
+        if (fetch == null)
+        {
+            fetch = new ImageFetch(url);
+            fetches.put(url, fetch);
+            getFetchExecutor().execute(fetch);
+        }
+        return fetch;
+    }
+
+    /**
+     * Returns the executor fetching images, creating it if needed. To be
+     * called while holding the lock of the cache.
+     *
+     * @return the executor fetching images
+     */
+    private ExecutorService getFetchExecutor()
+    {
+        if (fetchExecutor == null)
+        {
+            ThreadPoolExecutor executor
+                = new ThreadPoolExecutor(
+                        FETCH_THREAD_COUNT, FETCH_THREAD_COUNT,
+                        60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory()
+                        {
+                            public Thread newThread(Runnable r)
+                            {
+                                Thread t
+                                    = new Thread(r, "PreviewCacheFetcher");
+
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+
+            executor.allowCoreThreadTimeOut(true);
+            fetchExecutor = executor;
+        }
+        return fetchExecutor;
+    }
+
+    /**
+     * Returns a cached image, reading it from the directory of the cache if
+     * it isn't in memory.
+     *
+     * @param url the URL of the image
+     * @return the image, or <tt>null</tt> if it isn't cached
+     */
+    Image getCachedImage(String url)
+    {
+        synchronized (this)
+        {
+            Image image = images.get(url);
+
+            if (image != null)
+                return image;
+        }
+
+        byte[] data = readFile(getFileName(url, IMAGE_EXTENSION));
+
+        if (data == null)
+            return null;
+
+        Image image = decode(data);
+
+        if (image != null)
+        {
+            synchronized (this)
+            {
+                images.put(url, image);
+            }
+        }
+        return image;
+    }
+
+    /**
+     * Returns a cached string, reading it from the directory of the cache if
+     * it isn't in memory.
+     *
+     * @param key the key of the string
+     * @return the string, or <tt>null</tt> if it isn't cached
+     */
+    private String getString(String key)
+    {
+        synchronized (this)
+        {
+            String value = replacements.get(key);
+
+            if (value != null)
+                return value;
+        }
+
+        byte[] data = readFile(getFileName(key, REPLACEMENT_EXTENSION));
+
+        if (data == null)
+            return null;
+
+        try
+        {
+            DataInputStream in
+                = new DataInputStream(new ByteArrayInputStream(data));
+
+            // the digests of different keys are not expected to clash, but
+            // checking it is cheap
+            if (!key.equals(in.readUTF()))
+                return null;
+
+            String value = in.readUTF();
+
+            synchronized (this)
+            {
+                replacements.put(key, value);
+            }
+            return value;
+        }
+        catch (IOException e)
+        {
+            logger.debug("Ignoring invalid preview cache entry", e);
+            return null;
+        }
+    }
+
+    /**
+     * Caches a string.
+     *
+     * @param key the key of the string
+     * @param value the string
+     * @param save whether to save the string in the directory of the cache
+     */
+    private void putString(String key, String value, boolean save)
+    {
+        synchronized (this)
+        {
+            replacements.put(key, value);
+        }
+
+        if (!save)
+            return;
+
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        try
+        {
+            DataOutputStream out = new DataOutputStream(data);
+
+            out.writeUTF(key);
+            out.writeUTF(value);
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            // the key or the value are too long to be saved
+            logger.debug("Cannot save preview cache entry " + key, e);
+            return;
+        }
+        writeFile(getFileName(key, REPLACEMENT_EXTENSION), data.toByteArray());
+    }
+
+    /**
+     * Downloads an image.
+     *
+     * @param url the URL of the image
+     * @return the bytes of the image, or <tt>null</tt> if it can't be
+     * downloaded or is too big
+     */
+    private static byte[] download(String url)
+    {
+        try
+        {
+            URLConnection connection = new URL(url).openConnection();
+
+            connection.setConnectTimeout(TIMEOUT);
+            connection.setReadTimeout(TIMEOUT);
+
+            try
+            {
+                if (connection instanceof HttpURLConnection
+                    && ((HttpURLConnection) connection).getResponseCode()
+                        != HttpURLConnection.HTTP_OK)
+                {
+                    return null;
+                }
+                if (connection.getContentLengthLong() > MAX_IMAGE_SIZE)
+                    return null;
+
+                try (InputStream in = connection.getInputStream())
+                {
+                    ByteArrayOutputStream data = new ByteArrayOutputStream();
+                    byte[] buffer = new byte[8192];
+                    int read;
+
+                    while ((read = in.read(buffer)) != -1)
+                    {
+                        data.write(buffer, 0, read);
+                        if (data.size() > MAX_IMAGE_SIZE)
+                            return null;
+                    }
+                    return data.toByteArray();
+                }
+            }
+            finally
+            {
+                if (connection instanceof HttpURLConnection)
+                    ((HttpURLConnection) connection).disconnect();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.debug("Failed to download preview " + url, e);
+            return null;
+        }
+    }
+
+    /**
+     * Decodes an image and waits for it to be loaded.
+     *
+     * @param data the bytes of the image
+     * @return the image, or <tt>null</tt> if the bytes are not an image
+     */
+    private static Image decode(byte[] data)
+    {
+        ImageIcon icon = new ImageIcon(data);
+
+        return (icon.getImageLoadStatus() == MediaTracker.COMPLETE)
+            ? icon.getImage()
+            : null;
+    }
+
+    /**
+     * Returns the name of the file of an entry.
+     *
+     * @param key the key of the entry
+     * @param extension the extension of the file
+     * @return the name of the file
+     */
+    private static String getFileName(String key, String extension)
+    {
+        try
+        {
+            byte[] digest
+                = MessageDigest.getInstance("SHA-1").digest(
+                    key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(digest.length * 2 + 4);
+
+            for (byte b : digest)
+            {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16));
+                name.append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(extension).toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // every Java platform implements SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the sizes of the files of the cache, from the least recently
+     * used one, and deletes the temporary files left by failed writes. To be
+     * called while holding the lock of the cache.
+     */
+    private void loadFiles()
+    {
+        if (loaded)
+            return;
+        loaded = true;
+
+        File[] dirFiles = (dir == null) ? null : dir.listFiles();
+
+        if (dirFiles == null)
+            return;
+
+        List<File> entries = new ArrayList<File>(dirFiles.length);
+
+        for (File file : dirFiles)
+        {
+            String name = file.getName();
+
+            if (name.endsWith(IMAGE_EXTENSION)
+                || name.endsWith(REPLACEMENT_EXTENSION))
+            {
+                entries.add(file);
+            }
+            else if (name.endsWith(".tmp"))
+            {
+                file.delete();
+            }
+        }
+
+        final Map<File, Long> lastModified = new HashMap<File, Long>();
+
+        for (File file : entries)
+            lastModified.put(file, file.lastModified());
+        Collections.sort(entries, new Comparator<File>()
+        {
+            public int compare(File f1, File f2)
+            {
+                return Long.compare(
+                    lastModified.get(f1), lastModified.get(f2));
+            }
+        });
+
+        for (File file : entries)
+        {
+            long length = file.length();
+
+            files.put(file.getName(), length);
+            size += length;
+        }
+        evict();
+    }
+
+    /**
+     * Deletes the least recently used files until the files fit in the size
+     * of the cache. To be called while holding the lock of the cache.
+     */
+    private void evict()
+    {
+        Iterator<Map.Entry<String, Long>> iter = files.entrySet().iterator();
+
+        while (size > maxSize && iter.hasNext())
+        {
+            Map.Entry<String, Long> entry = iter.next();
+            File file = new File(dir, entry.getKey());
+
+            if (file.exists() && !file.delete())
+            {
+                logger.warn("Cannot delete preview cache entry " + file);
+                continue;
+            }
+            size -= entry.getValue();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Reads a file of the cache and marks it as the most recently used one.
+     *
+     * @param name the name of the file
+     * @return the bytes of the file, or <tt>null</tt> if it isn't cached
+     */
+    private byte[] readFile(String name)
+    {
+        if (dir == null)
+            return null;
+
+        File file = new File(dir, name);
+
+        synchronized (this)
+        {
+            loadFiles();
+            if (files.get(name) == null)
+                return null;
+        }
+
+        try
+        {
+            byte[] data = new byte[(int) file.length()];
+
+            try (DataInputStream in
+                = new DataInputStream(new FileInputStream(file)))
+            {
+                in.readFully(data);
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return data;
+        }
+        catch (IOException e)
+        {
+            logger.debug("Cannot read preview cache entry " + file, e);
+            synchronized (this)
+            {
+                Long length = files.remove(name);
+
+                if (length != null)
+                    size -= length;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Writes a file of the cache and deletes the least recently used files
+     * if the cache is full. The file is written to a temporary file of its
+     * own first, so that a failed write doesn't leave a truncated entry
+     * behind and concurrent writes of the same entry don't mix.
+     *
+     * @param name the name of the file
+     * @param data the bytes of the file
+     */
+    private void writeFile(String name, byte[] data)
+    {
+        if (dir == null || data.length > maxSize)
+            return;
+
+        // the temporary files left by failed writes are deleted when the
+        // files are loaded, which must not happen while this one is written
+        synchronized (this)
+        {
+            loadFiles();
+        }
+
+        File file = new File(dir, name);
+        Path tmp = null;
+
+        try
+        {
+            tmp = File.createTempFile(name + ".", ".tmp", dir).toPath();
+            Files.write(tmp, data);
+
+            synchronized (this)
+            {
+                FileUtils.replaceFile(tmp.toFile(), file);
+
+                Long length = files.put(name, (long) data.length);
+
+                if (length != null)
+                    size -= length;
+                size += data.length;
+                evict();
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot write preview cache entry " + file, e);
+        }
+        finally
+        {
+            if (tmp != null)
+                tmp.toFile().delete();
+        }
+    }
+
+    /**
+     * The fetch of an image in the background, and the producer of the image
+     * for the consumers which asked for it before it was fetched.
+     */
+    private class ImageFetch
+        implements Runnable,
+                   ImageProducer
+    {
+        /**
+         * The URL of the image.
+         */
+        private final String url;
+
+        /**
+         * The consumers waiting for the image, guarded by the fetch.
+         */
+        private final List<ImageConsumer> consumers
+            = new ArrayList<ImageConsumer>();
+
+        /**
+         * Whether the fetch completed, guarded by the fetch.
+         */
+        private boolean done = false;
+
+        /**
+         * The producer of the image, <tt>null</tt> if it couldn't be fetched.
+         * Set before {@link #done}. The image itself only accepts the
+         * consumers of its own <tt>Image</tt>s, so it is produced through a
+         * filter which leaves it as it is.
+         */
+        private ImageProducer source;
+
+        /**
+         * Creates the fetch of an image.
+         *
+         * @param url the URL of the image
+         */
+        ImageFetch(String url)
+        {
+            this.url = url;
+        }
+
+        /**
+         * Fetches the image and delivers it to the waiting consumers.
+         */
+        public void run()
+        {
+            Image image = null;
+
+            try
+            {
+                image = getImage(url);
+            }
+            finally
+            {
+                List<ImageConsumer> waiting;
+
+                synchronized (this)
+                {
+                    if (image != null)
+                    {
+                        source = new FilteredImageSource(
+                            image.getSource(), new ImageFilter());
+                    }
+                    done = true;
+                    waiting = new ArrayList<ImageConsumer>(consumers);
+                    consumers.clear();
+                }
+                synchronized (PreviewCache.this)
+                {
+                    fetches.remove(url);
+                }
+                for (ImageConsumer ic : waiting)
+                    produce(ic);
+            }
+        }
+
+        /**
+         * Delivers the fetched image to a consumer, or an error if it couldn't
+         * be fetched.
+         *
+         * @param ic the consumer
+         */
+        private void produce(ImageConsumer ic)
+        {
+            if (source == null)
+                ic.imageComplete(ImageConsumer.IMAGEERROR);
+            else
+                source.startProduction(ic);
+        }
+
+        /**
+         * Returns the producer of the fetched image, <tt>null</tt> while it is
+         * being fetched or if it couldn't be fetched.
+         */
+        private synchronized ImageProducer getSource()
+        {
+            return done ? source : null;
+        }
+
+        public void addConsumer(ImageConsumer ic)
+        {
+            startProduction(ic);
+        }
+
+        public boolean isConsumer(ImageConsumer ic)
+        {
+            synchronized (this)
+            {
+                if (consumers.contains(ic))
+                    return true;
+            }
+
+            ImageProducer source = getSource();
+
+            return (source != null) && source.isConsumer(ic);
+        }
+
+        public void removeConsumer(ImageConsumer ic)
+        {
+            synchronized (this)
+            {
+                consumers.remove(ic);
+            }
+
+            ImageProducer source = getSource();
+
+            if (source != null)
+                source.removeConsumer(ic);
+        }
+
+        public void startProduction(ImageConsumer ic)
+        {
+            synchronized (this)
+            {
+                if (!done)
+                {
+                    if (!consumers.contains(ic))
+                        consumers.add(ic);
+                    return;
+                }
+            }
+            produce(ic);
+        }
+
+        public void requestTopDownLeftRightResend(ImageConsumer ic)
+        {
+            ImageProducer source = getSource();
+
+            if (source != null)
+                source.requestTopDownLeftRightResend(ic);
+        }
+    }
+
+    /**
+     * The image cache of the documents of the chats. The <tt>ImageView</tt>s
+     * of a document with an image cache get their images only from the
+     * cache, on the event dispatch thread, so the cache only returns the
+     * images in memory as they are. The previews which aren't in memory are
+     * fetched in the background and the other images are loaded from their
+     * URL, as the <tt>ImageView</tt>s otherwise do.
+     */
+    private class ImageCache
+        extends Dictionary<URL, Image>
+    {
+        @Override
+        public Image get(Object key)
+        {
+            if (!(key instanceof URL))
+                return null;
+
+            URL url = (URL) key;
+            String protocol = url.getProtocol();
+
+            if (!"http".equals(protocol) && !"https".equals(protocol))
+                return Toolkit.getDefaultToolkit().createImage(url);
+
+            Image image;
+
+            synchronized (PreviewCache.this)
+            {
+                image = images.get(url.toString());
+            }
+            if (image == null)
+            {
+                image = Toolkit.getDefaultToolkit().createImage(
+                    fetchImage(url.toString()));
+            }
+            return image;
+        }
+
+        @Override
+        public Image put(URL key, Image value)
+        {
+            synchronized (PreviewCache.this)
+            {
+                return images.put(key.toString(), value);
+            }
+        }
+
+        @Override
+        public Image remove(Object key)
+        {
+            synchronized (PreviewCache.this)
+            {
+                return images.remove(String.valueOf(key));
+            }
+        }
+
+        @Override
+        public int size()
+        {
+            synchronized (PreviewCache.this)
+            {
+                return images.size();
+            }
+        }
+
+        @Override
+        public boolean isEmpty()
+        {
+            return size() == 0;
+        }
+
+        @Override
+        public Enumeration<URL> keys()
+        {
+            List<URL> keys = new ArrayList<URL>();
+
+            synchronized (PreviewCache.this)
+            {
+                for (String url : images.keySet())
+                {
+                    try
+                    {
+                        keys.add(new URL(url));
+                    }
+                    catch (MalformedURLException e)
+                    {
+                        // only URLs are put in the cache
+                    }
+                }
+            }
+            return Collections.enumeration(keys);
+        }
+
+        @Override
+        public Enumeration<Image> elements()
+        {
+            synchronized (PreviewCache.this)
+            {
+                return Collections.enumeration(
+                    new ArrayList<Image>(images.values()));
+            }
+        }
+    }
+}
@@ -0,0 +1,790 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.util.*;
+import java.util.regex.*;
+
+import lombok.extern.slf4j.*;
+
+import net.java.sip.communicator.service.replacement.*;
+import net.java.sip.communicator.service.replacement.smilies.*;
+
+/**
+ * Finds the pieces of text the <tt>ReplacementService</tt>s replace in a
+ * single pass over the text.
+ * <p>
+ * The smiley strings of the <tt>SmiliesReplacementService</tt>s are looked
+ * up with an Aho-Corasick automaton and the patterns of the other sources are
+ * joined into a single regular expression, so each piece of text is scanned
+ * once whatever the number of sources. Where the matches of several sources
+ * overlap, the one starting first wins, and the one of the source coming first
+ * in the map of sources if they start at the same position.
+ * <p>
+ * An engine is compiled for a set of sources and their patterns and reused
+ * until the sources change or {@link #patternsChanged()} tells that their
+ * patterns did, as when the smileys pack is reloaded. The patterns aren't
+ * read for every message, as the one of the smileys joins the whole pack.
+ */
+@Slf4j
+class ReplacementEngine
+{
+    /**
+     * The flags the patterns of the sources are compiled with.
+     */
+    private static final int PATTERN_FLAGS
+        = Pattern.CASE_INSENSITIVE | Pattern.DOTALL;
+
+    /**
+     * Matches the backreferences of a pattern, which would refer to another
+     * group once the pattern is joined with others.
+     */
+    private static final Pattern BACKREFERENCE_PATTERN
+        = Pattern.compile("(?<!\\\\)(?:\\\\\\\\)*\\\\(?:[1-9]|k<)");
+
+    /**
+     * The texts smiley strings are not matched after, as the smiley pattern
+     * doesn't match in the alt attribute of the smiley images it inserts.
+     */
+    private static final String[] SMILEY_EXCLUDED_PREFIXES
+        = { "alt='", "alt=\"" };
+
+    /**
+     * The engine compiled for the last sources, guarded by the class.
+     */
+    private static ReplacementEngine engine;
+
+    /**
+     * The number of times the patterns of the sources changed, guarded by the
+     * class.
+     */
+    private static int patternsVersion = 0;
+
+    /**
+     * The sources this engine was compiled for, in order.
+     */
+    private final List<ReplacementService> sources;
+
+    /**
+     * The patterns of {@link #sources} this engine was compiled for.
+     */
+    private final List<String> patterns;
+
+    /**
+     * The value of {@link #patternsVersion} the patterns were read at.
+     */
+    private final int version;
+
+    /**
+     * The finders of the matches of the sources.
+     */
+    private final List<Finder> finders = new ArrayList<Finder>();
+
+    /**
+     * Returns the engine for a set of sources, compiling it if the sources
+     * changed since the last call or their patterns since
+     * {@link #patternsChanged()} was last called.
+     *
+     * @param sources the replacement sources by source name
+     * @return the engine for <tt>sources</tt>
+     */
+    static ReplacementEngine getInstance(
+        Map<String, ReplacementService> sources)
+    {
+        List<ReplacementService> services;
+
+        synchronized (sources)
+        {
+            services = new ArrayList<ReplacementService>(sources.values());
+        }
+
+        synchronized (ReplacementEngine.class)
+        {
+            if (engine == null
+                || engine.version != patternsVersion
+                || !engine.sources.equals(services))
+            {
+                List<String> patterns = new ArrayList<String>(services.size());
+
+                for (ReplacementService service : services)
+                    patterns.add(service.getPattern());
+
+                engine = new ReplacementEngine(
+                    services, patterns, patternsVersion);
+            }
+            return engine;
+        }
+    }
+
+    /**
+     * Tells that the patterns of the sources may have changed, so that the
+     * next engine reads them again.
+     */
+    static synchronized void patternsChanged()
+    {
+        patternsVersion++;
+    }
+
+    /**
+     * Compiles an engine.
+     *
+     * @param sources the replacement sources, in order
+     * @param patterns the patterns of <tt>sources</tt>
+     * @param version the value of {@link #patternsVersion} the patterns were
+     * read at
+     */
+    private ReplacementEngine(
+        List<ReplacementService> sources,
+        List<String> patterns,
+        int version)
+    {
+        this.sources = sources;
+        this.patterns = patterns;
+        this.version = version;
+
+        List<Integer> joined = new ArrayList<Integer>();
+
+        for (int i = 0; i < sources.size(); i++)
+        {
+            ReplacementService source = sources.get(i);
+            String pattern = patterns.get(i);
+
+            if (source instanceof SmiliesReplacementService)
+            {
+                finders.add(
+                    new SmileyFinder(
+                        i, (SmiliesReplacementService) source));
+            }
+            else if (pattern == null)
+            {
+                continue;
+            }
+            else
+            {
+                try
+                {
+                    Pattern.compile(pattern, PATTERN_FLAGS);
+                }
+                catch (PatternSyntaxException e)
+                {
+                    logger.error(
+                        "Invalid pattern of replacement source "
+                            + source.getSourceName(), e);
+                    continue;
+                }
+
+                if (BACKREFERENCE_PATTERN.matcher(pattern).find())
+                    finders.add(new RegexFinder(new int[] { i }));
+                else
+                    joined.add(i);
+            }
+        }
+
+        if (!joined.isEmpty())
+        {
+            int[] indexes = new int[joined.size()];
+
+            for (int i = 0; i < indexes.length; i++)
+                indexes[i] = joined.get(i);
+
+            try
+            {
+                finders.add(new RegexFinder(indexes));
+            }
+            catch (PatternSyntaxException e)
+            {
+                // the patterns can't be joined, e.g. their named groups clash
+                for (int index : indexes)
+                    finders.add(new RegexFinder(new int[] { index }));
+            }
+        }
+    }
+
+    /**
+     * Creates a matcher finding the matches of the sources in a text.
+     *
+     * @param text the text
+     * @return the matcher
+     */
+    ReplacementMatcher matcher(String text)
+    {
+        return new ReplacementMatcher(text);
+    }
+
+    /**
+     * Finds the matches of one or more sources in a text.
+     */
+    private static abstract class Finder
+    {
+        /**
+         * Creates the state of a search in a text.
+         *
+         * @param text the text
+         * @return the state of the search
+         */
+        abstract Search search(String text);
+    }
+
+    /**
+     * The state of the search of a <tt>Finder</tt> in a text.
+     */
+    private static abstract class Search
+    {
+        /**
+         * The start of the current match, <tt>-1</tt> if there is none.
+         */
+        int start = -1;
+
+        /**
+         * The end of the current match.
+         */
+        int end;
+
+        /**
+         * The index of the source of the current match.
+         */
+        int source;
+
+        /**
+         * Whether there are no more matches.
+         */
+        boolean done = false;
+
+        /**
+         * Finds the first match starting at or after a position.
+         *
+         * @param from the position
+         */
+        abstract void find(int from);
+    }
+
+    /**
+     * Finds the matches of a regular expression joining the patterns of
+     * several sources, each pattern in a capturing group of its own, or of
+     * the pattern of a single source.
+     */
+    private class RegexFinder
+        extends Finder
+    {
+        /**
+         * The indexes of the sources of the pattern.
+         */
+        private final int[] sourceIndexes;
+
+        /**
+         * The capturing groups of the patterns of the sources, <tt>0</tt> for
+         * the pattern of a single source.
+         */
+        private final int[] groups;
+
+        /**
+         * The joined patterns.
+         */
+        private final Pattern pattern;
+
+        /**
+         * Joins the patterns of some sources.
+         *
+         * @param sourceIndexes the indexes of the sources
+         * @throws PatternSyntaxException if the patterns can't be joined
+         */
+        RegexFinder(int[] sourceIndexes)
+        {
+            StringBuilder regex = new StringBuilder();
+            int group = 1;
+
+            this.sourceIndexes = sourceIndexes;
+            this.groups = new int[sourceIndexes.length];
+
+            // a single pattern is used as is, so that its backreferences
+            // keep referring to its own groups
+            if (sourceIndexes.length == 1)
+            {
+                pattern = Pattern.compile(
+                    patterns.get(sourceIndexes[0]), PATTERN_FLAGS);
+                return;
+            }
+
+            for (int i = 0; i < sourceIndexes.length; i++)
+            {
+                String sourcePattern = patterns.get(sourceIndexes[i]);
+
+                if (i > 0)
+                    regex.append('|');
+                regex.append('(').append(sourcePattern).append(')');
+
+                groups[i] = group;
+                group += 1
+                    + Pattern.compile(sourcePattern, PATTERN_FLAGS)
+                        .matcher("").groupCount();
+            }
+
+            pattern = Pattern.compile(regex.toString(), PATTERN_FLAGS);
+        }
+
+        @Override
+        Search search(String text)
+        {
+            final Matcher matcher = pattern.matcher(text);
+
+            return new Search()
+            {
+                @Override
+                void find(int from)
+                {
+                    if (!matcher.find(from))
+                    {
+                        start = -1;
+                        done = true;
+                        return;
+                    }
+
+                    start = matcher.start();
+                    end = matcher.end();
+                    source = sourceIndexes[0];
+                    for (int i = 0; i < groups.length; i++)
+                    {
+                        if (matcher.start(groups[i]) != -1)
+                        {
+                            source = sourceIndexes[i];
+                            break;
+                        }
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Finds the smiley strings of a <tt>SmiliesReplacementService</tt> the way
+     * its pattern, an alternation of the smiley strings, matches them: ignoring
+     * the case of US-ASCII characters and, where several smiley strings start
+     * at the same position, picking the first one of the smileys pack.
+     */
+    private static class SmileyFinder
+        extends Finder
+    {
+        /**
+         * The index of the smiley source.
+         */
+        private final int sourceIndex;
+
+        /**
+         * The automaton matching the smiley strings.
+         */
+        private final KeywordAutomaton automaton;
+
+        /**
+         * Builds the automaton matching the smiley strings of a source.
+         *
+         * @param sourceIndex the index of the source
+         * @param source the source
+         */
+        SmileyFinder(int sourceIndex, SmiliesReplacementService source)
+        {
+            List<String> smileyStrings = new ArrayList<String>();
+
+            for (Smiley smiley : source.getSmiliesPack())
+                for (String smileyString : smiley.getSmileyStrings())
+                    if (smileyString.length() > 0)
+                        smileyStrings.add(smileyString);
+
+            this.sourceIndex = sourceIndex;
+            this.automaton = new KeywordAutomaton(smileyStrings);
+        }
+
+        @Override
+        Search search(final String text)
+        {
+            return new Search()
+            {
+                @Override
+                void find(int from)
+                {
+                    long match = automaton.find(text, from);
+
+                    while (match != -1
+                        && isExcluded(text, (int) (match >>> 32)))
+                    {
+                        match = automaton.find(text, (int) (match >>> 32) + 1);
+                    }
+
+                    if (match == -1)
+                    {
+                        start = -1;
+                        done = true;
+                    }
+                    else
+                    {
+                        start = (int) (match >>> 32);
+                        end = (int) match;
+                        source = sourceIndex;
+                    }
+                }
+            };
+        }
+
+        /**
+         * Checks whether a smiley string isn't to be matched at a position.
+         *
+         * @param text the text
+         * @param start the position
+         * @return <tt>true</tt> if a smiley string starting at <tt>start</tt>
+         * isn't to be matched
+         */
+        private static boolean isExcluded(String text, int start)
+        {
+            for (String prefix : SMILEY_EXCLUDED_PREFIXES)
+            {
+                int prefixStart = start - prefix.length();
+
+                if (prefixStart >= 0
+                    && text.regionMatches(
+                            true, prefixStart, prefix, 0, prefix.length()))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * An Aho-Corasick automaton finding the leftmost of a set of keywords in a
+     * text, ignoring the case of US-ASCII characters.
+     */
+    private static class KeywordAutomaton
+    {
+        /**
+         * The transitions of the states of the trie of the keywords.
+         */
+        private final List<Map<Character, Integer>> transitions
+            = new ArrayList<Map<Character, Integer>>();
+
+        /**
+         * The lengths of the keywords.
+         */
+        private final int[] lengths;
+
+        /**
+         * The length of the longest keyword.
+         */
+        private int maxLength = 0;
+
+        /**
+         * The state to go to when a state has no transition for a character.
+         */
+        private int[] failures;
+
+        /**
+         * The indexes of the keywords ending at each state, the ones ending at
+         * the states reached through the failures included.
+         */
+        private int[][] outputs;
+
+        /**
+         * Builds the automaton of a list of keywords.
+         *
+         * @param keywords the keywords, in order of preference
+         */
+        KeywordAutomaton(List<String> keywords)
+        {
+            List<List<Integer>> stateOutputs = new ArrayList<List<Integer>>();
+
+            lengths = new int[keywords.size()];
+            addState(stateOutputs);
+
+            for (int k = 0; k < keywords.size(); k++)
+            {
+                String keyword = keywords.get(k);
+                int state = 0;
+
+                for (int i = 0; i < keyword.length(); i++)
+                {
+                    Character c = fold(keyword.charAt(i));
+                    Integer next = transitions.get(state).get(c);
+
+                    if (next == null)
+                    {
+                        next = addState(stateOutputs);
+                        transitions.get(state).put(c, next);
+                    }
+                    state = next;
+                }
+
+                stateOutputs.get(state).add(k);
+                lengths[k] = keyword.length();
+                maxLength = Math.max(maxLength, keyword.length());
+            }
+
+            // compute the failures breadth first, so that the failure of a
+            // state is complete before the states after it
+            failures = new int[transitions.size()];
+            outputs = new int[transitions.size()][];
+
+            LinkedList<Integer> queue = new LinkedList<Integer>();
+
+            outputs[0] = toArray(stateOutputs.get(0));
+            queue.add(0);
+            while (!queue.isEmpty())
+            {
+                int state = queue.removeFirst();
+
+                for (Map.Entry<Character, Integer> e
+                        : transitions.get(state).entrySet())
+                {
+                    int next = e.getValue();
+                    int failure = 0;
+
+                    if (state != 0)
+                        failure = step(failures[state], e.getKey());
+
+                    failures[next] = failure;
+
+                    List<Integer> nextOutputs = stateOutputs.get(next);
+
+                    for (int k : outputs[failure])
+                        nextOutputs.add(k);
+                    outputs[next] = toArray(nextOutputs);
+                    queue.add(next);
+                }
+            }
+        }
+
+        private int addState(List<List<Integer>> stateOutputs)
+        {
+            transitions.add(new HashMap<Character, Integer>());
+            stateOutputs.add(new ArrayList<Integer>());
+            return transitions.size() - 1;
+        }
+
+        private static int[] toArray(List<Integer> list)
+        {
+            int[] array = new int[list.size()];
+
+            for (int i = 0; i < array.length; i++)
+                array[i] = list.get(i);
+            return array;
+        }
+
+        /**
+         * Folds the case of a US-ASCII character the way a case insensitive
+         * <tt>Pattern</tt> without <tt>UNICODE_CASE</tt> does.
+         *
+         * @param c the character
+         * @return the folded character
+         */
+        private static char fold(char c)
+        {
+            return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
+        }
+
+        /**
+         * Returns the state reached from a state with a character.
+         *
+         * @param state the state
+         * @param c the folded character
+         * @return the next state
+         */
+        private int step(int state, Character c)
+        {
+            while (true)
+            {
+                Integer next = transitions.get(state).get(c);
+
+                if (next != null)
+                    return next;
+                if (state == 0)
+                    return 0;
+                state = failures[state];
+            }
+        }
+
+        /**
+         * Finds the leftmost keyword in a text, the first one in the list of
+         * keywords if several start at the same position.
+         *
+         * @param text the text
+         * @param from the position to search from
+         * @return the start of the match in the high 32 bits and its end in the
+         * low 32 bits, or <tt>-1</tt> if there is no match
+         */
+        long find(String text, int from)
+        {
+            int state = 0;
+            int bestStart = -1;
+            int bestKeyword = -1;
+
+            for (int i = from; i < text.length(); i++)
+            {
+                // a match ending further can't start before the best one
+                if (bestStart != -1 && i - bestStart >= maxLength)
+                    break;
+
+                state = step(state, fold(text.charAt(i)));
+
+                for (int k : outputs[state])
+                {
+                    int start = i + 1 - lengths[k];
+
+                    if (bestStart == -1
+                        || start < bestStart
+                        || (start == bestStart && k < bestKeyword))
+                    {
+                        bestStart = start;
+                        bestKeyword = k;
+                    }
+                }
+            }
+
+            if (bestStart == -1)
+                return -1;
+            return ((long) bestStart << 32)
+                | (bestStart + lengths[bestKeyword]);
+        }
+    }
+
+    /**
+     * Finds the matches of all sources in a text, one after the other, like a
+     * <tt>Matcher</tt> does for a single pattern.
+     */
+    class ReplacementMatcher
+    {
+        /**
+         * The text.
+         */
+        private final String text;
+
+        /**
+         * The searches of the finders of the engine in the text.
+         */
+        private final Search[] searches;
+
+        /**
+         * The position the next match is searched from.
+         */
+        private int position = 0;
+
+        /**
+         * The start of the current match.
+         */
+        private int matchStart;
+
+        /**
+         * The end of the current match.
+         */
+        private int matchEnd;
+
+        /**
+         * The source of the current match.
+         */
+        private ReplacementService matchSource;
+
+        /**
+         * Creates a matcher.
+         *
+         * @param text the text to find the matches in
+         */
+        private ReplacementMatcher(String text)
+        {
+            this.text = text;
+            searches = new Search[finders.size()];
+            for (int i = 0; i < searches.length; i++)
+                searches[i] = finders.get(i).search(text);
+        }
+
+        /**
+         * Finds the next match.
+         *
+         * @return <tt>true</tt> if a match was found
+         */
+        boolean find()
+        {
+            Search match = null;
+
+            if (position > text.length())
+                return false;
+
+            for (Search search : searches)
+            {
+                // a match found from an earlier position is still the first
+                // one if it doesn't start before the current position
+                if (!search.done && search.start < position)
+                    search.find(position);
+
+                if (search.start != -1
+                    && (match == null
+                        || search.start < match.start
+                        || (search.start == match.start
+                            && search.source < match.source)))
+                {
+                    match = search;
+                }
+            }
+
+            if (match == null)
+                return false;
+
+            matchStart = match.start;
+            matchEnd = match.end;
+            matchSource = sources.get(match.source);
+            position = (matchEnd > matchStart) ? matchEnd : matchEnd + 1;
+            return true;
+        }
+
+        /**
+         * Returns the start of the current match.
+         *
+         * @return the start of the current match
+         */
+        int start()
+        {
+            return matchStart;
+        }
+
+        /**
+         * Returns the end of the current match.
+         *
+         * @return the end of the current match
+         */
+        int end()
+        {
+            return matchEnd;
+        }
+
+        /**
+         * Returns the text of the current match.
+         *
+         * @return the text of the current match
+         */
+        String group()
+        {
+            return text.substring(matchStart, matchEnd);
+        }
+
+        /**
+         * Returns the source of the current match.
+         *
+         * @return the source of the current match
+         */
+        ReplacementService getSource()
+        {
+            return matchSource;
+        }
+    }
+}
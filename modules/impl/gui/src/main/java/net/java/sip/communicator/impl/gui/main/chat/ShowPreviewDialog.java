@@ -229,14 +229,15 @@ protected Object construct() throws Exception
                         String replacement;
                         DirectImageReplacementService source
                             = GuiActivator.getDirectImageReplacementSource();
+                        PreviewCache previewCache = PreviewCache.getInstance();
                         if (originalLink.equals(replacementLink) &&
-                            (!source.isDirectImage(originalLink) ||
-                                source.getImageSize(originalLink) == -1))
+                            !previewCache.isDirectImage(source, originalLink))
                         {
                             replacement = originalLink;
                         }
                         else
                         {
+                            previewCache.fetchImage(replacementLink);
                             replacement =
                                 "<IMG HEIGHT=\"90\" WIDTH=\"120\" SRC=\""
                                 + replacementLink + "\" BORDER=\"0\" ALT=\""
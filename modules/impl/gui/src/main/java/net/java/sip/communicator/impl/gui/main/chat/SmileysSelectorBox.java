@@ -380,7 +380,10 @@ public void loadSkin()
             popupMenu = this.getPopupMenu();
 
             if (smiliesService != null)
+            {
                 smiliesService.reloadSmiliesPack();
+                ReplacementEngine.patternsChanged();
+            }
 
             popupMenu.removeAll();
         }
@@ -18,6 +18,7 @@
 package net.java.sip.communicator.impl.gui.main.contactlist;
 
 import java.lang.reflect.*;
+import java.util.*;
 
 import javax.swing.*;
 import javax.swing.tree.*;
@@ -149,6 +150,77 @@ public void run()
         });
     }
 
+    /**
+     * Invoke this method after you've changed how several nodes are to be
+     * represented in the tree. The nodes are refreshed at once, so that the
+     * tree is repainted once for all of them.
+     * @param nodes the nodes that have changed
+     */
+    public void nodesChanged(final Collection<? extends TreeNode> nodes)
+    {
+        if (nodes.isEmpty())
+            return;
+
+        SwingUtilities.invokeLater(new Runnable()
+        {
+            public void run()
+            {
+                fireNodesChanged(nodes);
+            }
+        });
+    }
+
+    /**
+     * Notifies the listeners of this model that some nodes have changed,
+     * with one event for all the changed children of each parent. Must be
+     * called in the swing thread.
+     * @param nodes the nodes that have changed
+     */
+    void fireNodesChanged(Collection<? extends TreeNode> nodes)
+    {
+        Map<TreeNode, SortedSet<Integer>> changedChildren
+            = new LinkedHashMap<TreeNode, SortedSet<Integer>>();
+
+        for (TreeNode node : nodes)
+        {
+            TreeNode parent = node.getParent();
+
+            if (parent == null)
+            {
+                // the root node, or a node removed in the meantime
+                if (node == rootGroupNode)
+                    super.nodeChanged(node);
+                continue;
+            }
+
+            int index = parent.getIndex(node);
+
+            if (index < 0)
+                continue;
+
+            SortedSet<Integer> indices = changedChildren.get(parent);
+
+            if (indices == null)
+            {
+                indices = new TreeSet<Integer>();
+                changedChildren.put(parent, indices);
+            }
+            indices.add(index);
+        }
+
+        for (Map.Entry<TreeNode, SortedSet<Integer>> entry
+                : changedChildren.entrySet())
+        {
+            int[] childIndices = new int[entry.getValue().size()];
+            int i = 0;
+
+            for (int index : entry.getValue())
+                childIndices[i++] = index;
+
+            nodesChanged(entry.getKey(), childIndices);
+        }
+    }
+
     /**
      * Returns the first found child <tt>ContactNode</tt>.
      * @param parentNode the parent <tt>GroupNode</tt> to search in
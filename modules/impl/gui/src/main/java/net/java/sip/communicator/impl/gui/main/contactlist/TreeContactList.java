@@ -2102,6 +2102,16 @@ public void nodeChanged(TreeNode node)
         treeModel.nodeChanged(node);
     }
 
+    /**
+     * Indicates that several nodes have been changed. Transfers them to the
+     * default tree model, which refreshes them at once.
+     * @param nodes the <tt>TreeNode</tt>s that have been refreshed
+     */
+    public void nodesChanged(Collection<? extends TreeNode> nodes)
+    {
+        treeModel.nodesChanged(nodes);
+    }
+
     /**
      * Initializes the list of available contact sources for this contact list.
      */
@@ -21,6 +21,7 @@
 import java.awt.event.*;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.*;
 import java.util.regex.*;
 
 import javax.swing.*;
@@ -48,7 +49,7 @@
  * @author Yana Stamcheva
  */
 public class MetaContactListSource
-    implements  ContactPresenceStatusListener,
+    implements  ContactPresenceStatusBatchListener,
                 MetaContactListListener
 {
     /**
@@ -89,11 +90,22 @@
      */
     private static MetaUIContact customActionContact;
 
+    /**
+     * The executor running the queries of all <tt>MetaContactListSource</tt>s.
+     */
+    private static ExecutorService queryExecutor;
+
     /**
      * The current index.
      */
     private int index = 0;
 
+    /**
+     * The index the contacts are looked up in when filtering.
+     */
+    private final MetaContactSearchIndex searchIndex
+        = new MetaContactSearchIndex();
+
     /**
      * The logger.
      */
@@ -203,19 +215,57 @@ public static boolean isRootGroup(MetaContactGroup group)
      * @param filterPattern the pattern to filter through
      * @param query the query to be started
      */
+    public void startQuery(MetaContactQuery query, Pattern filterPattern)
+    {
+        startQuery(query, null, filterPattern);
+    }
+
+    /**
+     * Starts the query. The contacts are looked up in the search index when
+     * the filter string the pattern was created from is known and the whole
+     * contact list is matched against the pattern otherwise.
+     * <p>
+     * Queries run one after the other on an executor shared by all queries.
+     * A query which is canceled before it runs, as when the user keeps typing,
+     * completes without looking at the contact list.
+     *
+     * @param query the query to be started
+     * @param filterString the string the contacts are filtered by, or
+     * <tt>null</tt> if the pattern is not a quoted filter string
+     * @param filterPattern the pattern to filter through
+     */
     public void startQuery(final MetaContactQuery query,
-        final Pattern filterPattern)
+                           final String filterString,
+                           final Pattern filterPattern)
     {
-        new Thread()
+        getQueryExecutor().execute(new Runnable()
         {
-            @Override
             public void run()
             {
-                int resultCount = 0;
-                queryMetaContactSource( filterPattern,
-                        GuiActivator.getContactListService().getRoot(),
-                        query,
-                        resultCount);
+                try
+                {
+                    // a query canceled before it runs was replaced by a newer
+                    // one and doesn't need to look at the contact list
+                    if (!query.isCanceled())
+                    {
+                        if (filterString != null)
+                        {
+                            queryMetaContactSource(
+                                filterString, filterPattern, query);
+                        }
+                        else
+                        {
+                            queryMetaContactSource(filterPattern,
+                                GuiActivator.getContactListService().getRoot(),
+                                query,
+                                0);
+                        }
+                    }
+                }
+                catch (RuntimeException e)
+                {
+                    logger.error("Failed to filter the contact list", e);
+                }
 
                 if (!query.isCanceled())
                     query.fireQueryEvent(
@@ -224,7 +274,80 @@ public void run()
                     query.fireQueryEvent(
                         MetaContactQueryStatusEvent.QUERY_CANCELED);
             }
-        }.start();
+        });
+    }
+
+    /**
+     * Returns the executor running the queries of all
+     * <tt>MetaContactListSource</tt>s, creating it if needed.
+     *
+     * @return the executor running the queries
+     */
+    private static synchronized ExecutorService getQueryExecutor()
+    {
+        if (queryExecutor == null)
+        {
+            ThreadPoolExecutor executor
+                = new ThreadPoolExecutor(
+                        1, 1,
+                        60, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(),
+                        new ThreadFactory()
+                        {
+                            public Thread newThread(Runnable r)
+                            {
+                                Thread t
+                                    = new Thread(r, "MetaContactListQuery");
+
+                                t.setDaemon(true);
+                                return t;
+                            }
+                        });
+
+            executor.allowCoreThreadTimeOut(true);
+            queryExecutor = executor;
+        }
+        return queryExecutor;
+    }
+
+    /**
+     * Filters the contact list by a filter string, looking the contacts up in
+     * the search index. The contacts found are matched against the pattern
+     * again, so that contacts which changed since they were indexed are not
+     * shown by mistake.
+     *
+     * @param filterString the string to filter by
+     * @param filterPattern the pattern created from <tt>filterString</tt>
+     * @param query the object that tracks the query
+     */
+    private void queryMetaContactSource(String filterString,
+                                        Pattern filterPattern,
+                                        MetaContactQuery query)
+    {
+        List<MetaContact> metaContacts
+            = searchIndex.find(
+                filterString,
+                GuiActivator.getContactListService().getRoot());
+        int resultCount = 0;
+
+        for (MetaContact metaContact : metaContacts)
+        {
+            if (query.isCanceled())
+                return;
+
+            MetaContactGroup parentGroup
+                = metaContact.getParentMetaContactGroup();
+
+            // removed from the contact list since it was found
+            if (parentGroup == null)
+                continue;
+
+            if (isMatching(filterPattern, metaContact))
+            {
+                resultCount++;
+                addQueryResult(metaContact, parentGroup, query, resultCount);
+            }
+        }
     }
 
     /**
@@ -234,13 +357,16 @@ public void run()
      * @param filterPattern the pattern to filter through
      * @param parentGroup the <tt>MetaContactGroup</tt> to filter
      * @param query the object that tracks the query
-     * @param resultCount the initial result count we would insert directly to
-     * the contact list without firing events
+     * @param resultCount the number of results of the query found before
+     * <tt>parentGroup</tt>, the first ones being inserted directly to the
+     * contact list without firing events
+     * @return the number of results of the query, including the ones found
+     * in <tt>parentGroup</tt> and its subgroups
      */
-    public void queryMetaContactSource(Pattern filterPattern,
-                                        MetaContactGroup parentGroup,
-                                        MetaContactQuery query,
-                                        int resultCount)
+    public int queryMetaContactSource(Pattern filterPattern,
+                                      MetaContactGroup parentGroup,
+                                      MetaContactQuery query,
+                                      int resultCount)
     {
         Iterator<MetaContact> childContacts = parentGroup.getChildContacts();
 
@@ -251,61 +377,81 @@ public void queryMetaContactSource(Pattern filterPattern,
             if (isMatching(filterPattern, metaContact))
             {
                 resultCount++;
-
-                if (resultCount <= INITIAL_CONTACT_COUNT)
-                {
-                    UIGroup uiGroup = null;
-                    if (!MetaContactListSource.isRootGroup(parentGroup))
-                    {
-                        synchronized (parentGroup)
-                        {
-                            uiGroup = MetaContactListSource
-                                .getUIGroup(parentGroup);
-                            if (uiGroup == null)
-                                uiGroup = MetaContactListSource
-                                    .createUIGroup(parentGroup);
-                        }
-                    }
-
-                    UIContact newUIContact;
-                    synchronized (metaContact)
-                    {
-                        newUIContact
-                            = MetaContactListSource.getUIContact(metaContact);
-
-                        if (newUIContact == null)
-                        {
-                            newUIContact
-                                = MetaContactListSource
-                                    .createUIContact(metaContact);
-                        }
-
-                        GuiActivator.getContactList().addContact(
-                            newUIContact,
-                            uiGroup,
-                            true,
-                            true);
-                    }
-
-                    query.setInitialResultCount(resultCount);
-                }
-                else
-                {
-                    query.fireQueryEvent(metaContact);
-                }
+                addQueryResult(metaContact, parentGroup, query, resultCount);
             }
         }
 
         // If in the meantime the query is canceled we return here.
         if(query.isCanceled())
-            return;
+            return resultCount;
 
         Iterator<MetaContactGroup> subgroups = parentGroup.getSubgroups();
         while (subgroups.hasNext() && !query.isCanceled())
         {
             MetaContactGroup subgroup = subgroups.next();
 
-            queryMetaContactSource(filterPattern, subgroup, query, resultCount);
+            // the subgroups go on counting from the results found so far
+            resultCount = queryMetaContactSource(
+                filterPattern, subgroup, query, resultCount);
+        }
+        return resultCount;
+    }
+
+    /**
+     * Adds a <tt>MetaContact</tt> matching a query to the contact list, or
+     * fires an event for it once the initial results are added.
+     *
+     * @param metaContact the <tt>MetaContact</tt> matching the query
+     * @param parentGroup the parent group of <tt>metaContact</tt>
+     * @param query the object that tracks the query
+     * @param resultCount the number of results of the query, including
+     * <tt>metaContact</tt>
+     */
+    private void addQueryResult(MetaContact metaContact,
+                                MetaContactGroup parentGroup,
+                                MetaContactQuery query,
+                                int resultCount)
+    {
+        if (resultCount <= INITIAL_CONTACT_COUNT)
+        {
+            UIGroup uiGroup = null;
+            if (!MetaContactListSource.isRootGroup(parentGroup))
+            {
+                synchronized (parentGroup)
+                {
+                    uiGroup = MetaContactListSource
+                        .getUIGroup(parentGroup);
+                    if (uiGroup == null)
+                        uiGroup = MetaContactListSource
+                            .createUIGroup(parentGroup);
+                }
+            }
+
+            UIContact newUIContact;
+            synchronized (metaContact)
+            {
+                newUIContact
+                    = MetaContactListSource.getUIContact(metaContact);
+
+                if (newUIContact == null)
+                {
+                    newUIContact
+                        = MetaContactListSource
+                            .createUIContact(metaContact);
+                }
+
+                GuiActivator.getContactList().addContact(
+                    newUIContact,
+                    uiGroup,
+                    true,
+                    true);
+            }
+
+            query.setInitialResultCount(resultCount);
+        }
+        else
+        {
+            query.fireQueryEvent(metaContact);
         }
     }
 
@@ -370,13 +516,60 @@ public boolean isMatching(Pattern filterPattern, MetaContactGroup metaGroup)
         return false;
     }
 
+    /**
+     * Updates the contact list when the status of a contact has changed.
+     *
+     * @param evt the <tt>ContactPresenceStatusChangeEvent</tt> that notified
+     * us
+     */
     public void contactPresenceStatusChanged(
         ContactPresenceStatusChangeEvent evt)
+    {
+        ContactNode contactNode = updateUIContact(evt);
+
+        if (contactNode != null)
+            GuiActivator.getContactList().nodeChanged(contactNode);
+    }
+
+    /**
+     * Updates the contact list when the statuses of several contacts have
+     * changed, refreshing the nodes of all of them at once.
+     *
+     * @param evts the <tt>ContactPresenceStatusChangeEvent</tt>s that
+     * notified us
+     */
+    public void contactPresenceStatusesChanged(
+        List<ContactPresenceStatusChangeEvent> evts)
+    {
+        List<ContactNode> changedNodes = new ArrayList<ContactNode>();
+
+        for (ContactPresenceStatusChangeEvent evt : evts)
+        {
+            ContactNode contactNode = updateUIContact(evt);
+
+            if (contactNode != null)
+                changedNodes.add(contactNode);
+        }
+
+        GuiActivator.getContactList().nodesChanged(changedNodes);
+    }
+
+    /**
+     * Adds, removes or updates the <tt>UIContact</tt> of a contact which
+     * status has changed, depending on whether it matches the current
+     * filter.
+     *
+     * @param evt the <tt>ContactPresenceStatusChangeEvent</tt> describing the
+     * status change
+     * @return the node of the <tt>UIContact</tt> to refresh, or <tt>null</tt>
+     * if there is none
+     */
+    private ContactNode updateUIContact(ContactPresenceStatusChangeEvent evt)
     {
         if (evt.getOldStatus() == evt.getNewStatus()
             && !evt.isResourceChanged())
         {
-            return;
+            return null;
         }
 
         final Contact sourceContact = evt.getSourceContact();
@@ -385,7 +578,7 @@ public void contactPresenceStatusChanged(
                     sourceContact);
 
         if (metaContact == null)
-            return;
+            return null;
 
         boolean uiContactCreated = false;
 
@@ -451,12 +644,11 @@ public void contactPresenceStatusChanged(
             {
                 synchronized (uiContact)
                 {
-                    GuiActivator.getContactList()
-                        .nodeChanged(uiContact.getContactNode());
+                    return uiContact.getContactNode();
                 }
             }
-
         }
+        return null;
     }
 
     /**
@@ -499,6 +691,8 @@ public void childContactsReordered(MetaContactGroupEvent evt)
      */
     public void metaContactAdded(final MetaContactEvent evt)
     {
+        searchIndex.update(evt.getSourceMetaContact());
+
         metaContactAdded(evt.getSourceMetaContact(),
                         evt.getParentGroup());
     }
@@ -558,6 +752,9 @@ private void metaContactAdded(final MetaContact metaContact,
      */
     public void metaContactGroupAdded(MetaContactGroupEvent evt)
     {
+        // the contacts of the group are indexed on the next search
+        searchIndex.invalidate();
+
         final MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
         UIGroup uiGroup;
@@ -635,6 +832,8 @@ public void metaContactGroupModified(MetaContactGroupEvent evt)
      */
     public void metaContactGroupRemoved(final MetaContactGroupEvent evt)
     {
+        searchIndex.invalidate();
+
         MetaContactGroup metaGroup = evt.getSourceMetaContactGroup();
 
         UIGroup uiGroup;
@@ -766,6 +965,8 @@ public void metaContactRemoved(final MetaContactEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        searchIndex.remove(metaContact);
+
         UIContact uiContact;
         synchronized (metaContact)
         {
@@ -786,6 +987,8 @@ public void metaContactRenamed(final MetaContactRenamedEvent evt)
     {
         MetaContact metaContact = evt.getSourceMetaContact();
 
+        searchIndex.update(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -841,6 +1044,8 @@ public void protoContactAdded(ProtoContactEvent evt)
     {
         final MetaContact metaContact = evt.getNewParent();
 
+        searchIndex.update(metaContact);
+
         UIContact parentUIContact;
         boolean parentUIContactCreated = false;
         synchronized (metaContact)
@@ -898,6 +1103,8 @@ public void protoContactModified(ProtoContactEvent evt)
     {
         MetaContact metaContact = evt.getNewParent();
 
+        searchIndex.update(metaContact);
+
         UIContactImpl uiContact;
         synchronized (metaContact)
         {
@@ -926,6 +1133,9 @@ public void protoContactMoved(ProtoContactEvent evt)
         final MetaContact oldParent = evt.getOldParent();
         final MetaContact newParent = evt.getNewParent();
 
+        searchIndex.update(oldParent);
+        searchIndex.update(newParent);
+
         UIContact oldUIContact;
         synchronized (oldParent)
         {
@@ -998,6 +1208,8 @@ public void protoContactRemoved(ProtoContactEvent evt)
     {
         final MetaContact oldParent = evt.getOldParent();
 
+        searchIndex.update(oldParent);
+
         UIContactImpl oldUIContact;
         synchronized (oldParent)
         {
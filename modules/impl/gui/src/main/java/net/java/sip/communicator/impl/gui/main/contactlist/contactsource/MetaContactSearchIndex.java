@@ -0,0 +1,501 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.util.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * An in-memory index of the strings the <tt>MetaContact</tt>s of the contact
+ * list are searched by: their display names and the display names and
+ * addresses of their protocol contacts.
+ * <p>
+ * The strings are kept case folded the way a case insensitive unicode
+ * <tt>Pattern</tt> compares characters, so a folded filter string is
+ * contained in a folded string exactly when the quoted filter pattern finds
+ * it. Every trigram of the folded strings points to the contacts having it,
+ * so a search only looks at the contacts having all trigrams of the filter
+ * string. A search for a filter string extending the previous one, as while
+ * typing, only looks at the previous results. Shorter filter strings look at
+ * all contacts, which is still cheaper than running the pattern.
+ * <p>
+ * The index is built from the contact list on the first search and kept up
+ * to date by the <tt>MetaContactListSource</tt> from the contact list events.
+ * The contact list is read without the lock of the index, so the changes
+ * made meanwhile are recorded and applied to the built index.
+ * The contacts it returns are still matched against the live contact list,
+ * so an index behind the contact list can't return wrong contacts.
+ */
+class MetaContactSearchIndex
+{
+    /**
+     * The number of characters of the terms of the index.
+     */
+    private static final int TERM_LENGTH = 3;
+
+    /**
+     * The indexed contacts by id, <tt>null</tt> for contacts which were
+     * removed or indexed again. Ids follow the order of the contact list when
+     * the index is built.
+     */
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * The ids of the indexed contacts.
+     */
+    private final Map<MetaContact, Integer> ids
+        = new HashMap<MetaContact, Integer>();
+
+    /**
+     * The ids of the contacts having a trigram, in ascending order.
+     */
+    private final Map<String, IntList> postings
+        = new HashMap<String, IntList>();
+
+    /**
+     * Whether the index was built from the contact list.
+     */
+    private boolean built = false;
+
+    /**
+     * The contacts updated while the index is being built, with their new
+     * entries, or <tt>null</tt> for contacts which were removed.
+     * <tt>null</tt> when no build is in progress.
+     */
+    private Map<MetaContact, Entry> buildChanges;
+
+    /**
+     * Incremented each time the index is invalidated, which discards the
+     * builds in progress.
+     */
+    private int generation = 0;
+
+    /**
+     * The number of <tt>null</tt> entries.
+     */
+    private int removedCount = 0;
+
+    /**
+     * Incremented each time the indexed contacts change.
+     */
+    private int version = 0;
+
+    /**
+     * The folded filter string of the last search.
+     */
+    private String lastFilter;
+
+    /**
+     * The ids of the contacts found by the last search.
+     */
+    private int[] lastResult;
+
+    /**
+     * The version of the index during the last search.
+     */
+    private int lastVersion;
+
+    /**
+     * Returns the contacts whose display name, or the display name or address
+     * of one of their protocol contacts, contains a filter string ignoring
+     * case.
+     *
+     * @param filterString the filter string
+     * @param root the root group of the contact list, to build the index from
+     * @return the contacts found, in the order of the index
+     */
+    List<MetaContact> find(String filterString, MetaContactGroup root)
+    {
+        String filter = fold(filterString);
+
+        // read the contact list before taking the lock of the index, again
+        // if the index was invalidated meanwhile
+        while (true)
+        {
+            int buildGeneration;
+
+            synchronized (this)
+            {
+                if (built)
+                    break;
+                if (buildChanges == null)
+                {
+                    buildChanges
+                        = new LinkedHashMap<MetaContact, Entry>();
+                }
+                buildGeneration = generation;
+            }
+
+            List<Entry> builtEntries = new ArrayList<Entry>();
+
+            collect(root, builtEntries);
+
+            synchronized (this)
+            {
+                if (built)
+                    break;
+                if (buildGeneration == generation)
+                {
+                    build(builtEntries);
+                    break;
+                }
+            }
+        }
+
+        synchronized (this)
+        {
+            int[] candidates = null;
+
+            if (lastFilter != null
+                && lastVersion == version
+                && filter.contains(lastFilter))
+            {
+                candidates = lastResult;
+            }
+            else if (filter.length() >= TERM_LENGTH)
+            {
+                candidates = getCandidates(filter);
+            }
+
+            IntList resultIds = new IntList();
+            List<MetaContact> result = new ArrayList<MetaContact>();
+            int count = (candidates == null)
+                ? entries.size()
+                : candidates.length;
+
+            for (int i = 0; i < count; i++)
+            {
+                int id = (candidates == null) ? i : candidates[i];
+                Entry entry = entries.get(id);
+
+                if (entry != null && entry.contains(filter))
+                {
+                    resultIds.add(id);
+                    result.add(entry.metaContact);
+                }
+            }
+
+            lastFilter = filter;
+            lastResult = resultIds.toArray();
+            lastVersion = version;
+            return result;
+        }
+    }
+
+    /**
+     * Indexes a contact again after it or its protocol contacts changed.
+     *
+     * @param metaContact the contact
+     */
+    void update(MetaContact metaContact)
+    {
+        Entry entry = new Entry(metaContact);
+
+        synchronized (this)
+        {
+            // the contacts will be read when the index is built
+            if (!built)
+            {
+                if (buildChanges != null)
+                {
+                    buildChanges.remove(metaContact);
+                    buildChanges.put(metaContact, entry);
+                }
+                return;
+            }
+
+            removeEntry(metaContact);
+            addEntry(entry);
+        }
+    }
+
+    /**
+     * Removes a contact removed from the contact list.
+     *
+     * @param metaContact the contact
+     */
+    synchronized void remove(MetaContact metaContact)
+    {
+        if (built)
+            removeEntry(metaContact);
+        else if (buildChanges != null)
+        {
+            buildChanges.remove(metaContact);
+            buildChanges.put(metaContact, null);
+        }
+    }
+
+    /**
+     * Drops the index, to be built again from the contact list on the next
+     * search.
+     */
+    synchronized void invalidate()
+    {
+        generation++;
+        buildChanges = null;
+        clear();
+    }
+
+    /**
+     * Empties the index.
+     */
+    private void clear()
+    {
+        built = false;
+        entries.clear();
+        ids.clear();
+        postings.clear();
+        removedCount = 0;
+        version++;
+        lastFilter = null;
+        lastResult = null;
+    }
+
+    /**
+     * Builds the index from the contacts of the contact list and the changes
+     * made while they were read.
+     *
+     * @param builtEntries the contacts of the contact list
+     */
+    private void build(List<Entry> builtEntries)
+    {
+        clear();
+        for (Entry entry : builtEntries)
+        {
+            if (!ids.containsKey(entry.metaContact)
+                && !buildChanges.containsKey(entry.metaContact))
+            {
+                addEntry(entry);
+            }
+        }
+        for (Entry entry : buildChanges.values())
+        {
+            if (entry != null && !ids.containsKey(entry.metaContact))
+                addEntry(entry);
+        }
+        buildChanges = null;
+        built = true;
+    }
+
+    /**
+     * Reads the contacts of a group and of its subgroups, in the order in
+     * which they are displayed.
+     *
+     * @param group the group
+     * @param builtEntries the list to add the contacts to
+     */
+    private static void collect(MetaContactGroup group, List<Entry> builtEntries)
+    {
+        Iterator<MetaContact> childContacts = group.getChildContacts();
+
+        while (childContacts.hasNext())
+            builtEntries.add(new Entry(childContacts.next()));
+
+        Iterator<MetaContactGroup> subgroups = group.getSubgroups();
+
+        while (subgroups.hasNext())
+            collect(subgroups.next(), builtEntries);
+    }
+
+    private void addEntry(Entry entry)
+    {
+        int id = entries.size();
+        Set<String> terms = new HashSet<String>();
+
+        entries.add(entry);
+        ids.put(entry.metaContact, id);
+
+        for (String s : entry.strings)
+        {
+            for (int i = 0; i + TERM_LENGTH <= s.length(); i++)
+                terms.add(s.substring(i, i + TERM_LENGTH));
+        }
+        for (String term : terms)
+        {
+            IntList termIds = postings.get(term);
+
+            if (termIds == null)
+            {
+                termIds = new IntList();
+                postings.put(term, termIds);
+            }
+            termIds.add(id);
+        }
+        version++;
+    }
+
+    private void removeEntry(MetaContact metaContact)
+    {
+        Integer id = ids.remove(metaContact);
+
+        if (id == null)
+            return;
+
+        entries.set(id, null);
+        removedCount++;
+        version++;
+
+        // the postings of removed contacts are only dropped with the index
+        if (removedCount > 64 && removedCount > entries.size() / 2)
+            invalidate();
+    }
+
+    /**
+     * Returns the ids of the contacts having all trigrams of a filter string.
+     *
+     * @param filter the folded filter string
+     * @return the ids in ascending order
+     */
+    private int[] getCandidates(String filter)
+    {
+        List<IntList> termIds = new ArrayList<IntList>();
+
+        for (int i = 0; i + TERM_LENGTH <= filter.length(); i++)
+        {
+            IntList ids = postings.get(filter.substring(i, i + TERM_LENGTH));
+
+            if (ids == null)
+                return new int[0];
+            termIds.add(ids);
+        }
+
+        Collections.sort(termIds, new Comparator<IntList>()
+        {
+            public int compare(IntList l1, IntList l2)
+            {
+                return l1.size - l2.size;
+            }
+        });
+
+        IntList shortest = termIds.get(0);
+        IntList candidates = new IntList();
+
+        for (int i = 0; i < shortest.size; i++)
+        {
+            int id = shortest.values[i];
+            boolean all = true;
+
+            for (int j = 1; j < termIds.size() && all; j++)
+            {
+                IntList ids = termIds.get(j);
+
+                all = Arrays.binarySearch(ids.values, 0, ids.size, id) >= 0;
+            }
+            if (all)
+                candidates.add(id);
+        }
+        return candidates.toArray();
+    }
+
+    /**
+     * Folds the case of a string the way a <tt>Pattern</tt> with the
+     * <tt>CASE_INSENSITIVE</tt> and <tt>UNICODE_CASE</tt> flags compares
+     * characters.
+     *
+     * @param s the string
+     * @return the folded string
+     */
+    static String fold(String s)
+    {
+        StringBuilder folded = new StringBuilder(s.length());
+
+        for (int i = 0; i < s.length(); )
+        {
+            int c = s.codePointAt(i);
+
+            folded.appendCodePoint(
+                Character.toLowerCase(Character.toUpperCase(c)));
+            i += Character.charCount(c);
+        }
+        return folded.toString();
+    }
+
+    /**
+     * The folded strings a contact is searched by.
+     */
+    private static class Entry
+    {
+        final MetaContact metaContact;
+
+        final String[] strings;
+
+        Entry(MetaContact metaContact)
+        {
+            List<String> strings = new ArrayList<String>();
+
+            addString(strings, metaContact.getDisplayName());
+
+            Iterator<Contact> contacts = metaContact.getContacts();
+            while (contacts.hasNext())
+            {
+                Contact contact = contacts.next();
+
+                addString(strings, contact.getDisplayName());
+                addString(strings, contact.getAddress());
+            }
+
+            this.metaContact = metaContact;
+            this.strings = strings.toArray(new String[strings.size()]);
+        }
+
+        private static void addString(List<String> strings, String s)
+        {
+            if (s != null && s.length() > 0)
+            {
+                String folded = fold(s);
+
+                if (!strings.contains(folded))
+                    strings.add(folded);
+            }
+        }
+
+        boolean contains(String filter)
+        {
+            for (String s : strings)
+            {
+                if (s.contains(filter))
+                    return true;
+            }
+            return filter.length() == 0;
+        }
+    }
+
+    /**
+     * A growable array of <tt>int</tt>s.
+     */
+    private static class IntList
+    {
+        int[] values = new int[4];
+
+        int size = 0;
+
+        void add(int value)
+        {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        int[] toArray()
+        {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
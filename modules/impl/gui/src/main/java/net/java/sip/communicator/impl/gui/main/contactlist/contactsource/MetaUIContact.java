@@ -339,7 +339,7 @@ public ImageIcon getScaledAvatar(
         {
             if (!subscribed)
             {
-                return ImageUtils.getScaledRoundedIcon(
+                return ImageLoader.getScaledRoundedIcon(
                     ImageLoader.getImage(ImageLoader.UNAUTHORIZED_CONTACT_PHOTO),
                     width, height);
             }
@@ -0,0 +1,290 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.utils;
+
+import java.awt.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A cache of images bounded by the number of bytes their pixels take in
+ * memory. Lookups don't lock: every hit only stamps its entry with the
+ * current access time. When the cache grows over its budget the least
+ * recently used images are evicted until a quarter of the budget is free
+ * again, so that eviction runs once per batch of insertions and not on each
+ * of them.
+ *
+ * @param <K> the type of the keys
+ * @param <I> the type of the cached images
+ */
+class ImageCache<K, I extends Image>
+{
+    /**
+     * The number of bytes a single pixel of a cached image is assumed to take
+     * in memory.
+     */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /**
+     * The cached entries.
+     */
+    private final ConcurrentMap<K, Entry<I>> entries
+        = new ConcurrentHashMap<K, Entry<I>>();
+
+    /**
+     * The logical clock used to stamp the entries when they are accessed.
+     */
+    private final AtomicLong clock = new AtomicLong();
+
+    /**
+     * The number of pixel bytes of all cached images.
+     */
+    private final AtomicLong size = new AtomicLong();
+
+    /**
+     * The maximum number of pixel bytes of all cached images.
+     */
+    private final long maxSize;
+
+    /**
+     * Creates an <tt>ImageCache</tt>.
+     *
+     * @param maxSize the maximum number of pixel bytes of all cached images
+     */
+    ImageCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the image cached for the given key.
+     *
+     * @param key the key
+     * @return the image cached for the given key or <tt>null</tt> if there
+     * isn't one
+     */
+    I get(K key)
+    {
+        Entry<I> entry = entries.get(key);
+
+        if (entry == null)
+            return null;
+
+        entry.lastAccess = clock.incrementAndGet();
+        return entry.image;
+    }
+
+    /**
+     * Caches the given image under the given key unless another thread has
+     * already cached one, in which case the latter is returned so that all
+     * callers share the same instance.
+     *
+     * @param key the key
+     * @param image the image to cache
+     * @return the image which is cached for the given key
+     */
+    I put(K key, I image)
+    {
+        Entry<I> entry = new Entry<I>(image, clock.incrementAndGet());
+        Entry<I> previous = entries.putIfAbsent(key, entry);
+
+        if (previous != null)
+        {
+            previous.lastAccess = clock.incrementAndGet();
+            return previous.image;
+        }
+
+        if (size.addAndGet(entry.size) > maxSize)
+            evict();
+        return image;
+    }
+
+    /**
+     * Removes all images from this cache.
+     */
+    void clear()
+    {
+        for (Map.Entry<K, Entry<I>> e : entries.entrySet())
+        {
+            if (entries.remove(e.getKey(), e.getValue()))
+                size.addAndGet(-e.getValue().size);
+        }
+    }
+
+    /**
+     * Returns the number of pixel bytes of all cached images.
+     *
+     * @return the number of pixel bytes of all cached images
+     */
+    long size()
+    {
+        return size.get();
+    }
+
+    /**
+     * Evicts the least recently used images until three quarters of the
+     * budget are left.
+     */
+    private synchronized void evict()
+    {
+        if (size.get() <= maxSize)
+            return;
+
+        // the access stamps keep changing, so sort on a snapshot of them
+        List<Map.Entry<K, Entry<I>>> lru
+            = new ArrayList<Map.Entry<K, Entry<I>>>(entries.entrySet());
+
+        for (Map.Entry<K, Entry<I>> e : lru)
+            e.getValue().evictionStamp = e.getValue().lastAccess;
+        Collections.sort(lru, new Comparator<Map.Entry<K, Entry<I>>>()
+        {
+            public int compare(
+                Map.Entry<K, Entry<I>> e1, Map.Entry<K, Entry<I>> e2)
+            {
+                return Long.compare(
+                    e1.getValue().evictionStamp, e2.getValue().evictionStamp);
+            }
+        });
+
+        long trimmedSize = maxSize - maxSize / 4;
+
+        for (Map.Entry<K, Entry<I>> e : lru)
+        {
+            if (size.get() <= trimmedSize)
+                break;
+            if (entries.remove(e.getKey(), e.getValue()))
+                size.addAndGet(-e.getValue().size);
+        }
+    }
+
+    /**
+     * A cached image along with its size and the time it was last accessed.
+     *
+     * @param <I> the type of the cached image
+     */
+    private static class Entry<I extends Image>
+    {
+        /**
+         * The cached image.
+         */
+        final I image;
+
+        /**
+         * The number of bytes the pixels of the image take in memory.
+         */
+        final long size;
+
+        /**
+         * The value of the clock when the image was last accessed.
+         */
+        volatile long lastAccess;
+
+        /**
+         * The value of <tt>lastAccess</tt> at the beginning of the eviction
+         * in progress.
+         */
+        long evictionStamp;
+
+        /**
+         * Creates an entry for the given image.
+         *
+         * @param image the image
+         * @param lastAccess the current value of the clock
+         */
+        Entry(I image, long lastAccess)
+        {
+            this.image = image;
+            this.lastAccess = lastAccess;
+            this.size = (long) Math.max(image.getWidth(null), 1)
+                * Math.max(image.getHeight(null), 1) * BYTES_PER_PIXEL;
+        }
+    }
+
+    /**
+     * The key of an image rendered from a source image, such as a scaled or a
+     * badged version of the latter. The source image is compared by identity
+     * while the overlay, which describes what is drawn on top of the source,
+     * is compared with <tt>equals</tt>.
+     */
+    static final class RenderingKey
+    {
+        /**
+         * The image the rendering is based on.
+         */
+        private final Image source;
+
+        /**
+         * The width of the rendering.
+         */
+        private final int width;
+
+        /**
+         * The height of the rendering.
+         */
+        private final int height;
+
+        /**
+         * What is drawn on top of the source.
+         */
+        private final Object overlay;
+
+        /**
+         * Creates a <tt>RenderingKey</tt>.
+         *
+         * @param source the image the rendering is based on
+         * @param width the width of the rendering
+         * @param height the height of the rendering
+         * @param overlay what is drawn on top of the source or <tt>null</tt>
+         */
+        RenderingKey(Image source, int width, int height, Object overlay)
+        {
+            this.source = source;
+            this.width = width;
+            this.height = height;
+            this.overlay = overlay;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof RenderingKey))
+                return false;
+
+            RenderingKey other = (RenderingKey) obj;
+
+            return source == other.source
+                && width == other.width
+                && height == other.height
+                && Objects.equals(overlay, other.overlay);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            int hashCode = System.identityHashCode(source);
+
+            hashCode = 31 * hashCode + width;
+            hashCode = 31 * hashCode + height;
+            return 31 * hashCode + Objects.hashCode(overlay);
+        }
+    }
+}
@@ -21,6 +21,7 @@
 import java.awt.image.*;
 import java.io.*;
 import java.net.*;
+import java.util.*;
 
 import javax.swing.*;
 
@@ -52,6 +53,22 @@
      */
     private static ImageLoaderServiceImpl imageLoaderService = null;
 
+    /**
+     * The maximum number of bytes the pixels of the rendered images may take
+     * in memory before the least recently used ones are dropped from the
+     * cache.
+     */
+    private static final long RENDERED_IMAGES_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Stores the recently rendered composite and scaled images, which the
+     * contact list asks for on every repaint of each visible row.
+     */
+    private static final ImageCache<ImageCache.RenderingKey, Image>
+        renderedImages
+            = new ImageCache<ImageCache.RenderingKey, Image>(
+                RENDERED_IMAGES_SIZE);
+
     /**
      * The SIP Communicator logo 16x16 icon.
      */
@@ -1802,6 +1819,13 @@ public static Image getIndexedProtocolImage(
 
         if (index > 0)
         {
+            ImageCache.RenderingKey key
+                = new ImageCache.RenderingKey(image, 22, 16, index + 1);
+
+            badged = renderedImages.get(key);
+            if (badged != null)
+                return badged;
+
             BufferedImage buffImage =
                 new BufferedImage(22, 16, BufferedImage.TYPE_INT_ARGB);
             Graphics2D g = (Graphics2D) buffImage.getGraphics();
@@ -1813,7 +1837,7 @@ public static Image getIndexedProtocolImage(
             g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER));
             g.drawString(Integer.toString(index + 1), 14, 8);
 
-            badged = buffImage;
+            badged = renderedImages.put(key, buffImage);
         }
         else
             badged = image;
@@ -1841,6 +1865,14 @@ public static Image getImage(Image bgImage, Image topImage, int x, int y)
                         ? y + topImage.getHeight(null)
                         : bgImage.getHeight(null);
 
+        ImageCache.RenderingKey key
+            = new ImageCache.RenderingKey(
+                bgImage, width, height, Arrays.asList(topImage, x, y));
+        Image image = renderedImages.get(key);
+
+        if (image != null)
+            return image;
+
         BufferedImage buffImage
             = new BufferedImage(width,
                                 height,
@@ -1851,7 +1883,7 @@ public static Image getImage(Image bgImage, Image topImage, int x, int y)
         g.drawImage(bgImage, 0, 0, null);
         g.drawImage(topImage, x, y, null);
 
-        return buffImage;
+        return renderedImages.put(key, buffImage);
     }
 
     /**
@@ -1865,15 +1897,24 @@ public static Image getImage(Image bgImage, Image topImage, int x, int y)
      */
     public static Image getImage(Image bgImage, String text, Component c)
     {
+        int width = bgImage.getWidth(c);
+        int height = bgImage.getHeight(c);
+        Font font = c.getFont();
+        ImageCache.RenderingKey key
+            = new ImageCache.RenderingKey(
+                bgImage, width, height, Arrays.asList(text, font));
+        Image image = renderedImages.get(key);
+
+        if (image != null)
+            return image;
+
         BufferedImage buffImage
-            = new BufferedImage(bgImage.getWidth(c),
-                                bgImage.getHeight(c),
-                                BufferedImage.TYPE_INT_ARGB);
+            = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
         Graphics2D g = (Graphics2D) buffImage.getGraphics();
 
         AntialiasingManager.activateAntialiasing(g);
         g.setColor(Color.WHITE);
-        g.setFont(c.getFont().deriveFont(Font.BOLD, 9));
+        g.setFont(font.deriveFont(Font.BOLD, 9));
         g.drawImage(bgImage, 0, 0, null);
 
         FontMetrics fontMetrics = g.getFontMetrics();
@@ -1885,7 +1926,36 @@ public static Image getImage(Image bgImage, String text, Component c)
                 (bgImage.getWidth(null) - textWidth)/2 + 1,
                 (bgImage.getHeight(null) - fontHeight)/2 + fontHeight - 3);
 
-        return buffImage;
+        return renderedImages.put(key, buffImage);
+    }
+
+    /**
+     * Returns a scaled rounded icon from the given <tt>image</tt>, scaled
+     * within the given <tt>width</tt> and <tt>height</tt>. Unlike
+     * <tt>ImageUtils.getScaledRoundedIcon</tt> the scaled image is cached,
+     * so the given image should be one which is itself kept, such as an image
+     * returned by <tt>getImage(ImageID)</tt>.
+     *
+     * @param image the image to scale
+     * @param width the maximum width of the scaled icon
+     * @param height the maximum height of the scaled icon
+     * @return a scaled rounded icon
+     */
+    public static ImageIcon getScaledRoundedIcon(
+            Image image, int width, int height)
+    {
+        ImageCache.RenderingKey key
+            = new ImageCache.RenderingKey(image, width, height, null);
+        Image scaledImage = renderedImages.get(key);
+
+        if (scaledImage == null)
+        {
+            scaledImage = ImageUtils.getScaledRoundedImage(image, width, height);
+            if (scaledImage == null)
+                return null;
+            scaledImage = renderedImages.put(key, scaledImage);
+        }
+        return new ImageIcon(scaledImage);
     }
 
     /**
@@ -1933,5 +2003,6 @@ public static ImageIcon getImageForPath(String imagePath)
     public static void clearCache()
     {
         getImageLoaderService().clearCache();
+        renderedImages.clear();
     }
 }
@@ -25,7 +25,6 @@
 import javax.imageio.*;
 import java.awt.image.*;
 import java.net.*;
-import java.util.*;
 
 /**
  * Service responsible for loading images and possibly cache them.
@@ -42,10 +41,16 @@
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(ImageLoaderServiceImpl.class);
 
     /**
-     * Stores all already loaded images.
+     * The maximum number of bytes the pixels of the loaded images may take in
+     * memory before the least recently used ones are dropped from the cache.
      */
-    private static final Map<ImageID, BufferedImage> loadedImages =
-        new Hashtable<ImageID, BufferedImage>();
+    private static final long LOADED_IMAGES_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Stores the recently loaded images.
+     */
+    private static final ImageCache<ImageID, BufferedImage> loadedImages
+        = new ImageCache<ImageID, BufferedImage>(LOADED_IMAGES_SIZE);
 
     /**
      * Loads an image from a given image identifier.
@@ -55,13 +60,9 @@
      */
     public BufferedImage getImage(ImageID imageID)
     {
-        BufferedImage image = null;
+        BufferedImage image = loadedImages.get(imageID);
 
-        if (loadedImages.containsKey(imageID))
-        {
-            image = loadedImages.get(imageID);
-        }
-        else
+        if (image == null)
         {
             URL path = GuiActivator.getResources().getImageURL(imageID.getId());
 
@@ -71,7 +72,8 @@ public BufferedImage getImage(ImageID imageID)
                 {
                     image = ImageIO.read(path);
 
-                    loadedImages.put(imageID, image);
+                    if (image != null)
+                        image = loadedImages.put(imageID, image);
                 }
                 catch (Exception ex)
                 {
@@ -17,11 +17,16 @@
  */
 package net.java.sip.communicator.impl.gui.main.chat;
 
+import java.io.*;
 import java.util.*;
 import java.util.Map.Entry;
 import java.util.regex.*;
 
+import javax.swing.text.*;
+import javax.swing.text.html.*;
+
 import junit.framework.*;
+import net.java.sip.communicator.service.gui.*;
 
 /**
  * Tests for functionality of the ChatConversationPanel.
@@ -31,6 +36,11 @@
 public class ChatConversationPanelTest
     extends TestCase
 {
+    /**
+     * The document property holding the lengths of the blocks of a document
+     * created by {@link #createDocument(int...)}.
+     */
+    private static final String BLOCK_LENGTHS = "blockLengths";
 
     /**
      * Test for various better and worse pieces of HTML to test the resilience
@@ -119,4 +129,125 @@ public void testHtmlSnippetsOnTextToReplacePattern()
             Assert.assertEquals(entry.getValue().length, index);
         }
     }
+
+    /**
+     * The oldest children of the body are removed whole, until the document
+     * is back under three quarters of the chat buffer size.
+     */
+    public void testTrimWholeBlocks()
+        throws Exception
+    {
+        int block = Chat.CHAT_BUFFER_SIZE / 10;
+        HTMLDocument document = createDocument(
+            block, block, block, block, block, block,
+            block, block, block, block, block, block);
+
+        assertTrue(document.getLength() > Chat.CHAT_BUFFER_SIZE);
+        ChatConversationPanel.trimDocument(document, true);
+
+        // five blocks are needed to go under three quarters of the buffer
+        assertEquals("fghijkl", getBlocks(document));
+        assertTrue(document.getLength() <= Chat.CHAT_BUFFER_SIZE * 3 / 4);
+
+        // a document under the chat buffer size is left as is
+        document = createDocument(block, block, block);
+        ChatConversationPanel.trimDocument(document, true);
+        assertEquals("abc", getBlocks(document));
+    }
+
+    /**
+     * The last child of the body is kept, even if the document stays over
+     * the chat buffer size without it.
+     */
+    public void testTrimKeepsLastBlock()
+        throws Exception
+    {
+        int size = Chat.CHAT_BUFFER_SIZE;
+        HTMLDocument document = createDocument(size / 2, size / 2, size);
+
+        ChatConversationPanel.trimDocument(document, true);
+        assertEquals("c", getBlocks(document));
+
+        document = createDocument(size * 3);
+        ChatConversationPanel.trimDocument(document, true);
+        assertEquals("a", getBlocks(document));
+    }
+
+    /**
+     * The messages the user scrolled back to are kept until the document
+     * exceeds twice the chat buffer size.
+     */
+    public void testNoTrimWhileScrolledUp()
+        throws Exception
+    {
+        int block = Chat.CHAT_BUFFER_SIZE / 10;
+        HTMLDocument document = createDocument(
+            block, block, block, block, block, block,
+            block, block, block, block, block, block);
+
+        ChatConversationPanel.trimDocument(document, false);
+        assertEquals("abcdefghijkl", getBlocks(document));
+
+        document = createDocument(
+            block * 5, block * 5, block * 5, block * 5, block);
+        assertTrue(document.getLength() > Chat.CHAT_BUFFER_SIZE * 2);
+        ChatConversationPanel.trimDocument(document, false);
+        assertEquals("de", getBlocks(document));
+    }
+
+    /**
+     * Creates a document whose body holds blocks of the given lengths, each
+     * filled with a letter of its own, from <tt>a</tt> on.
+     */
+    private static HTMLDocument createDocument(int... lengths)
+        throws Exception
+    {
+        HTMLEditorKit kit = new HTMLEditorKit();
+        HTMLDocument document = (HTMLDocument) kit.createDefaultDocument();
+        StringBuilder html = new StringBuilder("<html><body>");
+
+        for (int i = 0; i < lengths.length; i++)
+        {
+            char[] text = new char[lengths[i]];
+
+            Arrays.fill(text, (char) ('a' + i));
+            html.append("<div>").append(text).append("</div>");
+        }
+        html.append("</body></html>");
+        kit.read(new StringReader(html.toString()), document, 0);
+        document.putProperty(BLOCK_LENGTHS, lengths);
+        return document;
+    }
+
+    /**
+     * Returns the letters of the children of the body of a document created
+     * by {@link #createDocument(int...)}, checking that each of them is whole.
+     */
+    private static String getBlocks(HTMLDocument document)
+        throws Exception
+    {
+        Element root = document.getDefaultRootElement();
+        Element body = root.getElement(root.getElementCount() - 1);
+        StringBuilder blocks = new StringBuilder();
+
+        for (int i = 0; i < body.getElementCount(); i++)
+        {
+            Element block = body.getElement(i);
+            String text = document.getText(
+                    block.getStartOffset(),
+                    block.getEndOffset() - block.getStartOffset())
+                .trim();
+
+            if (text.length() == 0)
+                continue;
+
+            char letter = text.charAt(0);
+            int[] lengths = (int[]) document.getProperty(BLOCK_LENGTHS);
+
+            assertEquals(lengths[letter - 'a'], text.length());
+            assertEquals("", text.replace(String.valueOf(letter), ""));
+            blocks.append(letter);
+        }
+        return blocks.toString();
+    }
 }
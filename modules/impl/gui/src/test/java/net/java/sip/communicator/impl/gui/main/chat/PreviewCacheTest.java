@@ -0,0 +1,288 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.io.*;
+import java.lang.reflect.*;
+import java.lang.reflect.Proxy;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.List;
+import java.util.concurrent.atomic.*;
+
+import javax.imageio.*;
+import javax.swing.*;
+
+import com.sun.net.httpserver.*;
+
+import junit.framework.*;
+
+import net.java.sip.communicator.service.replacement.*;
+
+/**
+ * Tests the <tt>PreviewCache</tt> against a local HTTP server.
+ */
+public class PreviewCacheTest
+    extends TestCase
+{
+    private HttpServer server;
+
+    private final Map<String, byte[]> resources
+        = Collections.synchronizedMap(new HashMap<String, byte[]>());
+
+    private final AtomicInteger requestCount = new AtomicInteger();
+
+    private File dir;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange)
+                throws IOException
+            {
+                requestCount.incrementAndGet();
+
+                byte[] data = resources.get(exchange.getRequestURI().getPath());
+
+                if (data == null)
+                {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                else
+                {
+                    exchange.getResponseHeaders().add(
+                        "Content-Type", "image/png");
+                    exchange.sendResponseHeaders(200, data.length);
+                    exchange.getResponseBody().write(data);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+
+        dir = Files.createTempDirectory("previewcache").toFile();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        server.stop(0);
+
+        File[] files = dir.listFiles();
+
+        if (files != null)
+        {
+            for (File file : files)
+                file.delete();
+        }
+        dir.delete();
+    }
+
+    private String addImage(String path, int size)
+        throws IOException
+    {
+        BufferedImage image
+            = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(size);
+
+        // random pixels don't compress, so each image has a distinct size
+        for (int x = 0; x < size; x++)
+        {
+            for (int y = 0; y < size; y++)
+                image.setRGB(x, y, random.nextInt());
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        ImageIO.write(image, "png", out);
+        resources.put(path, out.toByteArray());
+        return getURL(path);
+    }
+
+    private String getURL(String path)
+    {
+        return "http://" + server.getAddress().getHostString() + ":"
+            + server.getAddress().getPort() + path;
+    }
+
+    private List<String> getFiles(String extension)
+    {
+        List<String> names = new ArrayList<String>();
+
+        for (String name : dir.list())
+        {
+            if (name.endsWith(extension))
+                names.add(name);
+        }
+        return names;
+    }
+
+    public void testImageIsDownloadedOnce()
+        throws Exception
+    {
+        String url = addImage("/a.png", 16);
+        PreviewCache cache = new PreviewCache(dir, 1024 * 1024);
+
+        Image image = cache.getImage(url);
+
+        assertNotNull(image);
+        assertEquals(16, image.getWidth(null));
+        assertSame(image, cache.getImage(url));
+        assertEquals(1, requestCount.get());
+
+        // a new cache, as after a restart, reads the image from its directory
+        PreviewCache restarted = new PreviewCache(dir, 1024 * 1024);
+
+        assertNotNull(restarted.getImage(url));
+        assertNotNull(restarted.getImageCache().get(new URL(url)));
+        assertEquals(1, requestCount.get());
+    }
+
+    /**
+     * The image cache of the documents returns the previews which aren't in
+     * memory right away and produces them once they are fetched.
+     */
+    public void testImageCacheFetchesInBackground()
+        throws Exception
+    {
+        String url = addImage("/a.png", 16);
+        PreviewCache cache = new PreviewCache(dir, 1024 * 1024);
+
+        // the replacement of a message starts the fetch the document joins
+        cache.fetchImage(url);
+
+        Image image = cache.getImageCache().get(new URL(url));
+        ImageIcon icon = new ImageIcon(image);
+
+        assertEquals(MediaTracker.COMPLETE, icon.getImageLoadStatus());
+        assertEquals(16, icon.getIconWidth());
+        assertEquals(1, requestCount.get());
+        assertSame(
+            cache.getImage(url), cache.getImageCache().get(new URL(url)));
+        assertTrue(getFiles(".tmp").isEmpty());
+
+        // after a restart, the image is fetched from the directory
+        PreviewCache restarted = new PreviewCache(dir, 1024 * 1024);
+
+        icon = new ImageIcon(restarted.getImageCache().get(new URL(url)));
+        assertEquals(MediaTracker.COMPLETE, icon.getImageLoadStatus());
+        assertEquals(1, requestCount.get());
+
+        // an image which can't be fetched is produced as an error
+        icon = new ImageIcon(
+            cache.getImageCache().get(new URL(getURL("/missing.png"))));
+        assertEquals(MediaTracker.ERRORED, icon.getImageLoadStatus());
+    }
+
+    public void testInvalidImagesAreNotCached()
+        throws Exception
+    {
+        PreviewCache cache = new PreviewCache(dir, 1024 * 1024);
+
+        resources.put("/text.png", "not an image".getBytes("UTF-8"));
+        resources.put(
+            "/big.png", new byte[PreviewCache.MAX_IMAGE_SIZE + 1]);
+
+        assertNull(cache.getImage(getURL("/missing.png")));
+        assertNull(cache.getImage(getURL("/text.png")));
+        assertNull(cache.getImage(getURL("/big.png")));
+        assertTrue(getFiles(".img").isEmpty());
+        assertNull(cache.getCachedImage(getURL("/text.png")));
+    }
+
+    public void testLeastRecentlyUsedImagesAreEvicted()
+        throws Exception
+    {
+        String url1 = addImage("/1.png", 20);
+        String url2 = addImage("/2.png", 21);
+        String url3 = addImage("/3.png", 22);
+        long size = resources.get("/3.png").length;
+        PreviewCache cache = new PreviewCache(dir, size * 2 + size / 2);
+
+        assertNotNull(cache.getImage(url1));
+        assertNotNull(cache.getImage(url2));
+        assertNotNull(cache.getImage(url3));
+        assertEquals(2, getFiles(".img").size());
+        assertEquals(3, requestCount.get());
+
+        PreviewCache restarted
+            = new PreviewCache(dir, size * 2 + size / 2);
+
+        assertNull(restarted.getCachedImage(url1));
+        assertNotNull(restarted.getCachedImage(url2));
+        assertNotNull(restarted.getCachedImage(url3));
+    }
+
+    public void testReplacementsAreCached()
+        throws Exception
+    {
+        final AtomicInteger replacementCount = new AtomicInteger();
+        ReplacementService source
+            = (ReplacementService) Proxy.newProxyInstance(
+                getClass().getClassLoader(),
+                new Class<?>[] { ReplacementService.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(
+                        Object proxy, Method method, Object[] args)
+                    {
+                        if (method.getName().equals("getSourceName"))
+                            return "TEST";
+                        if (method.getName().equals("getReplacement"))
+                        {
+                            replacementCount.incrementAndGet();
+
+                            String link = (String) args[0];
+
+                            return link.startsWith("http://video/")
+                                ? "http://thumb/" + link.substring(13)
+                                : link;
+                        }
+                        return null;
+                    }
+                });
+        PreviewCache cache = new PreviewCache(dir, 1024 * 1024);
+
+        assertEquals("http://thumb/1",
+            cache.getReplacement(source, "http://video/1"));
+        assertEquals("http://other/1",
+            cache.getReplacement(source, "http://other/1"));
+        assertEquals("http://thumb/1",
+            cache.getReplacement(source, "http://video/1"));
+        assertEquals("http://other/1",
+            cache.getReplacement(source, "http://other/1"));
+        assertEquals(2, replacementCount.get());
+
+        // only the links which were replaced are saved
+        PreviewCache restarted = new PreviewCache(dir, 1024 * 1024);
+
+        assertEquals("http://thumb/1",
+            restarted.getReplacement(source, "http://video/1"));
+        assertEquals("http://other/1",
+            restarted.getReplacement(source, "http://other/1"));
+        assertEquals(3, replacementCount.get());
+    }
+}
@@ -0,0 +1,318 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.chat;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.regex.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.replacement.*;
+import net.java.sip.communicator.service.replacement.smilies.*;
+
+/**
+ * Tests that the <tt>ReplacementEngine</tt> finds the same pieces of text as
+ * running the patterns of the replacement sources one after the other.
+ */
+public class ReplacementEngineTest
+    extends TestCase
+{
+    private final Map<String, ReplacementService> sources
+        = new LinkedHashMap<String, ReplacementService>();
+
+    /**
+     * Of the matches of several sources, the one starting first wins.
+     */
+    public void testLeftmostFirst()
+    {
+        addSource("suffix", "bc");
+        addSource("word", "abc");
+
+        assertEquals(Arrays.asList("word:abc", "suffix:bc"),
+            find("xabc bc"));
+    }
+
+    /**
+     * Of the matches of several sources starting at the same offset, the
+     * one of the first source wins, even if it is shorter.
+     */
+    public void testSameOffsetSourcePriority()
+    {
+        addSource("short", "ab");
+        addSource("long", "abcd");
+        assertEquals(Arrays.asList("short:ab"), find("abcd"));
+
+        sources.clear();
+        addSource("long", "abcd");
+        addSource("short", "ab");
+        assertEquals(Arrays.asList("long:abcd"), find("abcd"));
+    }
+
+    /**
+     * Smileys are not found in the alt attribute of the smiley images
+     * already inserted in the text.
+     */
+    public void testSmileyInAltAttribute()
+    {
+        addSmileys(":)", ":-)");
+
+        String text = "<img alt=':)'> <IMG ALT=\":-)\"> :) alt= :)";
+
+        assertEquals(Arrays.asList("SMILEY::)", "SMILEY::)"), find(text));
+        assertSameAsSmileyPattern(text);
+    }
+
+    /**
+     * Overlapping smileys are found the way the alternation of the smiley
+     * strings finds them, the first one of the pack winning at an offset.
+     */
+    public void testOverlappingSmileys()
+    {
+        addSmileys(":-)", ":)", ":(", ":((", "(y)");
+
+        assertEquals(
+            Arrays.asList("SMILEY::-)", "SMILEY::)", "SMILEY::(",
+                "SMILEY:(y)"),
+            find(":-):):(((y)"));
+        for (String text
+                : new String[] { ":-):)", "::-))", ":((", ":(((y)", "(:)" })
+        {
+            assertSameAsSmileyPattern(text);
+        }
+    }
+
+    /**
+     * A URL containing a smiley string is found as a whole, and the smiley
+     * string after it as a smiley.
+     */
+    public void testUrlContainingSmiley()
+    {
+        addSmileys(":/", ":)");
+        addSource("url", "https?://[^\\s]+");
+
+        assertEquals(
+            Arrays.asList("url:http://example.com/a:)", "SMILEY::/"),
+            find("see http://example.com/a:) :/"));
+    }
+
+    /**
+     * A pattern with a backreference, which would refer to another group if
+     * it was joined with the other patterns, is matched on its own.
+     */
+    public void testBackreferenceFallback()
+    {
+        addSource("pair", "(x)(y)");
+        addSource("double", "([a-z])\\1");
+        addSource("named", "(?<c>[0-9])\\k<c>");
+
+        assertEquals(
+            Arrays.asList("pair:xy", "double:bb", "named:77", "double:oo"),
+            find("xy abba 1277 foo"));
+    }
+
+    /**
+     * Smileys and patterns ignore the case of US-ASCII characters only, as
+     * case insensitive patterns without <tt>UNICODE_CASE</tt> do.
+     */
+    public void testCaseFolding()
+    {
+        addSmileys(":P", "\u00c4");
+        addSource("hello", "hello");
+
+        assertEquals(
+            Arrays.asList("SMILEY::p", "hello:HeLLo", "SMILEY:\u00c4"),
+            find(":p HeLLo \u00e4 \u00c4"));
+        assertSameAsSmileyPattern(":p :P \u00e4 \u00c4");
+    }
+
+    /**
+     * The patterns are read again only when the sources change or are told
+     * to have changed their patterns, not for every text.
+     */
+    public void testPatternsReadOnChange()
+    {
+        final String[] pattern = { "abc" };
+        final int[] reads = { 0 };
+
+        sources.put("changing", proxy(ReplacementService.class,
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    if (method.getName().equals("getPattern"))
+                    {
+                        reads[0]++;
+                        return pattern[0];
+                    }
+                    return "changing";
+                }
+            }));
+
+        assertEquals(Arrays.asList("changing:abc"), find("abc xyz"));
+        assertEquals(Arrays.asList("changing:abc"), find("abc xyz"));
+        assertEquals(1, reads[0]);
+
+        pattern[0] = "xyz";
+        assertEquals(Arrays.asList("changing:abc"), find("abc xyz"));
+        ReplacementEngine.patternsChanged();
+        assertEquals(Arrays.asList("changing:xyz"), find("abc xyz"));
+        assertEquals(2, reads[0]);
+
+        addSource("other", "b");
+        assertEquals(Arrays.asList("changing:xyz", "other:b"),
+            find("xyz b"));
+        assertEquals(3, reads[0]);
+    }
+
+    private void addSource(final String name, final String pattern)
+    {
+        sources.put(name, proxy(ReplacementService.class,
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    if (method.getName().equals("getPattern"))
+                        return pattern;
+                    if (method.getName().equals("getSourceName"))
+                        return name;
+                    return null;
+                }
+            }));
+    }
+
+    private void addSmileys(String... smileyStrings)
+    {
+        final List<Smiley> smileys = new ArrayList<Smiley>();
+
+        for (final String smileyString : smileyStrings)
+        {
+            smileys.add(proxy(Smiley.class, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    return method.getName().equals("getSmileyStrings")
+                        ? Collections.singletonList(smileyString)
+                        : null;
+                }
+            }));
+        }
+
+        final String pattern = getSmileyPattern(smileyStrings);
+
+        sources.put(SmiliesReplacementService.SMILEY_SOURCE,
+            proxy(SmiliesReplacementService.class, new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    if (method.getName().equals("getSmiliesPack"))
+                        return smileys;
+                    if (method.getName().equals("getPattern"))
+                        return pattern;
+                    if (method.getName().equals("getSourceName"))
+                        return SmiliesReplacementService.SMILEY_SOURCE;
+                    return null;
+                }
+            }));
+    }
+
+    /**
+     * Returns the pattern the smiley replacement service builds for smiley
+     * strings.
+     */
+    private static String getSmileyPattern(String... smileyStrings)
+    {
+        StringBuilder regex = new StringBuilder("(?<!(alt='|alt=\"))(");
+
+        for (int i = 0; i < smileyStrings.length; i++)
+        {
+            if (i > 0)
+                regex.append('|');
+            regex.append(Pattern.quote(smileyStrings[i]));
+        }
+        return regex.append(')').toString();
+    }
+
+    /**
+     * Returns the matches of the engine, as the source name and the matched
+     * text.
+     */
+    private List<String> find(String text)
+    {
+        ReplacementEngine.ReplacementMatcher m
+            = ReplacementEngine.getInstance(sources).matcher(text);
+        List<String> matches = new ArrayList<String>();
+
+        while (m.find())
+        {
+            assertEquals(text.substring(m.start(), m.end()), m.group());
+            matches.add(m.getSource().getSourceName() + ":" + m.group());
+        }
+        return matches;
+    }
+
+    /**
+     * Checks that the engine finds the smileys the pattern of the smiley
+     * source finds.
+     */
+    private void assertSameAsSmileyPattern(String text)
+    {
+        String source = SmiliesReplacementService.SMILEY_SOURCE;
+        Matcher m = Pattern.compile(
+                sources.get(source).getPattern(),
+                Pattern.CASE_INSENSITIVE | Pattern.DOTALL)
+            .matcher(text);
+        List<String> matches = new ArrayList<String>();
+
+        while (m.find())
+            matches.add(source + ":" + m.group());
+        assertEquals(text, matches, find(text));
+    }
+
+    /**
+     * Creates a proxy of an interface whose methods are handled by
+     * <tt>handler</tt>, except those of <tt>Object</tt>.
+     */
+    private static <T> T proxy(final Class<T> type,
+                               final InvocationHandler handler)
+    {
+        return type.cast(Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                    throws Throwable
+                {
+                    if (method.getDeclaringClass() == Object.class)
+                    {
+                        if (method.getName().equals("equals"))
+                            return proxy == args[0];
+                        if (method.getName().equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        return type.getSimpleName();
+                    }
+                    return handler.invoke(proxy, method, args);
+                }
+            }));
+    }
+}
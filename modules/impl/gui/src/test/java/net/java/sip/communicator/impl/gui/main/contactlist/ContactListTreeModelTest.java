@@ -0,0 +1,117 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist;
+
+import java.util.*;
+
+import javax.swing.*;
+import javax.swing.event.*;
+import javax.swing.tree.*;
+
+import junit.framework.*;
+
+/**
+ * Tests that <tt>ContactListTreeModel</tt> refreshes a batch of changed
+ * nodes with one event per parent.
+ */
+public class ContactListTreeModelTest
+    extends TestCase
+{
+    public void testNodesChangedOncePerParent()
+    {
+        ContactListTreeModel model = new ContactListTreeModel(new JTree());
+        GroupNode root = model.getRoot();
+        DefaultMutableTreeNode contact1 = new DefaultMutableTreeNode();
+        DefaultMutableTreeNode group = new DefaultMutableTreeNode();
+        DefaultMutableTreeNode contact2 = new DefaultMutableTreeNode();
+        DefaultMutableTreeNode groupContact1 = new DefaultMutableTreeNode();
+        DefaultMutableTreeNode groupContact2 = new DefaultMutableTreeNode();
+        DefaultMutableTreeNode removed = new DefaultMutableTreeNode();
+
+        root.add(contact1);
+        root.add(group);
+        root.add(contact2);
+        group.add(groupContact1);
+        group.add(groupContact2);
+
+        final List<TreeModelEvent> evts = new ArrayList<TreeModelEvent>();
+        model.addTreeModelListener(new TreeModelListener()
+        {
+            public void treeNodesChanged(TreeModelEvent e)
+            {
+                evts.add(e);
+            }
+
+            public void treeNodesInserted(TreeModelEvent e)
+            {
+                fail();
+            }
+
+            public void treeNodesRemoved(TreeModelEvent e)
+            {
+                fail();
+            }
+
+            public void treeStructureChanged(TreeModelEvent e)
+            {
+                fail();
+            }
+        });
+
+        model.fireNodesChanged(Arrays.asList(
+            contact2, groupContact2, contact1, removed, groupContact2,
+            groupContact1));
+
+        assertEquals(2, evts.size());
+        assertSame(root, evts.get(0).getTreePath().getLastPathComponent());
+        assertTrue(Arrays.equals(
+            new int[] { 0, 2 }, evts.get(0).getChildIndices()));
+        assertTrue(Arrays.equals(
+            new Object[] { contact1, contact2 }, evts.get(0).getChildren()));
+        assertSame(group, evts.get(1).getTreePath().getLastPathComponent());
+        assertTrue(Arrays.equals(
+            new int[] { 0, 1 }, evts.get(1).getChildIndices()));
+    }
+
+    public void testNoNodesChanged()
+    {
+        ContactListTreeModel model = new ContactListTreeModel(new JTree());
+
+        model.addTreeModelListener(new TreeModelListener()
+        {
+            public void treeNodesChanged(TreeModelEvent e)
+            {
+                fail();
+            }
+
+            public void treeNodesInserted(TreeModelEvent e)
+            {
+            }
+
+            public void treeNodesRemoved(TreeModelEvent e)
+            {
+            }
+
+            public void treeStructureChanged(TreeModelEvent e)
+            {
+            }
+        });
+        model.fireNodesChanged(
+            Collections.singletonList(new DefaultMutableTreeNode()));
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.main.contactlist.contactsource;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.regex.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+public class MetaContactSearchIndexTest
+    extends TestCase
+{
+    private final MetaContactSearchIndex index = new MetaContactSearchIndex();
+
+    private final List<MetaContact> contacts = new ArrayList<MetaContact>();
+
+    private final Map<MetaContact, String> names
+        = new HashMap<MetaContact, String>();
+
+    /**
+     * Run by the root group after its contacts were read, to change the
+     * contact list while the index is built.
+     */
+    private Runnable onCollect;
+
+    /**
+     * Folded strings contain a folded filter string exactly when a case
+     * insensitive unicode pattern finds the filter string.
+     */
+    public void testFoldMatchesPattern()
+    {
+        String[] strings = {
+            "Alice", "ALICE", "\u0130stanbul", "istanbul", "ISTANBUL",
+            "\u0131s", "\u03a3\u03af\u03c3\u03c5\u03c6\u03bf\u03c2",
+            "\u03c3\u03af\u03c3\u03c5\u03c6\u03bf\u03c3", "Stra\u00dfe",
+            "STRASSE", "\u212aelvin", "kelvin", "\u01c5ungla", "\u01c6ungla",
+            "\u00b5s", "\u039cs", "caf\u00e9", "CAF\u00c9",
+            "\ud801\udc00x", "\ud801\udc28x" };
+
+        for (String text : strings)
+        {
+            for (String s : strings)
+            {
+                // the prefixes typed by a user, which don't split
+                // surrogate pairs
+                for (int length = 0; length < s.length(); )
+                {
+                    length = s.offsetByCodePoints(length, 1);
+
+                    String filter = s.substring(0, length);
+                    boolean found = Pattern.compile(
+                            Pattern.quote(filter),
+                            Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE)
+                        .matcher(text).find();
+
+                    assertEquals(
+                        "\"" + filter + "\" in \"" + text + "\"",
+                        found,
+                        MetaContactSearchIndex.fold(text).contains(
+                            MetaContactSearchIndex.fold(filter)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Only the contacts having all trigrams of the filter string are
+     * candidates, and those having them in another order are not found.
+     */
+    public void testCandidatesIntersection()
+    {
+        MetaContact alice = addContact("Alice");
+        MetaContact alicia = addContact("Alicia");
+        MetaContact scattered = addContact("ali lic ici");
+        addContact("Bob");
+
+        assertEquals(
+            Arrays.asList(alice, alicia, scattered), find("Ali"));
+        assertEquals(Arrays.asList(alicia), find("ALICI"));
+        assertEquals(Arrays.asList(scattered), find("li li"));
+        assertEquals(Collections.emptyList(), find("alix"));
+    }
+
+    /**
+     * Extending the filter string refines the previous results, unless the
+     * contacts changed in between.
+     */
+    public void testRefineAfterExtension()
+    {
+        MetaContact alice = addContact("Alice");
+        MetaContact albert = addContact("Albert");
+        MetaContact bob = addContact("Bob");
+
+        assertEquals(Arrays.asList(alice, albert), find("al"));
+        assertEquals(Arrays.asList(alice), find("ali"));
+
+        rename(bob, "Alison");
+        assertEquals(Arrays.asList(alice, bob), find("ali"));
+        assertEquals(Arrays.asList(bob), find("alis"));
+
+        rename(albert, "Alistair");
+        assertEquals(Arrays.asList(bob, albert), find("alis"));
+    }
+
+    /**
+     * Removed contacts are not found, even by a filter string refining
+     * results which had them.
+     */
+    public void testRefineAfterRemoval()
+    {
+        MetaContact alice = addContact("Alice");
+        MetaContact alicia = addContact("Alicia");
+
+        assertEquals(Arrays.asList(alice, alicia), find("ali"));
+
+        contacts.remove(alice);
+        index.remove(alice);
+        assertEquals(Arrays.asList(alicia), find("alic"));
+
+        contacts.remove(alicia);
+        index.remove(alicia);
+        assertEquals(Collections.emptyList(), find("alic"));
+        assertEquals(Collections.emptyList(), find(""));
+    }
+
+    /**
+     * The contacts changed while the contact list is read to build the index
+     * are found with their new strings.
+     */
+    public void testChangesDuringBuild()
+    {
+        final MetaContact alice = addContact("Alice");
+        final MetaContact bob = addContact("Bob");
+        final MetaContact carol = addContact("Carol");
+
+        onCollect = new Runnable()
+        {
+            public void run()
+            {
+                onCollect = null;
+                rename(bob, "Bobby");
+                contacts.remove(carol);
+                index.remove(carol);
+                addContact("Dave");
+            }
+        };
+
+        assertEquals(Arrays.asList(alice), find("ali"));
+        assertEquals(Arrays.asList(bob), find("bobby"));
+        assertEquals(Collections.emptyList(), find("carol"));
+        assertEquals(1, find("dave").size());
+    }
+
+    /**
+     * A build is discarded when the index is invalidated while the contact
+     * list is read.
+     */
+    public void testInvalidateDuringBuild()
+    {
+        MetaContact alice = addContact("Alice");
+
+        onCollect = new Runnable()
+        {
+            public void run()
+            {
+                onCollect = null;
+                contacts.clear();
+                index.invalidate();
+            }
+        };
+
+        assertEquals(Collections.emptyList(), find("alice"));
+        assertFalse(find("").contains(alice));
+    }
+
+    private List<MetaContact> find(String filterString)
+    {
+        return index.find(filterString, createRoot());
+    }
+
+    private MetaContact addContact(String name)
+    {
+        final String address = "id" + contacts.size() + "@example.com";
+        final Contact protoContact = proxy(Contact.class,
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    return method.getName().equals("getAddress")
+                        ? address
+                        : null;
+                }
+            });
+        final MetaContact[] metaContact = new MetaContact[1];
+
+        metaContact[0] = proxy(MetaContact.class, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("getDisplayName"))
+                    return names.get(metaContact[0]);
+                if (method.getName().equals("getContacts"))
+                    return Collections.singletonList(protoContact).iterator();
+                return null;
+            }
+        });
+
+        names.put(metaContact[0], name);
+        contacts.add(metaContact[0]);
+        index.update(metaContact[0]);
+        return metaContact[0];
+    }
+
+    private void rename(MetaContact metaContact, String name)
+    {
+        names.put(metaContact, name);
+        index.update(metaContact);
+    }
+
+    private MetaContactGroup createRoot()
+    {
+        return proxy(MetaContactGroup.class, new InvocationHandler()
+        {
+            public Object invoke(Object proxy, Method method, Object[] args)
+            {
+                if (method.getName().equals("getChildContacts"))
+                {
+                    final Iterator<MetaContact> childContacts
+                        = new ArrayList<MetaContact>(contacts).iterator();
+
+                    return new Iterator<MetaContact>()
+                    {
+                        public boolean hasNext()
+                        {
+                            boolean hasNext = childContacts.hasNext();
+
+                            if (!hasNext && onCollect != null)
+                                onCollect.run();
+                            return hasNext;
+                        }
+
+                        public MetaContact next()
+                        {
+                            return childContacts.next();
+                        }
+                    };
+                }
+                if (method.getName().equals("getSubgroups"))
+                {
+                    return Collections.<MetaContactGroup>emptyList()
+                        .iterator();
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Creates a proxy of an interface whose methods are handled by
+     * <tt>handler</tt>, except those of <tt>Object</tt>.
+     */
+    private static <T> T proxy(final Class<T> type,
+                               final InvocationHandler handler)
+    {
+        return type.cast(Proxy.newProxyInstance(
+            type.getClassLoader(),
+            new Class<?>[] { type },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                    throws Throwable
+                {
+                    if (method.getDeclaringClass() == Object.class)
+                    {
+                        if (method.getName().equals("equals"))
+                            return proxy == args[0];
+                        if (method.getName().equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        return type.getSimpleName();
+                    }
+                    return handler.invoke(proxy, method, args);
+                }
+            }));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.gui.utils;
+
+import java.awt.image.*;
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the <tt>ImageCache</tt>.
+ */
+public class ImageCacheTest
+    extends TestCase
+{
+    /**
+     * The number of pixel bytes of a 10x10 image.
+     */
+    private static final int IMAGE_SIZE = 10 * 10 * 4;
+
+    private static BufferedImage createImage()
+    {
+        return new BufferedImage(10, 10, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    public void testFirstCachedImageIsShared()
+    {
+        ImageCache<String, BufferedImage> cache
+            = new ImageCache<String, BufferedImage>(IMAGE_SIZE * 4);
+        BufferedImage image = createImage();
+
+        assertNull(cache.get("a"));
+        assertSame(image, cache.put("a", image));
+        assertSame(image, cache.put("a", createImage()));
+        assertSame(image, cache.get("a"));
+        assertEquals(IMAGE_SIZE, cache.size());
+
+        cache.clear();
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+
+    public void testLeastRecentlyUsedImagesAreEvicted()
+    {
+        ImageCache<String, BufferedImage> cache
+            = new ImageCache<String, BufferedImage>(IMAGE_SIZE * 4);
+
+        for (String key : Arrays.asList("a", "b", "c", "d"))
+            cache.put(key, createImage());
+        assertNotNull(cache.get("a"));
+
+        // going over the budget trims the cache to three quarters of it
+        cache.put("e", createImage());
+
+        assertEquals(IMAGE_SIZE * 3, cache.size());
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNull(cache.get("c"));
+        assertNotNull(cache.get("d"));
+        assertNotNull(cache.get("e"));
+    }
+
+    public void testRenderingKeyComparesSourceByIdentity()
+    {
+        BufferedImage source = createImage();
+        ImageCache.RenderingKey key
+            = new ImageCache.RenderingKey(source, 22, 16, 2);
+
+        assertEquals(
+            key, new ImageCache.RenderingKey(source, 22, 16, 2));
+        assertEquals(
+            key.hashCode(),
+            new ImageCache.RenderingKey(source, 22, 16, 2).hashCode());
+        assertFalse(
+            key.equals(new ImageCache.RenderingKey(source, 22, 16, 3)));
+        assertFalse(
+            key.equals(new ImageCache.RenderingKey(source, 16, 16, 2)));
+        assertFalse(
+            key.equals(new ImageCache.RenderingKey(createImage(), 22, 16, 2)));
+        assertEquals(
+            new ImageCache.RenderingKey(source, 10, 10, null),
+            new ImageCache.RenderingKey(source, 10, 10, null));
+    }
+}
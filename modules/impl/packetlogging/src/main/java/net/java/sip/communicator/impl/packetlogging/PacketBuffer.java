@@ -0,0 +1,272 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+/**
+ * A preallocated ring of bytes the logged packets are encoded into, as the
+ * records of the capture file, until the saver thread writes them.
+ * <p>
+ * A record is added by calling {@link #reserve(int)}, encoding the record in
+ * {@link #getData()} at the returned offset and calling
+ * {@link #commit(int, int)}, all while holding the lock of the buffer. A
+ * record is never split at the end of the ring, so the records which follow
+ * each other in the ring can be written with a single write.
+ * <p>
+ * The saver thread takes the committed records with
+ * {@link #awaitRecords()}, writes them without holding the lock and then
+ * releases their space with {@link #release(int)}. Packets which don't fit
+ * in the buffer are dropped rather than blocking the thread logging them.
+ */
+class PacketBuffer
+{
+    /**
+     * The bytes of the records.
+     */
+    private final byte[] data;
+
+    /**
+     * The offsets of the records in {@link #data}, by record slot.
+     */
+    private final int[] recordOffsets;
+
+    /**
+     * The lengths of the records, by record slot.
+     */
+    private final int[] recordLengths;
+
+    /**
+     * The slot of the oldest record.
+     */
+    private int firstRecord = 0;
+
+    /**
+     * The number of committed records.
+     */
+    private int recordCount = 0;
+
+    /**
+     * The offset of the oldest record in {@link #data}.
+     */
+    private int dataHead = 0;
+
+    /**
+     * The offset in {@link #data} following the newest record.
+     */
+    private int dataTail = 0;
+
+    /**
+     * The number of packets which were dropped because they didn't fit.
+     */
+    private long droppedCount = 0;
+
+    /**
+     * Whether the buffer was closed and no more records are to be added.
+     */
+    private boolean closed = false;
+
+    /**
+     * Creates a buffer.
+     *
+     * @param capacity the number of bytes of the buffer
+     * @param maxRecords the maximum number of records in the buffer
+     */
+    PacketBuffer(int capacity, int maxRecords)
+    {
+        data = new byte[capacity];
+        recordOffsets = new int[maxRecords];
+        recordLengths = new int[maxRecords];
+    }
+
+    /**
+     * Returns the bytes the records are encoded in.
+     *
+     * @return the bytes the records are encoded in
+     */
+    byte[] getData()
+    {
+        return data;
+    }
+
+    /**
+     * Finds space for a new record, to be called while holding the lock of
+     * the buffer. A record which doesn't fit is counted as dropped.
+     *
+     * @param length the length of the record
+     * @return the offset in {@link #getData()} to encode the record at, or
+     * <tt>-1</tt> if the record doesn't fit
+     */
+    int reserve(int length)
+    {
+        int offset = -1;
+
+        if (closed)
+            return -1;
+
+        if (recordCount == 0)
+        {
+            dataHead = 0;
+            dataTail = 0;
+        }
+
+        if (recordCount < recordOffsets.length)
+        {
+            if (dataTail >= dataHead)
+            {
+                if (dataTail + length <= data.length)
+                    offset = dataTail;
+                else if (length < dataHead)
+                    offset = 0;
+            }
+            else if (dataTail + length < dataHead)
+            {
+                offset = dataTail;
+            }
+        }
+
+        if (offset < 0)
+            droppedCount++;
+        return offset;
+    }
+
+    /**
+     * Makes a record encoded at an offset returned by {@link #reserve(int)}
+     * available to the saver thread, to be called while holding the lock of
+     * the buffer.
+     *
+     * @param offset the offset of the record
+     * @param length the length of the record
+     */
+    void commit(int offset, int length)
+    {
+        int slot = (firstRecord + recordCount) % recordOffsets.length;
+
+        recordOffsets[slot] = offset;
+        recordLengths[slot] = length;
+        recordCount++;
+        dataTail = offset + length;
+        notifyAll();
+    }
+
+    /**
+     * Waits for records to write.
+     *
+     * @return the number of records which can be written, <tt>0</tt> once
+     * the buffer is closed and all records were written
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    synchronized int awaitRecords()
+        throws InterruptedException
+    {
+        while (recordCount == 0 && !closed)
+            wait();
+        return recordCount;
+    }
+
+    /**
+     * Returns the offset of one of the records returned by
+     * {@link #awaitRecords()}. The records returned by
+     * {@link #awaitRecords()} don't change until they are released, so this
+     * doesn't need the lock of the buffer.
+     *
+     * @param index the index of the record, from the oldest one
+     * @return the offset of the record in {@link #getData()}
+     */
+    int getRecordOffset(int index)
+    {
+        return recordOffsets[(firstRecord + index) % recordOffsets.length];
+    }
+
+    /**
+     * Returns the length of one of the records returned by
+     * {@link #awaitRecords()}.
+     *
+     * @param index the index of the record, from the oldest one
+     * @return the length of the record
+     */
+    int getRecordLength(int index)
+    {
+        return recordLengths[(firstRecord + index) % recordLengths.length];
+    }
+
+    /**
+     * Returns the number of records, starting with one of the records
+     * returned by {@link #awaitRecords()}, which follow each other in
+     * {@link #getData()} and can be written with a single write.
+     *
+     * @param index the index of the first record, from the oldest one
+     * @param count the maximum number of records
+     * @return the number of records following each other, at least <tt>1</tt>
+     */
+    int getRunLength(int index, int count)
+    {
+        int end = getRecordOffset(index) + getRecordLength(index);
+        int length = 1;
+
+        while (length < count && getRecordOffset(index + length) == end)
+        {
+            end += getRecordLength(index + length);
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Frees the space of the oldest records once they were written.
+     *
+     * @param count the number of records to release
+     */
+    synchronized void release(int count)
+    {
+        firstRecord = (firstRecord + count) % recordOffsets.length;
+        recordCount -= count;
+        if (recordCount > 0)
+            dataHead = recordOffsets[firstRecord];
+    }
+
+    /**
+     * Closes the buffer. The records already added are still returned by
+     * {@link #awaitRecords()}.
+     */
+    synchronized void close()
+    {
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * Checks whether the buffer was closed, to be called while holding the
+     * lock of the buffer.
+     *
+     * @return <tt>true</tt> if no more records are to be added
+     */
+    boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Returns the number of packets which were dropped because they didn't
+     * fit in the buffer.
+     *
+     * @return the number of dropped packets
+     */
+    synchronized long getDroppedCount()
+    {
+        return droppedCount;
+    }
+}
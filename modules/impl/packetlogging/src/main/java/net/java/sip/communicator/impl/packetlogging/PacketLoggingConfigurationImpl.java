@@ -29,6 +29,42 @@
 public class PacketLoggingConfigurationImpl
     extends PacketLoggingConfiguration
 {
+    /**
+     * The property to write the capture files in pcapng format, with an
+     * interface for each logging protocol, instead of the pcap format.
+     */
+    public static final String PACKET_LOGGING_PCAPNG_ENABLED_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_PCAPNG_ENABLED";
+
+    /**
+     * The property for the size in bytes of the buffer holding the packets
+     * until they are written.
+     */
+    public static final String PACKET_LOGGING_BUFFER_SIZE_PROPERTY_NAME
+        = "net.java.sip.communicator.packetlogging.PACKET_LOGGING_BUFFER_SIZE";
+
+    /**
+     * The default size of the buffer holding the packets until they are
+     * written.
+     */
+    private static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The minimum size of the buffer holding the packets until they are
+     * written, which holds a few of the largest packets.
+     */
+    private static final int MIN_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Whether the capture files are written in pcapng format.
+     */
+    private final boolean pcapngEnabled;
+
+    /**
+     * The size of the buffer holding the packets until they are written.
+     */
+    private final int bufferSize;
+
     /**
      * Creates new PacketLoggingConfiguration and load values from
      * configuration service and if missing uses already defined
@@ -72,6 +108,39 @@
             configService.getInt(
                 PACKET_LOGGING_FILE_COUNT_PROPERTY_NAME,
                 getLogfileCount()));
+
+        pcapngEnabled
+            = configService.getBoolean(
+                PACKET_LOGGING_PCAPNG_ENABLED_PROPERTY_NAME,
+                false);
+        bufferSize
+            = Math.max(
+                MIN_BUFFER_SIZE,
+                configService.getInt(
+                    PACKET_LOGGING_BUFFER_SIZE_PROPERTY_NAME,
+                    DEFAULT_BUFFER_SIZE));
+    }
+
+    /**
+     * Checks whether the capture files are written in pcapng format rather
+     * than in pcap format.
+     *
+     * @return <tt>true</tt> if the capture files are written in pcapng format.
+     */
+    public boolean isPcapngEnabled()
+    {
+        return pcapngEnabled;
+    }
+
+    /**
+     * Returns the size in bytes of the buffer holding the packets until they
+     * are written. Packets which don't fit in the buffer are dropped.
+     *
+     * @return the size of the packet buffer.
+     */
+    public int getBufferSize()
+    {
+        return bufferSize;
     }
 
     /**
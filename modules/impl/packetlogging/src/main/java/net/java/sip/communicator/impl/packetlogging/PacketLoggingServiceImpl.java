@@ -18,8 +18,10 @@
 package net.java.sip.communicator.impl.packetlogging;
 
 import java.io.*;
-
-import com.google.common.collect.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 
 import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.packetlogging.*;
@@ -27,6 +29,13 @@
 /**
  * Packet Logging Service implementation dumping logs in
  * pcap(tcpdump/wireshark) format file.
+ * <p>
+ * The logged packets are encoded as the records of the capture file into a
+ * preallocated <tt>PacketBuffer</tt> by the thread logging them, which only
+ * copies the packet once and never waits for the disk. A saver thread writes
+ * the records in batches through a <tt>FileChannel</tt>. The files can also
+ * be written in pcapng format, where each logging protocol is captured on an
+ * interface of its own.
  *
  * @author Damian Minkov
  */
@@ -39,27 +48,63 @@
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(PacketLoggingServiceImpl.class);
 
     /**
-     * The max size of the <tt>EvictingQueue</tt> that the saver thread
-     * is using.
-     *
-     * TODO this needs to be configurable eventually.
+     * The max number of packets the <tt>PacketBuffer</tt> holds until they
+     * are written.
+     */
+    private static final int MAX_BUFFERED_PACKETS = 8192;
+
+    /**
+     * The length of the pcap record header.
+     */
+    private static final int PCAP_RECORD_HEADER_LENGTH = 16;
+
+    /**
+     * The length of the pcapng enhanced packet block without the packet data.
      */
-    private static final int EVICTING_QUEUE_MAX_SIZE = 1000;
+    private static final int PCAPNG_PACKET_BLOCK_LENGTH = 32;
 
     /**
-     * The OutputStream we are currently writing to.
+     * The channel of the file we are currently writing to.
      */
-    private FileOutputStream outputStream = null;
+    private FileChannel channel = null;
 
     /**
-     * The thread that queues packets and saves them to file.
+     * The thread that writes the buffered packets to file.
      */
     private SaverThread saverThread = new SaverThread();
 
+    /**
+     * The buffer the packets are encoded into until they are written,
+     * <tt>null</tt> until the service is started.
+     */
+    private volatile PacketBuffer buffer = null;
+
+    /**
+     * A view of the bytes of {@link #buffer} used by the saver thread to
+     * write them.
+     */
+    private ByteBuffer bufferView = null;
+
+    /**
+     * Whether the files are written in pcapng format.
+     */
+    private boolean pcapng = false;
+
+    /**
+     * Whether the last packet was dropped, used to only warn when packets
+     * start being dropped. Guarded by the lock of {@link #buffer}.
+     */
+    private boolean dropping = false;
+
+    /**
+     * The number of packets written to files.
+     */
+    private volatile long writtenPacketCount = 0;
+
     /**
      * The current configuration.
      */
-    private PacketLoggingConfiguration packetLoggingConfiguration = null;
+    private PacketLoggingConfigurationImpl packetLoggingConfiguration = null;
 
     /**
      * The fake ethernet header we use as template.
@@ -143,18 +188,14 @@
             };
 
     /**
-     * Using this object to lock and protectd the two counters
-     * used for tcp seq and ack numbers.
-     */
-    private Object tcpCounterLock = new Object();
-
-    /**
-     * The seq that the sender will send.
+     * The seq that the sender will send. Guarded by the lock of
+     * {@link #buffer}.
      */
     private long srcCount = 1;
 
     /**
-     * This is the ack number send from the sender.
+     * This is the ack number send from the sender. Guarded by the lock of
+     * {@link #buffer}.
      */
     private long dstCount = 1;
 
@@ -169,11 +210,21 @@
     private File[] files;
 
     /**
-     * Starting the packet logger. Generating the files we can use,
-     * rotate any previous files and open the current file for writing.
+     * Starting the packet logger. Allocates the buffer the packets are kept
+     * in until the saver thread writes them. The files are generated and
+     * rotated when the first packet is written.
      */
     public void start()
     {
+        PacketLoggingConfigurationImpl cfg = getConfiguration();
+
+        pcapng = cfg.isPcapngEnabled();
+
+        PacketBuffer buffer
+            = new PacketBuffer(cfg.getBufferSize(), MAX_BUFFERED_PACKETS);
+
+        bufferView = ByteBuffer.wrap(buffer.getData());
+        this.buffer = buffer;
         saverThread.start();
     }
 
@@ -185,6 +236,7 @@ private void getFileNames()
         throws Exception
     {
         int fileCount = getConfiguration().getLogfileCount();
+        String extension = pcapng ? ".pcapng" : ".pcap";
 
         files = new File[fileCount];
         for(int i = 0; i < fileCount; i++)
@@ -193,7 +245,7 @@ private void getFileNames()
                 = PacketLoggingActivator.getFileAccessService()
                     .getPrivatePersistentFile(
                         new File(PacketLoggingActivator.LOGGING_DIR_NAME,
-                            "jitsi" + i + ".pcap").toString(),
+                            "jitsi" + i + extension).toString(),
                         FileCategory.LOG);
         }
     }
@@ -206,10 +258,10 @@ private void getFileNames()
     private void rotateFiles()
         throws IOException
     {
-        if(outputStream != null)
+        if(channel != null)
         {
-            outputStream.flush();
-            outputStream.close();
+            channel.close();
+            channel = null;
         }
 
         for (int i = getConfiguration().getLogfileCount() - 2; i >= 0; i--)
@@ -225,80 +277,165 @@ private void rotateFiles()
             }
         }
 
-        outputStream = new FileOutputStream(files[0]);
+        channel
+            = FileChannel.open(
+                files[0].toPath(),
+                StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
         written = 0;
-        createGlobalHeader();
+        writeFully(pcapng ? createSectionHeader() : createGlobalHeader());
     }
 
     /**
-     * Stops the packet logging.
+     * Stops the packet logging. The packets already logged are written
+     * before the saver thread exits.
      */
     public void stop()
     {
         saverThread.stopRunning();
 
-        if(outputStream != null)
+        try
+        {
+            saverThread.join(5000);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Closes the file we are writing to.
+     */
+    private void closeFile()
+    {
+        if(channel != null)
         {
             try
             {
-                outputStream.flush();
-                outputStream.close();
+                channel.close();
             }
             catch(IOException e)
             {
-                e.printStackTrace();
+                logger.error("Error closing packet log file", e);
             }
             finally
             {
-                outputStream = null;
+                channel = null;
             }
         }
     }
 
     /**
      * Creates pcap file global header.
-     * @throws IOException
+     *
+     * @return the header
      */
-    private void createGlobalHeader()
-            throws IOException
+    private static ByteBuffer createGlobalHeader()
     {
-        /* magic number(swapped) */
-        outputStream.write(0xd4);
-        outputStream.write(0xc3);
-        outputStream.write(0xb2);
-        outputStream.write(0xa1);
+        ByteBuffer header
+            = ByteBuffer.allocate(24).order(ByteOrder.LITTLE_ENDIAN);
 
+        /* magic number */
+        header.putInt(0xa1b2c3d4);
         /* major version number */
-        outputStream.write(0x02);
-        outputStream.write(0x00);
-
+        header.putShort((short) 2);
         /* minor version number */
-        outputStream.write(0x04);
-        outputStream.write(0x00);
-
+        header.putShort((short) 4);
         /* GMT to local correction */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
+        header.putInt(0);
         /* accuracy of timestamps */
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
+        header.putInt(0);
         /* max length of captured packets, in octets */
-        outputStream.write(0xff);
-        outputStream.write(0xff);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-
+        header.putInt(0xffff);
         /* data link type(ethernet) */
-        outputStream.write(0x01);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
-        outputStream.write(0x00);
+        header.putInt(1);
+
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Creates the pcapng section header block followed by an interface
+     * description block for each protocol, the protocols being captured on
+     * the interface with the id of their ordinal.
+     *
+     * @return the blocks
+     */
+    private static ByteBuffer createSectionHeader()
+    {
+        ProtocolName[] protocols = ProtocolName.values();
+        byte[][] names = new byte[protocols.length][];
+        int length = 28;
+
+        for (int i = 0; i < protocols.length; i++)
+        {
+            names[i]
+                = protocols[i].name().toLowerCase()
+                    .getBytes(StandardCharsets.UTF_8);
+            length += 28 + pad(names[i].length);
+        }
+
+        ByteBuffer header
+            = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+
+        /* section header block, with byte order magic, version 1.0 and an
+         * unspecified section length */
+        header.putInt(0x0a0d0d0a);
+        header.putInt(28);
+        header.putInt(0x1a2b3c4d);
+        header.putShort((short) 1);
+        header.putShort((short) 0);
+        header.putLong(-1);
+        header.putInt(28);
+
+        for (byte[] name : names)
+        {
+            int blockLength = 28 + pad(name.length);
+
+            /* interface description block, ethernet, with an if_name */
+            header.putInt(1);
+            header.putInt(blockLength);
+            header.putShort((short) 1);
+            header.putShort((short) 0);
+            header.putInt(0xffff);
+            header.putShort((short) 2);
+            header.putShort((short) name.length);
+            header.put(name);
+            header.position(header.position() + pad(name.length) - name.length);
+            /* opt_endofopt */
+            header.putInt(0);
+            header.putInt(blockLength);
+        }
+
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Returns a length rounded up to a multiple of 4, as the pcapng blocks
+     * are padded.
+     *
+     * @param length the length
+     * @return the padded length
+     */
+    private static int pad(int length)
+    {
+        return (length + 3) & ~3;
+    }
+
+    /**
+     * Writes all the remaining bytes of a buffer to the current file.
+     *
+     * @param src the bytes to write
+     * @throws IOException when error occurs writing to the file
+     */
+    private void writeFully(ByteBuffer src)
+        throws IOException
+    {
+        while (src.hasRemaining())
+            channel.write(src);
     }
 
     /**
@@ -400,17 +537,62 @@ public void logPacket(
             int packetOffset,
             int packetLength)
     {
-        saverThread.queuePacket(
-            new Packet(protocol,
-                       sourceAddress,
-                       sourcePort,
-                       destinationAddress,
-                       destinationPort,
-                       transport,
-                       sender,
-                       packetContent,
-                       packetOffset,
-                       packetLength));
+        PacketBuffer buffer = this.buffer;
+
+        if (buffer == null)
+            return;
+
+        if (sourceAddress == null)
+            sourceAddress = new byte[4];
+        if (destinationAddress == null)
+            destinationAddress = new byte[4];
+
+        // if one of the addresses is ipv4 we are using ipv4,
+        // local udp addresses come as 0.0.0.0.0....0.0.0 when
+        // ipv6 is enabled in the underlying os
+        boolean isIPv4 = sourceAddress.length == 4
+                || destinationAddress.length == 4;
+        int frameLength = fakeEthernetHeader.length
+            + ipv4EtherType.length
+            + (isIPv4 ? ipHeaderTemplate : ip6HeaderTemplate).length
+            + (transport == TransportName.UDP
+                ? udpHeaderTemplate
+                : tcpHeaderTemplate).length
+            + packetLength;
+        int recordLength = pcapng
+            ? PCAPNG_PACKET_BLOCK_LENGTH + pad(frameLength)
+            : PCAP_RECORD_HEADER_LENGTH + frameLength;
+
+        synchronized(buffer)
+        {
+            // the service was stopped, this is not a full buffer
+            if (buffer.isClosed())
+                return;
+
+            int offset = buffer.reserve(recordLength);
+
+            if (offset < 0)
+            {
+                if (!dropping)
+                {
+                    dropping = true;
+                    logger.warn(
+                        "Packet logging buffer is full, packets are being"
+                            + " dropped.");
+                }
+                return;
+            }
+            dropping = false;
+
+            encodePacket(
+                buffer.getData(), offset, recordLength, frameLength,
+                protocol,
+                sourceAddress, sourcePort,
+                destinationAddress, destinationPort,
+                isIPv4, transport, sender,
+                packetContent, packetOffset, packetLength);
+            buffer.commit(offset, recordLength);
+        }
     }
 
     /**
@@ -418,7 +600,7 @@ public void logPacket(
      *
      * @return the Packet Logging Configuration.
      */
-    public PacketLoggingConfiguration getConfiguration()
+    public PacketLoggingConfigurationImpl getConfiguration()
     {
         if(packetLoggingConfiguration == null)
             packetLoggingConfiguration = new PacketLoggingConfigurationImpl();
@@ -427,195 +609,291 @@ public PacketLoggingConfiguration getConfiguration()
     }
 
     /**
-     * Dump the packet to the output file stream.
+     * Returns the number of packets written to the capture files.
      *
-     * @param packet the packet ot save.
-     * @throws Exception when error occurs saving to file stream or when
-     *  rotating files.
+     * @return the number of written packets.
      */
-    private void savePacket(Packet packet)
-        throws Exception
+    public long getWrittenPacketCount()
     {
-        // if one of the addresses is ipv4 we are using ipv4,
-        // local udp addresses come as 0.0.0.0.0....0.0.0 when
-        // ipv6 is enabled in the underlying os
-        boolean isIPv4 = packet.sourceAddress.length == 4
-                || packet.destinationAddress.length == 4;
+        return writtenPacketCount;
+    }
+
+    /**
+     * Returns the number of packets which were dropped because the buffer
+     * holding the packets until they are written was full.
+     *
+     * @return the number of dropped packets.
+     */
+    public long getDroppedPacketCount()
+    {
+        PacketBuffer buffer = this.buffer;
+
+        return (buffer == null) ? 0 : buffer.getDroppedCount();
+    }
+
+    /**
+     * Encodes a packet as a record of the capture file. Called while holding
+     * the lock of the buffer, which also guards the tcp counters.
+     *
+     * @param data the bytes to encode the record in.
+     * @param offset the offset of the record in <tt>data</tt>.
+     * @param recordLength the length of the record.
+     * @param frameLength the length of the ethernet frame of the packet.
+     * @param protocol the source protocol that logs this packet.
+     * @param sourceAddress the source address of the packet.
+     * @param sourcePort the source port of the packet.
+     * @param destinationAddress the destination address.
+     * @param destinationPort the destination port.
+     * @param isIPv4 whether the packet is an ipv4 one.
+     * @param transport the transport this packet uses.
+     * @param sender are we the sender of the packet or not.
+     * @param packetContent the packet content.
+     * @param packetOffset the packet content offset.
+     * @param packetLength the packet content length.
+     */
+    private void encodePacket(
+            byte[] data, int offset, int recordLength, int frameLength,
+            ProtocolName protocol,
+            byte[] sourceAddress, int sourcePort,
+            byte[] destinationAddress, int destinationPort,
+            boolean isIPv4,
+            TransportName transport,
+            boolean sender,
+            byte[] packetContent, int packetOffset, int packetLength)
+    {
+        long current = System.currentTimeMillis();
+        int p = offset;
 
-        byte[] ipHeader;
+        if (pcapng)
+        {
+            long timestamp = current * 1000;
+
+            /* enhanced packet block, timestamps in microseconds */
+            putInt(6, data, p);
+            putInt(recordLength, data, p + 4);
+            putInt(protocol.ordinal(), data, p + 8);
+            putInt((int) (timestamp >>> 32), data, p + 12);
+            putInt((int) timestamp, data, p + 16);
+            putInt(frameLength, data, p + 20);
+            putInt(frameLength, data, p + 24);
+            p += 28;
+        }
+        else
+        {
+            putInt((int) (current / 1000), data, p);
+            putInt((int) ((current % 1000) * 1000), data, p + 4);
+            putInt(frameLength, data, p + 8);
+            putInt(frameLength, data, p + 12);
+            p += PCAP_RECORD_HEADER_LENGTH;
+        }
+
+        System.arraycopy(
+                fakeEthernetHeader, 0, data, p, fakeEthernetHeader.length);
+        p += fakeEthernetHeader.length;
+        System.arraycopy(
+                isIPv4 ? ipv4EtherType : ipv6EtherType, 0, data, p, 2);
+        p += 2;
+
+        int ipOffset = p;
+        int ipLength;
 
         if(isIPv4)
         {
-            ipHeader = new byte[ipHeaderTemplate.length];
-            System.arraycopy(
-                    ipHeaderTemplate, 0, ipHeader, 0, ipHeader.length);
-            System.arraycopy(packet.sourceAddress,
-                    0,
-                    ipHeader,
-                    12,
-                    4);
-            System.arraycopy(packet.destinationAddress,
-                    0,
-                    ipHeader,
-                    16,
-                    4);
+            ipLength = ipHeaderTemplate.length;
+            System.arraycopy(ipHeaderTemplate, 0, data, p, ipLength);
+            copyAddress(sourceAddress, data, p + 12, 4);
+            copyAddress(destinationAddress, data, p + 16, 4);
         }
         else
         {
-            ipHeader = new byte[ip6HeaderTemplate.length];
-            System.arraycopy(
-                    ip6HeaderTemplate, 0, ipHeader, 0, ipHeader.length);
-            System.arraycopy(packet.sourceAddress,
-                    0,
-                    ipHeader,
-                    8,
-                    16);
-
-            System.arraycopy(packet.destinationAddress,
-                    0,
-                    ipHeader,
-                    24,
-                    16);
+            ipLength = ip6HeaderTemplate.length;
+            System.arraycopy(ip6HeaderTemplate, 0, data, p, ipLength);
+            copyAddress(sourceAddress, data, p + 8, 16);
+            copyAddress(destinationAddress, data, p + 24, 16);
         }
+        p += ipLength;
 
-        byte[] transportHeader;
         short len;
-        if(packet.transport == TransportName.UDP)
+        if(transport == TransportName.UDP)
         {
-            byte[] udpHeader = new byte[udpHeaderTemplate.length];
-            transportHeader = udpHeader;
             System.arraycopy(udpHeaderTemplate, 0,
-                    udpHeader, 0, udpHeader.length);
+                    data, p, udpHeaderTemplate.length);
 
-            writeShort(packet.sourcePort, udpHeader, 0);
-            writeShort(packet.destinationPort, udpHeader, 2);
-            len = (short)(packet.packetLength + udpHeader.length);
-            writeShort(len, udpHeader, 4);
+            writeShort(sourcePort, data, p);
+            writeShort(destinationPort, data, p + 2);
+            len = (short)(packetLength + udpHeaderTemplate.length);
+            writeShort(len, data, p + 4);
+            p += udpHeaderTemplate.length;
         }
         else
         {
-            transportHeader = new byte[tcpHeaderTemplate.length];
-            System.arraycopy(tcpHeaderTemplate, 0, transportHeader,
-                   0, transportHeader.length);
+            System.arraycopy(tcpHeaderTemplate, 0,
+                    data, p, tcpHeaderTemplate.length);
 
-            writeShort(packet.sourcePort, transportHeader, 0);
-            writeShort(packet.destinationPort, transportHeader, 2);
+            writeShort(sourcePort, data, p);
+            writeShort(destinationPort, data, p + 2);
 
-            len = (short)(packet.packetLength + transportHeader.length);
+            len = (short)(packetLength + tcpHeaderTemplate.length);
 
-            if(packet.sender)
+            long seqnum;
+            long acknum;
+            if(sender)
             {
-                long seqnum;
-                long acknum;
-                synchronized(tcpCounterLock)
-                {
-                    seqnum = srcCount;
-                    srcCount += packet.packetLength;
-                    acknum = dstCount;
-                }
-
-                intToBytes((int)(seqnum & 0xffffffff),
-                       transportHeader, 4);
-                intToBytes((int)(acknum & 0xffffffff),
-                       transportHeader, 8);
+                seqnum = srcCount;
+                srcCount += packetLength;
+                acknum = dstCount;
             }
             else
             {
-                long seqnum;
-                long acknum;
-                synchronized(tcpCounterLock)
-                {
-                    seqnum = dstCount;
-                    dstCount += packet.packetLength;
-                    acknum = srcCount;
-                }
-
-                intToBytes((int)(seqnum & 0xffffffff),
-                       transportHeader, 4);
-                intToBytes((int)(acknum & 0xffffffff),
-                       transportHeader, 8);
+                seqnum = dstCount;
+                dstCount += packetLength;
+                acknum = srcCount;
             }
+
+            intToBytes((int)(seqnum & 0xffffffff), data, p + 4);
+            intToBytes((int)(acknum & 0xffffffff), data, p + 8);
+            p += tcpHeaderTemplate.length;
         }
 
         // now set ip header total length
         if(isIPv4)
         {
-            short ipTotalLen = (short)(len + ipHeader.length);
-            writeShort(ipTotalLen, ipHeader, 2);
+            short ipTotalLen = (short)(len + ipLength);
+            writeShort(ipTotalLen, data, ipOffset + 2);
 
-            if(packet.transport == TransportName.UDP)
-                ipHeader[9] = (byte)0x11;
+            if(transport == TransportName.UDP)
+                data[ipOffset + 9] = (byte)0x11;
             else
-                ipHeader[9] = (byte)0x06;
+                data[ipOffset + 9] = (byte)0x06;
 
-           int chk2 = computeChecksum(ipHeader);
-           ipHeader[10] = (byte) (chk2 >> 8);
-           ipHeader[11] = (byte) (chk2 & 0xff);
+            int chk2 = computeChecksum(data, ipOffset, ipLength);
+            data[ipOffset + 10] = (byte) (chk2 >> 8);
+            data[ipOffset + 11] = (byte) (chk2 & 0xff);
         }
         else
         {
-            writeShort(len, ipHeader, 4);
+            writeShort(len, data, ipOffset + 4);
 
-            if(packet.transport == TransportName.UDP)
-                ipHeader[6] = (byte)0x11;
+            if(transport == TransportName.UDP)
+                data[ipOffset + 6] = (byte)0x11;
             else
-                ipHeader[6] = (byte)0x06;
+                data[ipOffset + 6] = (byte)0x06;
         }
 
-        long current = System.currentTimeMillis();
-        int tsSec = (int)(current/1000);
-        int tsUsec = (int)((current%1000) * 1000);
-        int feakHeaderLen = fakeEthernetHeader.length +
-                (isIPv4 ? ipv4EtherType : ipv6EtherType).length +
-                ipHeader.length + transportHeader.length;
-        int inclLen = packet.packetLength + feakHeaderLen;
-        int origLen = inclLen;
-
-        synchronized(this)
+        System.arraycopy(packetContent, packetOffset, data, p, packetLength);
+        p += packetLength;
+
+        if (pcapng)
         {
-            // open files only if needed
-            if(outputStream == null)
-            {
-                getFileNames();
-                rotateFiles();// this one opens the file for write
-            }
+            int end = offset + recordLength - 4;
+
+            while (p < end)
+                data[p++] = 0;
+            putInt(recordLength, data, end);
+        }
+    }
+
+    /**
+     * Writes the records taken from the buffer to the current file, opening
+     * or rotating the files when needed. The records following each other in
+     * the buffer are written with a single write.
+     *
+     * @param count the number of records to write.
+     * @throws Exception when error occurs writing to file or when rotating
+     *  files.
+     */
+    private void saveRecords(int count)
+        throws Exception
+    {
+        // open files only if needed
+        if(channel == null)
+        {
+            getFileNames();
+            rotateFiles();// this one opens the file for write
+        }
 
-            long limit = getConfiguration().getLimit();
+        long limit = getConfiguration().getLimit();
 
+        for (int i = 0; i < count; )
+        {
             if((limit > 0) && (written > limit))
                 rotateFiles();
 
-            addInt(tsSec);
-            addInt(tsUsec);
-            addInt(inclLen);
-            addInt(origLen);
-
-            outputStream.write(fakeEthernetHeader);
-            outputStream.write(isIPv4 ? ipv4EtherType : ipv6EtherType);
-            outputStream.write(ipHeader);
-            outputStream.write(transportHeader);
-            outputStream.write(
-                    packet.packetContent,
-                    packet.packetOffset,
-                    packet.packetLength);
-            outputStream.flush();
-
-            written += inclLen + 16;
+            // the records following each other up to the end of the run or
+            // to the limit of the file
+            int run = buffer.getRunLength(i, count - i);
+            int start = buffer.getRecordOffset(i);
+            int end = start;
+            int pending = 0;
+
+            do
+            {
+                int length = buffer.getRecordLength(i + pending);
+
+                end += length;
+                written += length;
+                pending++;
+            }
+            while (pending < run && !((limit > 0) && (written > limit)));
+
+            writeRecords(start, end, pending);
+            i += pending;
         }
     }
 
     /**
-     * Writes int to the file. Used for packet headers.
-     * @param d the value to write.
-     * @throws IOException
+     * Writes records which follow each other in the buffer.
+     *
+     * @param start the offset of the first record in the buffer.
+     * @param end the offset following the last record in the buffer.
+     * @param count the number of records.
+     * @throws IOException when error occurs writing to the file.
      */
-    private void addInt(int d)
+    private void writeRecords(int start, int end, int count)
         throws IOException
     {
-        outputStream.write ((d & 0xff));
-        outputStream.write(((d & 0xff00) >> 8));
-        outputStream.write(((d & 0xff0000) >> 16));
-        outputStream.write(((d & 0xff000000) >> 24));
+        if (count == 0)
+            return;
+
+        bufferView.clear();
+        bufferView.position(start);
+        bufferView.limit(end);
+        writeFully(bufferView);
+        writtenPacketCount += count;
+    }
+
+    /**
+     * Copies an address to a header, padding it with zeros if it's shorter
+     * than the header field.
+     *
+     * @param address the address.
+     * @param data destination data.
+     * @param offset offset of the address field in the data.
+     * @param length length of the address field.
+     */
+    private static void copyAddress(
+            byte[] address, byte[] data, int offset, int length)
+    {
+        int copied = Math.min(address.length, length);
+
+        System.arraycopy(address, 0, data, offset, copied);
+        for (int i = copied; i < length; i++)
+            data[offset + i] = 0;
+    }
+
+    /**
+     * Puts an int to the array in little endian order, the byte order of
+     * the capture file headers.
+     * @param value value to convert to bytes.
+     * @param data destination data
+     * @param offset offset in the data
+     */
+    private static void putInt(int value, byte[] data, int offset)
+    {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        data[offset + 2] = (byte) (value >> 16);
+        data[offset + 3] = (byte) (value >> 24);
     }
 
     /**
@@ -650,18 +928,19 @@ private static void writeShort(int value, byte[] data, int offset)
     /**
      * Calculates checksums assuming the checksum is a 16-bit header field.
      */
-    private int computeChecksum(byte[] data)
+    private static int computeChecksum(byte[] data, int offset, int length)
     {
         int total = 0;
-        int i = 0;
+        int i = offset;
+        int end = offset + length;
 
         // Don't Skip existing checksum cause its set to 0000
-        int imax = data.length - (data.length % 2);
+        int imax = end - (length % 2);
 
         while(i < imax)
             total+=(((data[i++] & 0xff) << 8) | (data[i++] & 0xff));
 
-        if(i < data.length)
+        if(i < end)
             total+=((data[i] & 0xff) << 8);
 
         // Fold to 16 bits
@@ -674,119 +953,12 @@ private int computeChecksum(byte[] data)
     }
 
     /**
-     * The data we receive and that we will dump in a file.
-     */
-    private static class Packet
-    {
-        /**
-         * The protocol logging this packet.
-         */
-        ProtocolName protocol;
-
-        /**
-         * The source address of the packet.
-         */
-        byte[] sourceAddress;
-
-        /**
-         * The source port of the packet.
-         */
-        int sourcePort;
-
-        /**
-         * The destination address of the packet.
-         */
-        byte[] destinationAddress;
-
-        /**
-         * The destination port of the packet.
-         */
-        int destinationPort;
-
-        /**
-         * Is the packet a udp one.
-         */
-        TransportName transport;
-
-        /**
-         * Are we sending the packet, or false if we are receiving.
-         */
-        boolean sender;
-
-        /**
-         * Array containing packet content.
-         */
-        byte[] packetContent;
-
-        /**
-         * The offset in the packetContent where packet content is.
-         */
-        int packetOffset;
-
-        /**
-         * The length of the packet content.
-         */
-        int packetLength;
-
-        /**
-         * Creates a packet with the needed data.
-         * @param protocol the source protocol that logs this packet.
-         * @param sourceAddress The source address of the packet.
-         * @param sourcePort The source port of the packet.
-         * @param destinationAddress The destination address of the packet.
-         * @param destinationPort The destination port of the packet.
-         * @param transport the transport this packet uses.
-         * @param sender Are we sending the packet,
-         *  or false if we are receiving.
-         * @param packetContent Array containing packet content.
-         * @param packetOffset The offset in the packetContent
-         *  where packet content is.
-         * @param packetLength The length of the packet content.
-         */
-        private Packet(ProtocolName protocol,
-                       byte[] sourceAddress,
-                       int sourcePort,
-                       byte[] destinationAddress,
-                       int destinationPort,
-                       TransportName transport,
-                       boolean sender,
-                       byte[] packetContent,
-                       int packetOffset,
-                       int packetLength)
-        {
-            this.protocol = protocol;
-            this.sourceAddress
-                = sourceAddress != null ? sourceAddress : new byte[4];
-            this.sourcePort = sourcePort;
-            this.destinationAddress
-                = destinationAddress != null ? destinationAddress : new byte[4];
-            this.destinationPort = destinationPort;
-            this.transport = transport;
-            this.sender = sender;
-            this.packetContent = packetContent;
-            this.packetOffset = packetOffset;
-            this.packetLength = packetLength;
-        }
-    }
-
-    /**
-     * Dumps packet in separate thread so we don't block
-     * our calling thread.
+     * Writes the buffered packets to file in a separate thread so we don't
+     * block our calling thread.
      */
     private class SaverThread
         extends Thread
     {
-        /**
-         * start/stop indicator.
-         */
-        private boolean stopped = true;
-
-        /**
-         * List of packets queued to be written in the file.
-         */
-        private final EvictingQueue<Packet> pktsToSave
-            = EvictingQueue.create(EVICTING_QUEUE_MAX_SIZE);
-
         /**
          * Initializes a new <tt>SaverThread</tt>.
          */
@@ -796,41 +968,34 @@ private Packet(ProtocolName protocol,
         }
 
         /**
-         * Sends instant messages in separate thread so we don't block
-         * our calling thread.
+         * Writes the packets as they are buffered until the buffer is closed.
          */
         @Override
         public void run()
         {
-            stopped = false;
-            while(!stopped)
+            try
             {
-                Packet pktToSave;
-
-                synchronized(this)
+                while(true)
                 {
-                    if(pktsToSave.isEmpty())
+                    int count;
+
+                    try
+                    {
+                        count = buffer.awaitRecords();
+                    }
+                    catch (InterruptedException iex)
                     {
-                        try
-                        {
-                            wait();
-                        }
-                        catch (InterruptedException iex)
-                        {
-                            Thread.currentThread().interrupt();
-                            break;
-                        }
-                        continue;
+                        Thread.currentThread().interrupt();
+                        break;
                     }
 
-                    pktToSave = pktsToSave.poll();
-                }
+                    // the buffer is closed and everything was written
+                    if (count == 0)
+                        break;
 
-                if(pktToSave != null)
-                {
                     try
                     {
-                        savePacket(pktToSave);
+                        saveRecords(count);
                     }
                     catch(Throwable t)
                     {
@@ -841,34 +1006,29 @@ public void run()
                         if (t instanceof ThreadDeath)
                             throw (ThreadDeath) t;
                         else
-                            logger.error("Error writing packet to file", t);
+                            logger.error("Error writing packets to file", t);
+                    }
+                    finally
+                    {
+                        buffer.release(count);
                     }
                 }
             }
+            finally
+            {
+                closeFile();
+            }
         }
 
         /**
-         * Interrupts this sender so that it would no longer send messages.
-         */
-        public synchronized void stopRunning()
-        {
-            stopped = true;
-            notifyAll();
-        }
-
-        /**
-         * Schedule new packet for save.
-         * @param packet new packet to save.
+         * Stops this saver once the packets already buffered are written.
          */
-        public synchronized void queuePacket(Packet packet)
+        public void stopRunning()
         {
-            if (EVICTING_QUEUE_MAX_SIZE - pktsToSave.size() == 0)
-            {
-                logger.warn("Queue is full, packets are being evicted.");
-            }
+            PacketBuffer buffer = PacketLoggingServiceImpl.this.buffer;
 
-            pktsToSave.add(packet);
-            notifyAll();
+            if (buffer != null)
+                buffer.close();
         }
     }
 }
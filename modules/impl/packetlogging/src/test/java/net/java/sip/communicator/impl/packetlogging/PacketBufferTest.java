@@ -0,0 +1,164 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.packetlogging;
+
+import junit.framework.*;
+
+public class PacketBufferTest
+    extends TestCase
+{
+    private final PacketBuffer buffer = new PacketBuffer(100, 4);
+
+    /**
+     * A record which doesn't fit at the end of the ring goes to its start,
+     * if it ends before the oldest record.
+     */
+    public void testWrap()
+        throws Exception
+    {
+        assertEquals(0, add(40));
+        assertEquals(40, add(40));
+        assertEquals(2, buffer.awaitRecords());
+        buffer.release(1);
+
+        // 80 + 30 > 100 and 30 < 40
+        assertEquals(0, add(30));
+        assertEquals(2, buffer.awaitRecords());
+        assertEquals(40, buffer.getRecordOffset(0));
+        assertEquals(0, buffer.getRecordOffset(1));
+        assertEquals(0, buffer.getDroppedCount());
+    }
+
+    /**
+     * The newest record never reaches the oldest one, so that a full ring
+     * can't be told from an empty one.
+     */
+    public void testFullDrop()
+        throws Exception
+    {
+        add(40);
+        add(40);
+        buffer.release(1);
+
+        // a wrapped record ending at the oldest one
+        assertEquals(-1, add(40));
+        assertEquals(0, add(30));
+
+        // 30 + 10 is not before 40
+        assertEquals(-1, add(10));
+        assertEquals(30, add(9));
+        assertEquals(2, buffer.getDroppedCount());
+    }
+
+    /**
+     * Records are dropped once all the record slots are taken, even with
+     * free bytes.
+     */
+    public void testRecordSlotsFull()
+    {
+        for (int i = 0; i < 4; i++)
+            assertEquals(i * 10, add(10));
+        assertEquals(-1, add(10));
+        assertEquals(1, buffer.getDroppedCount());
+
+        buffer.release(1);
+        assertEquals(40, add(10));
+    }
+
+    /**
+     * Released records free their space from the oldest one, and an empty
+     * ring starts again at its beginning.
+     */
+    public void testReleaseOrder()
+        throws Exception
+    {
+        add(30);
+        add(30);
+        add(30);
+        buffer.release(2);
+        assertEquals(1, buffer.awaitRecords());
+        assertEquals(60, buffer.getRecordOffset(0));
+        assertEquals(30, buffer.getRecordLength(0));
+
+        // the oldest record is at 60, so 25 bytes only fit before it
+        assertEquals(0, add(25));
+        assertEquals(-1, add(40));
+        buffer.release(2);
+
+        assertEquals(0, add(90));
+    }
+
+    /**
+     * Records following each other in the ring are written together, and
+     * a wrap starts a new write.
+     */
+    public void testRunLength()
+        throws Exception
+    {
+        add(40);
+        add(20);
+        add(30);
+        buffer.release(1);
+        assertEquals(90, add(10));
+        assertEquals(0, add(15));
+
+        assertEquals(4, buffer.awaitRecords());
+        assertEquals(3, buffer.getRunLength(0, 4));
+        assertEquals(2, buffer.getRunLength(0, 2));
+        assertEquals(2, buffer.getRunLength(1, 3));
+        assertEquals(1, buffer.getRunLength(3, 1));
+    }
+
+    /**
+     * A closed buffer refuses records without counting them as dropped and
+     * still returns the records added before.
+     */
+    public void testClose()
+        throws Exception
+    {
+        add(10);
+        buffer.close();
+
+        synchronized (buffer)
+        {
+            assertTrue(buffer.isClosed());
+            assertEquals(-1, buffer.reserve(10));
+        }
+        assertEquals(0, buffer.getDroppedCount());
+        assertEquals(1, buffer.awaitRecords());
+        buffer.release(1);
+        assertEquals(0, buffer.awaitRecords());
+    }
+
+    /**
+     * Adds a record the way the packet logging service does.
+     *
+     * @return the offset of the record, <tt>-1</tt> if it was dropped
+     */
+    private int add(int length)
+    {
+        synchronized (buffer)
+        {
+            int offset = buffer.reserve(length);
+
+            if (offset >= 0)
+                buffer.commit(offset, length);
+            return offset;
+        }
+    }
+}
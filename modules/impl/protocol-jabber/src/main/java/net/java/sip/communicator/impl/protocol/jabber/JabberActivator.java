@@ -19,6 +19,7 @@
 
 import java.util.*;
 
+import net.java.sip.communicator.impl.protocol.jabber.caps.*;
 import net.java.sip.communicator.service.credentialsstorage.*;
 import net.java.sip.communicator.service.globaldisplaydetails.*;
 import net.java.sip.communicator.service.gui.*;
@@ -29,6 +30,7 @@
 import net.java.sip.communicator.util.osgi.DependentActivator;
 import net.java.sip.communicator.util.osgi.ServiceUtils;
 import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.packetlogging.*;
 import org.jitsi.service.resources.*;
@@ -104,6 +106,11 @@
      */
     private static ResourceManagementService resourcesService = null;
 
+    /**
+     * A reference to the currently valid <tt>FileAccessService</tt>.
+     */
+    private static FileAccessService fileAccessService = null;
+
     /**
      * A reference to the currently valid <tt>HIDService</tt> instance.
      */
@@ -284,6 +291,8 @@ public void stop(BundleContext context) throws Exception
             uriHandlerImpl = null;
         }
 
+        EntityCapsStore.shutdown();
+
         configurationService = null;
         mediaService = null;
         networkAddressManagerService = null;
@@ -329,6 +338,25 @@ public static ResourceManagementService getResources()
         return resourcesService;
     }
 
+    /**
+     * Returns a reference to the <tt>FileAccessService</tt> implementation
+     * currently registered in the bundle context or <tt>null</tt> if no such
+     * implementation was found.
+     *
+     * @return a reference to the <tt>FileAccessService</tt> implementation
+     * currently registered in the bundle context or <tt>null</tt> if no such
+     * implementation was found.
+     */
+    public static FileAccessService getFileAccessService()
+    {
+        if (fileAccessService == null)
+            fileAccessService
+                = ServiceUtils.getService(
+                bundleContext,
+                FileAccessService.class);
+        return fileAccessService;
+    }
+
     /**
      * Returns a reference to a {@link MediaService} implementation currently
      * registered in the bundle context or null if no such implementation was
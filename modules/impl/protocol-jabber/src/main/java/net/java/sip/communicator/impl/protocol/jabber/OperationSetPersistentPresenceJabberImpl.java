@@ -18,6 +18,7 @@
 package net.java.sip.communicator.impl.protocol.jabber;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import org.jitsi.xmpp.extensions.vcardavatar.*;
 import net.java.sip.communicator.service.protocol.*;
@@ -58,6 +59,26 @@
      */
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(OperationSetPersistentPresenceJabberImpl.class);
 
+    /**
+     * The name of the property holding the time in milliseconds during which
+     * the presences of the contacts are collected before their status changes
+     * are dispatched, with only the latest presence of each resource kept. A
+     * value of 0 dispatches every presence as soon as it is received.
+     */
+    public static final String PRESENCE_COALESCING_WINDOW_PNAME
+        = "net.java.sip.communicator.impl.protocol.jabber."
+            + "PRESENCE_COALESCING_WINDOW";
+
+    /**
+     * The default time in milliseconds during which presences are collected.
+     */
+    private static final long DEFAULT_PRESENCE_COALESCING_WINDOW = 200;
+
+    /**
+     * The executor dispatching the collected presences of all the accounts.
+     */
+    private static ScheduledExecutorService presenceDispatcher = null;
+
     /**
      * Contains our current status message. Note that this field would only
      * be changed once the server has confirmed the new status message and
@@ -124,6 +145,12 @@
      */
     private ContactChangesListener contactChangesListener = null;
 
+    /**
+     * The lock under which the statuses of the contacts are changed, by the
+     * presences received or by going offline.
+     */
+    private final Object contactStatusesLock = new Object();
+
     /**
      * Manages the presence extension to advertise the SHA-1 hash of this
      * account avatar as defined in XEP-0153.
@@ -1033,40 +1060,66 @@ public void fireProviderStatusChangeEvent(
 
             if(newStatus.equals(offlineStatus))
             {
-                //send event notifications saying that all our buddies are
-                //offline. The protocol does not implement top level buddies
-                //nor subgroups for top level groups so a simple nested loop
-                //would be enough.
-                Iterator<ContactGroup> groupsIter =
-                    getServerStoredContactListRoot().subgroups();
-                while(groupsIter.hasNext())
+                ContactChangesListener listener = contactChangesListener;
+
+                // the connection is gone: drop the presences not yet
+                // dispatched, and wait for the ones being dispatched, so
+                // that none brings a contact back online afterwards
+                if (listener != null)
+                    listener.dispose();
+                synchronized (contactStatusesLock)
                 {
-                    ContactGroup group = groupsIter.next();
+                    fireAllContactsOffline(offlineStatus);
+                }
+            }
+        }
+    }
 
-                    Iterator<Contact> contactsIter = group.contacts();
+    /**
+     * Changes the status of all our contacts to offline and fires the status
+     * changes in a single batch.
+     *
+     * @param offlineStatus the offline status.
+     */
+    private void fireAllContactsOffline(PresenceStatus offlineStatus)
+    {
+        //send event notifications saying that all our buddies are
+        //offline, in a single batch. The protocol does not implement
+        //top level buddies nor subgroups for top level groups so a
+        //simple nested loop would be enough.
+        List<ContactPresenceStatusChangeEvent> evts = new ArrayList<>();
+        Iterator<ContactGroup> groupsIter =
+            getServerStoredContactListRoot().subgroups();
+        while(groupsIter.hasNext())
+        {
+            ContactGroup group = groupsIter.next();
 
-                    while(contactsIter.hasNext())
-                    {
-                        ContactJabberImpl contact
-                            = (ContactJabberImpl)contactsIter.next();
+            Iterator<Contact> contactsIter = group.contacts();
 
-                        updateContactStatus(contact, offlineStatus);
-                    }
-                }
+            while(contactsIter.hasNext())
+            {
+                ContactJabberImpl contact
+                    = (ContactJabberImpl)contactsIter.next();
 
-                //do the same for all contacts in the root group
-                Iterator<Contact> contactsIter
-                    = getServerStoredContactListRoot().contacts();
+                addStatusChangeEvent(
+                    evts, changeContactStatus(contact, offlineStatus));
+            }
+        }
 
-                while (contactsIter.hasNext())
-                {
-                    ContactJabberImpl contact
-                        = (ContactJabberImpl) contactsIter.next();
+        //do the same for all contacts in the root group
+        Iterator<Contact> contactsIter
+            = getServerStoredContactListRoot().contacts();
 
-                    updateContactStatus(contact, offlineStatus);
-                }
-            }
+        while (contactsIter.hasNext())
+        {
+            ContactJabberImpl contact
+                = (ContactJabberImpl) contactsIter.next();
+
+            addStatusChangeEvent(
+                evts, changeContactStatus(contact, offlineStatus));
         }
+
+        fireContactPresenceStatusChangeEvents(evts);
     }
 
     /**
@@ -1218,6 +1271,7 @@ private void clearConnectionListeners()
                 subscribtionPacketListener);
             Roster.getInstanceFor(connection)
                 .removeRosterListener(contactChangesListener);
+            contactChangesListener.dispose();
 
             subscribtionPacketListener = null;
             contactChangesListener = null;
@@ -1409,13 +1463,14 @@ void firePresenceStatusChanged(Presence presence)
     }
 
     /**
-     * Updates contact status and its resources, fires PresenceStatusChange
-     * events.
+     * Updates contact status and its resources.
      *
      * @param contact the contact which presence to update if needed.
      * @param newStatus the new status.
+     * @return the event describing the change to dispatch, or <tt>null</tt>
+     * if nothing has changed.
      */
-    private void updateContactStatus(
+    private ContactPresenceStatusChangeEvent changeContactStatus(
         ContactJabberImpl contact, PresenceStatus newStatus)
     {
         // When status changes this may be related to a change in the
@@ -1432,22 +1487,63 @@ private void updateContactStatus(
         if(oldStatus.equals(newStatus)
             && oldMobileIndicator == contact.isMobile())
         {
-            return;
+            return null;
         }
 
         contact.updatePresenceStatus(newStatus);
 
-        if (logger.isDebugEnabled())
-            logger.debug("Will Dispatch the contact status event.");
-
-        fireContactPresenceStatusChangeEvent(
-            contact, contact.getParentContactGroup(),
+        return new ContactPresenceStatusChangeEvent(
+            contact, parentProvider, contact.getParentContactGroup(),
             oldStatus, newStatus,
             resourceUpdated);
     }
 
     /**
-     * Manage changes of statuses by resource.
+     * Adds an event to a batch of events to dispatch.
+     *
+     * @param evts the batch.
+     * @param evt the event, or <tt>null</tt> if there is nothing to dispatch.
+     */
+    private static void addStatusChangeEvent(
+        List<ContactPresenceStatusChangeEvent> evts,
+        ContactPresenceStatusChangeEvent evt)
+    {
+        if (evt != null)
+            evts.add(evt);
+    }
+
+    /**
+     * Returns the executor dispatching the collected presences of all the
+     * accounts, creating it if needed. Its single thread keeps the presences
+     * of an account in order.
+     *
+     * @return the executor dispatching the presences.
+     */
+    private static synchronized ScheduledExecutorService
+        getPresenceDispatcher()
+    {
+        if (presenceDispatcher == null)
+        {
+            presenceDispatcher = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r, "JabberPresenceDispatcher");
+
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        }
+        return presenceDispatcher;
+    }
+
+    /**
+     * Manage changes of statuses by resource. The presences received within
+     * the coalescing window are collected, keeping only the latest one of
+     * each resource, and dispatched together with at most one status change
+     * event per contact.
      */
     class ContactChangesListener
         implements RosterListener
@@ -1463,12 +1559,38 @@ private void updateContactStatus(
          */
         private List<Presence> storedPresences = null;
 
+        /**
+         * Collects the presences during the coalescing window.
+         */
+        private final PresenceCoalescer coalescer;
+
         /**
          * Map containing all statuses for a userID.
          */
         private final Map<Jid, TreeSet<Presence>> statuses =
             new Hashtable<>();
 
+        /**
+         * Creates the listener, reading the coalescing window from the
+         * configuration.
+         */
+        ContactChangesListener()
+        {
+            coalescer = new PresenceCoalescer(
+                getPresenceDispatcher(),
+                JabberActivator.getConfigurationService().getLong(
+                    PRESENCE_COALESCING_WINDOW_PNAME,
+                    DEFAULT_PRESENCE_COALESCING_WINDOW),
+                new PresenceCoalescer.Handler()
+                {
+                    public void processPresences(List<Presence> presences)
+                    {
+                        ContactChangesListener.this.processPresences(
+                            presences);
+                    }
+                });
+        }
+
         /**
          * Not used here.
          * @param addresses list of addresses added
@@ -1536,16 +1658,14 @@ void storeEvents()
         void processStoredEvents()
         {
             storeEvents = false;
-            for(Presence p : storedPresences)
-            {
-                firePresenceStatusChanged(p);
-            }
+            processPresences(storedPresences);
             storedPresences.clear();
             storedPresences = null;
         }
 
         /**
-         * Fires the status change, respecting resource priorities.
+         * Fires the status change, respecting resource priorities, once the
+         * coalescing window has passed.
          *
          * @param presence the presence changed.
          */
@@ -1557,26 +1677,147 @@ void firePresenceStatusChanged(Presence presence)
                 return;
             }
 
-            try
+            coalescer.add(presence);
+        }
+
+        /**
+         * Discards the pending presences and ignores the next ones, as the
+         * connection is gone and the contacts are offline.
+         */
+        void dispose()
+        {
+            coalescer.dispose();
+        }
+
+        /**
+         * Updates the statuses of the resources of the contacts with some
+         * presences, and fires a status change for every contact which status
+         * has changed, all in a single batch.
+         *
+         * @param presences the presences, in the order they were received.
+         */
+        private void processPresences(List<Presence> presences)
+        {
+            synchronized (contactStatusesLock)
             {
-                Jid userID = presence.getFrom().asBareJid();
-                OperationSetMultiUserChat mucOpSet =
-                    parentProvider.getOperationSet(
-                        OperationSetMultiUserChat.class);
-                if(mucOpSet != null)
+                // the contacts may have been set offline since the presences
+                // were collected
+                if (!coalescer.isDisposed())
+                    updateContactStatuses(presences);
+            }
+        }
+
+        /**
+         * Updates the statuses of the resources of the contacts with some
+         * presences, and fires the status changes. Called under the
+         * <tt>contactStatusesLock</tt>.
+         *
+         * @param presences the presences, in the order they were received.
+         */
+        private void updateContactStatuses(List<Presence> presences)
+        {
+            // the contacts with their current presence, in the order they
+            // first changed
+            Map<ContactJabberImpl, Presence> changedContacts
+                = new LinkedHashMap<>();
+
+            for (Presence presence : presences)
+            {
+                Jid userID = getUserID(presence);
+                Presence currentPresence = updateStatuses(presence, userID);
+
+                if (currentPresence == null)
+                    continue;
+
+                ContactJabberImpl sourceContact
+                    = ssContactList.findContactById(userID);
+
+                if (sourceContact == null)
+                {
+                    logger.warn("No source contact found for id=" + userID);
+                    continue;
+                }
+
+                changedContacts.put(sourceContact, currentPresence);
+            }
+
+            List<ContactPresenceStatusChangeEvent> evts
+                = new ArrayList<>(changedContacts.size());
+
+            for (Map.Entry<ContactJabberImpl, Presence> entry
+                    : changedContacts.entrySet())
+            {
+                ContactJabberImpl sourceContact = entry.getKey();
+                Presence currentPresence = entry.getValue();
+
+                try
+                {
+                    // statuses may be the same and only change in status
+                    // message
+                    sourceContact.setStatusMessage(currentPresence.getStatus());
+
+                    addStatusChangeEvent(
+                        evts,
+                        changeContactStatus(
+                            sourceContact,
+                            jabberStatusToPresenceStatus(
+                                currentPresence, parentProvider)));
+                }
+                catch (IllegalStateException | IllegalArgumentException ex)
+                {
+                    logger.error("Failed changing status", ex);
+                }
+            }
+
+            if (logger.isDebugEnabled() && !evts.isEmpty())
+                logger.debug("Will Dispatch " + evts.size()
+                    + " contact status events for "
+                    + presences.size() + " presences.");
+
+            fireContactPresenceStatusChangeEvents(evts);
+        }
+
+        /**
+         * Returns the ID of the contact which sent a presence, the bare JID
+         * of a buddy or the full JID of a chat room member.
+         *
+         * @param presence the presence.
+         * @return the contact ID.
+         */
+        private Jid getUserID(Presence presence)
+        {
+            Jid userID = presence.getFrom().asBareJid();
+            OperationSetMultiUserChat mucOpSet =
+                parentProvider.getOperationSet(
+                    OperationSetMultiUserChat.class);
+            if(mucOpSet != null)
+            {
+                List<ChatRoom> chatRooms
+                    = mucOpSet.getCurrentlyJoinedChatRooms();
+                for(ChatRoom chatRoom : chatRooms)
                 {
-                    List<ChatRoom> chatRooms
-                        = mucOpSet.getCurrentlyJoinedChatRooms();
-                    for(ChatRoom chatRoom : chatRooms)
+                    if(chatRoom.getName().equals(userID.toString()))
                     {
-                        if(chatRoom.getName().equals(userID.toString()))
-                        {
-                            userID = presence.getFrom();
-                            break;
-                        }
+                        userID = presence.getFrom();
+                        break;
                     }
                 }
+            }
+            return userID;
+        }
 
+        /**
+         * Updates the statuses of the resources of a contact with a presence.
+         *
+         * @param presence the presence changed.
+         * @param userID the ID of the contact which sent the presence.
+         * @return the presence deciding the status of the contact, or
+         * <tt>null</tt> if the presence could not be handled.
+         */
+        private Presence updateStatuses(Presence presence, Jid userID)
+        {
+            try
+            {
                 if (logger.isDebugEnabled())
                     logger.debug("Received a status update for buddy=" + userID);
 
@@ -1664,26 +1905,12 @@ public int compare(Presence o1, Presence o2)
                 else
                     currentPresence = userStats.first();
 
-                ContactJabberImpl sourceContact
-                    = ssContactList.findContactById(userID);
-
-                if (sourceContact == null)
-                {
-                    logger.warn("No source contact found for id=" + userID);
-                    return;
-                }
-
-                // statuses may be the same and only change in status message
-                sourceContact.setStatusMessage(currentPresence.getStatus());
-
-                updateContactStatus(
-                    sourceContact,
-                    jabberStatusToPresenceStatus(
-                        currentPresence, parentProvider));
+                return currentPresence;
             }
             catch (IllegalStateException | IllegalArgumentException ex)
             {
                 logger.error("Failed changing status", ex);
+                return null;
             }
         }
     }
@@ -2083,62 +2310,29 @@ public void parseContactPhotoPresence(Stanza packet)
         {
             return;
         }
-        try
-        {
-            StandardExtensionElement photoElement
-                = defaultPacketExtension.getFirstElement("photo");
-            if (photoElement == null)
-            {
-                return;
-            }
-
-            // If this presence packet has a photo tag with a SHA-1 hash
-            // which differs from the current avatar SHA-1 hash, then Jitsi
-            // retrieves the new avatar image and updates this contact image
-            // in the contact list.
-            String packetPhotoSHA1 = photoElement.getText();
-            if(packetPhotoSHA1 != null
-                    && !packetPhotoSHA1.equals(
-                        VCardTempXUpdatePresenceExtension.getImageSha1(
-                            currentAvatar))
-              )
-            {
-                byte[] newAvatar = null;
-
-                // If there is an avatar image, retrieves it.
-                if(packetPhotoSHA1.length() != 0)
-                {
-                    // Retrieves the new contact avatar image.
-                    VCardManager manager = VCardManager.getInstanceFor(
-                        parentProvider.getConnection());
-                    VCard vCard = manager.loadVCard(userID);
-                    newAvatar = vCard.getAvatar();
-                }
-                // Else removes the current avatar image, since the contact
-                // has removed it from the server.
-                else
-                {
-                    newAvatar = new byte[0];
-                }
 
-                // Sets the new avatar image to the Jitsi contact.
-                sourceContact.setImage(newAvatar);
-                // Fires a property change event to update the contact list.
-                this.fireContactPropertyChangeEvent(
-                    ContactPropertyChangeEvent.PROPERTY_IMAGE,
-                    sourceContact,
-                    currentAvatar,
-                    newAvatar);
-            }
+        StandardExtensionElement photoElement
+            = defaultPacketExtension.getFirstElement("photo");
+        if (photoElement == null)
+        {
+            return;
         }
-        catch(XMPPException
-            | InterruptedException
-            | NotConnectedException
-            | NoResponseException ex)
+
+        // If this presence packet has a photo tag with a SHA-1 hash
+        // which differs from the current avatar SHA-1 hash, then Jitsi
+        // retrieves the new avatar image, from the avatar cache or from the
+        // server, and updates this contact image in the contact list. An empty
+        // hash removes the current avatar image, since the contact has removed
+        // it from the server.
+        String packetPhotoSHA1 = photoElement.getText();
+        if(packetPhotoSHA1 != null
+                && !packetPhotoSHA1.equals(
+                    VCardTempXUpdatePresenceExtension.getImageSha1(
+                        currentAvatar))
+          )
         {
-            logger.info("Cannot retrieve vCard from: " + packet.getFrom());
-            if(logger.isTraceEnabled())
-                logger.trace("vCard retrieval exception was: ", ex);
+            ssContactList.addContactForImageUpdate(
+                sourceContact, packetPhotoSHA1);
         }
     }
 
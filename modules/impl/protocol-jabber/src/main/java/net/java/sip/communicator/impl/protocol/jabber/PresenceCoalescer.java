@@ -0,0 +1,193 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import lombok.extern.slf4j.*;
+
+import org.jivesoftware.smack.packet.*;
+import org.jxmpp.jid.*;
+
+/**
+ * Collects the presences of the contacts of an account during a coalescing
+ * window and hands them to a <tt>Handler</tt> in a single batch once the
+ * window has passed. Only the latest presence of each resource is kept, in
+ * the order of the latest presences.
+ */
+@Slf4j
+class PresenceCoalescer
+{
+    /**
+     * Processes the presences collected during a coalescing window.
+     */
+    interface Handler
+    {
+        /**
+         * Processes a batch of presences.
+         *
+         * @param presences the presences, at most one per resource, in the
+         * order they were received.
+         */
+        void processPresences(List<Presence> presences);
+    }
+
+    /**
+     * The executor on which the collected presences are handed over.
+     */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * The time in milliseconds during which presences are collected.
+     */
+    private final long window;
+
+    /**
+     * The handler of the collected presences.
+     */
+    private final Handler handler;
+
+    /**
+     * The latest presences of the resources received during the current
+     * coalescing window, by full JID.
+     */
+    private final Map<Jid, Presence> pendingPresences = new LinkedHashMap<>();
+
+    /**
+     * Whether the dispatching of the pending presences is scheduled.
+     */
+    private boolean dispatchScheduled = false;
+
+    /**
+     * Whether the connection is gone and presences must be ignored.
+     */
+    private boolean disposed = false;
+
+    /**
+     * Creates a <tt>PresenceCoalescer</tt>.
+     *
+     * @param executor the executor on which the collected presences are
+     * handed over.
+     * @param window the time in milliseconds during which presences are
+     * collected, 0 to hand every presence over as soon as it is added.
+     * @param handler the handler of the collected presences.
+     */
+    PresenceCoalescer(
+        ScheduledExecutorService executor, long window, Handler handler)
+    {
+        this.executor = executor;
+        this.window = window;
+        this.handler = handler;
+    }
+
+    /**
+     * Adds a presence, to be handed over with the others received during
+     * the current coalescing window.
+     *
+     * @param presence the presence.
+     */
+    void add(Presence presence)
+    {
+        if (window <= 0)
+        {
+            if (!isDisposed())
+                handler.processPresences(Collections.singletonList(presence));
+            return;
+        }
+
+        synchronized (pendingPresences)
+        {
+            if (disposed)
+                return;
+
+            // only the latest presence of a resource matters, and it goes
+            // after the presences received since the previous one
+            pendingPresences.remove(presence.getFrom());
+            pendingPresences.put(presence.getFrom(), presence);
+
+            if (!dispatchScheduled)
+            {
+                dispatchScheduled = true;
+                executor.schedule(
+                    new Runnable()
+                    {
+                        public void run()
+                        {
+                            dispatchPendingPresences();
+                        }
+                    },
+                    window,
+                    TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Hands the presences collected during the coalescing window over.
+     */
+    private void dispatchPendingPresences()
+    {
+        List<Presence> presences;
+
+        synchronized (pendingPresences)
+        {
+            dispatchScheduled = false;
+            if (disposed)
+                return;
+
+            presences = new ArrayList<>(pendingPresences.values());
+            pendingPresences.clear();
+        }
+
+        try
+        {
+            handler.processPresences(presences);
+        }
+        catch (Throwable t)
+        {
+            logger.error("Error dispatching presences", t);
+        }
+    }
+
+    /**
+     * Discards the pending presences and ignores the next ones, as the
+     * connection is gone and the contacts are offline.
+     */
+    void dispose()
+    {
+        synchronized (pendingPresences)
+        {
+            disposed = true;
+            pendingPresences.clear();
+        }
+    }
+
+    /**
+     * Returns whether this coalescer was disposed.
+     *
+     * @return <tt>true</tt> if presences are ignored.
+     */
+    boolean isDisposed()
+    {
+        synchronized (pendingPresences)
+        {
+            return disposed;
+        }
+    }
+}
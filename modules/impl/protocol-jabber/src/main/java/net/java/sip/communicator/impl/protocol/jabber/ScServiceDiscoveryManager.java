@@ -201,7 +201,7 @@ public ScServiceDiscoveryManager(
         // For every XMPPConnection, add one EntityCapsManager.
         this.capsManager = EntityCapsManager.getInstanceFor(connection);
         EntityCapsManager.setPersistentCache(
-            new CapsConfigurationPersistence(configService));
+            EntityCapsStore.getInstance(configService));
         connection.addAsyncStanzaListener(
             this, new StanzaTypeFilter(Presence.class));
     }
@@ -18,6 +18,8 @@
 package net.java.sip.communicator.impl.protocol.jabber;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import net.java.sip.communicator.service.customavatar.*;
 import net.java.sip.communicator.service.protocol.*;
@@ -29,6 +31,8 @@
 import org.jivesoftware.smack.packet.*;
 import org.jivesoftware.smack.roster.*;
 import org.jivesoftware.smackx.nick.packet.*;
+import org.jivesoftware.smackx.vcardtemp.*;
+import org.jivesoftware.smackx.vcardtemp.packet.*;
 import org.jxmpp.jid.*;
 import org.jxmpp.jid.impl.*;
 import org.jxmpp.jid.parts.*;
@@ -56,6 +60,37 @@
      */
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(ServerStoredContactListJabberImpl.class);
 
+    /**
+     * The name of the property holding the maximum number of vCards fetched
+     * at the same time from a server for the avatars of the contacts of all
+     * the accounts on it.
+     */
+    public static final String MAX_AVATAR_FETCHES_PNAME
+        = "net.java.sip.communicator.impl.protocol.jabber.MAX_AVATAR_FETCHES";
+
+    /**
+     * The default maximum number of vCards fetched at the same time from a
+     * server.
+     */
+    private static final int DEFAULT_MAX_AVATAR_FETCHES = 4;
+
+    /**
+     * The number of threads fetching avatars for all the accounts.
+     */
+    private static final int AVATAR_FETCH_THREADS = 8;
+
+    /**
+     * The executor fetching the avatars of the contacts of all the accounts.
+     */
+    private static ExecutorService avatarFetchExecutor = null;
+
+    /**
+     * The avatar fetches of the accounts, by the service name of the
+     * accounts, which is the domain of their server.
+     */
+    private static final Map<String, ServerAvatarFetches> serverAvatarFetches
+        = new HashMap<String, ServerAvatarFetches>();
+
     /**
      * The jabber list that we encapsulate
      */
@@ -86,10 +121,15 @@
         = new Vector<>();
 
     /**
-     *  Thread retreiving images for contacts
+     *  Retrieves the images of the contacts.
      */
     private ImageRetriever imageRetriever = null;
 
+    /**
+     * Lock object for the imageRetriever variable.
+     */
+    private final Object imageRetrieverLock = new Object();
+
     /**
      * Listens for roster changes.
      */
@@ -1006,10 +1046,13 @@ void sendInitialStatus()
      */
     void cleanup()
     {
-        if(imageRetriever != null)
+        synchronized (imageRetrieverLock)
         {
-            imageRetriever.quit();
-            imageRetriever = null;
+            if(imageRetriever != null)
+            {
+                imageRetriever.quit();
+                imageRetriever = null;
+            }
         }
 
         if(this.roster != null)
@@ -1309,18 +1352,97 @@ void fireContactResolved( ContactGroup parentGroup,
      * @param contact ContactJabberImpl
      */
     protected void addContactForImageUpdate(ContactJabberImpl contact)
+    {
+        addContactForImageUpdate(contact, null);
+    }
+
+    /**
+     * Adds a contact for image update, after its presence advertised the
+     * SHA-1 hash of a new avatar as described in XEP-0153.
+     *
+     * @param contact ContactJabberImpl
+     * @param photoHash the advertised hash, an empty string if the contact
+     * has no avatar, or <tt>null</tt> if the hash is not known.
+     */
+    void addContactForImageUpdate(
+        ContactJabberImpl contact,
+        String photoHash)
     {
         if(contact instanceof VolatileContactJabberImpl
             && ((VolatileContactJabberImpl)contact).isPrivateMessagingContact())
             return;
 
-        if(imageRetriever == null)
+        synchronized (imageRetrieverLock)
         {
-            imageRetriever = new ImageRetriever();
-            imageRetriever.start();
+            if(imageRetriever == null)
+            {
+                imageRetriever = new ImageRetriever(getServerAvatarFetches(
+                    jabberProvider.getAccountID().getService()));
+            }
+
+            imageRetriever.addContact(contact, photoHash);
         }
+    }
+
+    /**
+     * Returns the executor fetching the avatars of the contacts of all the
+     * accounts, creating it if needed. Its threads end when idle.
+     *
+     * @return the executor fetching the avatars.
+     */
+    private static synchronized ExecutorService getAvatarFetchExecutor()
+    {
+        if (avatarFetchExecutor == null)
+        {
+            final AtomicInteger threadNumber = new AtomicInteger();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                AVATAR_FETCH_THREADS, AVATAR_FETCH_THREADS,
+                60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory()
+                {
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(r,
+                            "JabberAvatarFetcher-"
+                                + threadNumber.incrementAndGet());
 
-        imageRetriever.addContact(contact);
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+
+            executor.allowCoreThreadTimeOut(true);
+            avatarFetchExecutor = executor;
+        }
+        return avatarFetchExecutor;
+    }
+
+    /**
+     * Returns the avatar fetches of the accounts on a server, creating them
+     * if needed.
+     *
+     * @param server the domain of the server.
+     * @return the avatar fetches of the accounts on <tt>server</tt>.
+     */
+    private static ServerAvatarFetches getServerAvatarFetches(String server)
+    {
+        synchronized (serverAvatarFetches)
+        {
+            ServerAvatarFetches fetches = serverAvatarFetches.get(server);
+
+            if (fetches == null)
+            {
+                fetches = new ServerAvatarFetches(
+                    getAvatarFetchExecutor(),
+                    Math.max(1,
+                        JabberActivator.getConfigurationService().getInt(
+                            MAX_AVATAR_FETCHES_PNAME,
+                            DEFAULT_MAX_AVATAR_FETCHES)));
+                serverAvatarFetches.put(server, fetches);
+            }
+            return fetches;
+        }
     }
 
     /**
@@ -1754,112 +1876,367 @@ public void presenceChanged(Presence presence)
     }
 
     /**
-     * Thread retrieving images.
+     * Runs the tasks retrieving the images of the contacts of the accounts on
+     * a server, with at most a configured number of vCards fetched at the
+     * same time from that server, on the executor shared by all the servers.
+     * The tasks take the contacts of the accounts in turn.
      */
-    private class ImageRetriever
-        extends Thread
+    static class ServerAvatarFetches
     {
         /**
-         * list with the accounts with missing image
+         * The contacts of an account whose images are to be retrieved.
          */
-        private final List<ContactJabberImpl> contactsForUpdate
-            = new Vector<ContactJabberImpl>();
+        interface Queue
+        {
+            /**
+             * Takes the next contact whose image is to be retrieved. Called
+             * with the lock of the <tt>ServerAvatarFetches</tt> held.
+             *
+             * @return the retrieval of the image of the contact, or
+             * <tt>null</tt> if there is no contact to take.
+             */
+            Runnable takeFetch();
+        }
 
         /**
-         * Should we stop.
+         * The queues of the accounts on the server.
          */
-        private boolean running = false;
+        private final List<Queue> queues = new ArrayList<Queue>();
 
         /**
-         * Creates image retrieving.
+         * The executor running the tasks retrieving images.
+         */
+        private final Executor executor;
+
+        /**
+         * The maximum number of images retrieved at the same time.
+         */
+        private final int maxFetches;
+
+        /**
+         * The number of tasks retrieving images.
          */
-        ImageRetriever()
+        private int fetches = 0;
+
+        /**
+         * The index in <tt>queues</tt> of the queue whose contact is to be
+         * taken next.
+         */
+        private int nextQueue = 0;
+
+        /**
+         * Creates the avatar fetches of a server.
+         *
+         * @param executor the executor running the tasks retrieving images.
+         * @param maxFetches the maximum number of images retrieved at the same
+         * time.
+         */
+        ServerAvatarFetches(Executor executor, int maxFetches)
         {
-            setDaemon(true);
+            this.executor = executor;
+            this.maxFetches = maxFetches;
         }
 
         /**
-         * Thread entry point.
+         * Adds the queue of an account on the server.
+         *
+         * @param queue the queue.
          */
-        @Override
-        public void run()
+        synchronized void add(Queue queue)
         {
-            try
+            queues.add(queue);
+        }
+
+        /**
+         * Removes the queue of an account on the server.
+         *
+         * @param queue the queue.
+         */
+        synchronized void remove(Queue queue)
+        {
+            queues.remove(queue);
+        }
+
+        /**
+         * Starts a new task retrieving images unless the maximum number of
+         * tasks is reached.
+         */
+        synchronized void startFetch()
+        {
+            if (fetches < maxFetches)
             {
-                Collection<ContactJabberImpl> copyContactsForUpdate = null;
-                running = true;
-                while (running)
+                fetches++;
+                executor.execute(new Runnable()
                 {
-                    synchronized(contactsForUpdate)
+                    public void run()
                     {
-                        if(contactsForUpdate.isEmpty())
-                            contactsForUpdate.wait();
+                        retrieveImages();
+                    }
+                });
+            }
+        }
 
-                        if(!running)
-                            return;
+        /**
+         * Retrieves the images of the queued contacts until there are none
+         * left.
+         */
+        private void retrieveImages()
+        {
+            while (true)
+            {
+                Runnable fetch = null;
+
+                synchronized(this)
+                {
+                    for (int i = 0; i < queues.size() && fetch == null; i++)
+                    {
+                        int index = (nextQueue + i) % queues.size();
 
-                        copyContactsForUpdate
-                            = new Vector<ContactJabberImpl>(contactsForUpdate);
-                        contactsForUpdate.clear();
+                        fetch = queues.get(index).takeFetch();
+                        if (fetch != null)
+                            nextQueue = (index + 1) % queues.size();
                     }
 
-                    Iterator<ContactJabberImpl> iter
-                        = copyContactsForUpdate.iterator();
-                    while (iter.hasNext())
+                    if (fetch == null)
                     {
-                        ContactJabberImpl contact = iter.next();
+                        fetches--;
+                        return;
+                    }
+                }
+
+                try
+                {
+                    fetch.run();
+                }
+                catch (Throwable t)
+                {
+                    logger.error("Error retrieving image", t);
+                }
+            }
+        }
+    }
 
-                        byte[] imgBytes = getAvatar(contact);
+    /**
+     * Retrieves the images of the contacts of the account, with the tasks of
+     * the <tt>ServerAvatarFetches</tt> of its server. Avatars found in the
+     * <tt>VCardAvatarCache</tt> are not fetched again.
+     */
+    private class ImageRetriever
+        implements ServerAvatarFetches.Queue
+    {
+        /**
+         * The contacts with missing or changed image, with the hash advertised
+         * for their new avatar, or <tt>null</tt> if it is not known.
+         */
+        private final Map<ContactJabberImpl, String> contactsForUpdate
+            = new LinkedHashMap<ContactJabberImpl, String>();
 
-                        if(imgBytes != null)
-                        {
-                            byte[] oldImage = contact.getImage(false);
+        /**
+         * The contacts which images are being retrieved.
+         */
+        private final Set<ContactJabberImpl> contactsInProgress
+            = new HashSet<ContactJabberImpl>();
 
-                            contact.setImage(imgBytes);
-                            parentOperationSet.fireContactPropertyChangeEvent(
-                                ContactPropertyChangeEvent.PROPERTY_IMAGE,
-                                contact, oldImage, imgBytes);
-                        }
-                        else
-                            // set an empty image data so it won't be queried again
-                            contact.setImage(new byte[0]);
-                    }
+        /**
+         * The avatar fetches of the server of the account, whose lock guards
+         * the state of this retriever.
+         */
+        private final ServerAvatarFetches server;
+
+        /**
+         * Should we stop.
+         */
+        private boolean running = true;
+
+        /**
+         * Creates image retrieving.
+         *
+         * @param server the avatar fetches of the server of the account.
+         */
+        ImageRetriever(ServerAvatarFetches server)
+        {
+            this.server = server;
+            server.add(this);
+        }
+
+        /**
+         * Add contact for retrieving, and starts a new task retrieving the
+         * images unless the maximum number of tasks for the server is
+         * reached.
+         *
+         * @param contact ContactJabberImpl
+         * @param photoHash the hash advertised for the avatar of the contact,
+         * or <tt>null</tt> if it is not known.
+         */
+        void addContact(ContactJabberImpl contact, String photoHash)
+        {
+            synchronized(server)
+            {
+                if (!running)
+                    return;
+
+                // a queued hash is still valid if the new one is not known
+                if (photoHash != null
+                    || !contactsForUpdate.containsKey(contact))
+                {
+                    contactsForUpdate.put(contact, photoHash);
                 }
+
+                server.startFetch();
             }
-            catch (InterruptedException ex)
+        }
+
+        /**
+         * Stops retrieving images.
+         */
+        void quit()
+        {
+            synchronized(server)
             {
-                logger.error("ImageRetriever error waiting will stop now!", ex);
+                running = false;
+                contactsForUpdate.clear();
+                server.remove(this);
             }
         }
 
         /**
-         * Add contact for retrieving
-         * if the provider is register notify the retriever to get the nicks
-         * if we are not registered add a listener to wait for registering
+         * Takes the next queued contact which is not being handled by another
+         * task, so that the images of a contact are set in the order they
+         * were requested. Called with the lock of the
+         * <tt>ServerAvatarFetches</tt> held.
          *
-         * @param contact ContactJabberImpl
+         * @return the retrieval of the image of the contact, or <tt>null</tt>
+         * if there is no contact to take.
          */
-        void addContact(ContactJabberImpl contact)
+        public Runnable takeFetch()
         {
-            synchronized(contactsForUpdate)
+            if (!running)
+                return null;
+
+            Iterator<Map.Entry<ContactJabberImpl, String>> iter
+                = contactsForUpdate.entrySet().iterator();
+
+            while (iter.hasNext())
             {
-                if (!contactsForUpdate.contains(contact))
+                Map.Entry<ContactJabberImpl, String> entry = iter.next();
+                final ContactJabberImpl contact = entry.getKey();
+                final String photoHash = entry.getValue();
+
+                if (!contactsInProgress.contains(contact))
                 {
-                    contactsForUpdate.add(contact);
-                    contactsForUpdate.notifyAll();
+                    iter.remove();
+                    contactsInProgress.add(contact);
+                    return new Runnable()
+                    {
+                        public void run()
+                        {
+                            try
+                            {
+                                retrieveImage(contact, photoHash);
+                            }
+                            catch (Throwable t)
+                            {
+                                logger.error(
+                                    "Error retrieving image of " + contact, t);
+                            }
+                            finally
+                            {
+                                synchronized(server)
+                                {
+                                    contactsInProgress.remove(contact);
+                                }
+                            }
+                        }
+                    };
                 }
             }
+            return null;
         }
 
         /**
-         * Stops this thread.
+         * Sets the image of a contact, from the cache if it has the avatar
+         * last stored for the contact or advertised in its presence, or from
+         * the server.
+         *
+         * @param contact the contact.
+         * @param photoHash the hash advertised for the avatar of the contact,
+         * or <tt>null</tt> if it is not known.
          */
-        void quit()
+        private void retrieveImage(ContactJabberImpl contact, String photoHash)
         {
-            synchronized(contactsForUpdate)
+            VCardAvatarCache avatarCache = VCardAvatarCache.getInstance();
+            String jid = contact.getAddress();
+            byte[] imgBytes;
+
+            if (photoHash != null && photoHash.length() == 0)
             {
-                running = false;
-                contactsForUpdate.notifyAll();
+                // the contact has removed its avatar
+                avatarCache.remove(jid);
+                imgBytes = new byte[0];
+            }
+            else
+            {
+                imgBytes = avatarCache.getImage(
+                    (photoHash != null) ? photoHash : avatarCache.getHash(jid));
+
+                if (imgBytes == null)
+                {
+                    imgBytes
+                        = (photoHash != null)
+                            ? loadAvatar(contact)
+                            : getAvatar(contact);
+
+                    // the vCard could not be loaded, keep the current image
+                    if (imgBytes == null && photoHash != null)
+                        return;
+                }
+                if (imgBytes != null && imgBytes.length != 0)
+                    avatarCache.put(jid, imgBytes);
+            }
+
+            byte[] oldImage = contact.getImage(false);
+
+            if(imgBytes != null && !Arrays.equals(oldImage, imgBytes))
+            {
+                contact.setImage(imgBytes);
+                parentOperationSet.fireContactPropertyChangeEvent(
+                    ContactPropertyChangeEvent.PROPERTY_IMAGE,
+                    contact, oldImage, imgBytes);
+            }
+            else if (oldImage == null)
+                // set an empty image data so it won't be queried again
+                contact.setImage(new byte[0]);
+        }
+
+        /**
+         * Loads the avatar from the vCard of a contact, bypassing the details
+         * cached by the <tt>InfoRetreiver</tt> as the avatar has changed.
+         *
+         * @param contact the contact.
+         * @return the avatar, or <tt>null</tt> if the vCard could not be
+         * loaded.
+         */
+        private byte[] loadAvatar(ContactJabberImpl contact)
+        {
+            try
+            {
+                VCard vCard
+                    = VCardManager.getInstanceFor(jabberProvider.getConnection())
+                        .loadVCard(
+                            contact.getAddressAsJid().asEntityBareJidOrThrow());
+                byte[] avatar = vCard.getAvatar();
+
+                return (avatar == null) ? new byte[0] : avatar;
+            }
+            catch(XMPPException
+                | InterruptedException
+                | NotConnectedException
+                | NoResponseException ex)
+            {
+                logger.info("Cannot retrieve vCard from: " + contact);
+                if(logger.isTraceEnabled())
+                    logger.trace("vCard retrieval exception was: ", ex);
+                return null;
             }
         }
 
@@ -0,0 +1,337 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import lombok.extern.slf4j.*;
+
+import net.java.sip.communicator.util.FileUtils;
+
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * A disk cache of the vCard avatars of the contacts, addressed by the SHA-1
+ * hash of the image which XEP-0153 advertises in the presence of the
+ * contacts. Each image is kept once, in a file named after its hash, no matter
+ * how many contacts or accounts use it, and the hash of the avatar of each
+ * contact is remembered so that the avatars are loaded from the disk rather
+ * than downloaded again after a restart, as long as they don't change.
+ */
+@Slf4j
+class VCardAvatarCache
+{
+    /**
+     * The name of the directory holding the cached avatars.
+     */
+    private static final String CACHE_DIR
+        = "avatarcache" + File.separator + "vcard";
+
+    /**
+     * The name of the subdirectory holding the avatar hashes of the contacts.
+     */
+    private static final String CONTACTS_DIR = "contacts";
+
+    /**
+     * The cache shared by all accounts.
+     */
+    private static VCardAvatarCache instance;
+
+    /**
+     * The directory holding the avatars, <tt>null</tt> if avatars are not
+     * cached.
+     */
+    private final File directory;
+
+    /**
+     * The avatar hashes of the contacts read or stored so far, by bare JID.
+     */
+    private final Map<String, String> hashes
+        = new ConcurrentHashMap<String, String>();
+
+    /**
+     * Returns the cache shared by all accounts, creating it if needed.
+     *
+     * @return the shared <tt>VCardAvatarCache</tt>.
+     */
+    static synchronized VCardAvatarCache getInstance()
+    {
+        if (instance == null)
+        {
+            File directory = null;
+
+            try
+            {
+                FileAccessService fileAccessService
+                    = JabberActivator.getFileAccessService();
+
+                if (fileAccessService != null)
+                {
+                    directory
+                        = fileAccessService.getPrivatePersistentDirectory(
+                            CACHE_DIR, FileCategory.CACHE);
+                }
+            }
+            catch (Exception e)
+            {
+                logger.warn("Cannot access the avatar cache directory", e);
+            }
+            instance = new VCardAvatarCache(directory);
+        }
+        return instance;
+    }
+
+    /**
+     * Creates a cache keeping its avatars in a specific directory.
+     *
+     * @param directory the directory, or <tt>null</tt> to not cache avatars.
+     */
+    VCardAvatarCache(File directory)
+    {
+        if (directory != null
+            && !new File(directory, CONTACTS_DIR).isDirectory()
+            && !new File(directory, CONTACTS_DIR).mkdirs())
+        {
+            logger.warn("Cannot create the avatar cache directory "
+                + directory);
+            directory = null;
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the hash of the avatar last stored for a contact.
+     *
+     * @param jid the bare JID of the contact.
+     * @return the hash or <tt>null</tt> if no avatar was stored.
+     */
+    String getHash(String jid)
+    {
+        String hash = hashes.get(jid);
+
+        if (hash == null && directory != null)
+        {
+            File file = getContactFile(jid);
+
+            if (file.isFile())
+            {
+                try
+                {
+                    hash = new String(
+                        Files.readAllBytes(file.toPath()),
+                        StandardCharsets.US_ASCII);
+                    if (isHash(hash))
+                        hashes.put(jid, hash);
+                    else
+                        hash = null;
+                }
+                catch (IOException e)
+                {
+                    logger.warn("Cannot read avatar hash of " + jid, e);
+                }
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Returns a cached avatar.
+     *
+     * @param hash the SHA-1 hash of the avatar, as advertised in XEP-0153
+     * presence.
+     * @return the avatar or <tt>null</tt> if it is not cached.
+     */
+    byte[] getImage(String hash)
+    {
+        if (directory == null || hash == null)
+            return null;
+
+        // the hash comes from the network, don't use it as a path as is
+        hash = hash.toLowerCase();
+        if (!isHash(hash))
+            return null;
+
+        File file = new File(directory, hash);
+        if (!file.isFile())
+            return null;
+
+        try
+        {
+            byte[] image = Files.readAllBytes(file.toPath());
+
+            if (hash.equals(getSha1(image)))
+                return image;
+
+            logger.warn("Removing corrupted cached avatar " + file);
+            file.delete();
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot read cached avatar " + file, e);
+        }
+        return null;
+    }
+
+    /**
+     * Stores the avatar of a contact.
+     *
+     * @param jid the bare JID of the contact.
+     * @param image the avatar, <tt>null</tt> or empty if the contact has no
+     * avatar.
+     * @return the hash of the avatar, or <tt>null</tt> if the contact has no
+     * avatar.
+     */
+    String put(String jid, byte[] image)
+    {
+        if (image == null || image.length == 0)
+        {
+            remove(jid);
+            return null;
+        }
+
+        String hash = getSha1(image);
+
+        if (directory != null)
+        {
+            try
+            {
+                File file = new File(directory, hash);
+
+                if (!file.isFile())
+                    write(file, image);
+                if (!hash.equals(hashes.get(jid)))
+                {
+                    write(getContactFile(jid),
+                        hash.getBytes(StandardCharsets.US_ASCII));
+                }
+            }
+            catch (IOException e)
+            {
+                logger.warn("Cannot cache avatar of " + jid, e);
+            }
+        }
+        hashes.put(jid, hash);
+        return hash;
+    }
+
+    /**
+     * Forgets the avatar of a contact. The image itself is kept as other
+     * contacts may use it.
+     *
+     * @param jid the bare JID of the contact.
+     */
+    void remove(String jid)
+    {
+        hashes.remove(jid);
+        if (directory != null)
+        {
+            File file = getContactFile(jid);
+
+            if (file.exists() && !file.delete())
+                logger.warn("Cannot delete avatar hash of " + jid);
+        }
+    }
+
+    /**
+     * Returns the file holding the avatar hash of a contact.
+     *
+     * @param jid the bare JID of the contact.
+     * @return the file.
+     */
+    private File getContactFile(String jid)
+    {
+        return new File(
+            new File(directory, CONTACTS_DIR),
+            getSha1(jid.toLowerCase().getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Writes a file through a temporary file of its own, which is moved over
+     * the file, so that a failed write does not leave a truncated file behind
+     * and concurrent writes of the same file do not mix their content.
+     *
+     * @param file the file.
+     * @param content the content of the file.
+     * @throws IOException if the file cannot be written.
+     */
+    private static void write(File file, byte[] content)
+        throws IOException
+    {
+        Path tmp = File.createTempFile(
+            file.getName() + ".", ".tmp", file.getParentFile()).toPath();
+
+        try
+        {
+            Files.write(tmp, content);
+            FileUtils.replaceFile(tmp.toFile(), file);
+        }
+        finally
+        {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    /**
+     * Determines whether a string is a hex encoded SHA-1 hash.
+     *
+     * @param s the string.
+     * @return <tt>true</tt> if <tt>s</tt> is made of 40 lower case hex digits.
+     */
+    private static boolean isHash(String s)
+    {
+        if (s.length() != 40)
+            return false;
+        for (int i = 0; i < s.length(); i++)
+        {
+            char c = s.charAt(i);
+
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f'))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the hex encoded SHA-1 hash of some data, the way XEP-0153
+     * advertises the hash of an avatar.
+     *
+     * @param data the data.
+     * @return the lower case hex encoded hash.
+     */
+    static String getSha1(byte[] data)
+    {
+        try
+        {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+
+            for (byte b : digest)
+                hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,391 @@
+/*
+ * Copyright @ 2018 - present 8x8, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package net.java.sip.communicator.impl.protocol.jabber.caps;
+
+import net.java.sip.communicator.impl.protocol.jabber.JabberActivator;
+import net.java.sip.communicator.util.FileUtils;
+
+import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
+import org.jivesoftware.smack.packet.*;
+import org.jivesoftware.smack.provider.*;
+import org.jivesoftware.smack.xml.*;
+import org.jivesoftware.smack.xml.XmlPullParser;
+import org.jivesoftware.smackx.caps.cache.*;
+import org.jivesoftware.smackx.disco.packet.*;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * An EntityCapsPersistentCache storing the Caps information for every known
+ * node in a file of its own rather than in the configuration service, so that
+ * thousands of entries don't bloat the configuration and slow down its prefix
+ * scans.
+ * <p>
+ * The file is only read when the cache is first used, and is written at once
+ * when the bundle stops. The most recently used entries are kept decoded in
+ * memory, so that they are not parsed again on every lookup. Entries stored
+ * in the configuration service by earlier versions are moved to the file.
+ *
+ * @author Damian Minkov
+ */
+public class EntityCapsStore
+    implements EntityCapsPersistentCache
+{
+    /**
+     * The <tt>Logger</tt> used by the <tt>EntityCapsStore</tt> class and its
+     * instances for logging output.
+     */
+    private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(EntityCapsStore.class);
+
+    /**
+     * The prefix of the <tt>ConfigurationService</tt> properties which
+     * persisted the caps in earlier versions.
+     */
+    private static final String CAPS_PROPERTY_NAME_PREFIX
+        = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
+            + "EntityCapsManager.CAPS.";
+
+    /**
+     * The name of the file holding the caps.
+     */
+    private static final String STORE_FILE_NAME = "entitycaps.dat";
+
+    /**
+     * The version of the format of the file holding the caps.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The number of entries kept decoded in memory.
+     */
+    static final int DECODED_CACHE_SIZE = 256;
+
+    /**
+     * The store shared by all connections.
+     */
+    private static EntityCapsStore instance;
+
+    /**
+     * Configuration service instance used by this class.
+     */
+    private final ConfigurationService configService;
+
+    /**
+     * The file holding the caps, <tt>null</tt> if the caps are only kept in
+     * memory.
+     */
+    private final File file;
+
+    /**
+     * The disco#info XML of every known node, <tt>null</tt> until loaded.
+     */
+    private Map<String, String> xmlByNodeVer = null;
+
+    /**
+     * The most recently used entries, decoded.
+     */
+    private final Map<String, DiscoverInfo> decoded
+        = new LinkedHashMap<String, DiscoverInfo>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<String, DiscoverInfo> eldest)
+            {
+                return size() > DECODED_CACHE_SIZE;
+            }
+        };
+
+    /**
+     * Whether there are changes which are not written to the file yet.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Returns the store shared by all connections, creating it if needed.
+     *
+     * @param configService the current configuration service.
+     * @return the shared <tt>EntityCapsStore</tt>.
+     */
+    public static synchronized EntityCapsStore getInstance(
+        ConfigurationService configService)
+    {
+        if (instance == null)
+        {
+            File file = null;
+
+            try
+            {
+                FileAccessService fileAccessService
+                    = JabberActivator.getFileAccessService();
+
+                if (fileAccessService != null)
+                {
+                    file = fileAccessService.getPrivatePersistentFile(
+                        STORE_FILE_NAME, FileCategory.CACHE);
+                }
+            }
+            catch (Exception e)
+            {
+                logger.warn("Cannot access the entity caps file", e);
+            }
+            instance = new EntityCapsStore(configService, file);
+        }
+        return instance;
+    }
+
+    /**
+     * Writes the changes of the shared store to its file and releases it.
+     */
+    public static synchronized void shutdown()
+    {
+        if (instance != null)
+        {
+            instance.save();
+            instance = null;
+        }
+    }
+
+    /**
+     * Constructs new EntityCapsStore that will be responsible for storing
+     * and retrieving caps in a specific file.
+     *
+     * @param configService the current configuration service.
+     * @param file the file holding the caps, or <tt>null</tt> to only keep
+     * them in memory.
+     */
+    EntityCapsStore(ConfigurationService configService, File file)
+    {
+        this.configService = configService;
+        this.file = file;
+    }
+
+    @Override
+    public synchronized void addDiscoverInfoByNodePersistent(
+        String nodeVer, DiscoverInfo info)
+    {
+        DiscoverInfo cleanedDiscoverInfo = info.asBuilder(null)
+            .from(null)
+            .to(null)
+            .setNode(nodeVer).build();
+
+        /*
+         * If the specified info is a new association for the specified
+         * node, remember it across application instances in order to not
+         * query for it over the network.
+         */
+        String xml = cleanedDiscoverInfo.getChildElementXML().toString();
+
+        if (xml.length() != 0)
+        {
+            load();
+            if (!xml.equals(xmlByNodeVer.put(nodeVer, xml)))
+                dirty = true;
+            decoded.put(nodeVer, cleanedDiscoverInfo);
+        }
+    }
+
+    @Override
+    public synchronized DiscoverInfo lookup(String nodeVer)
+    {
+        DiscoverInfo discoverInfo = decoded.get(nodeVer);
+
+        if (discoverInfo != null)
+            return discoverInfo;
+
+        load();
+
+        String xml = xmlByNodeVer.get(nodeVer);
+        if((xml != null) && (xml.length() != 0))
+        {
+            try
+            {
+                discoverInfo = parse(xml);
+                if (discoverInfo != null)
+                    decoded.put(nodeVer, discoverInfo);
+            }
+            catch(Exception ex)
+            {
+                logger.error("Invalid DiscoverInfo for " + nodeVer, ex);
+                /*
+                 * The discoverInfo doesn't seem valid according to the caps
+                 * which means that we must have stored invalid information.
+                 * Delete the invalid information in order to not try to
+                 * validate it again.
+                 */
+                xmlByNodeVer.remove(nodeVer);
+                dirty = true;
+            }
+        }
+
+        return discoverInfo;
+    }
+
+    @Override
+    public synchronized void emptyCache()
+    {
+        decoded.clear();
+    }
+
+    /**
+     * Writes all the caps to the file if they have changed since they were
+     * read.
+     */
+    public synchronized void save()
+    {
+        if (!dirty || file == null)
+            return;
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile))))
+            {
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(xmlByNodeVer.size());
+                for (Map.Entry<String, String> e : xmlByNodeVer.entrySet())
+                {
+                    byte[] xml = e.getValue().getBytes(StandardCharsets.UTF_8);
+
+                    out.writeUTF(e.getKey());
+                    out.writeInt(xml.length);
+                    out.write(xml);
+                }
+            }
+
+            FileUtils.replaceFile(tmpFile, file);
+            dirty = false;
+        }
+        catch (IOException ioe)
+        {
+            logger.error("Cannot save entity caps to " + file, ioe);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Reads the caps from the file and moves the caps found in the
+     * configuration service to it, unless already done.
+     */
+    private void load()
+    {
+        if (xmlByNodeVer != null)
+            return;
+
+        xmlByNodeVer = new HashMap<String, String>();
+
+        if (file != null && file.isFile())
+        {
+            try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file))))
+            {
+                if (in.readInt() == FORMAT_VERSION)
+                {
+                    for (int count = in.readInt(); count > 0; count--)
+                    {
+                        String nodeVer = in.readUTF();
+                        byte[] xml = new byte[in.readInt()];
+
+                        in.readFully(xml);
+                        xmlByNodeVer.put(
+                            nodeVer, new String(xml, StandardCharsets.UTF_8));
+                    }
+                }
+            }
+            catch (IOException ioe)
+            {
+                logger.error("Cannot read entity caps from " + file, ioe);
+            }
+        }
+
+        List<String> propertyNames
+            = configService.getPropertyNamesByPrefix(
+                CAPS_PROPERTY_NAME_PREFIX, false);
+        if (propertyNames.isEmpty())
+            return;
+
+        for (String propertyName : propertyNames)
+        {
+            String xml = configService.getString(propertyName);
+
+            if ((xml != null) && (xml.length() != 0))
+            {
+                xmlByNodeVer.put(
+                    propertyName.substring(CAPS_PROPERTY_NAME_PREFIX.length()),
+                    xml);
+            }
+        }
+
+        // the migrated caps only leave the configuration once they are in
+        // the file, and all at once, as removing a property rewrites the
+        // configuration
+        dirty = true;
+        save();
+        if (!dirty)
+        {
+            configService.removeProperty(
+                CAPS_PROPERTY_NAME_PREFIX.substring(
+                    0, CAPS_PROPERTY_NAME_PREFIX.length() - 1));
+        }
+    }
+
+    /**
+     * Parses the disco#info XML of a node.
+     *
+     * @param xml the disco#info XML.
+     * @return the <tt>DiscoverInfo</tt> or <tt>null</tt> if it cannot be
+     * parsed now.
+     * @throws Exception if the XML is not a valid disco#info.
+     */
+    private static DiscoverInfo parse(String xml)
+        throws Exception
+    {
+        DiscoverInfo discoverInfo = null;
+        IqProvider<IQ> discoverInfoProvider
+            = ProviderManager.getIQProvider(
+                "query",
+                "http://jabber.org/protocol/disco#info");
+
+        if(discoverInfoProvider != null)
+        {
+            XmlPullParser parser;
+
+            try
+            {
+                parser = SmackXmlParser.newXmlParser(new StringReader(xml));
+                parser.next();
+            }
+            catch(IOException | org.jivesoftware.smack.xml.XmlPullParserException xppex)
+            {
+                parser = null;
+            }
+
+            if(parser != null)
+            {
+                // the provider builds the IQ on the given data, which can't
+                // be null
+                discoverInfo = (DiscoverInfo) discoverInfoProvider.parse(
+                    parser, StanzaBuilder.buildIqData(null));
+            }
+        }
+
+        return discoverInfo;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+
+import org.jivesoftware.smack.packet.*;
+import org.jxmpp.jid.impl.*;
+
+/**
+ * Tests the collecting of presences during the coalescing window by
+ * <tt>PresenceCoalescer</tt>.
+ */
+public class TestPresenceCoalescer
+    extends TestCase
+{
+    private static final long WINDOW = 200;
+
+    /**
+     * The tasks scheduled on the executor, run by the tests.
+     */
+    private final List<Runnable> scheduled = new ArrayList<Runnable>();
+
+    /**
+     * The delays of the scheduled tasks, in milliseconds.
+     */
+    private final List<Long> delays = new ArrayList<Long>();
+
+    /**
+     * The batches handed over by the coalescer.
+     */
+    private final List<List<Presence>> batches
+        = new ArrayList<List<Presence>>();
+
+    /**
+     * The presences received during a window are handed over together once
+     * the window has passed, and the next presence starts a new window.
+     */
+    public void testCoalescing()
+        throws Exception
+    {
+        PresenceCoalescer coalescer = createCoalescer(WINDOW);
+        Presence alice = createPresence("alice@example.com/pc", "");
+        Presence bob = createPresence("bob@example.com/pc", "");
+
+        coalescer.add(alice);
+        coalescer.add(bob);
+        assertEquals(Arrays.asList(WINDOW), delays);
+        assertTrue(batches.isEmpty());
+
+        runScheduled();
+        assertEquals(
+            Collections.singletonList(Arrays.asList(alice, bob)), batches);
+
+        coalescer.add(alice);
+        assertEquals(Arrays.asList(WINDOW, WINDOW), delays);
+        runScheduled();
+        assertEquals(2, batches.size());
+        assertEquals(Arrays.asList(alice), batches.get(1));
+    }
+
+    /**
+     * Only the latest presence of a resource is handed over, after the
+     * presences received since the one it replaces.
+     */
+    public void testLatestPresenceWins()
+        throws Exception
+    {
+        PresenceCoalescer coalescer = createCoalescer(WINDOW);
+        Presence away = createPresence("alice@example.com/pc", "away");
+        Presence phone = createPresence("alice@example.com/phone", "");
+        Presence bob = createPresence("bob@example.com/pc", "");
+        Presence back = createPresence("alice@example.com/pc", "back");
+
+        coalescer.add(away);
+        coalescer.add(phone);
+        coalescer.add(bob);
+        coalescer.add(back);
+        runScheduled();
+
+        assertEquals(
+            Collections.singletonList(Arrays.asList(phone, bob, back)),
+            batches);
+    }
+
+    /**
+     * The pending presences are dropped on dispose, and the next ones are
+     * ignored.
+     */
+    public void testDispose()
+        throws Exception
+    {
+        PresenceCoalescer coalescer = createCoalescer(WINDOW);
+
+        coalescer.add(createPresence("alice@example.com/pc", ""));
+        assertFalse(coalescer.isDisposed());
+        coalescer.dispose();
+        assertTrue(coalescer.isDisposed());
+
+        runScheduled();
+        coalescer.add(createPresence("bob@example.com/pc", ""));
+        runScheduled();
+        assertTrue(batches.isEmpty());
+        assertEquals(1, delays.size());
+
+        coalescer = createCoalescer(0);
+        coalescer.dispose();
+        coalescer.add(createPresence("bob@example.com/pc", ""));
+        assertTrue(batches.isEmpty());
+    }
+
+    /**
+     * Without window every presence is handed over as soon as it is added.
+     */
+    public void testNoWindow()
+        throws Exception
+    {
+        PresenceCoalescer coalescer = createCoalescer(0);
+        Presence alice = createPresence("alice@example.com/pc", "");
+
+        coalescer.add(alice);
+        coalescer.add(alice);
+        assertTrue(scheduled.isEmpty());
+        assertEquals(
+            Arrays.asList(Arrays.asList(alice), Arrays.asList(alice)),
+            batches);
+    }
+
+    private void runScheduled()
+    {
+        List<Runnable> tasks = new ArrayList<Runnable>(scheduled);
+
+        scheduled.clear();
+        for (Runnable task : tasks)
+            task.run();
+    }
+
+    private static Presence createPresence(String from, String status)
+        throws Exception
+    {
+        Presence presence = new Presence(Presence.Type.available);
+
+        presence.setFrom(JidCreate.fullFrom(from));
+        presence.setStatus(status);
+        return presence;
+    }
+
+    private PresenceCoalescer createCoalescer(long window)
+    {
+        return new PresenceCoalescer(createExecutor(), window,
+            new PresenceCoalescer.Handler()
+            {
+                public void processPresences(List<Presence> presences)
+                {
+                    batches.add(new ArrayList<Presence>(presences));
+                }
+            });
+    }
+
+    /**
+     * Creates an executor recording the scheduled tasks and their delays
+     * instead of running them.
+     */
+    private ScheduledExecutorService createExecutor()
+    {
+        return (ScheduledExecutorService) Proxy.newProxyInstance(
+            ScheduledExecutorService.class.getClassLoader(),
+            new Class<?>[] { ScheduledExecutorService.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    if (method.getName().equals("schedule")
+                        && args[0] instanceof Runnable)
+                    {
+                        scheduled.add((Runnable) args[0]);
+                        delays.add(((TimeUnit) args[2]).toMillis(
+                            (Long) args[1]));
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(
+                        method.getName());
+                }
+            });
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import junit.framework.*;
+
+/**
+ * Tests that the avatars of the accounts on a server are fetched by at most
+ * the configured number of tasks of its
+ * <tt>ServerStoredContactListJabberImpl.ServerAvatarFetches</tt>.
+ */
+public class TestServerAvatarFetches
+    extends TestCase
+{
+    private static final int MAX_FETCHES = 3;
+
+    private ExecutorService executor;
+
+    private ServerStoredContactListJabberImpl.ServerAvatarFetches server;
+
+    /**
+     * The number of fetches running.
+     */
+    private final AtomicInteger running = new AtomicInteger();
+
+    /**
+     * The highest number of fetches seen running at the same time.
+     */
+    private final AtomicInteger maxRunning = new AtomicInteger();
+
+    @Override
+    protected void setUp()
+    {
+        executor = Executors.newFixedThreadPool(16);
+        server = new ServerStoredContactListJabberImpl.ServerAvatarFetches(
+            executor, MAX_FETCHES);
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Accounts queuing fetches from many threads at the same time never have
+     * more than the maximum number of them running, and all of them run.
+     */
+    public void testLimit()
+        throws Exception
+    {
+        int accounts = 8;
+        final int fetchesPerAccount = 50;
+        final CountDownLatch done
+            = new CountDownLatch(accounts * fetchesPerAccount);
+        final CyclicBarrier start = new CyclicBarrier(accounts);
+        List<Thread> threads = new ArrayList<Thread>();
+
+        for (int i = 0; i < accounts; i++)
+        {
+            final Account account = new Account();
+
+            server.add(account);
+            threads.add(new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                    }
+                    catch (Exception e)
+                    {
+                        return;
+                    }
+                    for (int j = 0; j < fetchesPerAccount; j++)
+                        account.addFetch(done);
+                }
+            });
+        }
+        for (Thread thread : threads)
+            thread.start();
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertTrue("ran " + maxRunning + " fetches at the same time",
+            maxRunning.get() <= MAX_FETCHES);
+        assertTrue(maxRunning.get() > 0);
+
+        // the ended tasks are counted out, new fetches run again
+        CountDownLatch more = new CountDownLatch(1);
+        Account account = new Account();
+        server.add(account);
+        account.addFetch(more);
+        assertTrue(more.await(30, TimeUnit.SECONDS));
+    }
+
+    /**
+     * The fetches of an account removed from the server are not run.
+     */
+    public void testRemove()
+        throws Exception
+    {
+        Account removed = new Account();
+        Account account = new Account();
+        CountDownLatch done = new CountDownLatch(1);
+
+        server.add(removed);
+        server.add(account);
+        synchronized (server)
+        {
+            removed.addFetch(new CountDownLatch(1));
+            server.remove(removed);
+            account.addFetch(done);
+        }
+
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        synchronized (server)
+        {
+            assertEquals(1, removed.fetches.size());
+        }
+    }
+
+    /**
+     * The queued fetches of an account, which queues them under the lock of
+     * the server the way <tt>ImageRetriever</tt> does.
+     */
+    private class Account
+        implements ServerStoredContactListJabberImpl.ServerAvatarFetches.Queue
+    {
+        private final LinkedList<Runnable> fetches = new LinkedList<Runnable>();
+
+        void addFetch(final CountDownLatch done)
+        {
+            synchronized (server)
+            {
+                fetches.add(new Runnable()
+                {
+                    public void run()
+                    {
+                        int now = running.incrementAndGet();
+                        int max = maxRunning.get();
+
+                        while (max < now
+                                && !maxRunning.compareAndSet(max, now))
+                            max = maxRunning.get();
+                        try
+                        {
+                            Thread.sleep(1);
+                        }
+                        catch (InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                        running.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+                server.startFetch();
+            }
+        }
+
+        public Runnable takeFetch()
+        {
+            return fetches.poll();
+        }
+    }
+}
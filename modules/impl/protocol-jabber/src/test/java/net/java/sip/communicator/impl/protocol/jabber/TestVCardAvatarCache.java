@@ -0,0 +1,154 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the keeping of the vCard avatars of the contacts by their hash in
+ * <tt>VCardAvatarCache</tt>.
+ */
+public class TestVCardAvatarCache
+    extends TestCase
+{
+    private static final byte[] IMAGE = "avatar".getBytes();
+
+    private File directory;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("avatarcache").toFile();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        delete(directory);
+    }
+
+    /**
+     * An avatar is found by the hash advertised for it, in any case, by a new
+     * cache using the same directory, as after a restart, together with the
+     * hash stored for the contact.
+     */
+    public void testHitAndMiss()
+    {
+        VCardAvatarCache cache = new VCardAvatarCache(directory);
+        String hash = VCardAvatarCache.getSha1(IMAGE);
+
+        assertNull(cache.getImage(hash));
+        assertNull(cache.getHash("alice@example.com"));
+
+        assertEquals(hash, cache.put("alice@example.com", IMAGE));
+
+        cache = new VCardAvatarCache(directory);
+        assertTrue(Arrays.equals(IMAGE, cache.getImage(hash)));
+        assertTrue(Arrays.equals(IMAGE, cache.getImage(hash.toUpperCase())));
+        assertEquals(hash, cache.getHash("alice@example.com"));
+        assertNull(cache.getHash("bob@example.com"));
+        assertNull(cache.getImage(VCardAvatarCache.getSha1(new byte[1])));
+        assertNull(cache.getImage(null));
+        assertNull(cache.getImage("../" + hash.substring(3)));
+    }
+
+    /**
+     * Forgetting the avatar of a contact keeps the image, which other
+     * contacts may use, and a corrupted image is not returned.
+     */
+    public void testRemoveAndCorruption()
+        throws Exception
+    {
+        VCardAvatarCache cache = new VCardAvatarCache(directory);
+        String hash = cache.put("alice@example.com", IMAGE);
+
+        cache.put("bob@example.com", IMAGE);
+        assertNull(cache.put("alice@example.com", new byte[0]));
+        assertNull(new VCardAvatarCache(directory).getHash(
+            "alice@example.com"));
+        assertEquals(hash, cache.getHash("bob@example.com"));
+        assertTrue(Arrays.equals(IMAGE, cache.getImage(hash)));
+
+        Files.write(new File(directory, hash).toPath(), new byte[] { 1 });
+        assertNull(cache.getImage(hash));
+        assertFalse(new File(directory, hash).exists());
+    }
+
+    /**
+     * Contacts storing the same avatar at the same time keep it once, whole.
+     */
+    public void testConcurrentWrites()
+        throws Exception
+    {
+        final VCardAvatarCache cache = new VCardAvatarCache(directory);
+        final byte[] image = new byte[256 * 1024];
+        new Random(1).nextBytes(image);
+
+        int threads = 8;
+        final CyclicBarrier start = new CyclicBarrier(threads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<String>> hashes = new ArrayList<Future<String>>();
+
+        for (int i = 0; i < threads; i++)
+        {
+            final String jid = "user" + i + "@example.com";
+
+            hashes.add(executor.submit(new Callable<String>()
+            {
+                public String call()
+                    throws Exception
+                {
+                    start.await();
+                    return cache.put(jid, image);
+                }
+            }));
+        }
+        executor.shutdown();
+
+        String hash = VCardAvatarCache.getSha1(image);
+        for (Future<String> h : hashes)
+            assertEquals(hash, h.get(30, TimeUnit.SECONDS));
+
+        List<String> files = new ArrayList<String>();
+        for (File file : directory.listFiles())
+        {
+            if (file.isFile())
+                files.add(file.getName());
+        }
+        assertEquals(Arrays.asList(hash), files);
+        assertTrue(Arrays.equals(image,
+            new VCardAvatarCache(directory).getImage(hash)));
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
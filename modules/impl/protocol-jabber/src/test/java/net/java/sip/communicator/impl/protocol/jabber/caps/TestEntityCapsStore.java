@@ -0,0 +1,290 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.jabber.caps;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.util.*;
+
+import junit.framework.*;
+
+import org.jitsi.service.configuration.*;
+import org.jivesoftware.smack.provider.*;
+import org.jivesoftware.smackx.disco.packet.*;
+import org.jivesoftware.smackx.disco.provider.*;
+
+/**
+ * Tests the keeping of the entity caps in a file of its own by
+ * <tt>EntityCapsStore</tt>, and the moving of the caps stored in the
+ * configuration by earlier versions to that file.
+ */
+public class TestEntityCapsStore
+    extends TestCase
+{
+    /**
+     * The prefix of the configuration properties of the caps of earlier
+     * versions.
+     */
+    private static final String PREFIX
+        = "net.java.sip.communicator.impl.protocol.jabber.extensions.caps."
+            + "EntityCapsManager.CAPS.";
+
+    private static final String NODE
+        = "http://jitsi.org#q07IKJEyjvHSyhy//CH0CxmKi8w=";
+
+    private File directory;
+
+    private File file;
+
+    /**
+     * The properties of the configuration.
+     */
+    private final Map<String, String> properties
+        = new TreeMap<String, String>();
+
+    /**
+     * The names of the properties removed from the configuration.
+     */
+    private final List<String> removedProperties = new ArrayList<String>();
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("entitycaps").toFile();
+        file = new File(directory, "entitycaps.dat");
+        ProviderManager.addIQProvider(DiscoverInfo.ELEMENT,
+            DiscoverInfo.NAMESPACE, new DiscoverInfoProvider());
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for (File f : directory.listFiles())
+            f.delete();
+        directory.delete();
+    }
+
+    /**
+     * The caps added to a store are found by a new store reading the same
+     * file, as after a restart.
+     */
+    public void testSaveAndLoad()
+    {
+        EntityCapsStore store = new EntityCapsStore(createConfig(), file);
+
+        store.addDiscoverInfoByNodePersistent(NODE, createInfo("a"));
+        store.addDiscoverInfoByNodePersistent(NODE + "2", createInfo("b"));
+        assertFalse(file.exists());
+        store.save();
+
+        store = new EntityCapsStore(createConfig(), file);
+        assertFeature("a", store.lookup(NODE));
+        assertFeature("b", store.lookup(NODE + "2"));
+        assertNull(store.lookup(NODE + "3"));
+        assertEquals(NODE, store.lookup(NODE).getNode());
+
+        // the unchanged caps are not written again
+        assertTrue(file.delete());
+        store.save();
+        assertFalse(file.exists());
+    }
+
+    /**
+     * The caps of earlier versions are written to the file before they are
+     * removed from the configuration, all at once.
+     */
+    public void testLegacyMigration()
+    {
+        properties.put(PREFIX + NODE, createXml(NODE, "a"));
+        properties.put(PREFIX + NODE + "2", createXml(NODE + "2", "b"));
+        properties.put("net.java.sip.communicator.other", "value");
+
+        EntityCapsStore store = new EntityCapsStore(createConfig(), file);
+        assertFeature("a", store.lookup(NODE));
+
+        assertEquals(
+            Arrays.asList(PREFIX.substring(0, PREFIX.length() - 1)),
+            removedProperties);
+        assertEquals(Collections.singleton("net.java.sip.communicator.other"),
+            properties.keySet());
+
+        store = new EntityCapsStore(createConfig(), file);
+        assertFeature("a", store.lookup(NODE));
+        assertFeature("b", store.lookup(NODE + "2"));
+        assertEquals(1, removedProperties.size());
+    }
+
+    /**
+     * The caps of earlier versions stay in the configuration when they can't
+     * be written to a file.
+     */
+    public void testLegacyMigrationWithoutFile()
+    {
+        properties.put(PREFIX + NODE, createXml(NODE, "a"));
+
+        EntityCapsStore store = new EntityCapsStore(createConfig(), null);
+        assertFeature("a", store.lookup(NODE));
+
+        File notWritable = new File(new File(directory, "missing"), "caps");
+        store = new EntityCapsStore(createConfig(), notWritable);
+        assertFeature("a", store.lookup(NODE));
+
+        assertTrue(removedProperties.isEmpty());
+        assertTrue(properties.containsKey(PREFIX + NODE));
+    }
+
+    /**
+     * Only the most recently used caps are kept decoded, the others being
+     * decoded again when looked up.
+     */
+    public void testDecodedEviction()
+    {
+        EntityCapsStore store = new EntityCapsStore(createConfig(), file);
+
+        store.addDiscoverInfoByNodePersistent(NODE, createInfo("a"));
+        store.addDiscoverInfoByNodePersistent(NODE + "2", createInfo("b"));
+        DiscoverInfo first = store.lookup(NODE);
+        DiscoverInfo second = store.lookup(NODE + "2");
+
+        for (int i = 0; i < EntityCapsStore.DECODED_CACHE_SIZE - 1; i++)
+        {
+            store.addDiscoverInfoByNodePersistent(
+                NODE + "-" + i, createInfo("c" + i));
+
+            // keep the second caps the most recently used ones
+            assertSame(second, store.lookup(NODE + "2"));
+        }
+
+        DiscoverInfo decodedAgain = store.lookup(NODE);
+        assertNotSame(first, decodedAgain);
+        assertFeature("a", decodedAgain);
+        assertSame(decodedAgain, store.lookup(NODE));
+        assertSame(second, store.lookup(NODE + "2"));
+    }
+
+    /**
+     * A truncated file or a file of another format is not read, and is
+     * replaced when caps are saved again.
+     */
+    public void testCorruptFile()
+        throws Exception
+    {
+        EntityCapsStore store = new EntityCapsStore(createConfig(), file);
+        store.addDiscoverInfoByNodePersistent(NODE, createInfo("a"));
+        store.save();
+
+        byte[] content = Files.readAllBytes(file.toPath());
+        Files.write(file.toPath(),
+            Arrays.copyOf(content, content.length / 2));
+        store = new EntityCapsStore(createConfig(), file);
+        assertNull(store.lookup(NODE));
+
+        Files.write(file.toPath(), new byte[] { 0, 0, 0, 99, 1, 2, 3 });
+        store = new EntityCapsStore(createConfig(), file);
+        assertNull(store.lookup(NODE));
+
+        store.addDiscoverInfoByNodePersistent(NODE + "2", createInfo("b"));
+        store.save();
+        assertFeature("b",
+            new EntityCapsStore(createConfig(), file).lookup(NODE + "2"));
+    }
+
+    private static DiscoverInfo createInfo(String feature)
+    {
+        return DiscoverInfo.builder("test")
+            .addIdentity(new DiscoverInfo.Identity("client", "Jitsi", "pc"))
+            .addFeature("urn:example:" + feature)
+            .build();
+    }
+
+    /**
+     * Returns the XML of caps the way earlier versions stored it in the
+     * configuration.
+     */
+    private static String createXml(String node, String feature)
+    {
+        return createInfo(feature).asBuilder(null).setNode(node).build()
+            .getChildElementXML().toString();
+    }
+
+    private static void assertFeature(String feature, DiscoverInfo info)
+    {
+        assertNotNull(info);
+        assertTrue(info.containsFeature("urn:example:" + feature));
+        assertTrue(info.hasIdentity("client", "pc"));
+    }
+
+    /**
+     * Creates a configuration service backed by <tt>properties</tt>, which
+     * checks that the caps are in the file when they are removed from the
+     * configuration.
+     */
+    private ConfigurationService createConfig()
+    {
+        return (ConfigurationService) Proxy.newProxyInstance(
+            ConfigurationService.class.getClassLoader(),
+            new Class<?>[] { ConfigurationService.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    String name = method.getName();
+
+                    if (name.equals("getPropertyNamesByPrefix"))
+                    {
+                        List<String> names = new ArrayList<String>();
+                        for (String property : properties.keySet())
+                        {
+                            if (property.startsWith((String) args[0]))
+                                names.add(property);
+                        }
+                        return names;
+                    }
+                    if (name.equals("getString"))
+                        return properties.get(args[0]);
+                    if (name.equals("removeProperty"))
+                    {
+                        String removed = (String) args[0];
+
+                        assertTrue("removed before written", file.isFile());
+                        removedProperties.add(removed);
+                        Iterator<String> iter
+                            = properties.keySet().iterator();
+                        while (iter.hasNext())
+                        {
+                            if (iter.next().startsWith(removed + "."))
+                                iter.remove();
+                        }
+                        return null;
+                    }
+                    if (method.getDeclaringClass() == Object.class)
+                    {
+                        if (name.equals("equals"))
+                            return proxy == args[0];
+                        if (name.equals("hashCode"))
+                            return System.identityHashCode(proxy);
+                        return "ConfigurationService";
+                    }
+                    throw new UnsupportedOperationException(name);
+                }
+            });
+    }
+}
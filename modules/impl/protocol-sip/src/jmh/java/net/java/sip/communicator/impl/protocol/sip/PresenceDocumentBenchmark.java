@@ -0,0 +1,243 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.concurrent.*;
+
+import org.jitsi.util.xml.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+import org.w3c.dom.*;
+
+/**
+ * Compares the reading of PIDF and watcher information NOTIFY bodies by
+ * <tt>PresenceDocumentParser</tt> with parsing them into a DOM tree and
+ * looking up their elements the way <tt>OperationSetPresenceSipImpl</tt> did
+ * before the parser.
+ * <p>
+ * The bodies are those of a resource list subscription with
+ * <tt>entries</tt> contacts, each with a contact address, a basic status and
+ * a note, and the watcher list of our resource with as many watchers.
+ * </p>
+ * <p>
+ * Run with <tt>mvn -Pjmh test-compile exec:exec</tt> in this module.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PresenceDocumentBenchmark
+{
+    /**
+     * The address of record of our resource in the watcher information.
+     */
+    private static final String RESOURCE = "sip:alice@example.com";
+
+    /**
+     * The namespace wildcard of the DOM lookups.
+     */
+    private static final String ANY_NS = "*";
+
+    /**
+     * The number of tuples of the PIDF body and of watchers of the watcher
+     * information body.
+     */
+    @Param({ "1", "100", "1000" })
+    public int entries;
+
+    private String pidf;
+
+    private String watcherInfo;
+
+    @Setup
+    public void setUp()
+    {
+        StringBuilder doc = new StringBuilder(
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+            + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\""
+            + " xmlns:dm=\"urn:ietf:params:xml:ns:pidf:data-model\""
+            + " xmlns:rpid=\"urn:ietf:params:xml:ns:pidf:rpid\""
+            + " entity=\"pres:list@example.com\">"
+            + "<dm:person id=\"p1\">"
+            + "<rpid:activities><rpid:busy/></rpid:activities>"
+            + "<rpid:status-icon>http://example.com/list.png"
+            + "</rpid:status-icon>"
+            + "</dm:person>");
+        for (int i = 0; i < entries; i++)
+        {
+            doc.append("<tuple id=\"t").append(i).append("\">")
+                .append("<status><basic>")
+                .append((i % 3 == 0) ? "closed" : "open")
+                .append("</basic></status>")
+                .append("<contact priority=\"0.8\">sip:user").append(i)
+                .append("@example.com</contact>")
+                .append("<note>Online</note></tuple>");
+        }
+        pidf = doc.append("<note>Available</note></presence>").toString();
+
+        doc = new StringBuilder(
+            "<?xml version=\"1.0\"?>"
+            + "<watcherinfo xmlns=\"urn:ietf:params:xml:ns:watcherinfo\""
+            + " version=\"0\" state=\"full\">"
+            + "<watcher-list resource=\"" + RESOURCE + "\""
+            + " package=\"presence\">");
+        for (int i = 0; i < entries; i++)
+        {
+            doc.append("<watcher status=\"")
+                .append((i % 2 == 0) ? "active" : "pending")
+                .append("\" id=\"w").append(i).append("\" event=\"subscribe\">")
+                .append("sip:user").append(i).append("@example.com")
+                .append("</watcher>");
+        }
+        watcherInfo
+            = doc.append("</watcher-list></watcherinfo>").toString();
+    }
+
+    @Benchmark
+    public PresenceDocumentParser.Presence pidfParser()
+        throws Exception
+    {
+        return PresenceDocumentParser.parsePresence(pidf);
+    }
+
+    @Benchmark
+    public void pidfDom(Blackhole blackhole)
+        throws Exception
+    {
+        Document doc = XMLUtils.createDocument(pidf);
+        NodeList presList = doc.getElementsByTagNameNS(
+            PresenceDocumentParser.PIDF_NS, "presence");
+        if (presList.getLength() == 0)
+            presList = doc.getElementsByTagNameNS(ANY_NS, "presence");
+
+        Element presence = (Element) presList.item(0);
+        NodeList personList
+            = presence.getElementsByTagNameNS(ANY_NS, "person");
+        if (personList.getLength() > 0)
+        {
+            Element person = (Element) personList.item(0);
+            NodeList activityList
+                = person.getElementsByTagNameNS(ANY_NS, "activities");
+            for (int i = 0; i < activityList.getLength(); i++)
+            {
+                NodeList statusList = activityList.item(i).getChildNodes();
+                for (int j = 0; j < statusList.getLength(); j++)
+                {
+                    Node statusNode = statusList.item(j);
+                    if (statusNode.getNodeType() == Node.ELEMENT_NODE)
+                        blackhole.consume(statusNode.getLocalName());
+                }
+            }
+
+            NodeList statusIconList
+                = person.getElementsByTagNameNS(ANY_NS, "status-icon");
+            if (statusIconList.getLength() > 0)
+            {
+                blackhole.consume(
+                    XMLUtils.getText((Element) statusIconList.item(0)));
+            }
+        }
+
+        NodeList presNoteList = getPidfChilds(presence, "note");
+        if (presNoteList.getLength() > 0)
+        {
+            blackhole.consume(XMLUtils.getText(
+                (Element) presNoteList.item(presNoteList.getLength() - 1)));
+        }
+
+        NodeList tupleList = getPidfChilds(presence, "tuple");
+        for (int i = 0; i < tupleList.getLength(); i++)
+        {
+            Element tuple = (Element) tupleList.item(i);
+
+            NodeList contactList = getPidfChilds(tuple, "contact");
+            for (int j = 0; j < contactList.getLength(); j++)
+            {
+                Element contact = (Element) contactList.item(j);
+
+                blackhole.consume(XMLUtils.getText(contact));
+                blackhole.consume(contact.getAttribute("priority"));
+            }
+
+            NodeList statusList = getPidfChilds(tuple, "status");
+            Element status
+                = (Element) statusList.item(statusList.getLength() - 1);
+            NodeList basicList = getPidfChilds(status, "basic");
+            blackhole.consume(XMLUtils.getText(
+                (Element) basicList.item(basicList.getLength() - 1)));
+
+            NodeList noteList = getPidfChilds(tuple, "note");
+            for (int k = 0; k < noteList.getLength(); k++)
+                blackhole.consume(XMLUtils.getText((Element) noteList.item(k)));
+        }
+    }
+
+    @Benchmark
+    public PresenceDocumentParser.WatcherInfo watcherInfoParser()
+        throws Exception
+    {
+        return PresenceDocumentParser.parseWatcherInfo(watcherInfo, RESOURCE);
+    }
+
+    @Benchmark
+    public void watcherInfoDom(Blackhole blackhole)
+        throws Exception
+    {
+        Document doc = XMLUtils.createDocument(watcherInfo);
+        NodeList watchList = doc.getElementsByTagNameNS(
+            PresenceDocumentParser.WATCHERINFO_NS, "watcherinfo");
+        if (watchList.getLength() == 0)
+            watchList = doc.getElementsByTagNameNS(ANY_NS, "watcherinfo");
+
+        Element watcherInfoElement = (Element) watchList.item(0);
+        blackhole.consume(watcherInfoElement.getAttribute("state"));
+        blackhole.consume(watcherInfoElement.getAttribute("version"));
+
+        Element wlist = XMLUtils.locateElement(
+            watcherInfoElement, "watcher-list", "resource", RESOURCE);
+        blackhole.consume(wlist.getAttribute("package"));
+
+        NodeList watcherList
+            = wlist.getElementsByTagNameNS(ANY_NS, "watcher");
+        for (int i = 0; i < watcherList.getLength(); i++)
+        {
+            Element watcher = (Element) watcherList.item(i);
+
+            blackhole.consume(watcher.getAttribute("status"));
+            blackhole.consume(XMLUtils.getText(watcher));
+        }
+    }
+
+    /**
+     * Gets the descendants of an element in the PIDF namespace, or in any
+     * namespace if there are none, as <tt>OperationSetPresenceSipImpl</tt>
+     * did.
+     */
+    private static NodeList getPidfChilds(Element element, String childName)
+    {
+        NodeList res = element.getElementsByTagNameNS(
+            PresenceDocumentParser.PIDF_NS, childName);
+
+        if (res.getLength() == 0)
+            res = element.getElementsByTagNameNS(ANY_NS, childName);
+        return res;
+    }
+}
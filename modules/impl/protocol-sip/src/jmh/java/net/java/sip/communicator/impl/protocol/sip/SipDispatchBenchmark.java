@@ -0,0 +1,213 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import javax.sip.*;
+import javax.sip.address.*;
+import javax.sip.header.*;
+import javax.sip.message.*;
+
+import net.java.sip.communicator.service.protocol.*;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Compares the dispatching of requests which are not part of a dialog
+ * through the <tt>SipDispatchIndex</tt> with the linear scan of all
+ * providers <tt>SipStackSharing</tt> did before, which copied the providers,
+ * filtered them by registrar address and then matched the Request-URI user.
+ * <p>
+ * Run with <tt>mvn -Pjmh test-compile exec:exec</tt> in this module.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SipDispatchBenchmark
+{
+    /**
+     * The number of providers sharing the stack.
+     */
+    @Param({ "10", "100", "1000" })
+    public int providerCount;
+
+    private SipDispatchIndex index;
+
+    /**
+     * The providers as <tt>SipStackSharing</tt> kept them before the index.
+     */
+    private Set<ProtocolProviderServiceSipImpl> listeners;
+
+    private Request[] requests;
+
+    private int next;
+
+    @Setup
+    public void setUp()
+        throws Exception
+    {
+        index = new SipDispatchIndex();
+        listeners = new HashSet<ProtocolProviderServiceSipImpl>();
+        for (int i = 0; i < providerCount; i++)
+        {
+            Provider provider = new Provider("user" + i);
+
+            index.add(provider);
+            listeners.add(provider);
+        }
+
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+
+        AddressFactory addressFactory = sipFactory.createAddressFactory();
+        HeaderFactory headerFactory = sipFactory.createHeaderFactory();
+        MessageFactory messageFactory = sipFactory.createMessageFactory();
+
+        requests = new Request[providerCount];
+        for (int i = 0; i < requests.length; i++)
+        {
+            SipURI requestURI
+                = addressFactory.createSipURI("user" + i, "example.com");
+            Address from
+                = addressFactory.createAddress(
+                    addressFactory.createSipURI("caller", "example.org"));
+
+            requests[i] = messageFactory.createRequest(
+                requestURI,
+                Request.MESSAGE,
+                headerFactory.createCallIdHeader("benchmark" + i),
+                headerFactory.createCSeqHeader(1L, Request.MESSAGE),
+                headerFactory.createFromHeader(from, "tag"),
+                headerFactory.createToHeader(
+                    addressFactory.createAddress(requestURI), null),
+                new ArrayList<ViaHeader>(Arrays.asList(
+                    headerFactory.createViaHeader(
+                        "127.0.0.1", 5060, "udp", "branch"))),
+                headerFactory.createMaxForwardsHeader(70));
+        }
+    }
+
+    /**
+     * Dispatches requests to each of the providers in turn.
+     */
+    private Request nextRequest()
+    {
+        Request request = requests[next];
+        next = (next + 1) % requests.length;
+        return request;
+    }
+
+    @Benchmark
+    public ProtocolProviderServiceSipImpl index()
+    {
+        return index.findTargetFor(nextRequest());
+    }
+
+    @Benchmark
+    public ProtocolProviderServiceSipImpl linearScan()
+    {
+        return findTargetByScan(nextRequest());
+    }
+
+    /**
+     * Finds the provider of the Request-URI user the way
+     * <tt>SipStackSharing</tt> did before the index, for the requests of
+     * this benchmark which all have a single matching provider.
+     */
+    private ProtocolProviderServiceSipImpl findTargetByScan(Request request)
+    {
+        List<ProtocolProviderServiceSipImpl> currentListenersCopy;
+        synchronized (listeners)
+        {
+            currentListenersCopy
+                = new ArrayList<ProtocolProviderServiceSipImpl>(
+                    new HashSet<ProtocolProviderServiceSipImpl>(listeners));
+        }
+
+        // filter by registrar address
+        Iterator<ProtocolProviderServiceSipImpl> iterPP
+            = currentListenersCopy.iterator();
+        while (iterPP.hasNext())
+        {
+            ProtocolProviderServiceSipImpl candidate = iterPP.next();
+            if (candidate.getAccountID().getAccountPropertyBoolean(
+                    ProtocolProviderFactory.FORCE_PROXY_BYPASS, false))
+                continue;
+
+            SipRegistrarConnection connection
+                = candidate.getRegistrarConnection();
+            if (connection != null
+                && !connection.isRegistrarless()
+                && !connection.isRequestFromSameConnection(request))
+            {
+                iterPP.remove();
+            }
+        }
+
+        String requestUser = ((SipURI) request.getRequestURI()).getUser();
+        List<ProtocolProviderServiceSipImpl> candidates
+            = new ArrayList<ProtocolProviderServiceSipImpl>();
+        for (ProtocolProviderServiceSipImpl listener : currentListenersCopy)
+        {
+            if (listener.getAccountID().getUserID().equals(requestUser))
+                candidates.add(listener);
+        }
+
+        return candidates.isEmpty()
+            ? currentListenersCopy.get(0)
+            : candidates.get(0);
+    }
+
+    /**
+     * A provider of a registrarless account, which accepts all requests.
+     */
+    private static class Provider
+        extends ProtocolProviderServiceSipImpl
+    {
+        private final AccountID accountID;
+
+        Provider(String userID)
+        {
+            // set so that no default is looked up in the configuration
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put(
+                ProtocolProviderFactory.FORCE_PROXY_BYPASS, "false");
+
+            accountID = new SipAccountIDImpl(
+                userID, properties, "example.com");
+        }
+
+        @Override
+        public AccountID getAccountID()
+        {
+            return accountID;
+        }
+
+        @Override
+        public SipRegistrarConnection getRegistrarConnection()
+        {
+            return null;
+        }
+    }
+}
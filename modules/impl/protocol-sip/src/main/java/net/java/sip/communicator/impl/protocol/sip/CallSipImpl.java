@@ -603,7 +603,7 @@ public CallPeerSipImpl processInvite(SipProvider       jainSipProvider,
                 if(serverTran instanceof SIPTransaction
                     && !((SIPTransaction)serverTran).isReliable())
                 {
-                    final Timer timer = new Timer();
+                    final TimerScheduler timer = new TimerScheduler();
                     int interval = retransmitsRingingInterval;
                     int delay = 0;
                     for(int i = 0; i < MAX_RETRANSMISSIONS; i++)
@@ -782,7 +782,7 @@ protected void setCallState(CallState newState, CallPeerChangeEvent cause)
      * Task that will retransmit ringing response
      */
     private class RingingResponseTask
-        extends TimerTask
+        extends SipTimerTask
     {
         /**
          * The response that will be sent
@@ -802,7 +802,7 @@ protected void setCallState(CallState newState, CallPeerChangeEvent cause)
         /**
          * The timer that starts the task.
          */
-        private final Timer timer;
+        private final TimerScheduler timer;
 
         /**
          * Create ringing response task.
@@ -812,7 +812,7 @@ protected void setCallState(CallState newState, CallPeerChangeEvent cause)
          * @param timer the timer.
          */
         RingingResponseTask(Response response, ServerTransaction serverTran,
-            CallPeerSipImpl peer, Timer timer)
+            CallPeerSipImpl peer, TimerScheduler timer)
         {
             this.response = response;
             this.serverTran = serverTran;
@@ -67,7 +67,7 @@
     /**
      * The timer that runs the keep-alive task
      */
-    private Timer keepAliveTimer = null;
+    private TimerScheduler keepAliveTimer = null;
 
     /**
      * The next long to use as a cseq header value.
@@ -228,7 +228,7 @@ void shutdown()
      * alive method.
      */
     private class OptionsKeepAliveTask
-        extends TimerTask
+        extends SipTimerTask
     {
         @Override
         public void run()
@@ -394,7 +394,7 @@ public void run()
      * Class implements CRLF keep alive method.
      */
     private class CRLfKeepAliveTask
-        extends TimerTask
+        extends SipTimerTask
     {
 
         @Override
@@ -484,9 +484,9 @@ else if (evt.getNewState().equals(RegistrationState.REGISTERED))
                     && !provider.getRegistrarConnection().isRegistrarless())
                 {
                     if (keepAliveTimer == null)
-                        keepAliveTimer = new Timer();
+                        keepAliveTimer = new TimerScheduler();
 
-                    TimerTask keepAliveTask;
+                    SipTimerTask keepAliveTask;
                     // CRLF is used by default on Android
                     if( (OSUtils.IS_ANDROID && keepAliveMethod == null)
                         || "crlf".equalsIgnoreCase(keepAliveMethod) )
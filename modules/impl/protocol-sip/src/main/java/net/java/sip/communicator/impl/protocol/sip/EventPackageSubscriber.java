@@ -794,7 +794,8 @@ else if ((statusCode != Response.OK)
                  // try to keep a margin if the refresh delay allows it
                  if (refreshDelay >= (2*refreshMargin))
                      refreshDelay -= refreshMargin;
-                 timer.schedule(refreshTask, refreshDelay * 1000);
+                 timer.schedule(
+                     refreshTask, SipTimerService.jitter(refreshDelay * 1000L));
 
                  // do it to remember the dialog in case of a polling
                  // subscription (which means no call to finalizeSubscription)
@@ -1264,7 +1265,7 @@ protected abstract void processTerminatedRequest(
      * <tt>Subscription</tt>.
      */
     private class SubscriptionRefreshTask
-        extends TimerTask
+        extends SipTimerTask
     {
 
         /**
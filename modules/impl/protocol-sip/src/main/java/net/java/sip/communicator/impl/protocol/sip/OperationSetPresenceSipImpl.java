@@ -25,6 +25,7 @@
 import javax.sip.address.*;
 import javax.sip.header.*;
 import javax.sip.message.*;
+import javax.xml.stream.*;
 
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
@@ -186,19 +187,6 @@
     private static final String STATUS_ICON_ELEMENT = "status-icon";
     private static final String NS_STATUS_ICON_ELT  = "rpid:status-icon";
 
-    // namespace wildcard
-    private static final String ANY_NS          = "*";
-
-    private static final String WATCHERINFO_NS_VALUE
-            = "urn:ietf:params:xml:ns:watcherinfo";
-    private static final String WATCHERINFO_ELEMENT= "watcherinfo";
-    private static final String STATE_ATTRIBUTE = "state";
-    private static final String VERSION_ATTRIBUTE = "version";
-    private static final String WATCHERLIST_ELEMENT= "watcher-list";
-    private static final String RESOURCE_ATTRIBUTE = "resource";
-    private static final String PACKAGE_ATTRIBUTE = "package";
-    private static final String WATCHER_ELEMENT= "watcher";
-
     /**
      * The <code>EventPackageNotifier</code> which provides the ability of this
      * instance to act as a notifier for the presence event package.
@@ -1285,7 +1273,9 @@ public boolean processResponse(ResponseEvent responseEvent)
                 // try to keep a margin if the refresh delay allows it
                 if (republishDelay >= (2*REFRESH_MARGIN))
                     republishDelay -= REFRESH_MARGIN;
-                timer.schedule(this.republishTask, republishDelay * 1000);
+                timer.schedule(
+                    this.republishTask,
+                    SipTimerService.jitter(republishDelay * 1000L));
 
             // UNAUTHORIZED (401/407)
             }
@@ -2093,39 +2083,31 @@ else if (contact.getPresenceStatus()
       */
      public void setPidfPresenceStatus(String presenceDoc)
      {
-         Document doc = convertDocument(presenceDoc);
+         PresenceDocumentParser.Presence presence;
 
-         if (doc == null)
+         try
+         {
+             presence = PresenceDocumentParser.parsePresence(presenceDoc);
+         }
+         catch (XMLStreamException e)
+         {
+             logger.error("Can't parse the presence document", e);
              return;
+         }
 
          if (logger.isDebugEnabled())
              logger.debug("parsing:\n" + presenceDoc);
 
          // <presence>
-         NodeList presList = doc.getElementsByTagNameNS(PIDF_NS_VALUE,
-                 PRESENCE_ELEMENT);
-
-         if (presList.getLength() == 0)
+         if (presence == null)
          {
-             presList = doc.getElementsByTagNameNS(ANY_NS, PRESENCE_ELEMENT);
-
-             if (presList.getLength() == 0)
-             {
-                 logger.error("no presence element in this document");
-                 return;
-             }
+             logger.error("no presence element in this document");
+             return;
          }
-         if (presList.getLength() > 1)
+         if (presence.count > 1)
          {
              logger.warn("more than one presence element in this document");
          }
-         Node presNode = presList.item(0);
-         if (presNode.getNodeType() != Node.ELEMENT_NODE)
-         {
-             logger.error("the presence node is not an element");
-             return;
-         }
-         Element presence = (Element) presNode;
 
          // RPID area
 
@@ -2135,140 +2117,72 @@ public void setPidfPresenceStatus(String presenceDoc)
 
          PresenceStatus personStatus = null;
          URI personStatusIcon = null;
-         NodeList personList = presence.getElementsByTagNameNS(ANY_NS,
-                 PERSON_ELEMENT);
 
-         //if (personList.getLength() > 1) {
-         //    logger.error("more than one person in this document");
-         //    return;
-         //}
-
-         if (personList.getLength() > 0)
+         if (AWAY_ELEMENT.equals(presence.activity))
          {
-             Node personNode = personList.item(0);
-             if (personNode.getNodeType() != Node.ELEMENT_NODE)
-             {
-                 logger.error("the person node is not an element");
-                 return;
-             }
-             Element person = (Element) personNode;
+             personStatus = sipStatusEnum.getStatus(SipStatusEnum.AWAY);
+         }
+         else if (BUSY_ELEMENT.equals(presence.activity))
+         {
+             personStatus = sipStatusEnum.getStatus(SipStatusEnum.BUSY);
+         }
+         else if (OTP_ELEMENT.equals(presence.activity))
+         {
+             personStatus = sipStatusEnum.getStatus(SipStatusEnum.ON_THE_PHONE);
+         }
 
-             NodeList activityList =
-                 person.getElementsByTagNameNS(ANY_NS, ACTIVITY_ELEMENT);
-             if (activityList.getLength() > 0)
+         String statusIcon = presence.statusIcon;
+         if (statusIcon != null && statusIcon.trim().length() != 0)
+         {
+             try
              {
-                 Element activity = null;
-                 // find the first correct activity
-                 for (int i = 0; i < activityList.getLength(); i++)
-                 {
-                     Node activityNode = activityList.item(i);
-
-                     if (activityNode.getNodeType() != Node.ELEMENT_NODE)
-                         continue;
-
-                     activity = (Element) activityNode;
-
-                     NodeList statusList = activity.getChildNodes();
-                     for (int j = 0; j < statusList.getLength(); j++)
-                     {
-                         Node statusNode = statusList.item(j);
-                         if (statusNode.getNodeType() == Node.ELEMENT_NODE)
-                         {
-                             String statusname = statusNode.getLocalName();
-                             if (statusname.equals(AWAY_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.AWAY);
-                                 break;
-                             }
-                             else if (statusname.equals(BUSY_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.BUSY);
-                                 break;
-                             }
-                             else if (statusname.equals(OTP_ELEMENT))
-                             {
-                                 personStatus = sipStatusEnum
-                                     .getStatus(SipStatusEnum.ON_THE_PHONE);
-                                 break;
-                             }
-                         }
-                     }
-                     if (personStatus != null)
-                         break;
-                 }
+                 personStatusIcon = URI.create(statusIcon);
              }
-             NodeList statusIconList = person.getElementsByTagNameNS(ANY_NS,
-                     STATUS_ICON_ELEMENT);
-             if (statusIconList.getLength() > 0)
+             catch (IllegalArgumentException ex)
              {
-                 Element statusIcon;
-                 Node statusIconNode = statusIconList.item(0);
-                 if (statusIconNode.getNodeType() == Node.ELEMENT_NODE)
-                 {
-                     statusIcon = (Element) statusIconNode;
-                     String content = getTextContent(statusIcon);
-                     if (content != null && content.trim().length() != 0)
-                     {
-                         try
-                         {
-                             personStatusIcon = URI.create(content);
-                         }
-                         catch (IllegalArgumentException ex)
-                         {
-                             logger.error("Person's status icon uri: " +
-                                     content + " is invalid");
-                         }
-                     }
-                 }
+                 logger.error("Person's status icon uri: " +
+                         statusIcon + " is invalid");
              }
          }
 
-          if(personStatusIcon != null)
+          if(personStatusIcon != null && presence.entity != null)
           {
-              String contactID =
-                  XMLUtils.getAttribute(presNode, ENTITY_ATTRIBUTE);
+              String contactID = presence.entity;
 
               if (contactID.startsWith("pres:"))
               {
                   contactID = contactID.substring("pres:".length());
               }
               Contact contact = resolveContactID(contactID);
-              updateContactIcon((ContactSipImpl) contact, personStatusIcon);
+              if (contact != null)
+              {
+                  updateContactIcon(
+                      (ContactSipImpl) contact, personStatusIcon);
+              }
          }
 
         // search for a <note> that can define a more precise
         // status this is not recommended by RFC3863 but some im
         // clients use this.
-        NodeList presNoteList = getPidfChilds(presence, NOTE_ELEMENT);
-        if (presNoteList.getLength() >= 1)
+        if (presence.note != null)
         {
-            Node noteNode = presNoteList.item(presNoteList.getLength() - 1);
-            if (noteNode.getNodeType() == Node.ELEMENT_NODE)
+            switch (presence.note.toLowerCase())
             {
-                String state = getTextContent((Element)noteNode);
-                if (state != null)
-                {
-                    switch (state.toLowerCase())
-                    {
-                        case "ready":
-                        case "available":
-                            personStatus = sipStatusEnum
-                                .getStatus(SipStatusEnum.ONLINE);
-                            break;
-                        case "ringing":
-                        case "on the phone":
-                        case "on hold":
-                            personStatus = sipStatusEnum
-                                .getStatus(SipStatusEnum.ON_THE_PHONE);
-                            break;
-                        case "unavailable":
-                            personStatus = sipStatusEnum
-                                .getStatus(SipStatusEnum.OFFLINE);
-                            break;
-                    }
-                }
+                case "ready":
+                case "available":
+                    personStatus = sipStatusEnum
+                        .getStatus(SipStatusEnum.ONLINE);
+                    break;
+                case "ringing":
+                case "on the phone":
+                case "on hold":
+                    personStatus = sipStatusEnum
+                        .getStatus(SipStatusEnum.ON_THE_PHONE);
+                    break;
+                case "unavailable":
+                    personStatus = sipStatusEnum
+                        .getStatus(SipStatusEnum.OFFLINE);
+                    break;
             }
         }
 
@@ -2278,35 +2192,24 @@ else if (statusname.equals(OTP_ELEMENT))
          List<Object[]> newPresenceStates = new Vector<Object[]>(3, 2);
 
          // <tuple>
-         NodeList tupleList = getPidfChilds(presence, TUPLE_ELEMENT);
-         for (int i = 0; i < tupleList.getLength(); i++)
+         for (PresenceDocumentParser.Tuple tuple : presence.tuples)
          {
-             Node tupleNode = tupleList.item(i);
-
-             if (tupleNode.getNodeType() != Node.ELEMENT_NODE)
-                 continue;
-
-             Element tuple = (Element) tupleNode;
-
-             // <contact>
-             NodeList contactList = getPidfChilds(tuple, CONTACT_ELEMENT);
-
              // we use a vector here and not an unique contact to handle an
              // error case where many contacts are associated with a status
              // Vector<ContactSipImpl>
              List<Object[]> sipcontact = new Vector<Object[]>(1, 3);
              String contactID = null;
-             if (contactList.getLength() == 0)
+             if (tuple.contacts.isEmpty())
              {
                  // use the entity attribute of the presence node
-                 contactID = XMLUtils.getAttribute(
-                         presNode, ENTITY_ATTRIBUTE);
+                 contactID = presence.entity;
                  // also accept entity URIs starting with pres: instead of sip:
-                 if (contactID.startsWith("pres:"))
+                 if (contactID != null && contactID.startsWith("pres:"))
                  {
                      contactID = contactID.substring("pres:".length());
                  }
-                 Contact tmpContact = resolveContactID(contactID);
+                 Contact tmpContact
+                     = (contactID == null) ? null : resolveContactID(contactID);
 
                  if (tmpContact != null)
                  {
@@ -2316,16 +2219,10 @@ else if (statusname.equals(OTP_ELEMENT))
              else
              {
                  // this is normally not permitted by RFC3863
-                 for (int j = 0; j < contactList.getLength(); j++)
+                 for (PresenceDocumentParser.TupleContact contact
+                         : tuple.contacts)
                  {
-                     Node contactNode = contactList.item(j);
-
-                     if (contactNode.getNodeType() != Node.ELEMENT_NODE)
-                         continue;
-
-                     Element contact = (Element) contactNode;
-
-                     contactID = getTextContent(contact);
+                     contactID = contact.address;
                      // also accept entity URIs starting with pres: instead
                      // of sip:
                      if (contactID.startsWith("pres:"))
@@ -2341,7 +2238,7 @@ else if (statusname.equals(OTP_ELEMENT))
                      Object tab[] = new Object[2];
 
                      // search if the contact has a priority
-                     String prioStr = contact.getAttribute(PRIORITY_ATTRIBUTE);
+                     String prioStr = contact.priority;
                      Float prio = null;
                      try
                      {
@@ -2412,82 +2309,28 @@ else if (statusname.equals(OTP_ELEMENT))
                  continue;
              }
 
-             // <status>
-             NodeList statusList = getPidfChilds(tuple, STATUS_ELEMENT);
+             // <status> and <basic>, in case of many of them the parser kept
+             // the last ones, this is normally not permitted by RFC3863
+             String basic = tuple.basic;
 
-             // in case of many status, just consider the last one
-             // this is normally not permitted by RFC3863
-             int index = statusList.getLength() - 1;
-             Node statusNode = null;
-             do
-             {
-                 Node temp = statusList.item(index);
-                 if (temp.getNodeType() == Node.ELEMENT_NODE)
-                 {
-                     statusNode = temp;
-                     break;
-                 }
-                 index--;
-             }
-             while (index >= 0);
-
-             Element basic = null;
-
-             if (statusNode == null)
+             if (!tuple.hasStatus)
              {
                  if (logger.isDebugEnabled())
                      logger.debug("no valid status in this tuple");
              }
-             else
+             else if (basic == null)
              {
-                 Element status = (Element) statusNode;
-
-                 // <basic>
-                 NodeList basicList = getPidfChilds(status, BASIC_ELEMENT);
-
-                 // in case of many basic, just consider the last one
-                 // this is normally not permitted by RFC3863
-                 index = basicList.getLength() - 1;
-                 Node basicNode = null;
-                 do
-                 {
-                     Node temp = basicList.item(index);
-                     if (temp.getNodeType() == Node.ELEMENT_NODE)
-                     {
-                         basicNode = temp;
-                         break;
-                     }
-                     index--;
-                 }
-                 while (index >= 0);
-
-                 if (basicNode == null)
-                 {
-                     if (logger.isDebugEnabled())
-                         logger.debug("no valid <basic> in this status");
-                 }
-                 else
-                 {
-                     basic = (Element) basicNode;
-                 }
+                 if (logger.isDebugEnabled())
+                     logger.debug("no valid <basic> in this status");
              }
 
              // search for a <note> that can define a more precise
              // status this is not recommended by RFC3863 but some im
              // clients use this.
-             NodeList noteList = getPidfChilds(tuple, NOTE_ELEMENT);
-
              boolean changed = false;
-             for (int k = 0; k < noteList.getLength() && !changed; k++)
+             for (int k = 0; k < tuple.notes.size() && !changed; k++)
              {
-                 Node noteNode = noteList.item(k);
-
-                 if (noteNode.getNodeType() != Node.ELEMENT_NODE)
-                     continue;
-
-                 Element note = (Element) noteNode;
-
-                 String state = getTextContent(note);
+                 String state = tuple.notes.get(k);
 
                  Iterator<PresenceStatus> states
                      = sipStatusEnum.getSupportedStatusSet();
@@ -2508,7 +2351,7 @@ else if (statusname.equals(OTP_ELEMENT))
 
              if (changed == false && basic != null)
              {
-                 if (getTextContent(basic).equalsIgnoreCase(ONLINE_STATUS))
+                 if (basic.equalsIgnoreCase(ONLINE_STATUS))
                  {
                      // if its online(open) we use the person status
                      // if any, otherwise just mark as online
@@ -2527,8 +2370,7 @@ else if (statusname.equals(OTP_ELEMENT))
                                  newPresenceStates);
                      }
                  }
-                 else if (getTextContent(basic).equalsIgnoreCase(
-                         OFFLINE_STATUS))
+                 else if (basic.equalsIgnoreCase(OFFLINE_STATUS))
                  {
                      // if its offline we ignore person status
                      newPresenceStates = setStatusForContacts(
@@ -2574,51 +2416,44 @@ public void setWatcherInfoStatus(
             return;
         }
 
-        Document doc = convertDocument(watcherInfoDoc);
+        // we need watcher list only for our resource
+        PresenceDocumentParser.WatcherInfo watcherInfo;
 
-         if (doc == null)
-             return;
+        try
+        {
+            watcherInfo = PresenceDocumentParser.parseWatcherInfo(
+                watcherInfoDoc,
+                parentProvider.getRegistrarConnection()
+                    .getAddressOfRecord().getURI().toString());
+        }
+        catch (XMLStreamException e)
+        {
+            logger.error("Can't parse the watcherinfo document", e);
+            return;
+        }
 
          if (logger.isDebugEnabled())
              logger.debug("parsing:\n" + watcherInfoDoc);
 
         // <watcherinfo>
-        NodeList watchList = doc.getElementsByTagNameNS(
-                WATCHERINFO_NS_VALUE, WATCHERINFO_ELEMENT);
-        if (watchList.getLength() == 0)
+        if (watcherInfo == null)
         {
-            watchList = doc.getElementsByTagNameNS(
-                     ANY_NS, WATCHERINFO_ELEMENT);
-
-            if (watchList.getLength() == 0)
-            {
-                logger.error("no watcherinfo element in this document");
-                return;
-            }
+            logger.error("no watcherinfo element in this document");
+            return;
         }
-        if (watchList.getLength() > 1)
+        if (watcherInfo.count > 1)
         {
             logger.warn("more than one watcherinfo element in this document");
         }
-        Node watcherInfoNode = watchList.item(0);
-        if (watcherInfoNode.getNodeType() != Node.ELEMENT_NODE)
-        {
-            logger.error("the watcherinfo node is not an element");
-            return;
-        }
-
-        Element watcherInfo = (Element)watcherInfoNode;
 
         // we don't take in account whether the state is full or partial.
         if(logger.isDebugEnabled())
-            logger.debug("Watcherinfo is with state: "
-                    + watcherInfo.getAttribute(STATE_ATTRIBUTE));
+            logger.debug("Watcherinfo is with state: " + watcherInfo.state);
 
         int currentVersion = -1;
         try
         {
-            currentVersion =
-                Integer.parseInt(watcherInfo.getAttribute(VERSION_ATTRIBUTE));
+            currentVersion = Integer.parseInt(watcherInfo.version);
         }
         catch(Throwable t)
         {
@@ -2633,34 +2468,17 @@ public void setWatcherInfoStatus(
         else
             subscriber.version = currentVersion;
 
-        // we need watcher list only for our resource
-        Element wlist = XMLUtils.locateElement(
-                watcherInfo, WATCHERLIST_ELEMENT, RESOURCE_ATTRIBUTE,
-                parentProvider.getRegistrarConnection()
-                    .getAddressOfRecord().getURI().toString());
-
-        if(wlist == null ||
-            !wlist.getAttribute(PACKAGE_ATTRIBUTE).equals(PRESENCE_ELEMENT))
+        if(!watcherInfo.hasWatcherList
+            || !PRESENCE_ELEMENT.equals(watcherInfo.watcherListPackage))
         {
             logger.error("Watcher list for us is missing in this document!");
             return;
         }
 
-        NodeList watcherList = wlist.getElementsByTagNameNS(ANY_NS,
-                 WATCHER_ELEMENT);
-        for(int i = 0; i < watcherList.getLength(); i++)
+        for (PresenceDocumentParser.Watcher watcher : watcherInfo.watchers)
         {
-            Node watcherNode = watcherList.item(i);
-            if (watcherNode.getNodeType() != Node.ELEMENT_NODE)
-            {
-                logger.error("the watcher node is not an element");
-                return;
-            }
-
-            Element watcher = (Element)watcherNode;
-
-            String status = watcher.getAttribute(STATUS_ELEMENT);
-            String contactID = getTextContent(watcher);
+            String status = watcher.status;
+            String contactID = watcher.address;
 
             //String event - subscribe, approved, deactivated, probation,
             //rejected, timeout, giveup, noresource
@@ -2749,52 +2567,6 @@ private void updateContactIcon(ContactSipImpl contact, URI imageUri)
                 newImage);
     }
 
-     /**
-      * Secured call to XMLUtils.getText (no null returned but an empty string)
-      *
-      * @param node the node with which call <tt>XMLUtils.getText()</tt>
-      *
-      * @return the string contained in the node or an empty string if there is
-      * no text information in the node.
-      */
-     private String getTextContent(Element node)
-     {
-         String res = XMLUtils.getText(node);
-
-         if (res == null)
-         {
-             logger.warn("no text for element '" + node.getNodeName() + "'");
-             return "";
-         }
-
-         return res;
-     }
-
-     /**
-      * Gets the list of the descendant of an element in the pidf namespace.
-      * If the list is empty, we try to get this list in any namespace.
-      * This method is useful for being able to read pidf document without any
-      * namespace or with a wrong namespace.
-      *
-      * @param element the base element concerned.
-      * @param childName the name of the descendants to match on.
-      *
-      * @return The list of all the descendant node.
-      */
-     private NodeList getPidfChilds(Element element, String childName)
-     {
-         NodeList res;
-
-         res = element.getElementsByTagNameNS(PIDF_NS_VALUE, childName);
-
-         if (res.getLength() == 0)
-         {
-             res = element.getElementsByTagNameNS(ANY_NS, childName);
-         }
-
-         return res;
-     }
-
      /**
       * Associate the provided presence state to the contacts considering the
       * current presence states and priorities.
@@ -3009,7 +2781,7 @@ private void cancelTimer()
      /**
       * A <tt>TimerTask</tt> handling refresh of PUBLISH requests.
       */
-     private class RePublishTask extends TimerTask
+     private class RePublishTask extends SipTimerTask
      {
          /**
           * Send a new PUBLISH request to refresh the publication
@@ -3064,7 +2836,7 @@ public void run()
      /**
       * A task handling polling of offline contacts.
       */
-     private class PollOfflineContactsTask extends TimerTask
+     private class PollOfflineContactsTask extends SipTimerTask
      {
          /**
           * Check if we can't subscribe to this contact now
@@ -0,0 +1,796 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.io.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+/**
+ * Reads the PIDF (RFC 3863) documents, with their RPID (RFC 4480) person
+ * data, and the watcher information (RFC 3858) documents received in NOTIFY
+ * requests in a single pass with a <tt>XMLStreamReader</tt>. Only what
+ * <tt>OperationSetPresenceSipImpl</tt> looks at is kept, instead of a DOM
+ * tree of the whole document.
+ * <p>
+ * The elements are matched the way the DOM based parsing did: elements are
+ * looked up among all the descendants of their parent, those in the PIDF
+ * namespace are preferred but elements in any namespace are accepted when
+ * there are none, and the text of an element is its first text child node.
+ */
+class PresenceDocumentParser
+{
+    /**
+     * The namespace of the PIDF elements.
+     */
+    static final String PIDF_NS = "urn:ietf:params:xml:ns:pidf";
+
+    /**
+     * The namespace of the watcher information elements.
+     */
+    static final String WATCHERINFO_NS = "urn:ietf:params:xml:ns:watcherinfo";
+
+    /**
+     * The factory of the readers of the documents.
+     */
+    private static final XMLInputFactory INPUT_FACTORY;
+
+    static
+    {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(
+            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /**
+     * Parses a PIDF document.
+     *
+     * @param document the document.
+     * @return the <tt>presence</tt> element of the document, preferably in
+     * the PIDF namespace, or <tt>null</tt> if there is none.
+     * @throws XMLStreamException if the document is not well formed.
+     */
+    static Presence parsePresence(String document)
+        throws XMLStreamException
+    {
+        XMLStreamReader reader
+            = INPUT_FACTORY.createXMLStreamReader(new StringReader(document));
+        PresenceHandler handler = new PresenceHandler();
+
+        try
+        {
+            parse(reader, handler);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        Presence presence
+            = handler.pidfPresence != null
+                ? handler.pidfPresence
+                : handler.anyPresence;
+
+        if (presence != null)
+        {
+            presence.count = handler.presenceCount;
+            presence.finish();
+        }
+        return presence;
+    }
+
+    /**
+     * Parses a watcher information document.
+     *
+     * @param document the document.
+     * @param resource the resource of the watcher list to read.
+     * @return the <tt>watcherinfo</tt> element of the document, preferably in
+     * the watcher information namespace, or <tt>null</tt> if there is none.
+     * @throws XMLStreamException if the document is not well formed.
+     */
+    static WatcherInfo parseWatcherInfo(String document, String resource)
+        throws XMLStreamException
+    {
+        XMLStreamReader reader
+            = INPUT_FACTORY.createXMLStreamReader(new StringReader(document));
+        WatcherInfoHandler handler = new WatcherInfoHandler(resource);
+
+        try
+        {
+            parse(reader, handler);
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        WatcherInfo watcherInfo
+            = handler.nsWatcherInfo != null
+                ? handler.nsWatcherInfo
+                : handler.anyWatcherInfo;
+
+        if (watcherInfo != null)
+            watcherInfo.count = handler.watcherInfoCount;
+        return watcherInfo;
+    }
+
+    /**
+     * Reads a document and passes its elements, and their first text child
+     * node, to a handler.
+     */
+    private static void parse(XMLStreamReader reader, Handler handler)
+        throws XMLStreamException
+    {
+        // the text being read for each open element, null if not wanted
+        List<StringBuilder> texts = new ArrayList<StringBuilder>();
+        // whether the first text node of each open element ended
+        List<Boolean> textEnded = new ArrayList<Boolean>();
+
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+            int top = texts.size() - 1;
+
+            // any other node than text ends the first text node, if it
+            // started
+            if (top >= 0
+                && event != XMLStreamConstants.CHARACTERS
+                && event != XMLStreamConstants.SPACE
+                && event != XMLStreamConstants.END_ELEMENT
+                && texts.get(top) != null
+                && texts.get(top).length() != 0)
+            {
+                textEnded.set(top, true);
+            }
+
+            switch (event)
+            {
+            case XMLStreamConstants.START_ELEMENT:
+                texts.add(handler.startElement(reader));
+                textEnded.add(false);
+                break;
+
+            case XMLStreamConstants.CHARACTERS:
+            case XMLStreamConstants.SPACE:
+                if (top >= 0 && texts.get(top) != null && !textEnded.get(top))
+                {
+                    texts.get(top).append(
+                        reader.getTextCharacters(),
+                        reader.getTextStart(),
+                        reader.getTextLength());
+                }
+                break;
+
+            case XMLStreamConstants.END_ELEMENT:
+                StringBuilder text = texts.remove(top);
+                textEnded.remove(top);
+                handler.endElement(
+                    (text == null || text.length() == 0)
+                        ? null
+                        : text.toString());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the value of an attribute without namespace.
+     *
+     * @return the value or <tt>null</tt> if the element has no such attribute
+     */
+    private static String getAttribute(XMLStreamReader reader, String name)
+    {
+        for (int i = 0; i < reader.getAttributeCount(); i++)
+        {
+            String prefix = reader.getAttributePrefix(i);
+
+            if ((prefix == null || prefix.length() == 0)
+                && name.equals(reader.getAttributeLocalName(i)))
+            {
+                return reader.getAttributeValue(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the qualified name of the current element, as in the document.
+     */
+    private static String getQualifiedName(XMLStreamReader reader)
+    {
+        String prefix = reader.getPrefix();
+
+        return (prefix == null || prefix.length() == 0)
+            ? reader.getLocalName()
+            : prefix + ":" + reader.getLocalName();
+    }
+
+    /**
+     * Receives the elements of a document.
+     */
+    private interface Handler
+    {
+        /**
+         * Called for the start of an element.
+         *
+         * @param reader the reader positioned on the start of the element.
+         * @return a buffer for the first text node of the element or
+         * <tt>null</tt> if the text is not needed.
+         */
+        StringBuilder startElement(XMLStreamReader reader);
+
+        /**
+         * Called for the end of an element.
+         *
+         * @param text the first text node of the element, if asked for by
+         * <tt>startElement</tt>.
+         */
+        void endElement(String text);
+    }
+
+    /**
+     * A list of elements preferably in the PIDF namespace.
+     */
+    private static class PidfList<T>
+    {
+        final List<T> pidf = new ArrayList<T>(1);
+
+        final List<T> any = new ArrayList<T>(1);
+
+        void add(T t, boolean isPidf)
+        {
+            if (isPidf)
+                pidf.add(t);
+            any.add(t);
+        }
+
+        /**
+         * Returns the elements in the PIDF namespace if any, or else the
+         * elements in any namespace.
+         */
+        List<T> get()
+        {
+            return pidf.isEmpty() ? any : pidf;
+        }
+
+        T last()
+        {
+            List<T> list = get();
+
+            return list.isEmpty() ? null : list.get(list.size() - 1);
+        }
+    }
+
+    /**
+     * A <tt>presence</tt> element.
+     */
+    static class Presence
+    {
+        /**
+         * The <tt>entity</tt> attribute or <tt>null</tt>.
+         */
+        String entity;
+
+        /**
+         * The number of <tt>presence</tt> elements in the document.
+         */
+        int count;
+
+        /**
+         * Whether there is a <tt>person</tt> element.
+         */
+        boolean hasPerson;
+
+        /**
+         * The local name of the first <tt>away</tt>, <tt>busy</tt> or
+         * <tt>on-the-phone</tt> activity of the person, or <tt>null</tt>.
+         */
+        String activity;
+
+        /**
+         * The text of the first <tt>status-icon</tt> of the person, or
+         * <tt>null</tt>.
+         */
+        String statusIcon;
+
+        /**
+         * The text of the last <tt>note</tt>, or <tt>null</tt> if there is
+         * no note.
+         */
+        String note;
+
+        /**
+         * The tuples.
+         */
+        List<Tuple> tuples;
+
+        private final PidfList<String> notes = new PidfList<String>();
+
+        private final PidfList<Tuple> allTuples = new PidfList<Tuple>();
+
+        private void finish()
+        {
+            note = notes.last();
+            tuples = allTuples.get();
+            for (Tuple tuple : tuples)
+                tuple.finish();
+        }
+    }
+
+    /**
+     * A <tt>tuple</tt> element.
+     */
+    static class Tuple
+    {
+        /**
+         * The contacts of the tuple.
+         */
+        List<TupleContact> contacts;
+
+        /**
+         * Whether the tuple has a <tt>status</tt> element.
+         */
+        boolean hasStatus;
+
+        /**
+         * The text of the last <tt>basic</tt> element of the last
+         * <tt>status</tt> element, or <tt>null</tt> if there is none.
+         */
+        String basic;
+
+        /**
+         * The text of the <tt>note</tt> elements.
+         */
+        List<String> notes;
+
+        private final PidfList<TupleContact> allContacts
+            = new PidfList<TupleContact>();
+
+        private final PidfList<Status> statuses = new PidfList<Status>();
+
+        private final PidfList<String> allNotes = new PidfList<String>();
+
+        private void finish()
+        {
+            contacts = allContacts.get();
+            notes = allNotes.get();
+
+            Status status = statuses.last();
+            hasStatus = status != null;
+            if (status != null)
+                basic = status.basics.last();
+        }
+    }
+
+    /**
+     * A <tt>contact</tt> element of a tuple.
+     */
+    static class TupleContact
+    {
+        /**
+         * The text of the element, never <tt>null</tt>.
+         */
+        String address;
+
+        /**
+         * The <tt>priority</tt> attribute or <tt>null</tt>.
+         */
+        String priority;
+    }
+
+    /**
+     * A <tt>status</tt> element of a tuple.
+     */
+    private static class Status
+    {
+        private final PidfList<String> basics = new PidfList<String>();
+    }
+
+    /**
+     * Collects the <tt>presence</tt> elements of a PIDF document.
+     */
+    private static class PresenceHandler
+        implements Handler
+    {
+        private static final int OTHER = 0;
+
+        private static final int PRESENCE = 1;
+
+        private static final int PERSON = 2;
+
+        private static final int ACTIVITIES = 3;
+
+        private static final int STATUS_ICON = 4;
+
+        private static final int TUPLE = 5;
+
+        private static final int CONTACT = 6;
+
+        private static final int STATUS = 7;
+
+        private static final int BASIC = 8;
+
+        private static final int NOTE = 9;
+
+        private Presence pidfPresence;
+
+        private Presence anyPresence;
+
+        private int presenceCount = 0;
+
+        /**
+         * The <tt>presence</tt> element being read.
+         */
+        private Presence presence;
+
+        /**
+         * The kind of each open element.
+         */
+        private final List<Integer> kinds = new ArrayList<Integer>();
+
+        /**
+         * Whether each open element is in the PIDF namespace.
+         */
+        private final List<Boolean> pidf = new ArrayList<Boolean>();
+
+        /**
+         * The open elements of the kinds whose descendants are looked up.
+         */
+        private final List<Tuple> openTuples = new ArrayList<Tuple>();
+
+        private final List<Status> openStatuses = new ArrayList<Status>();
+
+        private final List<TupleContact> openContacts
+            = new ArrayList<TupleContact>();
+
+        /**
+         * The number of open <tt>person</tt> and <tt>activities</tt>
+         * elements of the first person of the presence.
+         */
+        private int openPersons = 0;
+
+        private int openActivities = 0;
+
+        /**
+         * Whether the current element is a direct child of an
+         * <tt>activities</tt> element of the first person.
+         */
+        private boolean isActivity()
+        {
+            int size = kinds.size();
+
+            return openActivities > 0
+                && size > 0
+                && kinds.get(size - 1) == ACTIVITIES;
+        }
+
+        public StringBuilder startElement(XMLStreamReader reader)
+        {
+            String name = reader.getLocalName();
+            boolean isPidf = PIDF_NS.equals(reader.getNamespaceURI());
+            int kind = OTHER;
+            StringBuilder text = null;
+
+            if (presence == null)
+            {
+                if ("presence".equals(name))
+                {
+                    kind = PRESENCE;
+                    presenceCount++;
+                    if ((isPidf && pidfPresence == null)
+                        || anyPresence == null)
+                    {
+                        presence = new Presence();
+                        presence.entity = getAttribute(reader, "entity");
+                        if (isPidf && pidfPresence == null)
+                            pidfPresence = presence;
+                        if (anyPresence == null)
+                            anyPresence = presence;
+                    }
+                }
+            }
+            else if ("person".equals(name))
+            {
+                if (openPersons > 0 || !presence.hasPerson)
+                {
+                    presence.hasPerson = true;
+                    kind = PERSON;
+                    openPersons++;
+                }
+            }
+            else if (openPersons > 0 && "activities".equals(name))
+            {
+                kind = ACTIVITIES;
+                openActivities++;
+            }
+            else if (openPersons > 0 && "status-icon".equals(name)
+                        && presence.statusIcon == null)
+            {
+                kind = STATUS_ICON;
+                text = new StringBuilder();
+            }
+            else if ("tuple".equals(name))
+            {
+                Tuple tuple = new Tuple();
+                presence.allTuples.add(tuple, isPidf);
+                openTuples.add(tuple);
+                kind = TUPLE;
+            }
+            else if ("contact".equals(name) && !openTuples.isEmpty())
+            {
+                TupleContact contact = new TupleContact();
+                contact.priority = getAttribute(reader, "priority");
+                for (Tuple tuple : openTuples)
+                    tuple.allContacts.add(contact, isPidf);
+                openContacts.add(contact);
+                kind = CONTACT;
+                text = new StringBuilder();
+            }
+            else if ("status".equals(name) && !openTuples.isEmpty())
+            {
+                Status status = new Status();
+                for (Tuple tuple : openTuples)
+                    tuple.statuses.add(status, isPidf);
+                openStatuses.add(status);
+                kind = STATUS;
+            }
+            else if ("basic".equals(name) && !openStatuses.isEmpty())
+            {
+                kind = BASIC;
+                text = new StringBuilder();
+            }
+            else if ("note".equals(name))
+            {
+                kind = NOTE;
+                text = new StringBuilder();
+            }
+            else if (isActivity() && presence.activity == null)
+            {
+                setActivity(name);
+            }
+
+            kinds.add(kind);
+            pidf.add(isPidf);
+            return text;
+        }
+
+        public void endElement(String text)
+        {
+            int top = kinds.size() - 1;
+            int kind = kinds.remove(top);
+            boolean isPidf = pidf.remove(top);
+
+            switch (kind)
+            {
+            case PRESENCE:
+                presence = null;
+                break;
+            case PERSON:
+                openPersons--;
+                break;
+            case ACTIVITIES:
+                openActivities--;
+                break;
+            case STATUS_ICON:
+                presence.statusIcon = (text == null) ? "" : text;
+                break;
+            case TUPLE:
+                openTuples.remove(openTuples.size() - 1);
+                break;
+            case CONTACT:
+                openContacts.remove(openContacts.size() - 1).address
+                    = (text == null) ? "" : text;
+                break;
+            case STATUS:
+                openStatuses.remove(openStatuses.size() - 1);
+                break;
+            case BASIC:
+                for (Status status : openStatuses)
+                    status.basics.add((text == null) ? "" : text, isPidf);
+                break;
+            case NOTE:
+                String note = (text == null) ? "" : text;
+                presence.notes.add(note, isPidf);
+                for (Tuple tuple : openTuples)
+                    tuple.allNotes.add(note, isPidf);
+                break;
+            }
+        }
+
+        /**
+         * Remembers the first activity of the person we know of.
+         */
+        private void setActivity(String name)
+        {
+            if ("away".equals(name)
+                || "busy".equals(name)
+                || "on-the-phone".equals(name))
+            {
+                presence.activity = name;
+            }
+        }
+    }
+
+    /**
+     * A <tt>watcherinfo</tt> element.
+     */
+    static class WatcherInfo
+    {
+        /**
+         * The number of <tt>watcherinfo</tt> elements in the document.
+         */
+        int count;
+
+        /**
+         * The <tt>state</tt> attribute or <tt>null</tt>.
+         */
+        String state;
+
+        /**
+         * The <tt>version</tt> attribute or <tt>null</tt>.
+         */
+        String version;
+
+        /**
+         * Whether there is a <tt>watcher-list</tt> for the resource.
+         */
+        boolean hasWatcherList;
+
+        /**
+         * The <tt>package</tt> attribute of the <tt>watcher-list</tt> of the
+         * resource, or <tt>null</tt>.
+         */
+        String watcherListPackage;
+
+        /**
+         * The watchers in the <tt>watcher-list</tt> of the resource.
+         */
+        final List<Watcher> watchers = new ArrayList<Watcher>();
+    }
+
+    /**
+     * A <tt>watcher</tt> element.
+     */
+    static class Watcher
+    {
+        /**
+         * The <tt>status</tt> attribute or <tt>null</tt>.
+         */
+        String status;
+
+        /**
+         * The text of the element, never <tt>null</tt>.
+         */
+        String address;
+    }
+
+    /**
+     * Collects the <tt>watcherinfo</tt> elements of a watcher information
+     * document, with the watchers of a resource.
+     */
+    private static class WatcherInfoHandler
+        implements Handler
+    {
+        private static final int OTHER = 0;
+
+        private static final int WATCHERINFO = 1;
+
+        private static final int WATCHER_LIST = 2;
+
+        private static final int WATCHER = 3;
+
+        private final String resource;
+
+        private WatcherInfo nsWatcherInfo;
+
+        private WatcherInfo anyWatcherInfo;
+
+        private int watcherInfoCount = 0;
+
+        /**
+         * The <tt>watcherinfo</tt> element being read.
+         */
+        private WatcherInfo watcherInfo;
+
+        /**
+         * The number of open <tt>watcher-list</tt> elements of the resource.
+         */
+        private int openWatcherLists = 0;
+
+        private final List<Integer> kinds = new ArrayList<Integer>();
+
+        private final List<Watcher> openWatchers = new ArrayList<Watcher>();
+
+        WatcherInfoHandler(String resource)
+        {
+            this.resource = resource;
+        }
+
+        public StringBuilder startElement(XMLStreamReader reader)
+        {
+            String name = reader.getLocalName();
+            int kind = OTHER;
+            StringBuilder text = null;
+
+            if (watcherInfo == null)
+            {
+                if ("watcherinfo".equals(name))
+                {
+                    boolean isNs
+                        = WATCHERINFO_NS.equals(reader.getNamespaceURI());
+
+                    kind = WATCHERINFO;
+                    watcherInfoCount++;
+                    if ((isNs && nsWatcherInfo == null)
+                        || anyWatcherInfo == null)
+                    {
+                        watcherInfo = new WatcherInfo();
+                        watcherInfo.state = getAttribute(reader, "state");
+                        watcherInfo.version = getAttribute(reader, "version");
+                        if (isNs && nsWatcherInfo == null)
+                            nsWatcherInfo = watcherInfo;
+                        if (anyWatcherInfo == null)
+                            anyWatcherInfo = watcherInfo;
+                    }
+                }
+            }
+            else if (!watcherInfo.hasWatcherList
+                        && "watcher-list".equals(getQualifiedName(reader))
+                        && resource.equals(getAttribute(reader, "resource")))
+            {
+                watcherInfo.hasWatcherList = true;
+                watcherInfo.watcherListPackage
+                    = getAttribute(reader, "package");
+                kind = WATCHER_LIST;
+                openWatcherLists++;
+            }
+            else if (openWatcherLists > 0 && "watcher".equals(name))
+            {
+                Watcher watcher = new Watcher();
+                watcher.status = getAttribute(reader, "status");
+                watcherInfo.watchers.add(watcher);
+                openWatchers.add(watcher);
+                kind = WATCHER;
+                text = new StringBuilder();
+            }
+
+            kinds.add(kind);
+            return text;
+        }
+
+        public void endElement(String text)
+        {
+            switch (kinds.remove(kinds.size() - 1))
+            {
+            case WATCHERINFO:
+                watcherInfo = null;
+                break;
+            case WATCHER_LIST:
+                openWatcherLists--;
+                break;
+            case WATCHER:
+                openWatchers.remove(openWatchers.size() - 1).address
+                    = (text == null) ? "" : text;
+                break;
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@
 import net.java.sip.communicator.util.osgi.DependentActivator;
 import net.java.sip.communicator.util.osgi.ServiceUtils;
 import org.jitsi.service.configuration.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.packetlogging.*;
 import org.jitsi.service.resources.*;
@@ -54,6 +55,7 @@
     private static HIDService           hidService            = null;
     private static PacketLoggingService packetLoggingService  = null;
     private static CertificateService   certService           = null;
+    private static FileAccessService    fileAccessService     = null;
 
     /**
      * The resource service. Used for checking for default values
@@ -322,6 +324,26 @@ public static PacketLoggingService getPacketLogging()
         return packetLoggingService;
     }
 
+    /**
+     * Returns a reference to the <tt>FileAccessService</tt> implementation
+     * currently registered in the bundle context or null if no such
+     * implementation was found.
+     *
+     * @return a reference to a <tt>FileAccessService</tt> implementation
+     * currently registered in the bundle context or null if no such
+     * implementation was found.
+     */
+    public static FileAccessService getFileAccessService()
+    {
+        if (fileAccessService == null)
+        {
+            fileAccessService
+                = ServiceUtils.getService(
+                        bundleContext, FileAccessService.class);
+        }
+        return fileAccessService;
+    }
+
     /**
      * Called when this bundle is stopped so the Framework can perform the
      * bundle-specific activities necessary to stop the bundle.
@@ -347,6 +369,8 @@ public void stop(BundleContext context) throws Exception
             uriHandlerSipImpl = null;
         }
 
+        SipTimerService.shutdown();
+
         configurationService = null;
         networkAddressManagerService = null;
         mediaService = null;
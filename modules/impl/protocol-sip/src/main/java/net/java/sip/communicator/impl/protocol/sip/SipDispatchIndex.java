@@ -0,0 +1,341 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+import javax.sip.address.*;
+import javax.sip.header.*;
+import javax.sip.message.*;
+
+import lombok.extern.slf4j.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * The <tt>ProtocolProviderServiceSipImpl</tt>s sharing a
+ * <tt>SipStackSharing</tt>, indexed by the user ID of their accounts so that
+ * a request which is not part of a dialog is dispatched without going
+ * through all of them.
+ * <p>
+ * The index is rebuilt when a provider is added or removed, which is rare
+ * compared to the requests, and replaced atomically so that dispatching
+ * does not need to lock it.
+ */
+@Slf4j
+class SipDispatchIndex
+{
+    /**
+     * The indexed providers in the order they were added.
+     */
+    private final Set<ProtocolProviderServiceSipImpl> providers
+        = new LinkedHashSet<ProtocolProviderServiceSipImpl>();
+
+    /**
+     * The index of the current <tt>providers</tt>.
+     */
+    private volatile Snapshot snapshot = new Snapshot(
+        Collections.<ProtocolProviderServiceSipImpl>emptyList());
+
+    /**
+     * Adds a provider to the index.
+     *
+     * @param provider the provider to add.
+     * @return the number of providers in the index.
+     */
+    synchronized int add(ProtocolProviderServiceSipImpl provider)
+    {
+        if (providers.add(provider))
+            snapshot = new Snapshot(providers);
+        return providers.size();
+    }
+
+    /**
+     * Removes a provider from the index.
+     *
+     * @param provider the provider to remove.
+     * @return the number of providers left in the index.
+     */
+    synchronized int remove(ProtocolProviderServiceSipImpl provider)
+    {
+        if (providers.remove(provider))
+            snapshot = new Snapshot(providers);
+        return providers.size();
+    }
+
+    /**
+     * Returns the indexed providers.
+     *
+     * @return the providers in the order they were added, which is not
+     * affected by later changes of the index.
+     */
+    List<ProtocolProviderServiceSipImpl> getProviders()
+    {
+        return snapshot.providers;
+    }
+
+    /**
+     * Returns the number of indexed providers.
+     *
+     * @return the number of indexed providers.
+     */
+    int size()
+    {
+        return snapshot.providers.size();
+    }
+
+    /**
+     * Finds the provider which <tt>request</tt> should be dispatched to. The
+     * strategy is to look first at the request URI, and then at the To field
+     * to find a matching candidate for dispatching.
+     *
+     * @param request the <tt>Request</tt> to find a recipient for.
+     * @return a suitable <tt>ProtocolProviderServiceSipImpl</tt> or
+     * <tt>null</tt> if there is none.
+     */
+    ProtocolProviderServiceSipImpl findTargetFor(Request request)
+    {
+        Snapshot snapshot = this.snapshot;
+        URI requestURI = request.getRequestURI();
+
+        if(!requestURI.isSipURI())
+        {
+            if (anyFromSameConnection(snapshot.providers, request) != null)
+                logger.error("Request-URI is not a SIP URI, dropping");
+            else
+                logger.error("no listeners");
+            return null;
+        }
+
+        String requestUser = ((SipURI) requestURI).getUser();
+        List<ProtocolProviderServiceSipImpl> candidates
+            = new ArrayList<ProtocolProviderServiceSipImpl>(1);
+
+        // check if the Request-URI username is one of ours usernames. There
+        // is no point in delivering to a provider with a non matching IP
+        // address since they will reject it anyway.
+        if (requestUser != null)
+        {
+            List<ProtocolProviderServiceSipImpl> users
+                = snapshot.providersByUser.get(requestUser);
+
+            if (users != null)
+            {
+                for (ProtocolProviderServiceSipImpl user : users)
+                {
+                    if (isFromSameConnection(user, request))
+                    {
+                        if (logger.isTraceEnabled())
+                            logger.trace("suitable candidate found: "
+                                    + user.getAccountID());
+                        candidates.add(user);
+                    }
+                }
+            }
+        }
+
+        // the perfect match
+        // every other case is approximation
+        if(candidates.size() == 1)
+        {
+            ProtocolProviderServiceSipImpl perfectMatch = candidates.get(0);
+
+            if (logger.isTraceEnabled())
+                logger.trace("Will dispatch to \""
+                        + perfectMatch.getAccountID() + "\"");
+            return perfectMatch;
+        }
+
+        // more than one account match
+        if(candidates.size() > 1)
+        {
+            // check if a custom param exists in the contact
+            // address (set for registrar accounts)
+            String hostValue = ((SipURI) requestURI).getParameter(
+                    SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
+            if (hostValue != null)
+            {
+                for (ProtocolProviderServiceSipImpl candidate : candidates)
+                {
+                    if (hostValue.equals(candidate
+                                .getContactAddressCustomParamValue()))
+                    {
+                        if (logger.isTraceEnabled())
+                            logger.trace("Will dispatch to \""
+                                    + candidate.getAccountID() + "\" because "
+                                    + "\" the custom param was set");
+                        return candidate;
+                    }
+                }
+            }
+
+            // Past this point, our guess is not reliable. We try to find
+            // the "least worst" match based on parameters like the To field
+
+            // check if the To header field host part
+            // matches any of our SIP hosts
+            for(ProtocolProviderServiceSipImpl candidate : candidates)
+            {
+                URI fromURI = ((FromHeader) request
+                        .getHeader(FromHeader.NAME)).getAddress().getURI();
+                if(fromURI.isSipURI() == false)
+                    continue;
+                SipURI ourURI = (SipURI) candidate
+                    .getOurSipAddress((SipURI) fromURI).getURI();
+                String ourHost = ourURI.getHost();
+
+                URI toURI = ((ToHeader) request
+                        .getHeader(ToHeader.NAME)).getAddress().getURI();
+                if(toURI.isSipURI() == false)
+                    continue;
+                String toHost = ((SipURI) toURI).getHost();
+
+                if(toHost.equals(ourHost))
+                {
+                    if (logger.isTraceEnabled())
+                        logger.trace("Will dispatch to \""
+                                + candidate.getAccountID() + "\" because "
+                                + "host in the To: is the same as in our AOR");
+                    return candidate;
+                }
+            }
+
+            // fallback on the first candidate
+            ProtocolProviderServiceSipImpl target = candidates.get(0);
+            logger.info("Will randomly dispatch to \""
+                    + target.getAccountID()
+                    + "\" because there is ambiguity on the username from"
+                    + " the Request-URI");
+            if (logger.isTraceEnabled())
+                logger.trace("\n" + request);
+            return target;
+        }
+
+        // fallback on any account
+        ProtocolProviderServiceSipImpl target
+            = anyFromSameConnection(snapshot.providers, request);
+        if (target == null)
+        {
+            logger.error("no listeners");
+            return null;
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug("Will randomly dispatch to \"" + target
+                    .getAccountID()
+                    + "\" because the username in the Request-URI "
+                    + "is unknown or empty");
+        if (logger.isTraceEnabled())
+            logger.trace("\n" + request);
+        return target;
+    }
+
+    /**
+     * Returns the first provider which does not reject a request because it
+     * is connected to a registrar with another IP address than the one we
+     * are receiving the request from.
+     *
+     * @param providers the candidates
+     * @param request the request that we are currently dispatching
+     * @return the first provider accepting <tt>request</tt> or <tt>null</tt>
+     */
+    private static ProtocolProviderServiceSipImpl anyFromSameConnection(
+        List<ProtocolProviderServiceSipImpl> providers,
+        Request request)
+    {
+        for (ProtocolProviderServiceSipImpl provider : providers)
+        {
+            if (isFromSameConnection(provider, request))
+                return provider;
+        }
+        return null;
+    }
+
+    /**
+     * Determines whether a provider is not connected to a registrar that
+     * does not match the IP address that we are receiving a request from.
+     *
+     * @param candidate the provider to check.
+     * @param request the request that we are currently dispatching
+     * @return <tt>false</tt> if <tt>candidate</tt> would reject the request.
+     */
+    private static boolean isFromSameConnection(
+        ProtocolProviderServiceSipImpl candidate,
+        Request request)
+    {
+        boolean forceProxyBypass
+            = candidate.getAccountID()
+                .getAccountPropertyBoolean(
+                    ProtocolProviderFactory.FORCE_PROXY_BYPASS, false);
+        if(forceProxyBypass)
+        {
+            // Proxy check is disabled all connections are
+            // ok (HA sipXecs, sipXcom, ...)
+            return true;
+        }
+
+        SipRegistrarConnection registrarConnection
+            = candidate.getRegistrarConnection();
+        if(registrarConnection == null)
+        {
+            //RegistrarLess connections are ok
+            return true;
+        }
+
+        return registrarConnection.isRegistrarless()
+            || registrarConnection.isRequestFromSameConnection(request);
+    }
+
+    /**
+     * An immutable index of the providers.
+     */
+    private static class Snapshot
+    {
+        /**
+         * The providers in the order they were added.
+         */
+        private final List<ProtocolProviderServiceSipImpl> providers;
+
+        /**
+         * The providers by the user ID of their accounts.
+         */
+        private final Map<String, List<ProtocolProviderServiceSipImpl>>
+            providersByUser
+                = new HashMap<String, List<ProtocolProviderServiceSipImpl>>();
+
+        Snapshot(Collection<ProtocolProviderServiceSipImpl> providers)
+        {
+            this.providers
+                = Collections.unmodifiableList(
+                    new ArrayList<ProtocolProviderServiceSipImpl>(providers));
+
+            for (ProtocolProviderServiceSipImpl provider : providers)
+            {
+                String userID = provider.getAccountID().getUserID();
+                List<ProtocolProviderServiceSipImpl> users
+                    = providersByUser.get(userID);
+
+                if (users == null)
+                {
+                    users = new ArrayList<ProtocolProviderServiceSipImpl>(1);
+                    providersByUser.put(userID, users);
+                }
+                users.add(provider);
+            }
+        }
+    }
+}
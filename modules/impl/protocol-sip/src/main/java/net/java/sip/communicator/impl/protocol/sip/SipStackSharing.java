@@ -84,12 +84,10 @@
 
     /**
      * The candidate recipients to choose from when dispatching messages
-     * received from one the JAIN-SIP <tt>SipProvider</tt>-s. for thread safety
-     * issues reasons, better iterate on a copy of that set using
-     * <tt>getSipListeners()</tt>.
+     * received from one the JAIN-SIP <tt>SipProvider</tt>-s, indexed so that
+     * dispatching does not depend on their number.
      */
-    private final Set<ProtocolProviderServiceSipImpl> listeners
-        = new HashSet<ProtocolProviderServiceSipImpl>();
+    private final SipDispatchIndex listeners = new SipDispatchIndex();
 
     /**
      * The property indicating the preferred UDP and TCP
@@ -197,9 +195,9 @@ public void addSipListener(ProtocolProviderServiceSipImpl listener)
         {
             if(this.listeners.size() == 0)
                 startListening();
-            this.listeners.add(listener);
+            int listenerCount = this.listeners.add(listener);
             if (logger.isTraceEnabled())
-                logger.trace(this.listeners.size() + " listeners now");
+                logger.trace(listenerCount + " listeners now");
         }
     }
 
@@ -214,9 +212,7 @@ public void removeSipListener(ProtocolProviderServiceSipImpl listener)
     {
         synchronized(this.listeners)
         {
-            this.listeners.remove(listener);
-
-            int listenerCount = listeners.size();
+            int listenerCount = this.listeners.remove(listener);
             if (logger.isTraceEnabled())
                 logger.trace(listenerCount + " listeners left");
             if(listenerCount == 0)
@@ -224,19 +220,6 @@ public void removeSipListener(ProtocolProviderServiceSipImpl listener)
         }
     }
 
-    /**
-     * Returns a copy of the <tt>listeners</tt> (= candidate recipients) set.
-     *
-     * @return a copy of the <tt>listeners</tt> set.
-     */
-    private Set<ProtocolProviderServiceSipImpl> getSipListeners()
-    {
-        synchronized(this.listeners)
-        {
-            return new HashSet<ProtocolProviderServiceSipImpl>(this.listeners);
-        }
-    }
-
     /**
      * Returns the JAIN-SIP <tt>ListeningPoint</tt> associated to the given
      * transport string.
@@ -905,183 +888,7 @@ private ProtocolProviderServiceSipImpl findTargetFor(Request request)
             return null;
         }
 
-        List<ProtocolProviderServiceSipImpl> currentListenersCopy
-            = new ArrayList<ProtocolProviderServiceSipImpl>(
-                                this.getSipListeners());
-
-        // Let's first narrow down candidate choice by comparing
-        // addresses and ports (no point in delivering to a provider with a
-        // non matching IP address  since they will reject it anyway).
-        filterByAddress(currentListenersCopy, request);
-
-        if(currentListenersCopy.size() == 0)
-        {
-            logger.error("no listeners");
-            return null;
-        }
-
-        URI requestURI = request.getRequestURI();
-
-        if(requestURI.isSipURI())
-        {
-            String requestUser = ((SipURI) requestURI).getUser();
-
-            List<ProtocolProviderServiceSipImpl> candidates =
-                new ArrayList<ProtocolProviderServiceSipImpl>();
-
-            // check if the Request-URI username is
-            // one of ours usernames
-            for(ProtocolProviderServiceSipImpl listener : currentListenersCopy)
-            {
-                String ourUserID = listener.getAccountID().getUserID();
-                //logger.trace(ourUserID + " *** " + requestUser);
-                if(ourUserID.equals(requestUser))
-                {
-                    if (logger.isTraceEnabled())
-                        logger.trace("suitable candidate found: "
-                                + listener.getAccountID());
-                    candidates.add(listener);
-                }
-            }
-
-            // the perfect match
-            // every other case is approximation
-            if(candidates.size() == 1)
-            {
-                ProtocolProviderServiceSipImpl perfectMatch = candidates.get(0);
-
-                if (logger.isTraceEnabled())
-                    logger.trace("Will dispatch to \""
-                            + perfectMatch.getAccountID() + "\"");
-                return perfectMatch;
-            }
-
-            // more than one account match
-            if(candidates.size() > 1)
-            {
-                // check if a custom param exists in the contact
-                // address (set for registrar accounts)
-                for (ProtocolProviderServiceSipImpl candidate : candidates)
-                {
-                    String hostValue = ((SipURI) requestURI).getParameter(
-                            SipStackSharing.CONTACT_ADDRESS_CUSTOM_PARAM_NAME);
-                    if (hostValue == null)
-                        continue;
-                    if (hostValue.equals(candidate
-                                .getContactAddressCustomParamValue()))
-                    {
-                        if (logger.isTraceEnabled())
-                            logger.trace("Will dispatch to \""
-                                    + candidate.getAccountID() + "\" because "
-                                    + "\" the custom param was set");
-                        return candidate;
-                    }
-                }
-
-                // Past this point, our guess is not reliable. We try to find
-                // the "least worst" match based on parameters like the To field
-
-                // check if the To header field host part
-                // matches any of our SIP hosts
-                for(ProtocolProviderServiceSipImpl candidate : candidates)
-                {
-                    URI fromURI = ((FromHeader) request
-                            .getHeader(FromHeader.NAME)).getAddress().getURI();
-                    if(fromURI.isSipURI() == false)
-                        continue;
-                    SipURI ourURI = (SipURI) candidate
-                        .getOurSipAddress((SipURI) fromURI).getURI();
-                    String ourHost = ourURI.getHost();
-
-                    URI toURI = ((ToHeader) request
-                            .getHeader(ToHeader.NAME)).getAddress().getURI();
-                    if(toURI.isSipURI() == false)
-                        continue;
-                    String toHost = ((SipURI) toURI).getHost();
-
-                    //logger.trace(toHost + "***" + ourHost);
-                    if(toHost.equals(ourHost))
-                    {
-                        if (logger.isTraceEnabled())
-                            logger.trace("Will dispatch to \""
-                                    + candidate.getAccountID() + "\" because "
-                                    + "host in the To: is the same as in our AOR");
-                        return candidate;
-                    }
-                }
-
-                // fallback on the first candidate
-                ProtocolProviderServiceSipImpl target =
-                    candidates.iterator().next();
-                logger.info("Will randomly dispatch to \""
-                        + target.getAccountID()
-                        + "\" because there is ambiguity on the username from"
-                        + " the Request-URI");
-                if (logger.isTraceEnabled())
-                    logger.trace("\n" + request);
-                return target;
-            }
-
-            // fallback on any account
-            ProtocolProviderServiceSipImpl target =
-                currentListenersCopy.iterator().next();
-            if (logger.isDebugEnabled())
-                logger.debug("Will randomly dispatch to \"" + target
-                        .getAccountID()
-                        + "\" because the username in the Request-URI "
-                        + "is unknown or empty");
-            if (logger.isTraceEnabled())
-                logger.trace("\n" + request);
-            return target;
-        }
-        else
-        {
-            logger.error("Request-URI is not a SIP URI, dropping");
-        }
-        return null;
-    }
-
-    /**
-     * Removes from the specified list of candidates providers connected to a
-     * registrar that does not match the IP address that we are receiving a
-     * request from.
-     *
-     * @param candidates the list of providers we've like to filter.
-     * @param request the request that we are currently dispatching
-     */
-    private void filterByAddress(
-                    List<ProtocolProviderServiceSipImpl> candidates,
-                    Request                              request)
-    {
-        Iterator<ProtocolProviderServiceSipImpl> iterPP =
-            candidates.iterator();
-        while (iterPP.hasNext())
-        {
-            ProtocolProviderServiceSipImpl candidate = iterPP.next();
-            boolean forceProxyBypass
-                = candidate.getAccountID()
-                    .getAccountPropertyBoolean(
-                        ProtocolProviderFactory.FORCE_PROXY_BYPASS, false);
-            if(forceProxyBypass)
-            {
-                // Proxy check is disabled all connections are
-                // ok (HA sipXecs, sipXcom, ...)
-                continue;
-            }
-            if(candidate.getRegistrarConnection() == null)
-            {
-                //RegistrarLess connections are ok
-                continue;
-            }
-
-            if (   !candidate.getRegistrarConnection().isRegistrarless()
-                && !candidate.getRegistrarConnection()
-                        .isRequestFromSameConnection(request))
-            {
-                iterPP.remove();
-            }
-        }
-
+        return listeners.findTargetFor(request);
     }
 
     /**
@@ -1298,6 +1105,12 @@ private boolean applyNonConformanceHacks(RequestEvent event)
     Map<String, TimerTask> resetListeningPointsTimers
             = new HashMap<String, TimerTask>();
 
+    /**
+     * The scheduler of the tasks in {@link #resetListeningPointsTimers}.
+     */
+    private final TimerScheduler resetListeningPointsTimer
+        = new TimerScheduler();
+
     /**
      * Listens for network changes and if we have a down interface
      * and we have a tcp/tls provider which is staying for 20 seconds in
@@ -1314,7 +1127,8 @@ public void configurationChanged(ChangeEvent event)
 
         if(event.getType() == ChangeEvent.ADDRESS_DOWN)
         {
-            for(final ProtocolProviderServiceSipImpl pp : listeners)
+            for(final ProtocolProviderServiceSipImpl pp
+                    : listeners.getProviders())
             {
                 if(pp.getRegistrarConnection().getTransport() != null
                    && (pp.getRegistrarConnection().getTransport()
@@ -1348,7 +1162,7 @@ public void configurationChanged(ChangeEvent event)
      * to wrong interfaces. So we will replace them.
      */
     private class ResetListeningPoint
-            extends TimerTask
+            extends SipTimerTask
             implements RegistrationStateChangeListener
     {
         /**
@@ -1378,7 +1192,8 @@ public void registrationStateChanged(RegistrationStateChangeEvent evt)
         {
             if(evt.getNewState() == RegistrationState.UNREGISTERING)
             {
-                new Timer().schedule(this, TIME_FOR_PP_TO_UNREGISTER);
+                resetListeningPointsTimer.schedule(
+                    this, TIME_FOR_PP_TO_UNREGISTER);
             }
             else
             {
@@ -0,0 +1,318 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import lombok.extern.slf4j.*;
+
+import org.jitsi.service.configuration.*;
+
+/**
+ * Runs the <tt>SipTimerTask</tt>s of all the <tt>TimerScheduler</tt>s of the
+ * SIP protocol providers on a small pool of threads, instead of a thread per
+ * <tt>Timer</tt>, so that the number of threads does not grow with the
+ * number of accounts and a slow task does not hold back all the other tasks.
+ * <p>
+ * The service keeps statistics of how late and how long the tasks run, by
+ * task class.
+ */
+@Slf4j
+public class SipTimerService
+{
+    /**
+     * The name of the property holding the number of threads running the
+     * tasks.
+     */
+    public static final String THREAD_COUNT_PNAME
+        = "net.java.sip.communicator.impl.protocol.sip.TIMER_THREAD_COUNT";
+
+    /**
+     * The default number of threads running the tasks.
+     */
+    private static final int DEFAULT_THREAD_COUNT = 4;
+
+    /**
+     * The part of a refresh delay by which <tt>jitter</tt> may shorten it.
+     */
+    private static final double REFRESH_JITTER = 0.05;
+
+    /**
+     * The run time in milliseconds above which a task is logged as holding
+     * back the other tasks.
+     */
+    private static final long SLOW_TASK_THRESHOLD = 1000;
+
+    /**
+     * The service shared by all providers.
+     */
+    private static SipTimerService instance;
+
+    /**
+     * The executor running the tasks.
+     */
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * The statistics of the tasks by task class name.
+     */
+    private final Map<String, TaskStatistics> statistics
+        = new ConcurrentHashMap<String, TaskStatistics>();
+
+    /**
+     * Returns the service shared by all providers, creating it if needed.
+     *
+     * @return the shared <tt>SipTimerService</tt>
+     */
+    public static synchronized SipTimerService getInstance()
+    {
+        if (instance == null)
+        {
+            int threadCount = DEFAULT_THREAD_COUNT;
+
+            if (SipActivator.bundleContext != null)
+            {
+                ConfigurationService cfg
+                    = SipActivator.getConfigurationService();
+
+                if (cfg != null)
+                    threadCount = cfg.getInt(THREAD_COUNT_PNAME, threadCount);
+            }
+            instance = new SipTimerService(Math.max(1, threadCount));
+        }
+        return instance;
+    }
+
+    /**
+     * Stops the shared service and discards its scheduled tasks.
+     */
+    static synchronized void shutdown()
+    {
+        if (instance != null)
+        {
+            instance.executor.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Shortens a refresh delay by a random part of it, so that the refreshes
+     * of the subscriptions, publications and registrations made at the same
+     * time, e.g. when many accounts come online together, are spread over
+     * time rather than sent in bursts.
+     *
+     * @param delay the delay in milliseconds before the refresh is due.
+     * @return a delay between 95% and 100% of <tt>delay</tt>.
+     */
+    public static long jitter(long delay)
+    {
+        long range = (long) (delay * REFRESH_JITTER);
+
+        return (range > 0)
+            ? delay - ThreadLocalRandom.current().nextLong(range + 1)
+            : delay;
+    }
+
+    /**
+     * Creates a service running its tasks on a specific number of threads.
+     *
+     * @param threadCount the number of threads.
+     */
+    private SipTimerService(int threadCount)
+    {
+        final AtomicInteger threadNumber = new AtomicInteger();
+
+        executor = new ScheduledThreadPoolExecutor(
+            threadCount,
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(
+                        r, "SipTimer-" + threadNumber.incrementAndGet());
+
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        // refresh tasks are canceled a lot, don't keep them queued
+        executor.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Runs a runnable once after a delay.
+     *
+     * @param r the runnable.
+     * @param delay the delay in milliseconds.
+     * @return the future of the run.
+     */
+    ScheduledFuture<?> schedule(Runnable r, long delay)
+    {
+        return executor.schedule(r, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a runnable after a delay and then repeatedly, with a fixed delay
+     * between the end of a run and the start of the next one.
+     *
+     * @param r the runnable.
+     * @param delay the delay in milliseconds before the first run.
+     * @param period the delay in milliseconds between two runs.
+     * @return the future of the runs.
+     */
+    ScheduledFuture<?> scheduleWithFixedDelay(
+        Runnable r, long delay, long period)
+    {
+        return executor.scheduleWithFixedDelay(
+            r, delay, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Runs a task and records its statistics. A failing task is logged
+     * rather than allowed to end its future runs.
+     *
+     * @param task the task.
+     * @param latency how late the task is, in nanoseconds.
+     */
+    void run(SipTimerTask task, long latency)
+    {
+        long start = System.nanoTime();
+
+        try
+        {
+            task.run();
+        }
+        catch (Throwable t)
+        {
+            logger.error("Timer task " + task + " failed", t);
+        }
+
+        long runTime = System.nanoTime() - start;
+        String name = task.getClass().getName();
+        TaskStatistics stats = statistics.get(name);
+
+        if (stats == null)
+        {
+            stats = new TaskStatistics();
+
+            TaskStatistics existing = statistics.putIfAbsent(name, stats);
+            if (existing != null)
+                stats = existing;
+        }
+        stats.record(latency, runTime);
+
+        if (runTime > TimeUnit.MILLISECONDS.toNanos(SLOW_TASK_THRESHOLD))
+        {
+            logger.info("Timer task " + name + " ran for "
+                + TimeUnit.NANOSECONDS.toMillis(runTime) + " ms");
+        }
+    }
+
+    /**
+     * Returns the statistics of the tasks run so far.
+     *
+     * @return a copy of the statistics by task class name.
+     */
+    public Map<String, TaskStatistics> getTaskStatistics()
+    {
+        Map<String, TaskStatistics> copy
+            = new TreeMap<String, TaskStatistics>();
+
+        for (Map.Entry<String, TaskStatistics> e : statistics.entrySet())
+            copy.put(e.getKey(), e.getValue().copy());
+        return copy;
+    }
+
+    /**
+     * The statistics of the runs of the tasks of a class. Latency is the time
+     * between when a run was due and when it started. All times are in
+     * nanoseconds.
+     */
+    public static class TaskStatistics
+    {
+        private long runCount;
+
+        private long totalLatency;
+
+        private long maxLatency;
+
+        private long totalRunTime;
+
+        private long maxRunTime;
+
+        private synchronized void record(long latency, long runTime)
+        {
+            latency = Math.max(0, latency);
+
+            runCount++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+            totalRunTime += runTime;
+            maxRunTime = Math.max(maxRunTime, runTime);
+        }
+
+        private synchronized TaskStatistics copy()
+        {
+            TaskStatistics copy = new TaskStatistics();
+
+            copy.runCount = runCount;
+            copy.totalLatency = totalLatency;
+            copy.maxLatency = maxLatency;
+            copy.totalRunTime = totalRunTime;
+            copy.maxRunTime = maxRunTime;
+            return copy;
+        }
+
+        public synchronized long getRunCount()
+        {
+            return runCount;
+        }
+
+        public synchronized long getAverageLatency()
+        {
+            return (runCount == 0) ? 0 : totalLatency / runCount;
+        }
+
+        public synchronized long getMaxLatency()
+        {
+            return maxLatency;
+        }
+
+        public synchronized long getAverageRunTime()
+        {
+            return (runCount == 0) ? 0 : totalRunTime / runCount;
+        }
+
+        public synchronized long getMaxRunTime()
+        {
+            return maxRunTime;
+        }
+
+        @Override
+        public synchronized String toString()
+        {
+            return "runs=" + runCount
+                + ", avgLatency=" + getAverageLatency()
+                + ", maxLatency=" + maxLatency
+                + ", avgRunTime=" + getAverageRunTime()
+                + ", maxRunTime=" + maxRunTime;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A <tt>TimerTask</tt> which is scheduled with a <tt>TimerScheduler</tt> and
+ * run by the shared <tt>SipTimerService</tt>. As with <tt>Timer</tt>, a task
+ * can only be scheduled once and canceling it prevents all its future runs.
+ */
+public abstract class SipTimerTask
+    extends TimerTask
+{
+    /**
+     * The scheduler the task was scheduled with.
+     */
+    private TimerScheduler scheduler;
+
+    /**
+     * The service running the task.
+     */
+    private SipTimerService service;
+
+    /**
+     * The future of the scheduled runs.
+     */
+    private ScheduledFuture<?> future;
+
+    /**
+     * The delay in milliseconds between two runs, 0 for a single run.
+     */
+    private long period;
+
+    /**
+     * The <tt>System.nanoTime</tt> at which the next run is due.
+     */
+    private long nextExecutionTime;
+
+    private boolean scheduled = false;
+
+    private boolean cancelled = false;
+
+    private boolean done = false;
+
+    /**
+     * Schedules this task.
+     *
+     * @param scheduler the scheduler this task is scheduled with.
+     * @param service the service running this task.
+     * @param delay the delay in milliseconds before the first run.
+     * @param period the delay in milliseconds between two runs, 0 for a
+     * single run.
+     * @throws IllegalStateException if this task was already scheduled or
+     * canceled.
+     */
+    synchronized void schedule(TimerScheduler scheduler,
+                               SipTimerService service,
+                               long delay,
+                               long period)
+    {
+        if (delay < 0)
+            throw new IllegalArgumentException("Negative delay.");
+        if (scheduled || cancelled)
+        {
+            throw new IllegalStateException(
+                "Task already scheduled or cancelled");
+        }
+
+        this.scheduled = true;
+        this.scheduler = scheduler;
+        this.service = service;
+        this.period = period;
+        this.nextExecutionTime
+            = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+
+        Runnable execution = new Runnable()
+        {
+            public void run()
+            {
+                execute();
+            }
+        };
+        future = (period > 0)
+            ? service.scheduleWithFixedDelay(execution, delay, period)
+            : service.schedule(execution, delay);
+    }
+
+    /**
+     * Cancels this task, preventing its future runs.
+     *
+     * @return <tt>true</tt> if this prevented a run of the task.
+     */
+    @Override
+    public boolean cancel()
+    {
+        super.cancel();
+
+        boolean pending;
+        TimerScheduler scheduler;
+
+        synchronized (this)
+        {
+            pending = scheduled && !cancelled && !done;
+            cancelled = true;
+            if (future != null)
+                future.cancel(false);
+            scheduler = this.scheduler;
+        }
+
+        if (scheduler != null)
+            scheduler.remove(this);
+        return pending;
+    }
+
+    /**
+     * Runs this task unless it was canceled.
+     */
+    private void execute()
+    {
+        long latency;
+
+        synchronized (this)
+        {
+            if (cancelled)
+                return;
+            latency = System.nanoTime() - nextExecutionTime;
+            // like with Timer, a single run can't be canceled once started
+            if (period <= 0)
+                done = true;
+        }
+
+        service.run(this, latency);
+
+        if (period > 0)
+        {
+            synchronized (this)
+            {
+                nextExecutionTime
+                    = System.nanoTime()
+                        + TimeUnit.MILLISECONDS.toNanos(period);
+            }
+        }
+        else
+        {
+            scheduler.remove(this);
+        }
+    }
+}
@@ -20,11 +20,11 @@
 import java.util.*;
 
 /**
- * Represents an analogy of <code>Timer</code> which does not have the
- * disadvantage of <code>Timer</code> to always create its thread at
- * construction time. It also allows the currently scheduled
- * <code>TimerTask</code>s to be canceled while still being able to schedule new
- * <code>TimerTask</code>s later on.
+ * Schedules <code>SipTimerTask</code>s with the <code>SipTimerService</code>
+ * shared by all SIP providers, so that instances do not each need a thread of
+ * their own like a <code>Timer</code> does. It also allows the currently
+ * scheduled tasks to be canceled while still being able to schedule new
+ * tasks later on.
  *
  * @author Lubomir Marinov
  */
@@ -32,68 +32,94 @@
 {
 
     /**
-     * The timer which will handle all scheduled tasks.
+     * The tasks scheduled with this scheduler which did not complete yet.
      */
-    private Timer timer;
+    private final Set<SipTimerTask> tasks = new HashSet<SipTimerTask>();
 
     /**
-     * Discarding any currently scheduled <code>TimerTask</code>s.
+     * Discarding any currently scheduled <code>SipTimerTask</code>s.
      */
-    public synchronized void cancel()
+    public void cancel()
     {
-       if (timer != null)
-       {
-           timer.cancel();
-           timer = null;
-       }
-    }
+        List<SipTimerTask> canceled;
 
-    /**
-     * Gets the timer which handles all scheduled tasks. If it still doesn't
-     * exists, a new <tt>Timer</tt> is created.
-     *
-     * @return the <tt>Timer</tt> which handles all scheduled tasks
-     */
-    private synchronized Timer getTimer()
-    {
-       if (timer == null)
-           timer = new Timer(true);
-       return timer;
+        synchronized (this)
+        {
+            canceled = new ArrayList<SipTimerTask>(tasks);
+            tasks.clear();
+        }
+        for (SipTimerTask task : canceled)
+            task.cancel();
     }
 
     /**
-     * Schedules the specified <code>TimerTask</code> for execution after the
-     * specified delay.
+     * Schedules the specified <code>SipTimerTask</code> for execution after
+     * the specified delay.
      *
      * @param task
-     *            the <code>TimerTask</code> to be executed after the specified
-     *            delay
+     *            the <code>SipTimerTask</code> to be executed after the
+     *            specified delay
      * @param delay
      *            the delay in milliseconds before the specified
-     *            <code>TimerTask</code> is executed
+     *            <code>SipTimerTask</code> is executed
      */
-    public synchronized void schedule(TimerTask task, long delay)
+    public void schedule(SipTimerTask task, long delay)
     {
-        getTimer().schedule(task, delay);
+        schedule0(task, delay, 0);
     }
 
     /**
-     * Schedules the specified <code>TimerTask</code> for repeated fixed-delay
-     * execution, beginning after the specified delay. Subsequent executions
-     * take place at approximately regular intervals separated by the specified
-     * period.
+     * Schedules the specified <code>SipTimerTask</code> for repeated
+     * fixed-delay execution, beginning after the specified delay. Subsequent
+     * executions take place at approximately regular intervals separated by
+     * the specified period.
      *
      * @param task
-     *            the <code>TimerTask</code> to be scheduled
+     *            the <code>SipTimerTask</code> to be scheduled
      * @param delay
      *            the delay in milliseconds before the specified
-     *            <code>TimerTask</code> is executed
+     *            <code>SipTimerTask</code> is executed
      * @param period
      *            the time in milliseconds between successive executions of the
-     *            specified <code>TimerTask</code>
+     *            specified <code>SipTimerTask</code>
      */
-    public synchronized void schedule(TimerTask task, long delay, long period)
+    public void schedule(SipTimerTask task, long delay, long period)
     {
-        getTimer().schedule(task, delay, period);
+        if (period <= 0)
+            throw new IllegalArgumentException("Non-positive period.");
+        schedule0(task, delay, period);
+    }
+
+    /**
+     * Forgets a task which completed or was canceled.
+     *
+     * @param task the task
+     */
+    synchronized void remove(SipTimerTask task)
+    {
+        tasks.remove(task);
+    }
+
+    /**
+     * Schedules a task with the shared <code>SipTimerService</code>.
+     */
+    private void schedule0(SipTimerTask task, long delay, long period)
+    {
+        synchronized (this)
+        {
+            tasks.add(task);
+        }
+
+        boolean scheduled = false;
+        try
+        {
+            task.schedule(this, SipTimerService.getInstance(), delay, period);
+            scheduled = true;
+        }
+        finally
+        {
+            if (!scheduled)
+                remove(task);
+        }
     }
 }
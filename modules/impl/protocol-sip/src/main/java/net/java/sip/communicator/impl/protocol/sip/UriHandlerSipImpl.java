@@ -74,6 +74,12 @@
      */
     private final Object registrationLock = new Object();
 
+    /**
+     * The scheduler of the tasks handling URIs once their provider had time
+     * to register.
+     */
+    private final TimerScheduler timer = new TimerScheduler();
+
     /**
      * The <code>AccountManager</code> which loads the stored accounts of
      * {@link #protoFactory} and to be monitored when the mentioned loading is
@@ -145,6 +151,7 @@ public void dispose()
         unregisterHandlerService();
 
         unhookStoredAccounts();
+        timer.cancel();
     }
 
     /**
@@ -342,7 +349,7 @@ public void handleUri(final URI uri)
             final DelayRegistrationStateChangeListener listener =
                 new DelayRegistrationStateChangeListener(uri, provider);
             provider.addRegistrationStateChangeListener(listener);
-            new Timer().schedule(new TimerTask()
+            timer.schedule(new SipTimerTask()
             {
                 @Override
                 public void run()
@@ -38,6 +38,7 @@
 import org.apache.http.client.methods.*;
 import org.apache.http.entity.*;
 import org.apache.http.impl.client.*;
+import org.apache.http.util.*;
 
 /**
  * Base HTTP XCAP client implementation.
@@ -99,6 +100,18 @@ public abstract class BaseHttpXCapClient implements HttpXCapClient
      */
     private boolean connected;
 
+    /**
+     * The HTTP client used for all the requests of the connected user, so
+     * that its pooled connections are kept alive and reused across requests
+     * instead of doing new TCP and TLS handshakes for each of them.
+     */
+    private CloseableHttpClient httpClient;
+
+    /**
+     * The documents read from the server with their entity tags.
+     */
+    private XCapDocumentCache documentCache;
+
     /**
      * Connects user to XCap server.
      *
@@ -119,6 +132,9 @@ public void connect(URI uri, Address userAddress, String username, String passwo
         this.userAddress = (Address) userAddress.clone();
         this.username = username;
         this.password = password == null ? "" : password;
+        closeHttpClient();
+        if (documentCache == null)
+            documentCache = XCapDocumentCache.create();
         connected = true;
     }
 
@@ -141,6 +157,7 @@ public void disconnect()
         this.userAddress = null;
         this.password = null;
         connected = false;
+        closeHttpClient();
     }
 
     /**
@@ -158,7 +175,9 @@ public XCapHttpResponse get(XCapResourceId resourceId)
     }
 
     /**
-     * Gets resource from the server.
+     * Gets resource from the server. A resource read before is requested with
+     * its entity tag and is returned from the cache if the server answers
+     * that it was not modified.
      *
      * @param uri the resource uri.
      * @return the server response.
@@ -168,13 +187,33 @@ public XCapHttpResponse get(XCapResourceId resourceId)
     protected XCapHttpResponse get(URI uri)
             throws XCapException
     {
-        try (CloseableHttpClient httpClient = createHttpClient())
+        HttpGet getMethod = new HttpGet(uri);
+        XCapHttpResponse cached
+            = (documentCache == null) ? null : documentCache.get(uri);
+        if (cached != null)
+            getMethod.setHeader(HEADER_IF_NONE_MATCH, cached.getETag());
+
+        try (CloseableHttpResponse response
+                = getHttpClient().execute(getMethod))
         {
-            HttpGet getMethod = new HttpGet(uri);
-            getMethod.setHeader("Connection", "close");
-
-            HttpResponse response = httpClient.execute(getMethod);
-            XCapHttpResponse result = createResponse(response);
+            XCapHttpResponse result;
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (cached != null && statusCode == HttpStatus.SC_NOT_MODIFIED)
+            {
+                EntityUtils.consume(response.getEntity());
+                result = cached;
+            }
+            else
+            {
+                result = createResponse(response);
+                if (documentCache != null)
+                {
+                    if (statusCode == HttpStatus.SC_OK)
+                        documentCache.put(uri, result);
+                    else if (statusCode == HttpStatus.SC_NOT_FOUND)
+                        documentCache.remove(uri);
+                }
+            }
             if (logger.isDebugEnabled())
             {
                 byte[] contentBytes = result.getContent();
@@ -257,11 +296,10 @@ static void showError(Exception ex, String title, String message)
     public XCapHttpResponse put(XCapResource resource)
             throws XCapException
     {
-        try (CloseableHttpClient httpClient = createHttpClient())
+        URI resourceUri = getResourceURI(resource.getId());
+        try
         {
-            URI resourceUri = getResourceURI(resource.getId());
             HttpPut putMethod = new HttpPut(resourceUri);
-            putMethod.setHeader("Connection", "close");
             StringEntity stringEntity = new StringEntity(resource.getContent());
             stringEntity.setContentType(resource.getContentType());
             stringEntity.setContentEncoding("UTF-8");
@@ -276,8 +314,14 @@ public XCapHttpResponse put(XCapResource resource)
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(putMethod);
-            return createResponse(response);
+            // the document changed, it will be read again with its new tag
+            if (documentCache != null)
+                documentCache.remove(resourceUri);
+            try (CloseableHttpResponse response
+                    = getHttpClient().execute(putMethod))
+            {
+                return createResponse(response);
+            }
         }
         catch (IOException e)
         {
@@ -300,11 +344,10 @@ public XCapHttpResponse delete(XCapResourceId resourceId)
             throws XCapException
     {
         assertConnected();
-        try (CloseableHttpClient httpClient = createHttpClient())
+        URI resourceUri = getResourceURI(resourceId);
+        try
         {
-            URI resourceUri = getResourceURI(resourceId);
             HttpDelete deleteMethod = new HttpDelete(resourceUri);
-            deleteMethod.setHeader("Connection", "close");
 
             if (logger.isDebugEnabled())
             {
@@ -314,8 +357,13 @@ public XCapHttpResponse delete(XCapResourceId resourceId)
                 );
                 logger.debug(logMessage);
             }
-            HttpResponse response = httpClient.execute(deleteMethod);
-            return createResponse(response);
+            if (documentCache != null)
+                documentCache.remove(resourceUri);
+            try (CloseableHttpResponse response
+                    = getHttpClient().execute(deleteMethod))
+            {
+                return createResponse(response);
+            }
         }
         catch (IOException e)
         {
@@ -380,11 +428,48 @@ protected URI getResourceURI(XCapResourceId resourceId)
     }
 
     /**
-     * Creates HTTP client with special parameters.
+     * Returns the HTTP client of the connected user, creating it on first
+     * use.
+     *
+     * @return the HTTP client.
+     * @throws IOException if the client cannot be created.
+     */
+    private synchronized CloseableHttpClient getHttpClient()
+        throws IOException
+    {
+        if (httpClient == null)
+            httpClient = createHttpClient();
+        return httpClient;
+    }
+
+    /**
+     * Closes the HTTP client of the user, if any, together with its pooled
+     * connections.
+     */
+    private synchronized void closeHttpClient()
+    {
+        if (httpClient == null)
+            return;
+
+        try
+        {
+            httpClient.close();
+        }
+        catch (IOException e)
+        {
+            logger.debug("Error closing the XCAP HTTP client", e);
+        }
+        httpClient = null;
+    }
+
+    /**
+     * Creates HTTP client with special parameters. The client pools its
+     * connections and keeps them alive between requests.
      *
      * @return the HTTP client.
+     * @throws IOException if the client cannot be created.
      */
-    private CloseableHttpClient createHttpClient()
+    CloseableHttpClient createHttpClient()
         throws IOException
     {
         XCapCredentialsProvider credentialsProvider
@@ -424,6 +509,8 @@ private XCapHttpResponse createResponse(HttpResponse response)
             xcapHttpResponse.setContent(content);
             xcapHttpResponse.setETag(eTag);
         }
+        // release the connection back to the pool
+        EntityUtils.consume(response.getEntity());
         xcapHttpResponse.setHttpCode(statusCode);
         return xcapHttpResponse;
     }
@@ -0,0 +1,301 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip.xcap;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.*;
+import java.security.*;
+import java.util.*;
+
+import lombok.extern.slf4j.*;
+
+import net.java.sip.communicator.impl.protocol.sip.*;
+import net.java.sip.communicator.util.*;
+
+import org.apache.http.*;
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * Keeps the XCAP documents read from the server together with their entity
+ * tags, in memory and in files, so that they can be requested again with
+ * <tt>If-None-Match</tt> and a <tt>304 Not Modified</tt> answer can be served
+ * from the cache, including after a restart.
+ * <p>
+ * Each document is kept in a file named after the SHA-1 hash of its URI, and
+ * the most recently used ones are also kept in memory. When no directory is
+ * available the documents are only kept in memory, up to
+ * <tt>MAX_DOCUMENTS</tt> of them.
+ */
+@Slf4j
+class XCapDocumentCache
+{
+    /**
+     * The name of the directory holding the cached documents.
+     */
+    private static final String CACHE_DIR = "xcapcache";
+
+    /**
+     * The version of the format of the cache files.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * The directory holding the cached documents, <tt>null</tt> to only keep
+     * them in memory.
+     */
+    private final File directory;
+
+    /**
+     * The maximum number of documents kept in memory. The others are read
+     * again from their files when needed.
+     */
+    static final int MAX_DOCUMENTS = 16;
+
+    /**
+     * The most recently used documents by URI.
+     */
+    private final Map<URI, XCapHttpResponse> documents
+        = new LinkedHashMap<URI, XCapHttpResponse>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<URI, XCapHttpResponse> eldest)
+            {
+                return size() > MAX_DOCUMENTS;
+            }
+        };
+
+    /**
+     * Creates a cache keeping its documents in a specific directory.
+     *
+     * @param directory the directory, or <tt>null</tt> to only keep the
+     * documents in memory.
+     */
+    XCapDocumentCache(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Creates a cache keeping its documents in the cache directory of the
+     * application, or in memory if there is no such directory.
+     *
+     * @return the new cache.
+     */
+    static XCapDocumentCache create()
+    {
+        File directory = null;
+
+        try
+        {
+            FileAccessService fileAccessService
+                = SipActivator.getFileAccessService();
+
+            if (fileAccessService != null)
+            {
+                directory = fileAccessService.getPrivatePersistentDirectory(
+                    CACHE_DIR, FileCategory.CACHE);
+                if (!directory.isDirectory() && !directory.mkdirs())
+                    directory = null;
+            }
+        }
+        catch (Exception e)
+        {
+            logger.warn("Cannot access the XCAP cache directory", e);
+        }
+        return new XCapDocumentCache(directory);
+    }
+
+    /**
+     * Returns the cached document of a URI.
+     *
+     * @param uri the document URI.
+     * @return a <tt>200 OK</tt> response with the cached document and its
+     * entity tag, or <tt>null</tt> if the document is not cached.
+     */
+    synchronized XCapHttpResponse get(URI uri)
+    {
+        XCapHttpResponse document = documents.get(uri);
+
+        if (document == null)
+        {
+            document = read(uri);
+            if (document != null)
+                documents.put(uri, document);
+        }
+        return (document == null) ? null : copy(document);
+    }
+
+    /**
+     * Caches the document of a response if it has an entity tag.
+     *
+     * @param uri the document URI.
+     * @param response the <tt>200 OK</tt> response carrying the document.
+     */
+    synchronized void put(URI uri, XCapHttpResponse response)
+    {
+        if (response.getETag() == null || response.getContent() == null)
+        {
+            remove(uri);
+            return;
+        }
+
+        XCapHttpResponse document = copy(response);
+
+        documents.put(uri, document);
+        write(uri, document);
+    }
+
+    /**
+     * Removes the cached document of a URI.
+     *
+     * @param uri the document URI.
+     */
+    synchronized void remove(URI uri)
+    {
+        documents.remove(uri);
+
+        File file = getFile(uri);
+        if (file != null && file.exists() && !file.delete())
+            logger.warn("Cannot delete XCAP cache file " + file);
+    }
+
+    /**
+     * Reads the cached document of a URI from its file.
+     *
+     * @param uri the document URI.
+     * @return the document or <tt>null</tt> if there is no valid file for it.
+     */
+    private XCapHttpResponse read(URI uri)
+    {
+        File file = getFile(uri);
+
+        if (file == null || !file.isFile())
+            return null;
+
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != FORMAT_VERSION
+                || !uri.toString().equals(in.readUTF()))
+            {
+                return null;
+            }
+
+            XCapHttpResponse document = new XCapHttpResponse();
+            document.setHttpCode(HttpStatus.SC_OK);
+            document.setETag(in.readUTF());
+            if (in.readBoolean())
+                document.setContentType(in.readUTF());
+
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            document.setContent(content);
+            return document;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot read XCAP cache file " + file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the cached document of a URI to its file.
+     *
+     * @param uri the document URI.
+     * @param document the document.
+     */
+    private void write(URI uri, XCapHttpResponse document)
+    {
+        File file = getFile(uri);
+
+        if (file == null)
+            return;
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile))))
+            {
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(uri.toString());
+                out.writeUTF(document.getETag());
+                out.writeBoolean(document.getContentType() != null);
+                if (document.getContentType() != null)
+                    out.writeUTF(document.getContentType());
+                out.writeInt(document.getContent().length);
+                out.write(document.getContent());
+            }
+
+            FileUtils.replaceFile(tmpFile, file);
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot write XCAP cache file " + file, e);
+            tmpFile.delete();
+        }
+    }
+
+    /**
+     * Returns the file holding the cached document of a URI.
+     *
+     * @param uri the document URI.
+     * @return the file or <tt>null</tt> if documents are only kept in memory.
+     */
+    private File getFile(URI uri)
+    {
+        if (directory == null)
+            return null;
+
+        try
+        {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(
+                uri.toString().getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2);
+
+            for (byte b : hash)
+                name.append(String.format("%02x", b & 0xff));
+            return new File(directory, name.toString());
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Copies a response so that the cached documents can't be changed by the
+     * users of the responses.
+     *
+     * @param response the response to copy.
+     * @return the copy.
+     */
+    private static XCapHttpResponse copy(XCapHttpResponse response)
+    {
+        XCapHttpResponse copy = new XCapHttpResponse();
+
+        copy.setHttpCode(HttpStatus.SC_OK);
+        copy.setContentType(response.getContentType());
+        copy.setETag(response.getETag());
+        copy.setContent(response.getContent().clone());
+        return copy;
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import junit.framework.*;
+
+/**
+ * Tests the reading of PIDF and watcher information documents by
+ * <tt>PresenceDocumentParser</tt>.
+ */
+public class TestPresenceDocumentParser
+    extends TestCase
+{
+    /**
+     * A PIDF document as sent by a presence agent for a contact.
+     */
+    private static final String PIDF
+        = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\""
+        + " xmlns:dm=\"urn:ietf:params:xml:ns:pidf:data-model\""
+        + " xmlns:rpid=\"urn:ietf:params:xml:ns:pidf:rpid\""
+        + " entity=\"pres:alice@example.com\">"
+        + "<dm:person id=\"p1\">"
+        + "<rpid:activities><rpid:unknown/></rpid:activities>"
+        + "<rpid:activities><rpid:busy/><rpid:away/></rpid:activities>"
+        + "<rpid:status-icon>http://example.com/alice.png</rpid:status-icon>"
+        + "</dm:person>"
+        + "<tuple id=\"t1\">"
+        + "<status><basic>closed</basic><basic>open</basic></status>"
+        + "<contact priority=\"0.8\">sip:alice@example.com</contact>"
+        + "<note><!-- comment -->Away</note>"
+        + "</tuple>"
+        + "<tuple id=\"t2\"><status><basic>open</basic></status></tuple>"
+        + "<note>On the phone</note>"
+        + "</presence>";
+
+    /**
+     * Reads the person, the tuples and the notes of a PIDF document.
+     */
+    public void testPresence()
+        throws Exception
+    {
+        PresenceDocumentParser.Presence presence
+            = PresenceDocumentParser.parsePresence(PIDF);
+
+        assertEquals(1, presence.count);
+        assertEquals("pres:alice@example.com", presence.entity);
+        assertEquals("busy", presence.activity);
+        assertEquals("http://example.com/alice.png", presence.statusIcon);
+        assertEquals("On the phone", presence.note);
+        assertEquals(2, presence.tuples.size());
+
+        PresenceDocumentParser.Tuple tuple = presence.tuples.get(0);
+        assertTrue(tuple.hasStatus);
+        assertEquals("open", tuple.basic);
+        assertEquals(1, tuple.contacts.size());
+        assertEquals("sip:alice@example.com", tuple.contacts.get(0).address);
+        assertEquals("0.8", tuple.contacts.get(0).priority);
+        assertEquals(1, tuple.notes.size());
+        assertEquals("Away", tuple.notes.get(0));
+
+        tuple = presence.tuples.get(1);
+        assertEquals("open", tuple.basic);
+        assertTrue(tuple.contacts.isEmpty());
+        assertTrue(tuple.notes.isEmpty());
+    }
+
+    /**
+     * Elements in the PIDF namespace are preferred, and elements in any
+     * namespace are read when there are none.
+     */
+    public void testNamespaces()
+        throws Exception
+    {
+        PresenceDocumentParser.Presence presence
+            = PresenceDocumentParser.parsePresence(
+                "<presence entity=\"sip:bob@example.com\">"
+                + "<tuple><status><basic>open</basic></status></tuple>"
+                + "</presence>");
+
+        assertNull(presence.activity);
+        assertNull(presence.note);
+        assertEquals(1, presence.tuples.size());
+        assertEquals("open", presence.tuples.get(0).basic);
+
+        presence = PresenceDocumentParser.parsePresence(
+                "<p:presence xmlns:p=\"urn:ietf:params:xml:ns:pidf\""
+                + " xmlns:x=\"urn:example\" entity=\"sip:bob@example.com\">"
+                + "<x:tuple><p:status><p:basic>closed</p:basic></p:status>"
+                + "</x:tuple>"
+                + "<p:tuple><x:status><x:basic>open</x:basic></x:status>"
+                + "<p:status/></p:tuple>"
+                + "</p:presence>");
+
+        assertEquals(1, presence.tuples.size());
+        assertTrue(presence.tuples.get(0).hasStatus);
+        assertNull(presence.tuples.get(0).basic);
+
+        assertNull(PresenceDocumentParser.parsePresence("<foo/>"));
+    }
+
+    /**
+     * Reads the watchers of our resource.
+     */
+    public void testWatcherInfo()
+        throws Exception
+    {
+        String doc
+            = "<?xml version=\"1.0\"?>"
+            + "<watcherinfo xmlns=\"urn:ietf:params:xml:ns:watcherinfo\""
+            + " version=\"3\" state=\"full\">"
+            + "<watcher-list resource=\"sip:other@example.com\""
+            + " package=\"presence\">"
+            + "<watcher status=\"pending\" id=\"1\">sip:eve@example.com"
+            + "</watcher>"
+            + "</watcher-list>"
+            + "<watcher-list resource=\"sip:alice@example.com\""
+            + " package=\"presence\">"
+            + "<watcher status=\"pending\" id=\"2\">sip:bob@example.com"
+            + "</watcher>"
+            + "<watcher id=\"3\">sip:carol@example.com</watcher>"
+            + "</watcher-list>"
+            + "</watcherinfo>";
+
+        PresenceDocumentParser.WatcherInfo watcherInfo
+            = PresenceDocumentParser.parseWatcherInfo(
+                doc, "sip:alice@example.com");
+
+        assertEquals(1, watcherInfo.count);
+        assertEquals("3", watcherInfo.version);
+        assertEquals("full", watcherInfo.state);
+        assertTrue(watcherInfo.hasWatcherList);
+        assertEquals("presence", watcherInfo.watcherListPackage);
+        assertEquals(2, watcherInfo.watchers.size());
+        assertEquals("pending", watcherInfo.watchers.get(0).status);
+        assertEquals(
+            "sip:bob@example.com", watcherInfo.watchers.get(0).address);
+        assertNull(watcherInfo.watchers.get(1).status);
+
+        watcherInfo = PresenceDocumentParser.parseWatcherInfo(
+            doc, "sip:nobody@example.com");
+        assertFalse(watcherInfo.hasWatcherList);
+        assertTrue(watcherInfo.watchers.isEmpty());
+    }
+
+    /**
+     * Reads all the tuples of a PIDF document with many of them, as sent for
+     * resource lists, each with its own status and contact.
+     */
+    public void testManyTuples()
+        throws Exception
+    {
+        StringBuilder doc = new StringBuilder(
+            "<presence xmlns=\"urn:ietf:params:xml:ns:pidf\""
+            + " entity=\"sip:list@example.com\">");
+        for (int i = 0; i < 1000; i++)
+        {
+            doc.append("<tuple id=\"t").append(i).append("\">")
+                .append("<status><basic>")
+                .append((i % 3 == 0) ? "closed" : "open")
+                .append("</basic></status>")
+                .append("<contact priority=\"0.5\">sip:user").append(i)
+                .append("@example.com</contact>")
+                .append("<note>Note ").append(i).append("</note></tuple>");
+        }
+        doc.append("<note>List</note></presence>");
+
+        PresenceDocumentParser.Presence presence
+            = PresenceDocumentParser.parsePresence(doc.toString());
+
+        assertEquals("sip:list@example.com", presence.entity);
+        assertEquals("List", presence.note);
+        assertEquals(1000, presence.tuples.size());
+        for (int i = 0; i < 1000; i++)
+        {
+            PresenceDocumentParser.Tuple tuple = presence.tuples.get(i);
+
+            assertTrue(tuple.hasStatus);
+            assertEquals((i % 3 == 0) ? "closed" : "open", tuple.basic);
+            assertEquals(1, tuple.contacts.size());
+            assertEquals("sip:user" + i + "@example.com",
+                tuple.contacts.get(0).address);
+            assertEquals("0.5", tuple.contacts.get(0).priority);
+            assertEquals(1, tuple.notes.size());
+            assertEquals("Note " + i, tuple.notes.get(0));
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.*;
+
+import javax.sip.*;
+import javax.sip.address.*;
+import javax.sip.header.*;
+import javax.sip.message.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.protocol.*;
+
+/**
+ * Tests the dispatching of requests to the providers of a
+ * <tt>SipDispatchIndex</tt>.
+ */
+public class TestSipDispatchIndex
+    extends TestCase
+{
+    private AddressFactory addressFactory;
+
+    private HeaderFactory headerFactory;
+
+    private MessageFactory messageFactory;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        addressFactory = sipFactory.createAddressFactory();
+        headerFactory = sipFactory.createHeaderFactory();
+        messageFactory = sipFactory.createMessageFactory();
+    }
+
+    /**
+     * Requests are dispatched to the provider of the Request-URI user and to
+     * any provider when the user is unknown.
+     */
+    public void testFindTargetFor()
+        throws Exception
+    {
+        SipDispatchIndex index = new SipDispatchIndex();
+        assertNull(index.findTargetFor(createRequest("alice")));
+
+        Provider alice = new Provider("alice");
+        Provider bob = new Provider("bob");
+        assertEquals(1, index.add(alice));
+        assertEquals(2, index.add(bob));
+        assertEquals(2, index.add(bob));
+
+        assertSame(alice, index.findTargetFor(createRequest("alice")));
+        assertSame(bob, index.findTargetFor(createRequest("bob")));
+        assertSame(alice, index.findTargetFor(createRequest("carol")));
+        assertSame(alice, index.findTargetFor(createRequest(null)));
+
+        assertEquals(1, index.remove(alice));
+        assertSame(bob, index.findTargetFor(createRequest("alice")));
+        assertEquals(Arrays.asList(bob), index.getProviders());
+    }
+
+    /**
+     * Dispatching a request for a known user only consults the providers of
+     * that user, however many providers share the stack.
+     */
+    public void testDispatchConsultsOnlyMatchingProviders()
+        throws Exception
+    {
+        int n = 1000;
+        SipDispatchIndex index = new SipDispatchIndex();
+        Provider[] providers = new Provider[n];
+        for (int i = 0; i < n; i++)
+        {
+            providers[i] = new Provider("user" + i);
+            index.add(providers[i]);
+        }
+
+        for (int target : new int[] { 0, n / 2, n - 1 })
+        {
+            for (Provider provider : providers)
+                provider.registrarLookups = 0;
+
+            assertSame(providers[target],
+                index.findTargetFor(createRequest("user" + target)));
+
+            for (int i = 0; i < n; i++)
+            {
+                assertEquals("lookups of provider " + i,
+                    (i == target) ? 1 : 0,
+                    providers[i].registrarLookups);
+            }
+        }
+    }
+
+    private Request createRequest(String user)
+        throws Exception
+    {
+        SipURI requestURI = addressFactory.createSipURI(user, "example.com");
+        Address from
+            = addressFactory.createAddress(
+                addressFactory.createSipURI("caller", "example.org"));
+        Address to = addressFactory.createAddress(requestURI);
+
+        return messageFactory.createRequest(
+            requestURI,
+            Request.OPTIONS,
+            headerFactory.createCallIdHeader("dispatch-test"),
+            headerFactory.createCSeqHeader(1L, Request.OPTIONS),
+            headerFactory.createFromHeader(from, "tag"),
+            headerFactory.createToHeader(to, null),
+            new ArrayList<ViaHeader>(Arrays.asList(
+                headerFactory.createViaHeader(
+                    "127.0.0.1", 5060, "udp", "branch"))),
+            headerFactory.createMaxForwardsHeader(70));
+    }
+
+    /**
+     * A provider of a registrarless account, which accepts all requests.
+     */
+    private static class Provider
+        extends ProtocolProviderServiceSipImpl
+    {
+        private final AccountID accountID;
+
+        /**
+         * The number of times the dispatching checked the registrar
+         * connection of this provider.
+         */
+        int registrarLookups = 0;
+
+        Provider(String userID)
+        {
+            // set so that no default is looked up in the configuration
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put(
+                ProtocolProviderFactory.FORCE_PROXY_BYPASS, "false");
+
+            accountID = new SipAccountIDImpl(
+                userID, properties, "example.com");
+        }
+
+        @Override
+        public AccountID getAccountID()
+        {
+            return accountID;
+        }
+
+        @Override
+        public SipRegistrarConnection getRegistrarConnection()
+        {
+            registrarLookups++;
+            return null;
+        }
+
+        @Override
+        public String toString()
+        {
+            return accountID.getUserID();
+        }
+    }
+}
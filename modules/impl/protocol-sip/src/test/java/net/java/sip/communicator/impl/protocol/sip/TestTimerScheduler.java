@@ -0,0 +1,146 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip;
+
+import java.util.concurrent.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the scheduling of <tt>SipTimerTask</tt>s with <tt>TimerScheduler</tt>s
+ * on the shared <tt>SipTimerService</tt>.
+ */
+public class TestTimerScheduler
+    extends TestCase
+{
+    /**
+     * A task is run once after its delay and can't be scheduled again.
+     */
+    public void testSchedule()
+        throws Exception
+    {
+        TimerScheduler timer = new TimerScheduler();
+        CountingTask task = new CountingTask(1);
+
+        timer.schedule(task, 10);
+        assertTrue(task.latch.await(5, TimeUnit.SECONDS));
+        assertFalse(task.cancel());
+
+        try
+        {
+            timer.schedule(task, 10);
+            fail("a task can only be scheduled once");
+        }
+        catch (IllegalStateException expected)
+        {
+        }
+    }
+
+    /**
+     * Canceling the scheduler or the task prevents its runs, and the scheduler
+     * can still schedule new tasks afterwards.
+     */
+    public void testCancel()
+        throws Exception
+    {
+        TimerScheduler timer = new TimerScheduler();
+        CountingTask first = new CountingTask(1);
+        CountingTask second = new CountingTask(1);
+
+        timer.schedule(first, 200);
+        timer.schedule(second, 200);
+        assertTrue(first.cancel());
+        timer.cancel();
+
+        CountingTask third = new CountingTask(1);
+        timer.schedule(third, 10);
+        assertTrue(third.latch.await(5, TimeUnit.SECONDS));
+
+        Thread.sleep(400);
+        assertEquals(0, first.runs);
+        assertEquals(0, second.runs);
+    }
+
+    /**
+     * A periodic task keeps running after failing, until it is canceled, and
+     * its runs are counted in the statistics of its class.
+     */
+    public void testPeriodicTask()
+        throws Exception
+    {
+        TimerScheduler timer = new TimerScheduler();
+        CountingTask task = new CountingTask(3)
+        {
+            @Override
+            public void run()
+            {
+                super.run();
+                throw new RuntimeException("expected");
+            }
+        };
+
+        timer.schedule(task, 0, 10);
+        assertTrue(task.latch.await(5, TimeUnit.SECONDS));
+        assertTrue(task.cancel());
+
+        int runs = task.runs;
+        Thread.sleep(100);
+        assertEquals(runs, task.runs);
+
+        SipTimerService.TaskStatistics stats
+            = SipTimerService.getInstance().getTaskStatistics()
+                .get(task.getClass().getName());
+        assertNotNull(stats);
+        assertEquals(runs, stats.getRunCount());
+    }
+
+    /**
+     * Jitter only ever shortens a refresh delay, by at most 5%.
+     */
+    public void testJitter()
+    {
+        for (int i = 0; i < 1000; i++)
+        {
+            long delay = SipTimerService.jitter(3600 * 1000);
+
+            assertTrue(delay <= 3600 * 1000);
+            assertTrue(delay >= 3600 * 950);
+        }
+        assertEquals(0, SipTimerService.jitter(0));
+    }
+
+    private static class CountingTask
+        extends SipTimerTask
+    {
+        final CountDownLatch latch;
+
+        volatile int runs = 0;
+
+        CountingTask(int count)
+        {
+            latch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void run()
+        {
+            runs++;
+            latch.countDown();
+        }
+    }
+}
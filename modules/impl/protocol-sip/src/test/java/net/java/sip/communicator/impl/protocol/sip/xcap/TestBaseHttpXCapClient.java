@@ -0,0 +1,195 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip.xcap;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import javax.sip.*;
+
+import com.sun.net.httpserver.*;
+
+import junit.framework.*;
+
+import org.apache.http.impl.client.*;
+
+/**
+ * Tests the conditional requests of <tt>BaseHttpXCapClient</tt> for the
+ * documents it has read before, against an HTTP server standing in for the
+ * XCAP server.
+ */
+public class TestBaseHttpXCapClient
+    extends TestCase
+{
+    private HttpServer server;
+
+    private BaseHttpXCapClient client;
+
+    private URI document;
+
+    /**
+     * The entity tag of the document on the server.
+     */
+    private volatile String eTag;
+
+    /**
+     * The content of the document on the server, <tt>null</tt> if it does
+     * not exist.
+     */
+    private volatile String content;
+
+    /**
+     * The <tt>If-None-Match</tt> headers of the requests, <tt>null</tt> for
+     * the requests without one.
+     */
+    private final List<String> ifNoneMatch
+        = Collections.synchronizedList(new ArrayList<String>());
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        server = HttpServer.create(
+            new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler()
+        {
+            public void handle(HttpExchange exchange)
+                throws IOException
+            {
+                String tag = exchange.getRequestHeaders().getFirst(
+                    BaseHttpXCapClient.HEADER_IF_NONE_MATCH);
+
+                ifNoneMatch.add(tag);
+                if (content == null)
+                {
+                    exchange.sendResponseHeaders(404, -1);
+                }
+                else if (eTag.equals(tag))
+                {
+                    exchange.sendResponseHeaders(304, -1);
+                }
+                else
+                {
+                    byte[] body = content.getBytes("UTF-8");
+
+                    exchange.getResponseHeaders().set(
+                        BaseHttpXCapClient.HEADER_ETAG, eTag);
+                    exchange.getResponseHeaders().set(
+                        BaseHttpXCapClient.HEADER_CONTENT_TYPE,
+                        ResourceListsClient.RESOURCE_LISTS_CONTENT_TYPE);
+                    exchange.sendResponseHeaders(200, body.length);
+                    exchange.getResponseBody().write(body);
+                }
+                exchange.close();
+            }
+        });
+        server.start();
+
+        URI root = URI.create("http://127.0.0.1:"
+            + server.getAddress().getPort() + "/xcap-root");
+        document = URI.create(root + "/resource-lists/users/"
+            + "sip:alice@example.com/index");
+
+        client = new BaseHttpXCapClient()
+        {
+            @Override
+            CloseableHttpClient createHttpClient()
+            {
+                return HttpClients.createDefault();
+            }
+        };
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        client.connect(root,
+            sipFactory.createAddressFactory().createAddress(
+                "sip:alice@example.com"),
+            "alice", "secret");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        client.disconnect();
+        server.stop(0);
+    }
+
+    /**
+     * A document read before is requested with its entity tag and served
+     * from the cache when the server answers that it was not modified.
+     */
+    public void testNotModified()
+        throws Exception
+    {
+        eTag = "\"1\"";
+        content = "lists";
+
+        XCapHttpResponse response = client.get(document);
+        assertEquals(200, response.getHttpCode());
+        assertEquals("lists", new String(response.getContent(), "UTF-8"));
+
+        response = client.get(document);
+        assertEquals(Arrays.asList(null, "\"1\""), ifNoneMatch);
+        assertEquals(200, response.getHttpCode());
+        assertEquals("\"1\"", response.getETag());
+        assertEquals(ResourceListsClient.RESOURCE_LISTS_CONTENT_TYPE,
+            response.getContentType());
+        assertEquals("lists", new String(response.getContent(), "UTF-8"));
+    }
+
+    /**
+     * A document changed on the server replaces the cached one, and is
+     * requested with its new entity tag afterwards.
+     */
+    public void testModified()
+        throws Exception
+    {
+        eTag = "\"1\"";
+        content = "lists";
+        client.get(document);
+
+        eTag = "\"2\"";
+        content = "lists2";
+        XCapHttpResponse response = client.get(document);
+        assertEquals(200, response.getHttpCode());
+        assertEquals("\"2\"", response.getETag());
+        assertEquals("lists2", new String(response.getContent(), "UTF-8"));
+
+        response = client.get(document);
+        assertEquals(Arrays.asList(null, "\"1\"", "\"2\""), ifNoneMatch);
+        assertEquals("lists2", new String(response.getContent(), "UTF-8"));
+    }
+
+    /**
+     * A document removed from the server is removed from the cache.
+     */
+    public void testNotFound()
+        throws Exception
+    {
+        eTag = "\"1\"";
+        content = "lists";
+        client.get(document);
+
+        content = null;
+        assertEquals(404, client.get(document).getHttpCode());
+
+        content = "lists";
+        assertEquals(200, client.get(document).getHttpCode());
+        assertEquals(Arrays.asList(null, "\"1\"", null), ifNoneMatch);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.protocol.sip.xcap;
+
+import java.io.*;
+import java.net.*;
+import java.nio.file.*;
+import java.util.*;
+
+import junit.framework.*;
+
+/**
+ * Tests the keeping of XCAP documents and their entity tags by
+ * <tt>XCapDocumentCache</tt>.
+ */
+public class TestXCapDocumentCache
+    extends TestCase
+{
+    private static final URI RESOURCE_LISTS = URI.create(
+        "https://xcap.example.com/xcap-root/resource-lists/users/"
+            + "sip:alice@example.com/index");
+
+    private File directory;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("xcapcache").toFile();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for (File file : directory.listFiles())
+            file.delete();
+        directory.delete();
+    }
+
+    /**
+     * A document is read back with its entity tag by a new cache using the
+     * same directory, as after a restart.
+     */
+    public void testPersistence()
+    {
+        new XCapDocumentCache(directory).put(
+            RESOURCE_LISTS,
+            createResponse("\"1\"",
+                ResourceListsClient.RESOURCE_LISTS_CONTENT_TYPE, "lists"));
+
+        XCapHttpResponse document
+            = new XCapDocumentCache(directory).get(RESOURCE_LISTS);
+
+        assertNotNull(document);
+        assertEquals(200, document.getHttpCode());
+        assertEquals("\"1\"", document.getETag());
+        assertEquals(ResourceListsClient.RESOURCE_LISTS_CONTENT_TYPE,
+            document.getContentType());
+        assertEquals("lists", new String(document.getContent()));
+        assertNull(new XCapDocumentCache(directory).get(
+            URI.create(RESOURCE_LISTS + "2")));
+    }
+
+    /**
+     * Documents without entity tags are not cached, and replacing or removing
+     * a document replaces or removes its file.
+     */
+    public void testPutAndRemove()
+    {
+        XCapDocumentCache cache = new XCapDocumentCache(directory);
+
+        cache.put(RESOURCE_LISTS, createResponse(null, null, "lists"));
+        assertNull(cache.get(RESOURCE_LISTS));
+        assertEquals(0, directory.listFiles().length);
+
+        cache.put(RESOURCE_LISTS, createResponse("\"1\"", null, "lists"));
+        cache.put(RESOURCE_LISTS, createResponse("\"2\"", null, "lists2"));
+        assertEquals(1, directory.listFiles().length);
+        assertEquals("\"2\"",
+            new XCapDocumentCache(directory).get(RESOURCE_LISTS).getETag());
+        assertNull(cache.get(RESOURCE_LISTS).getContentType());
+
+        cache.remove(RESOURCE_LISTS);
+        assertNull(cache.get(RESOURCE_LISTS));
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    /**
+     * The returned documents are copies, and a cache without directory keeps
+     * its documents in memory.
+     */
+    public void testMemoryOnly()
+    {
+        XCapDocumentCache cache = new XCapDocumentCache(null);
+
+        cache.put(RESOURCE_LISTS, createResponse("\"1\"", null, "lists"));
+        cache.get(RESOURCE_LISTS).getContent()[0] = 'x';
+        assertTrue(Arrays.equals("lists".getBytes(),
+            cache.get(RESOURCE_LISTS).getContent()));
+    }
+
+    /**
+     * Only the most recently used documents are kept in memory, the others
+     * being read again from their files.
+     */
+    public void testMemoryBound()
+    {
+        XCapDocumentCache memoryCache = new XCapDocumentCache(null);
+        XCapDocumentCache fileCache = new XCapDocumentCache(directory);
+
+        for (int i = 0; i <= XCapDocumentCache.MAX_DOCUMENTS; i++)
+        {
+            URI uri = URI.create(RESOURCE_LISTS + "/" + i);
+
+            memoryCache.put(uri, createResponse("\"1\"", null, "doc" + i));
+            fileCache.put(uri, createResponse("\"1\"", null, "doc" + i));
+
+            // keep the first document the most recently used one
+            memoryCache.get(URI.create(RESOURCE_LISTS + "/0"));
+        }
+
+        assertNotNull(memoryCache.get(URI.create(RESOURCE_LISTS + "/0")));
+        assertNull(memoryCache.get(URI.create(RESOURCE_LISTS + "/1")));
+        assertNotNull(memoryCache.get(URI.create(
+            RESOURCE_LISTS + "/" + XCapDocumentCache.MAX_DOCUMENTS)));
+        assertEquals("doc0", new String(
+            fileCache.get(URI.create(RESOURCE_LISTS + "/0")).getContent()));
+    }
+
+    private static XCapHttpResponse createResponse(
+        String eTag, String contentType, String content)
+    {
+        XCapHttpResponse response = new XCapHttpResponse();
+
+        response.setHttpCode(200);
+        response.setETag(eTag);
+        response.setContentType(contentType);
+        response.setContent(content.getBytes());
+        return response;
+    }
+}
@@ -47,6 +47,14 @@
      */
     public static final String DAILYMOTION_CONFIG_LABEL = "Dailymotion";
 
+    /**
+     * The regex used to extract the video id from a matched link.
+     */
+    private static final Pattern VIDEO_ID_PATTERN
+        = Pattern.compile(
+                "(.+\\/video\\/([a-zA-Z0-9_\\-]+))([?#]([a-zA-Z0-9_\\-]+))*",
+                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * Source name; also used as property label.
      */
@@ -68,11 +76,7 @@ public Dailymotion()
      */
     public String getReplacement(String sourceString)
     {
-        final Pattern p =
-            Pattern.compile(
-                "(.+\\/video\\/([a-zA-Z0-9_\\-]+))([?#]([a-zA-Z0-9_\\-]+))*",
-                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-        Matcher m = p.matcher(sourceString);
+        Matcher m = VIDEO_ID_PATTERN.matcher(sourceString);
 
         String thumbUrl = sourceString;
 
@@ -47,6 +47,14 @@
      */
     public static final String METACAFE_CONFIG_LABEL = "Metacafe";
 
+    /**
+     * The regex used to extract the video id from a matched link.
+     */
+    private static final Pattern VIDEO_ID_PATTERN
+        = Pattern.compile(
+                "\\/watch\\/([a-zA-Z0-9_\\-]+)(\\/[a-zA-Z0-9_\\-\\/]+)*",
+                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * Source name; also used as property label.
      */
@@ -69,11 +77,7 @@ public Metacafe()
      */
     public String getReplacement(String sourceString)
     {
-        final Pattern p =
-            Pattern.compile(
-                "\\/watch\\/([a-zA-Z0-9_\\-]+)(\\/[a-zA-Z0-9_\\-\\/]+)*",
-                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-        Matcher m = p.matcher(sourceString);
+        Matcher m = VIDEO_ID_PATTERN.matcher(sourceString);
 
         String thumbUrl = sourceString;
 
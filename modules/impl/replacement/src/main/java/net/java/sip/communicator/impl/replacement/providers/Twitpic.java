@@ -47,6 +47,13 @@
      */
     public static final String TWITPIC_CONFIG_LABEL = "TwitPic";
 
+    /**
+     * The regex used to extract the image id from a matched link.
+     */
+    private static final Pattern IMAGE_ID_PATTERN
+        = Pattern.compile("\\.com\\/([^\\/<]*)", Pattern.CASE_INSENSITIVE
+                | Pattern.DOTALL);
+
     /**
      * Source name; also used as property label.
      */
@@ -69,11 +76,7 @@ public Twitpic()
      */
     public String getReplacement(String sourceString)
     {
-        final Pattern p =
-            Pattern.compile("\\.com\\/([^\\/<]*)", Pattern.CASE_INSENSITIVE
-                | Pattern.DOTALL);
-
-        Matcher m = p.matcher(sourceString);
+        Matcher m = IMAGE_ID_PATTERN.matcher(sourceString);
         String thumbUrl = sourceString;
 
         while (m.find())
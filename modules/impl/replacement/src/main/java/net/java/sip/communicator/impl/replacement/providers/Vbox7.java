@@ -49,6 +49,13 @@
      */
     public static final String VBOX7_CONFIG_LABEL = "Vbox7";
 
+    /**
+     * The regex used to extract the video id from a matched link.
+     */
+    private static final Pattern VIDEO_ID_PATTERN
+        = Pattern.compile("\\/play\\:([a-zA-Z0-9_\\-]+)([?&]\\w+=[\\w-]*)*",
+                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * Source name; also used as property label.
      */
@@ -70,10 +77,7 @@ public Vbox7()
      */
     public String getReplacement(String sourceString)
     {
-        final Pattern p =
-            Pattern.compile("\\/play\\:([a-zA-Z0-9_\\-]+)([?&]\\w+=[\\w-]*)*",
-                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-        Matcher m = p.matcher(sourceString);
+        Matcher m = VIDEO_ID_PATTERN.matcher(sourceString);
         String thumbUrl = sourceString;
         String id = null;
 
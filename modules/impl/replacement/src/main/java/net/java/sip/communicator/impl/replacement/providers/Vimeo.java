@@ -51,6 +51,13 @@
      */
     public static final String VIMEO_CONFIG_LABEL = "Vimeo";
 
+    /**
+     * The regex used to extract the video id from a matched link.
+     */
+    private static final Pattern VIDEO_ID_PATTERN
+        = Pattern.compile(".+\\.com\\/([a-zA-Z0-9_\\-]+)",
+                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
     /**
      * Source name; also used as property label.
      */
@@ -72,10 +79,7 @@ public Vimeo()
      */
     public String getReplacement(String sourceString)
     {
-        final Pattern p =
-            Pattern.compile(".+\\.com\\/([a-zA-Z0-9_\\-]+)",
-                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-        Matcher m = p.matcher(sourceString);
+        Matcher m = VIDEO_ID_PATTERN.matcher(sourceString);
 
         String thumbUrl = sourceString;
 
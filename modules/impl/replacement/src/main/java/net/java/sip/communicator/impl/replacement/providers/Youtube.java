@@ -47,6 +47,16 @@
      */
     public static final String YOUTUBE_CONFIG_LABEL = "YouTube";
 
+    /**
+     * The regex used to extract the video id from a matched link.
+     */
+    private static final Pattern VIDEO_ID_PATTERN
+        = Pattern.compile(
+            "https?:\\/\\/(?:[0-9A-Z-]+\\.)?(?:youtu\\"
+                + ".be\\/|youtube\\.com\\S*[^\\w\\-\\s])([\\w\\-]{11})(?=[^\\"
+                + "w\\-]|$)(?![?=&+%\\w]*(?:['\"][^<>]*>|<\\/a>))[?=&+%\\w]*",
+            Pattern.CASE_INSENSITIVE);
+
     /**
      * Source name; also used as property label.
      */
@@ -68,12 +78,7 @@ public Youtube()
      */
     public String getReplacement(String sourceString)
     {
-        final String pattern = "https?:\\/\\/(?:[0-9A-Z-]+\\.)?(?:youtu\\"
-            + ".be\\/|youtube\\.com\\S*[^\\w\\-\\s])([\\w\\-]{11})(?=[^\\"
-            + "w\\-]|$)(?![?=&+%\\w]*(?:['\"][^<>]*>|<\\/a>))[?=&+%\\w]*";
-        final Pattern compiledPattern
-            = Pattern.compile(pattern, Pattern.CASE_INSENSITIVE);
-        Matcher matcher = compiledPattern.matcher(sourceString);
+        Matcher matcher = VIDEO_ID_PATTERN.matcher(sourceString);
         String thumbUrl = sourceString;
 
         while (matcher.find())
@@ -34,6 +34,11 @@
      */
     private static Collection<Smiley> defaultSmileyPack;
 
+    /**
+     * The <tt>Smiley</tt>s of {@link #defaultSmileyPack} by smiley string.
+     */
+    private static Map<String, Smiley> defaultSmileysByString;
+
     /**
      * Load default smileys pack.
      *
@@ -112,6 +117,14 @@ public static Collection<Smiley> getDefaultSmileyPack()
         defaultSmileyList.add(new SmileyImpl("service.gui.smileys.SMILEY21",
             new String[] {";-)", ";)"}, "Wink"));
 
+        Map<String, Smiley> smileysByString = new HashMap<String, Smiley>();
+
+        for (Smiley smiley : defaultSmileyList)
+            for (String smileyString : smiley.getSmileyStrings())
+                if (!smileysByString.containsKey(smileyString))
+                    smileysByString.put(smileyString, smiley);
+
+        defaultSmileysByString = smileysByString;
         defaultSmileyPack
             = Collections.unmodifiableCollection(defaultSmileyList);
 
@@ -125,11 +138,13 @@ public static Collection<Smiley> getDefaultSmileyPack()
      */
     public static Smiley getSmiley(String smileyString)
     {
-        for (Smiley smiley : getDefaultSmileyPack())
-            for (String srcString : smiley.getSmileyStrings())
-                if (srcString.equals(smileyString))
-                    return smiley;
-        return null;
+        getDefaultSmileyPack();
+
+        Map<String, Smiley> smileysByString = defaultSmileysByString;
+
+        return (smileysByString == null)
+            ? null
+            : smileysByString.get(smileyString);
     }
 
     /**
@@ -138,5 +153,6 @@ public static Smiley getSmiley(String smileyString)
     public static void reloadResources()
     {
         defaultSmileyPack = null;
+        defaultSmileysByString = null;
     }
 }
@@ -233,6 +233,18 @@ public void start()
             executorService = SwingWorker.executorService;
         }
 
+        start(executorService);
+    }
+
+    /**
+     * Starts the worker on a specific <tt>ExecutorService</tt> rather than on
+     * the one shared by all <tt>SwingWorker</tt>s, e.g. to bound the number of
+     * threads used by a kind of workers.
+     *
+     * @param executorService the <tt>ExecutorService</tt> to run the worker on
+     */
+    public void start(ExecutorService executorService)
+    {
         synchronized (this)
         {
             if (future == null || future.isDone())
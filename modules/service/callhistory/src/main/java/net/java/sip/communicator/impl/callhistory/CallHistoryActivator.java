@@ -25,6 +25,7 @@
 import net.java.sip.communicator.service.protocol.*;
 
 import net.java.sip.communicator.util.osgi.*;
+import org.jitsi.service.fileaccess.*;
 import org.jitsi.service.resources.*;
 import org.osgi.framework.*;
 
@@ -59,6 +60,11 @@
      */
     private static ResourceManagementService resourcesService;
 
+    /**
+     * The service giving access to files.
+     */
+    private static FileAccessService fileAccessService;
+
     /**
      * The map containing all registered
      */
@@ -146,6 +152,25 @@ public static ResourceManagementService getResources()
         return resourcesService;
     }
 
+    /**
+     * Returns the <tt>FileAccessService</tt>, through which we will access
+     * the files of the application.
+     *
+     * @return the <tt>FileAccessService</tt>, through which we will access
+     * the files of the application.
+     */
+    public static FileAccessService getFileAccessService()
+    {
+        if (fileAccessService == null)
+        {
+            fileAccessService
+                = ServiceUtils.getService(
+                        bundleContext,
+                        FileAccessService.class);
+        }
+        return fileAccessService;
+    }
+
     /**
      * Returns all <tt>ProtocolProviderFactory</tt>s obtained from the bundle
      * context.
@@ -37,8 +37,33 @@
 
     private final Collection<CallRecord> callRecords = new Vector<CallRecord>();
 
+    /**
+     * The underlying <tt>HistoryQuery</tt>, <tt>null</tt> if the records are
+     * added by the <tt>CallHistoryServiceImpl</tt>.
+     */
     private final HistoryQuery historyQuery;
 
+    /**
+     * The query string of a query not based on a <tt>HistoryQuery</tt>.
+     */
+    private final String queryString;
+
+    /**
+     * Indicates whether this query was canceled.
+     */
+    private volatile boolean canceled = false;
+
+    /**
+     * Creates an instance of <tt>CallHistoryQueryImpl</tt> whose records are
+     * added by the <tt>CallHistoryServiceImpl</tt>.
+     * @param queryString the query string this query was created for
+     */
+    CallHistoryQueryImpl(String queryString)
+    {
+        this.historyQuery = null;
+        this.queryString = queryString;
+    }
+
     /**
      * Creates an instance of <tt>CallHistoryQueryImpl</tt> by specifying the
      * underlying <tt>HistoryQuery</tt>.
@@ -47,6 +72,7 @@
     public CallHistoryQueryImpl(HistoryQuery query)
     {
         this.historyQuery = query;
+        this.queryString = null;
 
         historyQuery.addHistoryRecordsListener(new HistoryQueryListener()
         {
@@ -84,7 +110,39 @@ public void queryStatusChanged(HistoryQueryStatusEvent event)
      */
     public void cancel()
     {
-        historyQuery.cancel();
+        canceled = true;
+        if (historyQuery != null)
+            historyQuery.cancel();
+    }
+
+    /**
+     * Indicates whether this query was canceled.
+     * @return <tt>true</tt> if this query was canceled
+     */
+    boolean isCanceled()
+    {
+        return canceled;
+    }
+
+    /**
+     * Adds a record found by this query and notifies the registered
+     * <tt>CallHistoryQueryListener</tt>s.
+     * @param callRecord the <tt>CallRecord</tt> found
+     */
+    void addCallRecord(CallRecord callRecord)
+    {
+        callRecords.add(callRecord);
+        fireQueryEvent(callRecord);
+    }
+
+    /**
+     * Notifies the registered <tt>CallHistoryQueryListener</tt>s that the
+     * status of this query changed.
+     * @param newStatus the new status
+     */
+    void setStatus(int newStatus)
+    {
+        fireQueryStatusEvent(newStatus);
     }
 
     /**
@@ -170,6 +228,8 @@ private void fireQueryStatusEvent(int newStatus)
      */
     public String getQueryString()
     {
-        return historyQuery.getQueryString();
+        return (historyQuery == null)
+            ? queryString
+            : historyQuery.getQueryString();
     }
 }
@@ -20,6 +20,7 @@
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
@@ -64,6 +65,45 @@
 
     private static final char DELIM = ',';
 
+    /**
+     * The number of decoded call records kept by
+     * {@link #convertHistoryRecordToCallRecord(HistoryRecord)}.
+     */
+    private static final int CALL_RECORD_CACHE_SIZE = 1024;
+
+    /**
+     * The format of the dates of the history records, one per thread as
+     * <tt>SimpleDateFormat</tt> is not thread safe.
+     */
+    private static final ThreadLocal<SimpleDateFormat> dateFormat
+        = new ThreadLocal<SimpleDateFormat>()
+        {
+            @Override
+            protected SimpleDateFormat initialValue()
+            {
+                return new SimpleDateFormat(HistoryService.DATE_FORMAT);
+            }
+        };
+
+    /**
+     * The call records last decoded from history records, by the values of
+     * the history records, so that the records read again by the queries of
+     * the call history are not decoded again. The cached records are never
+     * handed out, only copies of them.
+     */
+    private static final Map<List<String>, CallRecordImpl> callRecordCache
+        = new LinkedHashMap<List<String>, CallRecordImpl>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 0L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                Map.Entry<List<String>, CallRecordImpl> eldest)
+            {
+                return size() > CALL_RECORD_CACHE_SIZE;
+            }
+        };
+
     /**
      * The BundleContext that we got from the OSGI bus.
      */
@@ -89,6 +129,17 @@
     private List<CallHistoryPeerRecordListener> callHistoryRecordlisteners
         = new LinkedList<CallHistoryPeerRecordListener>();
 
+    /**
+     * The index of the calls of the default history by peer address.
+     */
+    private CallPeerIndex peerIndex = new CallPeerIndex(null);
+
+    /**
+     * The executor running the queries of {@link #findByPeer(String, int)}.
+     */
+    private final ExecutorService peerQueryExecutor
+        = createPeerQueryExecutor();
+
     /**
      * Returns the underlying history service.
      * @return the underlying history service
@@ -301,6 +352,78 @@ public Collection<CallRecord> findLast(int count) throws RuntimeException
         return result;
     }
 
+    /**
+     * Returns the supplied number of calls made after the given date
+     *
+     * @param date Date the start date of the calls
+     * @param count calls count
+     * @return Collection of CallRecords with CallPeerRecord
+     * @throws RuntimeException
+     */
+    public Collection<CallRecord> findFirstCallsAfter(Date date, int count)
+        throws RuntimeException
+    {
+        TreeSet<CallRecord> result
+            = new TreeSet<CallRecord>(new CallRecordComparator());
+        try
+        {
+            // the default ones
+            History history = this.getHistory(null, null);
+            historyReader = history.getReader();
+            addHistorySearchProgressListeners(historyReader, 1);
+            QueryResultSet<HistoryRecord> rs
+                = historyReader.findFirstRecordsAfter(date, count);
+            while (rs.hasNext())
+            {
+                HistoryRecord hr = rs.next();
+                result.add(convertHistoryRecordToCallRecord(hr));
+            }
+            removeHistorySearchProgressListeners(historyReader);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not read history", ex);
+        }
+
+        return result;
+    }
+
+    /**
+     * Returns the supplied number of recent calls made before the given date
+     *
+     * @param date Date the end date of the calls
+     * @param count calls count
+     * @return Collection of CallRecords with CallPeerRecord
+     * @throws RuntimeException
+     */
+    public Collection<CallRecord> findLastCallsBefore(Date date, int count)
+        throws RuntimeException
+    {
+        TreeSet<CallRecord> result
+            = new TreeSet<CallRecord>(new CallRecordComparator());
+        try
+        {
+            // the default ones
+            History history = this.getHistory(null, null);
+            historyReader = history.getReader();
+            addHistorySearchProgressListeners(historyReader, 1);
+            QueryResultSet<HistoryRecord> rs
+                = historyReader.findLastRecordsBefore(date, count);
+            while (rs.hasNext())
+            {
+                HistoryRecord hr = rs.next();
+                result.add(convertHistoryRecordToCallRecord(hr));
+            }
+            removeHistorySearchProgressListeners(historyReader);
+        }
+        catch (IOException ex)
+        {
+            logger.error("Could not read history", ex);
+        }
+
+        return result;
+    }
+
     /**
      * Find the calls made by the supplied peer address
      * @param address String the address of the peer
@@ -308,31 +431,142 @@ public Collection<CallRecord> findLast(int count) throws RuntimeException
      * @return Collection of CallRecords with CallPeerRecord
      * @throws RuntimeException
      */
-    public CallHistoryQuery findByPeer(String address, int recordCount)
+    public CallHistoryQuery findByPeer(
+            final String address, final int recordCount)
         throws RuntimeException
     {
-        CallHistoryQueryImpl callQuery = null;
+        final CallHistoryQueryImpl callQuery
+            = new CallHistoryQueryImpl(address);
+        final History history;
 
         try
         {
             // the default ones
-            History history = this.getHistory(null, null);
-            InteractiveHistoryReader historyReader
-                = history.getInteractiveReader();
-            HistoryQuery historyQuery
-                = historyReader.findByKeyword(
-                    address, "callParticipantIDs", recordCount);
-
-            callQuery = new CallHistoryQueryImpl(historyQuery);
+            history = this.getHistory(null, null);
         }
         catch (IOException ex)
         {
             logger.error("Could not read history", ex);
+            return null;
         }
 
+        peerQueryExecutor.execute(new Runnable()
+        {
+            public void run()
+            {
+                findByPeer(history, address, recordCount, callQuery);
+            }
+        });
+
         return callQuery;
     }
 
+    /**
+     * Creates the executor running the queries of
+     * {@link #findByPeer(String, int)}, whose thread ends when idle.
+     *
+     * @return the executor.
+     */
+    private static ExecutorService createPeerQueryExecutor()
+    {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            1, 1, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "CallHistoryPeerQuery");
+
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Finds the last calls made by the peers whose address contains the
+     * given string, ignoring case, through the peer index. The records of
+     * these calls are read from the history one timestamp at a time, newest
+     * first, until enough of them are found.
+     *
+     * @param history the history to search
+     * @param address the string to look for in the addresses of the peers
+     * @param recordCount the number of records to return
+     * @param callQuery the query tracking the results
+     */
+    private void findByPeer(History history, String address, int recordCount,
+        CallHistoryQueryImpl callQuery)
+    {
+        try
+        {
+            HistoryReader historyReader = history.getReader();
+
+            peerIndex.load(historyReader);
+
+            // the index may have calls which are no longer in the history,
+            // so all the matching ones are candidates
+            Iterator<Long> timestamps
+                = peerIndex.find(address, Integer.MAX_VALUE).iterator();
+            List<Long> missing = new ArrayList<Long>();
+            String keyword = address.toLowerCase();
+
+            while (recordCount > 0
+                    && timestamps.hasNext()
+                    && !callQuery.isCanceled())
+            {
+                Long timestamp = timestamps.next();
+                QueryResultSet<HistoryRecord> rs
+                    = historyReader.findByPeriod(
+                        new Date(timestamp), new Date(timestamp + 1));
+                List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+
+                while (rs.hasNext())
+                {
+                    HistoryRecord hr = rs.next();
+
+                    for (String peerID : getPeerIDs(hr))
+                    {
+                        if (peerID.toLowerCase().contains(keyword))
+                        {
+                            records.add(hr);
+                            break;
+                        }
+                    }
+                }
+
+                // the history was changed behind the back of the index
+                if (records.isEmpty())
+                    missing.add(timestamp);
+
+                // results are returned newest first
+                for (int i = records.size() - 1;
+                     i >= 0 && recordCount > 0 && !callQuery.isCanceled();
+                     i--, recordCount--)
+                {
+                    callQuery.addCallRecord(
+                        convertHistoryRecordToCallRecord(records.get(i)));
+                }
+            }
+
+            if (!missing.isEmpty())
+                peerIndex.removeCalls(missing);
+
+            callQuery.setStatus(
+                callQuery.isCanceled()
+                    ? HistoryQueryStatusEvent.QUERY_CANCELED
+                    : HistoryQueryStatusEvent.QUERY_COMPLETED);
+        }
+        catch (RuntimeException ex)
+        {
+            logger.error("Could not read history", ex);
+            callQuery.setStatus(HistoryQueryStatusEvent.QUERY_ERROR);
+        }
+    }
+
     /**
      * Returns the history by specified local and remote contact
      * if one of them is null the default is used
@@ -365,6 +599,62 @@ private History getHistory(Contact localContact, Contact remoteContact)
      * @return Object CallRecord
      */
     static CallRecord convertHistoryRecordToCallRecord(HistoryRecord hr)
+    {
+        List<String> key = Arrays.asList(hr.getPropertyValues());
+        CallRecordImpl callRecord;
+
+        synchronized (callRecordCache)
+        {
+            callRecord = callRecordCache.get(key);
+        }
+        if (callRecord == null)
+        {
+            callRecord = decodeHistoryRecord(hr);
+            synchronized (callRecordCache)
+            {
+                callRecordCache.put(key, callRecord);
+            }
+        }
+        return callRecord.copy();
+    }
+
+    /**
+     * Forgets the decoded call records, whose protocol providers may have
+     * changed.
+     */
+    private static void clearCallRecordCache()
+    {
+        synchronized (callRecordCache)
+        {
+            callRecordCache.clear();
+        }
+    }
+
+    /**
+     * Returns the addresses of the peers of the call of a history record.
+     *
+     * @param hr HistoryRecord
+     * @return the addresses of the peers
+     */
+    static List<String> getPeerIDs(HistoryRecord hr)
+    {
+        String[] propertyNames = hr.getPropertyNames();
+
+        for (int i = 0; i < propertyNames.length; i++)
+        {
+            if (propertyNames[i].equals(STRUCTURE_NAMES[4]))
+                return getCSVs(hr.getPropertyValues()[i]);
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Decodes the CallRecord and CallPeerRecords of a HistoryRecord.
+     *
+     * @param hr HistoryRecord
+     * @return Object CallRecord
+     */
+    private static CallRecordImpl decodeHistoryRecord(HistoryRecord hr)
     {
         CallRecordImpl result = new CallRecordImpl();
 
@@ -383,7 +673,7 @@ static CallRecord convertHistoryRecordToCallRecord(HistoryRecord hr)
         // 4 - callParticipantStart
         // 5 - callParticipantEnd
 
-        SimpleDateFormat sdf = new SimpleDateFormat(HistoryService.DATE_FORMAT);
+        SimpleDateFormat sdf = dateFormat.get();
         for (int i = 0; i < hr.getPropertyNames().length; i++)
         {
             String propName = hr.getPropertyNames()[i];
@@ -612,6 +902,7 @@ public void start(BundleContext bc)
             logger.debug("Starting the call history implementation.");
 
         this.bundleContext = bc;
+        this.peerIndex = CallPeerIndex.create();
 
         // start listening for newly register or removed protocol providers
         bc.addServiceListener(this);
@@ -663,6 +954,8 @@ public void stop(BundleContext bc)
                 handleProviderRemoved(pps);
             }
         }
+
+        peerIndex.save();
     }
 
     /**
@@ -677,8 +970,7 @@ private void writeCall( CallRecordImpl callRecord,
     {
         try
         {
-            SimpleDateFormat sdf
-                = new SimpleDateFormat(HistoryService.DATE_FORMAT);
+            SimpleDateFormat sdf = dateFormat.get();
             History history = this.getHistory(source, destination);
             HistoryWriter historyWriter = history.getWriter();
 
@@ -724,6 +1016,9 @@ private void writeCall( CallRecordImpl callRecord,
 
             }
 
+            // this date is when the history record is written
+            Date timestamp = new Date();
+
             historyWriter.addRecord(new String[] {
                     callRecord.getSourceCall().getProtocolProvider()
                         .getAccountID().getAccountUniqueID(),
@@ -737,8 +1032,16 @@ private void writeCall( CallRecordImpl callRecord,
                     String.valueOf(callRecord.getEndReason()),
                     callPeerNames.toString(),
                     callPeerSecondaryIDs.toString()},
-                    new Date());    // this date is when the history
-                                    // record is written
+                    timestamp);
+
+            if (source == null && destination == null)
+            {
+                List<String> peerIDs = new ArrayList<String>();
+
+                for (CallPeerRecord item : callRecord.getPeerRecords())
+                    peerIDs.add(item.getPeerAddress());
+                peerIndex.addCall(timestamp.getTime(), peerIDs);
+            }
         }
         catch (IOException e)
         {
@@ -795,6 +1098,7 @@ public void eraseLocallyStoredHistory()
         HistoryID historyId = HistoryID.createFromRawID(
                     new String[] {  "callhistory" });
         historyService.purgeLocallyStoredHistory(historyId);
+        peerIndex.clear();
     }
 
     /**
@@ -903,6 +1207,9 @@ private void handleProviderAdded(ProtocolProviderService provider)
         if (opSetTelephony != null)
         {
             opSetTelephony.addCallListener(this);
+
+            // records decoded without the provider of their account
+            clearCallRecordCache();
         }
         else
         {
@@ -925,6 +1232,7 @@ private void handleProviderRemoved(ProtocolProviderService provider)
         if (opSetTelephony != null)
         {
             opSetTelephony.removeCallListener(this);
+            clearCallRecordCache();
         }
     }
 
@@ -1249,8 +1557,7 @@ public boolean isMatching()
 
 
                 String dateString = getCSVs(propertyVlaues[dateIndex]).get(i);
-                SimpleDateFormat sdf
-                    = new SimpleDateFormat(HistoryService.DATE_FORMAT);
+                SimpleDateFormat sdf = dateFormat.get();
                 try
                 {
                     if(!sdf.parse(dateString).equals(date))
@@ -0,0 +1,351 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.callhistory;
+
+import java.io.*;
+import java.util.*;
+
+import lombok.extern.slf4j.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.service.fileaccess.*;
+
+/**
+ * An index of the calls of the call history by the addresses of their peers,
+ * used to find the calls of a peer without reading the whole call history.
+ * <p>
+ * Every peer address, folded to lower case, points to the timestamps of the
+ * history records of the calls with that peer. The index is kept in memory,
+ * updated as calls are written and saved to a cache file when the service
+ * stops. When the index is loaded, the records written after the last one it
+ * knows are read from the history, so an index which was not saved is caught
+ * up rather than rebuilt. The index is rebuilt from the whole history when it
+ * is ahead of the history, i.e. when the history was changed behind its back.
+ */
+@Slf4j
+class CallPeerIndex
+{
+    /**
+     * The name of the file holding the index.
+     */
+    private static final String INDEX_FILE = "callpeerindex.dat";
+
+    /**
+     * The magic at the start of the index file ("JCP1").
+     */
+    private static final int FILE_MAGIC = 0x4A435031;
+
+    /**
+     * The file holding the index, <tt>null</tt> to only keep it in memory.
+     */
+    private final File file;
+
+    /**
+     * The timestamps of the records of the calls by peer address, in the
+     * order the calls were indexed.
+     */
+    private final Map<String, List<Long>> calls
+        = new HashMap<String, List<Long>>();
+
+    /**
+     * The timestamp of the last record known to the index, <tt>-1</tt> if
+     * the index is empty.
+     */
+    private long lastTimestamp = -1;
+
+    /**
+     * Whether the index was loaded and caught up with the history.
+     */
+    private boolean loaded = false;
+
+    /**
+     * Whether the index changed since it was last saved.
+     */
+    private boolean dirty = false;
+
+    /**
+     * Creates an index saved to a specific file.
+     *
+     * @param file the file, or <tt>null</tt> to only keep the index in memory.
+     */
+    CallPeerIndex(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Creates an index saved in the cache directory of the application, or
+     * kept in memory if there is no such directory.
+     *
+     * @return the new index.
+     */
+    static CallPeerIndex create()
+    {
+        File file = null;
+
+        try
+        {
+            FileAccessService fileAccessService
+                = CallHistoryActivator.getFileAccessService();
+
+            if (fileAccessService != null)
+            {
+                file = fileAccessService.getPrivatePersistentFile(
+                    INDEX_FILE, FileCategory.CACHE);
+            }
+        }
+        catch (Exception e)
+        {
+            logger.warn("Cannot access the call peer index file", e);
+        }
+        return new CallPeerIndex(file);
+    }
+
+    /**
+     * Loads the index if it's not loaded yet and catches it up with the
+     * records of the call history.
+     *
+     * @param reader the reader of the call history.
+     */
+    synchronized void load(HistoryReader reader)
+    {
+        if (loaded)
+            return;
+
+        read();
+
+        QueryResultSet<HistoryRecord> last = reader.findLast(1);
+        long historyLastTimestamp
+            = last.hasNext() ? last.next().getTimestamp().getTime() : -1;
+
+        if (historyLastTimestamp < lastTimestamp)
+        {
+            logger.info("Rebuilding the call peer index");
+            calls.clear();
+            lastTimestamp = -1;
+        }
+        if (historyLastTimestamp >= lastTimestamp)
+        {
+            // the records with the last timestamp are read again as other
+            // records may have been written in the same millisecond
+            QueryResultSet<HistoryRecord> records
+                = reader.findByStartDate(new Date(Math.max(0, lastTimestamp)));
+
+            while (records.hasNext())
+            {
+                HistoryRecord record = records.next();
+
+                add(record.getTimestamp().getTime(),
+                    CallHistoryServiceImpl.getPeerIDs(record));
+            }
+        }
+        loaded = true;
+        if (dirty)
+            save();
+    }
+
+    /**
+     * Adds the call of a history record to the index.
+     *
+     * @param timestamp the timestamp of the history record.
+     * @param peerIDs the addresses of the peers of the call.
+     */
+    synchronized void addCall(long timestamp, List<String> peerIDs)
+    {
+        // the calls written before the index is loaded are read from the
+        // history when it's loaded
+        if (loaded)
+            add(timestamp, peerIDs);
+    }
+
+    /**
+     * Adds the call of a history record to the index.
+     *
+     * @param timestamp the timestamp of the history record.
+     * @param peerIDs the addresses of the peers of the call.
+     */
+    private void add(long timestamp, List<String> peerIDs)
+    {
+        for (String peerID : peerIDs)
+        {
+            String address = peerID.toLowerCase();
+            List<Long> timestamps = calls.get(address);
+
+            if (timestamps == null)
+            {
+                timestamps = new ArrayList<Long>(2);
+                calls.put(address, timestamps);
+            }
+            else if (timestamp <= timestamps.get(timestamps.size() - 1)
+                    && timestamps.contains(timestamp))
+            {
+                // calls come in order, only the ones read again are checked
+                continue;
+            }
+
+            timestamps.add(timestamp);
+            dirty = true;
+        }
+        if (timestamp > lastTimestamp)
+        {
+            lastTimestamp = timestamp;
+            dirty = true;
+        }
+    }
+
+    /**
+     * Returns the timestamps of the last records of the calls with the peers
+     * whose address contains a string, ignoring case.
+     *
+     * @param address the string to look for in the peer addresses.
+     * @param count the maximum number of timestamps to return.
+     * @return the timestamps, newest first.
+     */
+    synchronized List<Long> find(String address, int count)
+    {
+        String keyword = address.toLowerCase();
+        TreeSet<Long> found = new TreeSet<Long>(Collections.reverseOrder());
+
+        for (Map.Entry<String, List<Long>> entry : calls.entrySet())
+        {
+            if (entry.getKey().contains(keyword))
+                found.addAll(entry.getValue());
+        }
+
+        List<Long> result = new ArrayList<Long>(Math.min(count, found.size()));
+        Iterator<Long> iter = found.iterator();
+
+        while (result.size() < count && iter.hasNext())
+            result.add(iter.next());
+        return result;
+    }
+
+    /**
+     * Removes the timestamps of records which are no longer in the history.
+     *
+     * @param timestamps the timestamps to remove.
+     */
+    synchronized void removeCalls(Collection<Long> timestamps)
+    {
+        Iterator<List<Long>> iter = calls.values().iterator();
+
+        while (iter.hasNext())
+        {
+            List<Long> peerTimestamps = iter.next();
+
+            if (peerTimestamps.removeAll(timestamps))
+            {
+                dirty = true;
+                if (peerTimestamps.isEmpty())
+                    iter.remove();
+            }
+        }
+    }
+
+    /**
+     * Empties the index after the call history was erased.
+     */
+    synchronized void clear()
+    {
+        calls.clear();
+        lastTimestamp = -1;
+        loaded = true;
+        dirty = false;
+        if (file != null && file.exists() && !file.delete())
+            logger.warn("Cannot delete the call peer index " + file);
+    }
+
+    /**
+     * Reads the index from its file. A missing or invalid file leaves the
+     * index empty.
+     */
+    private void read()
+    {
+        if (file == null || !file.isFile())
+            return;
+
+        try (DataInputStream in = new DataInputStream(
+            new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException("Not a call peer index");
+
+            long last = in.readLong();
+            int addressCount = in.readInt();
+            Map<String, List<Long>> read
+                = new HashMap<String, List<Long>>(addressCount * 2);
+
+            for (int i = 0; i < addressCount; i++)
+            {
+                String address = in.readUTF();
+                int count = in.readInt();
+                List<Long> timestamps = new ArrayList<Long>(count);
+
+                for (int j = 0; j < count; j++)
+                    timestamps.add(in.readLong());
+                read.put(address, timestamps);
+            }
+
+            calls.putAll(read);
+            lastTimestamp = last;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Ignoring invalid call peer index " + file, e);
+        }
+    }
+
+    /**
+     * Saves the index to its file if it changed.
+     */
+    synchronized void save()
+    {
+        if (!dirty || !loaded || file == null)
+            return;
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmpFile))))
+            {
+                out.writeInt(FILE_MAGIC);
+                out.writeLong(lastTimestamp);
+                out.writeInt(calls.size());
+                for (Map.Entry<String, List<Long>> entry : calls.entrySet())
+                {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for (long timestamp : entry.getValue())
+                        out.writeLong(timestamp);
+                }
+            }
+
+            FileUtils.replaceFile(tmpFile, file);
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Cannot write the call peer index " + file, e);
+            tmpFile.delete();
+        }
+    }
+}
@@ -88,4 +88,23 @@ public void setState(CallPeerState state)
     {
         this.state = state;
     }
+
+    /**
+     * Returns a copy of this record, which can be changed without changing
+     * this record.
+     *
+     * @return the copy of this record.
+     */
+    CallPeerRecordImpl copy()
+    {
+        CallPeerRecordImpl copy = new CallPeerRecordImpl(
+            peerAddress,
+            (startTime == null) ? null : new Date(startTime.getTime()),
+            (endTime == null) ? null : new Date(endTime.getTime()));
+
+        copy.setDisplayName(displayName);
+        copy.setPeerSecondaryAddress(secondaryPeerAddress);
+        copy.setState(state);
+        return copy;
+    }
 }
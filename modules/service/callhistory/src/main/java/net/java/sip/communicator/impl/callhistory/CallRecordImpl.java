@@ -128,4 +128,25 @@ public void setEndReason(int endReason)
     {
         this.endReason = endReason;
     }
+
+    /**
+     * Returns a copy of this record and of its peer records, which can be
+     * changed without changing this record.
+     *
+     * @return the copy of this record.
+     */
+    CallRecordImpl copy()
+    {
+        CallRecordImpl copy = new CallRecordImpl(
+            direction,
+            (startTime == null) ? null : new Date(startTime.getTime()),
+            (endTime == null) ? null : new Date(endTime.getTime()));
+
+        copy.setProtocolProvider(protocolProvider);
+        copy.setEndReason(endReason);
+        copy.setSourceCall(sourceCall);
+        for (CallPeerRecord peerRecord : peerRecords)
+            copy.peerRecords.add(((CallPeerRecordImpl) peerRecord).copy());
+        return copy;
+    }
 }
@@ -131,6 +131,28 @@ public Collection<CallRecord> findLast(MetaContact contact, int count)
     public Collection<CallRecord> findLast(int count)
         throws RuntimeException;
 
+    /**
+     * Returns the supplied number of calls made after the given date.
+     *
+     * @param date Date the start date of the calls
+     * @param count calls count
+     * @return Collection of CallRecords with CallPeerRecord
+     * @throws RuntimeException if something goes wrong
+     */
+    public Collection<CallRecord> findFirstCallsAfter(Date date, int count)
+        throws RuntimeException;
+
+    /**
+     * Returns the supplied number of recent calls made before the given date.
+     *
+     * @param date Date the end date of the calls
+     * @param count calls count
+     * @return Collection of CallRecords with CallPeerRecord
+     * @throws RuntimeException if something goes wrong
+     */
+    public Collection<CallRecord> findLastCallsBefore(Date date, int count)
+        throws RuntimeException;
+
     /**
      * Find the calls made by the supplied peer address
      * @param address String the address of the peer
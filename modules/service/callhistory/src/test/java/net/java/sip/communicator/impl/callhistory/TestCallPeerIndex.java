@@ -0,0 +1,296 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.callhistory;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.file.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * Tests the loading, catching up and saving of <tt>CallPeerIndex</tt>
+ * against a call history kept in memory.
+ */
+public class TestCallPeerIndex
+    extends TestCase
+{
+    private File directory;
+
+    private File file;
+
+    /**
+     * The records of the call history, in the order they were written.
+     */
+    private final List<HistoryRecord> history = new ArrayList<HistoryRecord>();
+
+    /**
+     * The start dates of the records read from the history by the index.
+     */
+    private final List<Long> readFrom = new ArrayList<Long>();
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("callpeerindex").toFile();
+        file = new File(directory, "callpeerindex.dat");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        for (File f : directory.listFiles())
+            f.delete();
+        directory.delete();
+    }
+
+    /**
+     * The saved index is read back by a new index using the same file, as
+     * after a restart, which only reads the records after the last one it
+     * knows.
+     */
+    public void testSaveAndReadBack()
+    {
+        write(1000, "Alice@example.com");
+        write(2000, "bob@example.com,alice@example.com");
+
+        CallPeerIndex index = new CallPeerIndex(file);
+        index.load(createReader());
+        assertEquals(Arrays.asList(0L), readFrom);
+        assertEquals(Arrays.asList(2000L, 1000L),
+            index.find("ALICE", Integer.MAX_VALUE));
+        assertEquals(Arrays.asList(2000L), index.find("alice", 1));
+        assertTrue(file.isFile());
+
+        readFrom.clear();
+        index = new CallPeerIndex(file);
+        index.load(createReader());
+        assertEquals(Arrays.asList(2000L), readFrom);
+        assertEquals(Arrays.asList(2000L, 1000L),
+            index.find("example.com", Integer.MAX_VALUE));
+        assertEquals(Arrays.asList(2000L),
+            index.find("bob", Integer.MAX_VALUE));
+        assertTrue(index.find("carol", Integer.MAX_VALUE).isEmpty());
+    }
+
+    /**
+     * The calls written while the index was not saved are read from the
+     * history when the index is loaded, and the calls written after are
+     * added as they are written.
+     */
+    public void testCatchUp()
+    {
+        write(1000, "alice@example.com");
+
+        CallPeerIndex index = new CallPeerIndex(file);
+        index.addCall(1000, Arrays.asList("alice@example.com"));
+        index.load(createReader());
+        index.save();
+
+        // written while the index was not saved
+        write(2000, "bob@example.com");
+        write(3000, "alice@example.com");
+
+        readFrom.clear();
+        index = new CallPeerIndex(file);
+        index.load(createReader());
+        assertEquals(Arrays.asList(1000L), readFrom);
+        assertEquals(Arrays.asList(3000L, 1000L),
+            index.find("alice", Integer.MAX_VALUE));
+        assertEquals(Arrays.asList(2000L),
+            index.find("bob", Integer.MAX_VALUE));
+
+        write(4000, "bob@example.com");
+        index.addCall(4000, Arrays.asList("bob@example.com"));
+        assertEquals(Arrays.asList(4000L, 2000L),
+            index.find("bob", Integer.MAX_VALUE));
+    }
+
+    /**
+     * The records with the last timestamp of the index are read again, and
+     * only the ones the index does not know are added.
+     */
+    public void testRecordsReadAgain()
+    {
+        write(1000, "alice@example.com");
+        write(2000, "alice@example.com");
+
+        CallPeerIndex index = new CallPeerIndex(file);
+        index.load(createReader());
+
+        // written in the same millisecond as the last known record
+        write(2000, "bob@example.com");
+
+        index = new CallPeerIndex(file);
+        index.load(createReader());
+        assertEquals(Arrays.asList(2000L, 1000L),
+            index.find("alice", Integer.MAX_VALUE));
+        assertEquals(Arrays.asList(2000L),
+            index.find("bob", Integer.MAX_VALUE));
+    }
+
+    /**
+     * An index ahead of the history, e.g. after the history was replaced,
+     * is rebuilt from the whole history.
+     */
+    public void testRebuild()
+    {
+        write(1000, "alice@example.com");
+        write(5000, "bob@example.com");
+        new CallPeerIndex(file).load(createReader());
+
+        history.clear();
+        write(1000, "alice@example.com");
+        write(2000, "carol@example.com");
+
+        readFrom.clear();
+        CallPeerIndex index = new CallPeerIndex(file);
+        index.load(createReader());
+        assertEquals(Arrays.asList(0L), readFrom);
+        assertTrue(index.find("bob", Integer.MAX_VALUE).isEmpty());
+        assertEquals(Arrays.asList(2000L, 1000L),
+            index.find("example.com", Integer.MAX_VALUE));
+
+        // the rebuilt index was saved
+        readFrom.clear();
+        new CallPeerIndex(file).load(createReader());
+        assertEquals(Arrays.asList(2000L), readFrom);
+    }
+
+    /**
+     * Removed calls are removed from the index and its file, and a cleared
+     * index is empty and has no file.
+     */
+    public void testRemoveCallsAndClear()
+    {
+        write(1000, "alice@example.com");
+        write(2000, "alice@example.com,bob@example.com");
+        write(3000, "carol@example.com");
+
+        CallPeerIndex index = new CallPeerIndex(file);
+        index.load(createReader());
+
+        // the call was removed from the history behind the back of the index
+        history.remove(1);
+        index.removeCalls(Arrays.asList(2000L));
+        assertEquals(Arrays.asList(1000L),
+            index.find("alice", Integer.MAX_VALUE));
+        assertTrue(index.find("bob", Integer.MAX_VALUE).isEmpty());
+        index.save();
+
+        index = new CallPeerIndex(file);
+        index.load(createReader());
+        assertEquals(Arrays.asList(3000L, 1000L),
+            index.find("example.com", Integer.MAX_VALUE));
+
+        index.clear();
+        assertFalse(file.exists());
+        assertTrue(index.find("alice", Integer.MAX_VALUE).isEmpty());
+
+        // the cleared index keeps indexing the calls written after
+        index.addCall(4000, Arrays.asList("dave@example.com"));
+        assertEquals(Arrays.asList(4000L),
+            index.find("dave", Integer.MAX_VALUE));
+    }
+
+    /**
+     * An index without file is kept in memory, and a corrupt file is
+     * ignored.
+     */
+    public void testMemoryOnlyAndCorruptFile()
+        throws Exception
+    {
+        write(1000, "alice@example.com");
+
+        CallPeerIndex index = new CallPeerIndex(null);
+        index.load(createReader());
+        index.save();
+        assertEquals(Arrays.asList(1000L),
+            index.find("alice", Integer.MAX_VALUE));
+        assertEquals(0, directory.listFiles().length);
+
+        Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+        readFrom.clear();
+        index = new CallPeerIndex(file);
+        index.load(createReader());
+        assertEquals(Arrays.asList(0L), readFrom);
+        assertEquals(Arrays.asList(1000L),
+            index.find("alice", Integer.MAX_VALUE));
+    }
+
+    /**
+     * Writes a call with some peers to the history.
+     */
+    private void write(long timestamp, String peerIDs)
+    {
+        history.add(new HistoryRecord(
+            new String[] { "callStart", "callParticipantIDs" },
+            new String[] { String.valueOf(timestamp), peerIDs },
+            new Date(timestamp)));
+    }
+
+    /**
+     * Creates a reader of <tt>history</tt>, which records the start dates
+     * of the records read.
+     */
+    private HistoryReader createReader()
+    {
+        return (HistoryReader) Proxy.newProxyInstance(
+            HistoryReader.class.getClassLoader(),
+            new Class<?>[] { HistoryReader.class },
+            new InvocationHandler()
+            {
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    String name = method.getName();
+                    Vector<HistoryRecord> records
+                        = new Vector<HistoryRecord>();
+
+                    if (name.equals("findLast"))
+                    {
+                        int count = (Integer) args[0];
+
+                        records.addAll(history.subList(
+                            Math.max(0, history.size() - count),
+                            history.size()));
+                    }
+                    else if (name.equals("findByStartDate"))
+                    {
+                        Date startDate = (Date) args[0];
+
+                        readFrom.add(startDate.getTime());
+                        for (HistoryRecord record : history)
+                        {
+                            if (!record.getTimestamp().before(startDate))
+                                records.add(record);
+                        }
+                    }
+                    else
+                    {
+                        throw new UnsupportedOperationException(name);
+                    }
+                    return new DefaultQueryResultSet<HistoryRecord>(records);
+                }
+            });
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.lang.ref.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+
+import org.w3c.dom.*;
+
+/**
+ * The cache of parsed history documents shared by all the histories of a
+ * <tt>HistoryServiceImpl</tt>, keyed by document file.
+ * <p>
+ * The cache keeps the most recently used documents up to a byte budget,
+ * using an estimate of the memory of their DOM trees. Evicted documents are
+ * kept with soft references, so they are only parsed again once the garbage
+ * collector needed their memory. A document larger than the whole budget
+ * is only kept with a soft reference.
+ */
+class DocumentCache
+    implements HistoryCacheService
+{
+    /**
+     * The estimated memory of a DOM node without its strings.
+     */
+    private static final int NODE_SIZE = 96;
+
+    /**
+     * The estimated memory of a string without its characters.
+     */
+    private static final int STRING_SIZE = 40;
+
+    /**
+     * The maximum estimated memory of the cached documents.
+     */
+    private final long maxSize;
+
+    /**
+     * The cached documents in least recently used order.
+     */
+    private final LinkedHashMap<File, CachedDocument> documents
+        = new LinkedHashMap<File, CachedDocument>(16, 0.75f, true);
+
+    /**
+     * The evicted documents which were not reclaimed yet.
+     */
+    private final Map<File, SoftDocument> evicted
+        = new HashMap<File, SoftDocument>();
+
+    /**
+     * The queue of the reclaimed evicted documents.
+     */
+    private final ReferenceQueue<Document> reclaimed
+        = new ReferenceQueue<Document>();
+
+    private long size = 0;
+
+    private long hits = 0;
+
+    private long softHits = 0;
+
+    private long misses = 0;
+
+    private long evictions = 0;
+
+    /**
+     * Creates a cache.
+     *
+     * @param maxSize the maximum estimated memory of the cached documents in
+     * bytes
+     */
+    DocumentCache(long maxSize)
+    {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns a cached document.
+     *
+     * @param file the file of the document
+     * @return the document or <tt>null</tt> if it has to be parsed
+     */
+    synchronized Document get(File file)
+    {
+        expungeReclaimed();
+
+        CachedDocument cached = documents.get(file);
+        if (cached != null)
+        {
+            hits++;
+            return cached.doc;
+        }
+
+        SoftDocument soft = evicted.remove(file);
+        Document doc = soft == null ? null : soft.get();
+        if (doc != null)
+        {
+            hits++;
+            softHits++;
+            add(file, doc);
+            return doc;
+        }
+
+        misses++;
+        return null;
+    }
+
+    /**
+     * Caches a document which was parsed or written, replacing the cached
+     * document of the file if any.
+     *
+     * @param file the file of the document
+     * @param doc the document
+     */
+    synchronized void put(File file, Document doc)
+    {
+        expungeReclaimed();
+
+        remove(file);
+        add(file, doc);
+    }
+
+    /**
+     * Removes the documents of the files in a directory and its
+     * subdirectories, e.g. because the directory was removed or moved.
+     *
+     * @param directory the directory
+     */
+    synchronized void removeAll(File directory)
+    {
+        String prefix = directory.getPath() + File.separator;
+        List<File> files = new ArrayList<File>(documents.keySet());
+        files.addAll(evicted.keySet());
+        for (File file : files)
+        {
+            if (file.getPath().startsWith(prefix))
+                remove(file);
+        }
+    }
+
+    /**
+     * Removes all documents.
+     */
+    synchronized void clear()
+    {
+        documents.clear();
+        evicted.clear();
+        size = 0;
+    }
+
+    public synchronized long getHitCount()
+    {
+        return hits;
+    }
+
+    public synchronized long getSoftHitCount()
+    {
+        return softHits;
+    }
+
+    public synchronized long getMissCount()
+    {
+        return misses;
+    }
+
+    public synchronized long getEvictionCount()
+    {
+        return evictions;
+    }
+
+    public synchronized long getSize()
+    {
+        return size;
+    }
+
+    public long getMaxSize()
+    {
+        return maxSize;
+    }
+
+    public synchronized int getDocumentCount()
+    {
+        return documents.size();
+    }
+
+    /**
+     * Adds a document as the most recently used one and evicts the least
+     * recently used documents which don't fit anymore.
+     */
+    private void add(File file, Document doc)
+    {
+        long docSize = estimateSize(doc);
+        if (docSize > maxSize)
+        {
+            evicted.put(file, new SoftDocument(file, doc, reclaimed));
+            return;
+        }
+
+        documents.put(file, new CachedDocument(doc, docSize));
+        size += docSize;
+
+        Iterator<Map.Entry<File, CachedDocument>> i
+            = documents.entrySet().iterator();
+        while (size > maxSize && i.hasNext())
+        {
+            Map.Entry<File, CachedDocument> eldest = i.next();
+            i.remove();
+            size -= eldest.getValue().size;
+            evictions++;
+            evicted.put(eldest.getKey(), new SoftDocument(
+                eldest.getKey(), eldest.getValue().doc, reclaimed));
+        }
+    }
+
+    private void remove(File file)
+    {
+        CachedDocument cached = documents.remove(file);
+        if (cached != null)
+            size -= cached.size;
+        evicted.remove(file);
+    }
+
+    /**
+     * Forgets the evicted documents reclaimed by the garbage collector.
+     */
+    private void expungeReclaimed()
+    {
+        Reference<? extends Document> ref;
+        while ((ref = reclaimed.poll()) != null)
+        {
+            File file = ((SoftDocument) ref).file;
+            if (evicted.get(file) == ref)
+                evicted.remove(file);
+        }
+    }
+
+    /**
+     * Estimates the memory used by a DOM tree from its number of nodes and
+     * the length of its strings.
+     *
+     * @param doc the document
+     * @return the estimated size in bytes
+     */
+    static long estimateSize(Document doc)
+    {
+        long size = 0;
+        Node node = doc;
+        while (node != null)
+        {
+            size += NODE_SIZE;
+
+            String value = node.getNodeValue();
+            if (value != null)
+                size += STRING_SIZE + 2L * value.length();
+
+            NamedNodeMap attributes = node.getAttributes();
+            if (attributes != null)
+            {
+                for (int i = 0; i < attributes.getLength(); i++)
+                {
+                    String attribute = attributes.item(i).getNodeValue();
+                    size += 2 * NODE_SIZE + STRING_SIZE
+                        + 2L * (attribute == null ? 0 : attribute.length());
+                }
+            }
+
+            // depth first, without recursion
+            Node next = node.getFirstChild();
+            while (next == null && node != null)
+            {
+                next = node.getNextSibling();
+                if (next == null)
+                    node = node.getParentNode();
+            }
+            node = next;
+        }
+        return size;
+    }
+
+    /**
+     * A document in the cache with its estimated size.
+     */
+    private static class CachedDocument
+    {
+        private final Document doc;
+
+        private final long size;
+
+        CachedDocument(Document doc, long size)
+        {
+            this.doc = doc;
+            this.size = size;
+        }
+    }
+
+    /**
+     * An evicted document, which knows its file once reclaimed.
+     */
+    private static class SoftDocument
+        extends SoftReference<Document>
+    {
+        private final File file;
+
+        SoftDocument(File file, Document doc, ReferenceQueue<Document> queue)
+        {
+            super(doc, queue);
+            this.file = file;
+        }
+    }
+}
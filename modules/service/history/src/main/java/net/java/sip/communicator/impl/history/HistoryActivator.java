@@ -37,6 +37,16 @@
      */
     private ServiceRegistration<HistoryService> serviceRegistration;
 
+    /**
+     * The registration of the statistics of the document cache.
+     */
+    private ServiceRegistration<HistoryCacheService> cacheRegistration;
+
+    /**
+     * The registered history service.
+     */
+    private HistoryServiceImpl historyService;
+
     public HistoryActivator()
     {
         super(
@@ -54,12 +64,15 @@ public HistoryActivator()
     @Override
     public void startWithServices(BundleContext bundleContext) throws Exception
     {
+        historyService = new HistoryServiceImpl(
+            getService(ConfigurationService.class),
+            getService(FileAccessService.class));
         serviceRegistration =
             bundleContext.registerService(HistoryService.class,
-                new HistoryServiceImpl(
-                    getService(ConfigurationService.class),
-                    getService(FileAccessService.class)
-                ), null);
+                historyService, null);
+        cacheRegistration =
+            bundleContext.registerService(HistoryCacheService.class,
+                historyService.getDocumentCache(), null);
     }
 
     /**
@@ -77,5 +90,15 @@ public void stop(BundleContext bundleContext) throws Exception
             serviceRegistration.unregister();
             serviceRegistration = null;
         }
+        if (cacheRegistration != null)
+        {
+            cacheRegistration.unregister();
+            cacheRegistration = null;
+        }
+        if (historyService != null)
+        {
+            historyService.stop();
+            historyService = null;
+        }
     }
 }
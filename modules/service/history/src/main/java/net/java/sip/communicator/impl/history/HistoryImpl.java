@@ -61,6 +61,17 @@
     private SortedMap<String, Object> historyDocuments
         = new TreeMap<String, Object>();
 
+    /**
+     * The keyword indexes of this history by field name.
+     */
+    private final Map<String, KeywordIndex> keywordIndexes
+        = new HashMap<String, KeywordIndex>();
+
+    /**
+     * The time index of this history.
+     */
+    private final TimeIndex timeIndex;
+
     /**
      * Creates an instance of <tt>HistoryImpl</tt> by specifying the history
      * identifier, the directory, the <tt>HistoryRecordStructure</tt> to use
@@ -87,8 +98,10 @@ protected HistoryImpl(HistoryID id, File directory,
         this.historyRecordStructure = historyRecordStructure;
         this.reader = null;
         this.writer = null;
+        this.timeIndex = new TimeIndex(this);
 
         this.reloadDocumentList();
+        this.loadKeywordIndexes();
     }
 
     /**
@@ -166,6 +179,147 @@ protected HistoryServiceImpl getHistoryServiceImpl()
         return this.historyServiceImpl;
     }
 
+    /**
+     * Returns the directory of this history.
+     * @return the directory of this history
+     */
+    File getDirectory()
+    {
+        return this.directory;
+    }
+
+    /**
+     * Creates a scanner over the records of a document of this history,
+     * streaming the file when enabled.
+     * @param filename the name of the document
+     * @return the scanner, to be closed by the caller
+     */
+    HistoryRecordScanner createScanner(String filename)
+    {
+        return new HistoryRecordScanner(
+            this, filename, historyServiceImpl.isStreamingEnabled());
+    }
+
+    /**
+     * Returns the keyword index of a field, creating it if the field is not
+     * indexed yet.
+     * @param field the field name
+     * @return the index or <tt>null</tt> if keyword indexes are disabled or
+     * the field can't be indexed
+     */
+    KeywordIndex getKeywordIndex(String field)
+    {
+        if (!historyServiceImpl.isKeywordIndexEnabled()
+            || !KeywordIndex.isIndexable(field))
+        {
+            return null;
+        }
+
+        synchronized (keywordIndexes)
+        {
+            KeywordIndex index = keywordIndexes.get(field);
+            if (index == null)
+            {
+                index = new KeywordIndex(this, field);
+                keywordIndexes.put(field, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Returns the keyword indexes which have to be kept up to date when
+     * writing.
+     * @return the keyword indexes of this history
+     */
+    List<KeywordIndex> getKeywordIndexes()
+    {
+        if (!historyServiceImpl.isKeywordIndexEnabled())
+            return Collections.emptyList();
+
+        synchronized (keywordIndexes)
+        {
+            return new ArrayList<KeywordIndex>(keywordIndexes.values());
+        }
+    }
+
+    /**
+     * Finds the records of some documents which may match a keyword search,
+     * using the keyword index of the searched field.
+     * @param keywords the keywords of the search
+     * @param field the field where to look for the keywords
+     * @param filenames the documents to search
+     * @return the sorted positions of the candidate records by document name,
+     * where documents which are not indexed are missing, or <tt>null</tt> if
+     * the search can't use an index
+     */
+    Map<String, int[]> findKeywordCandidates(String[] keywords,
+                                             String field,
+                                             Collection<String> filenames)
+    {
+        if (keywords == null || keywords.length == 0)
+            return null;
+
+        KeywordIndex index = getKeywordIndex(field);
+        if (index == null)
+            return null;
+
+        return index.findCandidates(keywords, filenames);
+    }
+
+    /**
+     * Writes the records queued by the writer of this history, so they can
+     * be read from the documents on disk.
+     */
+    void flushPendingWrites()
+    {
+        HistoryWriter writer = this.writer;
+        if (writer == null)
+            return;
+
+        try
+        {
+            ((HistoryWriterImpl) writer).flush(false);
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not write history records", e);
+        }
+    }
+
+    /**
+     * Returns the time index of this history.
+     * @return the index or <tt>null</tt> if time indexes are disabled
+     */
+    TimeIndex getTimeIndex()
+    {
+        return historyServiceImpl.isTimeIndexEnabled() ? timeIndex : null;
+    }
+
+    /**
+     * Picks up the keyword indexes created by previous sessions.
+     */
+    private void loadKeywordIndexes()
+    {
+        if (!historyServiceImpl.isKeywordIndexEnabled())
+            return;
+
+        File[] files = this.directory.listFiles();
+        if (files == null)
+            return;
+
+        for (File file : files)
+        {
+            String filename = file.getName();
+            if (!file.isDirectory()
+                && filename.endsWith(KeywordIndex.INDEX_FILETYPE))
+            {
+                getKeywordIndex(filename.substring(0,
+                    filename.length() - KeywordIndex.INDEX_FILETYPE.length()));
+            }
+        }
+    }
+
     void reloadDocumentList()
     {
         synchronized (this.historyDocuments)
@@ -212,32 +366,15 @@ protected Document createDocument(String filename)
         return retVal;
     }
 
-    protected void writeFile(String filename) throws InvalidParameterException,
-            IOException {
-        File file = new File(this.directory, filename);
-
-        synchronized (this.historyDocuments)
-        {
-            if (!this.historyDocuments.containsKey(filename))
-            {
-                throw new InvalidParameterException("The requested "
-                        + "filename does not exist in the document list.");
-            }
-
-            Object obj = this.historyDocuments.get(filename);
-
-            if (obj instanceof Document)
-            {
-                Document doc = (Document) obj;
-
-                synchronized (doc)
-                {
-                    XMLUtils.writeXML(doc, file);
-                }
-            }
-        }
-    }
-
+    /**
+     * Writes a document to its file. Once written, a new document is only
+     * kept in memory by the shared document cache, if enabled.
+     * @param filename the name of the document
+     * @param doc the document
+     * @throws InvalidParameterException if the document is not part of this
+     * history
+     * @throws IOException if writing fails
+     */
     protected void writeFile(String filename, Document doc)
         throws InvalidParameterException, IOException
     {
@@ -254,7 +391,14 @@ protected void writeFile(String filename, Document doc)
             synchronized (doc)
             {
                 XMLUtils.writeXML(doc, file);
+
+                if(historyServiceImpl.isCacheEnabled())
+                {
+                    historyServiceImpl.getDocumentCache().put(file, doc);
+                }
             }
+
+            this.historyDocuments.put(filename, file);
         }
     }
 
@@ -284,6 +428,15 @@ protected Document getDocumentForFile(String filename)
             {
                 File file = (File) obj;
 
+                DocumentCache cache = historyServiceImpl.isCacheEnabled()
+                    ? historyServiceImpl.getDocumentCache() : null;
+                if (cache != null)
+                {
+                    retVal = cache.get(file);
+                    if (retVal != null)
+                        return retVal;
+                }
+
                 try {
                     retVal = this.historyServiceImpl.parse(file);
                 } catch (Exception e)
@@ -302,8 +455,8 @@ protected Document getDocumentForFile(String filename)
                 }
 
                 // Cache the loaded document for reuse if configured
-                if(historyServiceImpl.isCacheEnabled())
-                    this.historyDocuments.put(filename, retVal);
+                if(cache != null)
+                    cache.put(file, retVal);
             } else {
                 // TODO: Assert: Assert.fail("Internal error - the data type " +
                 // "should be either Document or File.");
@@ -17,10 +17,6 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 import java.util.regex.*;
 
@@ -29,7 +25,6 @@
 import net.java.sip.communicator.service.history.records.*;
 
 import org.apache.commons.text.*;
-import org.w3c.dom.*;
 
 /**
  * @author Alexander Pelov
@@ -198,6 +193,9 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
         boolean caseSensitive)
         throws RuntimeException
     {
+        // records queued by the writer are read from disk
+        this.historyImpl.flushPendingWrites();
+
         // the files are supposed to be ordered from oldest to newest
         Vector<String> filelist =
             filterFilesByDate(this.historyImpl.getFileList(), null, null);
@@ -207,72 +205,73 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
         int leftCount = count;
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        Map<String, int[]> candidates
+            = this.historyImpl.findKeywordCandidates(keywords, field, filelist);
+        TimeIndex timeIndex = this.historyImpl.getTimeIndex();
+
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
-
-            if(doc == null)
+            String filename = filelist.get(currentFile);
+            int[] candidatePositions
+                = candidates == null ? null : candidates.get(filename);
+
+            // only the last leftCount records of the file are taken, so
+            // while streaming it we keep just the matching ones among them
+            Deque<Integer> positions = new ArrayDeque<Integer>();
+            Deque<HistoryRecord> matches = new ArrayDeque<HistoryRecord>();
+            int position = 0;
+
+            // the records before the last leftCount ones are not read
+            TimeIndex.Entry entry
+                = timeIndex == null ? null : timeIndex.getEntry(filename);
+            HistoryRecordScanner scanner = createScanner(filename, entry,
+                entry == null ? 0 : entry.getCount() - leftCount);
+            try
             {
-                currentFile--;
-                continue;
-            }
+                while (scanner.next())
+                {
+                    position = scanner.getRecordIndex();
+                    HistoryRecord record = null;
 
-            // will get nodes and construct a List of nodes
-            // so we can easily get sublist of it
-            List<Node> nodes = new ArrayList<Node>();
-            NodeList nodesList = doc.getElementsByTagName("record");
-            for (int i = 0; i < nodesList.getLength(); i++)
-            {
-                nodes.add(nodesList.item(i));
-            }
+                    // records which can't match are counted but not read
+                    if(KeywordIndex.isCandidate(
+                            candidatePositions, scanner.getRecordIndex()))
+                    {
+                        scanner.readProperties();
 
-            List<Node> lNodes = null;
+                        record = filterByKeyword(scanner, keywords, field,
+                            caseSensitive);
+                    }
 
-            if (nodes.size() > leftCount)
-            {
-                lNodes = nodes.subList(nodes.size() - leftCount , nodes.size());
-                leftCount = 0;
+                    if(record != null)
+                    {
+                        positions.addLast(position);
+                        matches.addLast(record);
+                    }
+                    position++;
+
+                    while(!positions.isEmpty()
+                        && positions.peekFirst() < position - leftCount)
+                    {
+                        positions.removeFirst();
+                        matches.removeFirst();
+                    }
+                }
             }
-            else
+            finally
             {
-                lNodes = nodes;
-                leftCount -= nodes.size();
+                scanner.close();
             }
 
-            Iterator<Node> i = lNodes.iterator();
-            while (i.hasNext())
-            {
-                Node node = i.next();
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                HistoryRecord record =
-                    filterByKeyword(propertyNodes, timestamp,
-                        keywords, field, caseSensitive);
-
-                if(record != null)
-                {
-                    result.add(record);
-                }
-            }
+            result.addAll(matches);
+            leftCount -= Math.min(position, leftCount);
 
             currentFile--;
         }
 
+        if (timeIndex != null)
+            timeIndex.flush();
+
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
@@ -349,6 +348,9 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
         findFirstRecordsAfter(Date date, int count)
             throws RuntimeException
     {
+        // records queued by the writer are read from disk
+        this.historyImpl.flushPendingWrites();
+
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
@@ -357,87 +359,48 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
 
         int leftCount = count;
         int currentFile = 0;
+        TimeIndex timeIndex = this.historyImpl.getTimeIndex();
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile < filelist.size())
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            String filename = filelist.get(currentFile++);
+            TimeIndex.Entry entry
+                = timeIndex == null ? null : timeIndex.getEntry(filename);
 
-            if(doc == null)
-            {
-                currentFile++;
+            // skip the files with no records after the date
+            if(entry != null && !entry.overlaps(date, null))
                 continue;
-            }
 
-            NodeList nodes = doc.getElementsByTagName("record");
-
-            Node node;
-            for (int i = 0; i < nodes.getLength() && leftCount > 0; i++)
+            HistoryRecordScanner scanner = createScanner(filename, entry,
+                entry == null || date == null
+                    ? 0 : entry.getPositionBefore(date.getTime()));
+            try
             {
-                node = nodes.item(i);
-
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
+                // stop reading as soon as we have enough records
+                while (leftCount > 0 && scanner.next())
                 {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, date, null))
-                    continue;
+                    if(!isInPeriod(scanner.getTimestamp(), date, null))
+                        continue;
 
-                ArrayList<String> nameVals = new ArrayList<String>();
+                    HistoryRecord record = createRecord(scanner);
 
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-                    {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
-                    }
-                }
-
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
+                    // if we found a broken record - just skip it
+                    if(record == null)
+                        continue;
 
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
+                    result.add(record);
+                    leftCount--;
                 }
-
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
-
-                result.add(record);
-                leftCount--;
             }
-
-            currentFile++;
+            finally
+            {
+                scanner.close();
+            }
         }
 
+        if (timeIndex != null)
+            timeIndex.flush();
+
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
@@ -453,6 +416,9 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
         findLastRecordsBefore(Date date, int count)
             throws RuntimeException
     {
+        // records queued by the writer are read from disk
+        this.historyImpl.flushPendingWrites();
+
         // the files are supposed to be ordered from oldest to newest
         Vector<String> filelist =
             filterFilesByDate(this.historyImpl.getFileList(), null, date);
@@ -460,88 +426,64 @@ public synchronized QueryResultSet<HistoryRecord> findLast(
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
         int leftCount = count;
+        TimeIndex timeIndex = this.historyImpl.getTimeIndex();
 
         int currentFile = filelist.size() - 1;
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while(leftCount > 0 && currentFile >= 0)
         {
-            Document doc = this.historyImpl.
-                getDocumentForFile(filelist.get(currentFile));
+            String filename = filelist.get(currentFile--);
+            TimeIndex.Entry entry
+                = timeIndex == null ? null : timeIndex.getEntry(filename);
 
-            if(doc == null)
-            {
-                currentFile--;
+            // skip the files with no records before the date
+            if(entry != null && !entry.overlaps(null, date))
                 continue;
-            }
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            // the file is streamed from the index checkpoint before its last
+            // leftCount records before the date, or from its start, so keep
+            // only the last leftCount records before the date
+            Deque<HistoryRecord> lastRecords = new ArrayDeque<HistoryRecord>();
 
-            Node node;
-            for (int i = nodes.getLength() - 1; i >= 0 && leftCount > 0; i--)
+            HistoryRecordScanner scanner = createScanner(filename, entry,
+                entry == null || date == null
+                    ? 0
+                    : entry.getMinimumCountBefore(date.getTime()) - leftCount);
+            try
             {
-                node = nodes.item(i);
-                NodeList propertyNodes = node.getChildNodes();
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                    .getNodeValue();
-                try
+                while (scanner.next())
                 {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
-
-                if(!isInPeriod(timestamp, null, date))
-                    continue;
-
-                ArrayList<String> nameVals = new ArrayList<String>();
-
-                boolean isRecordOK = true;
-                int len = propertyNodes.getLength();
-                for (int j = 0; j < len; j++)
-                {
-                    Node propertyNode = propertyNodes.item(j);
-                    if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
+                    if(!isInPeriod(scanner.getTimestamp(), null, date))
                     {
-                        // Get nested TEXT node's value
-                        Node nodeValue = propertyNode.getFirstChild();
-
-                        if(nodeValue != null)
-                        {
-                            nameVals.add(propertyNode.getNodeName());
-                            nameVals.add(nodeValue.getNodeValue());
-                        }
-                        else
-                            isRecordOK = false;
+                        // the following records are all after the date
+                        if(entry != null && entry.isOrdered())
+                            break;
+                        continue;
                     }
-                }
 
-                // if we found a broken record - just skip it
-                if(!isRecordOK)
-                    continue;
-
-                String[] propertyNames = new String[nameVals.size() / 2];
-                String[] propertyValues = new String[propertyNames.length];
-                for (int j = 0; j < propertyNames.length; j++)
-                {
-                    propertyNames[j] = nameVals.get(j * 2);
-                    propertyValues[j] = nameVals.get(j * 2 + 1);
-                }
+                    HistoryRecord record = createRecord(scanner);
 
-                HistoryRecord record = new HistoryRecord(propertyNames,
-                    propertyValues, timestamp);
+                    // if we found a broken record - just skip it
+                    if(record == null)
+                        continue;
 
-                result.add(record);
-                leftCount--;
+                    lastRecords.addLast(record);
+                    if(lastRecords.size() > leftCount)
+                        lastRecords.removeFirst();
+                }
+            }
+            finally
+            {
+                scanner.close();
             }
 
-            currentFile--;
+            result.addAll(lastRecords);
+            leftCount -= lastRecords.size();
         }
 
+        if (timeIndex != null)
+            timeIndex.flush();
+
         return new OrderedQueryResultSet<HistoryRecord>(result);
     }
 
@@ -549,6 +491,9 @@ private QueryResultSet<HistoryRecord> find(
         Date startDate, Date endDate,
         String[] keywords, String field, boolean caseSensitive)
     {
+        // records queued by the writer are read from disk
+        this.historyImpl.flushPendingWrites();
+
         TreeSet<HistoryRecord> result
             = new TreeSet<HistoryRecord>(new HistoryRecordComparator());
 
@@ -570,71 +515,128 @@ private QueryResultSet<HistoryRecord> find(
         fireProgressStateChanged(startDate, endDate,
             keywords, HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        Map<String, int[]> candidates
+            = this.historyImpl.findKeywordCandidates(keywords, field, filelist);
+        TimeIndex timeIndex = startDate == null && endDate == null
+            ? null : this.historyImpl.getTimeIndex();
+
         Iterator<String> fileIterator = filelist.iterator();
         while (fileIterator.hasNext())
         {
             String filename = fileIterator.next();
+            int[] positions
+                = candidates == null ? null : candidates.get(filename);
+            TimeIndex.Entry entry
+                = timeIndex == null ? null : timeIndex.getEntry(filename);
+
+            // files without candidates in the keyword index or without
+            // records in the period are not read
+            if((positions == null || positions.length > 0)
+                && (entry == null || entry.overlaps(startDate, endDate)))
+            {
+                scan(filename, startDate, endDate, keywords, field,
+                    caseSensitive, positions, entry, result);
+            }
 
-            Document doc = this.historyImpl.getDocumentForFile(filename);
-
-            if(doc == null)
-                continue;
+            currentProgress += fileProgressStep;
+            fireProgressStateChanged(
+                startDate, endDate, keywords, (int)currentProgress);
+        }
 
-            NodeList nodes = doc.getElementsByTagName("record");
+        // if maximum value is not reached fire an event
+        if((int)currentProgress
+                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                                     HistorySearchProgressListener.
+                                     PROGRESS_MAXIMUM_VALUE);
+        }
 
-            double nodesProgressStep = fileProgressStep;
+        if (timeIndex != null)
+            timeIndex.flush();
 
-            if(nodes.getLength() != 0)
-                nodesProgressStep = fileProgressStep / nodes.getLength();
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
 
-            Node node;
-            for (int i = 0; i < nodes.getLength(); i++)
+    /**
+     * Adds the records of a file which are in a period and match the given
+     * keywords to <tt>result</tt>.
+     *
+     * @param filename the file to read
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @param positions the sorted positions of the records which may match
+     * the keywords or <tt>null</tt> to try all records
+     * @param entry the time index entry of the file or <tt>null</tt>
+     * @param result where to add the found records
+     */
+    private void scan(String filename,
+                      Date startDate, Date endDate,
+                      String[] keywords, String field, boolean caseSensitive,
+                      int[] positions,
+                      TimeIndex.Entry entry,
+                      Collection<HistoryRecord> result)
+    {
+        HistoryRecordScanner scanner = createScanner(filename, entry,
+            entry == null || startDate == null
+                ? 0 : entry.getPositionBefore(startDate.getTime()));
+        try
+        {
+            while (scanner.next())
             {
-                node = nodes.item(i);
-
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+                long timestamp = scanner.getTimestamp();
+
+                // the following records of an ordered file are all after
+                // the period
+                if(endDate != null
+                    && timestamp >= endDate.getTime()
+                    && entry != null
+                    && entry.isOrdered())
+                    break;
+
+                // records outside the period are skipped unread
+                if(!isInPeriod(timestamp, startDate, endDate)
+                    || !KeywordIndex.isCandidate(
+                            positions, scanner.getRecordIndex()))
+                    continue;
 
-                if(isInPeriod(timestamp, startDate, endDate))
-                {
-                    NodeList propertyNodes = node.getChildNodes();
+                scanner.readProperties();
 
-                    HistoryRecord record =
-                        filterByKeyword(propertyNodes, timestamp,
-                                        keywords, field, caseSensitive);
+                HistoryRecord record =
+                    filterByKeyword(scanner, keywords, field, caseSensitive);
 
-                    if(record != null)
-                    {
-                        result.add(record);
-                    }
+                if(record != null)
+                {
+                    result.add(record);
                 }
-
-                currentProgress += nodesProgressStep;
-                fireProgressStateChanged(
-                    startDate, endDate, keywords, (int)currentProgress);
             }
         }
-
-        // if maximum value is not reached fire an event
-        if((int)currentProgress
-                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        finally
         {
-            fireProgressStateChanged(startDate, endDate, keywords,
-                                     HistorySearchProgressListener.
-                                     PROGRESS_MAXIMUM_VALUE);
+            scanner.close();
         }
+    }
 
-        return new OrderedQueryResultSet<HistoryRecord>(result);
+    /**
+     * Creates a scanner over a file, moved by the time index of the file to
+     * the closest known record before a position.
+     *
+     * @param filename the file to read
+     * @param entry the time index entry of the file or <tt>null</tt>
+     * @param position the position of the first record which is needed
+     * @return the scanner, to be closed by the caller
+     */
+    private HistoryRecordScanner createScanner(String filename,
+                                               TimeIndex.Entry entry,
+                                               int position)
+    {
+        HistoryRecordScanner scanner = this.historyImpl.createScanner(filename);
+        if(entry != null && position > 0)
+            entry.seek(scanner, position);
+        return scanner;
     }
 
     /**
@@ -647,9 +649,21 @@ private QueryResultSet<HistoryRecord> find(
      */
     static boolean isInPeriod(Date timestamp, Date startDate, Date endDate)
     {
-        Long startLong;
-        Long endLong;
-        Long tsLong = timestamp.getTime();
+        return isInPeriod(timestamp.getTime(), startDate, endDate);
+    }
+
+    /**
+     * Evaluetes does <tt>timestamp</tt> is in the given time period.
+     *
+     * @param tsLong the timestamp in milliseconds
+     * @param startDate Date the start of the period
+     * @param endDate Date the end of the period
+     * @return boolean
+     */
+    static boolean isInPeriod(long tsLong, Date startDate, Date endDate)
+    {
+        long startLong;
+        long endLong;
 
         if(startDate == null)
             startLong = Long.MIN_VALUE;
@@ -667,56 +681,42 @@ static boolean isInPeriod(Date timestamp, Date startDate, Date endDate)
     /**
      * If there is keyword restriction and doesn't match the conditions
      * return null. Otherwise return the HistoryRecord corresponding the
-     * given nodes.
+     * current record of the given scanner, which properties must be read.
      *
-     * @param propertyNodes NodeList
-     * @param timestamp Date
+     * @param scanner the scanner positioned on the record
      * @param keywords String[]
      * @param field String
      * @param caseSensitive boolean
      * @return HistoryRecord
      */
-    static HistoryRecord filterByKeyword(   NodeList propertyNodes,
-                                            Date timestamp,
+    static HistoryRecord filterByKeyword(   HistoryRecordScanner scanner,
                                             String[] keywords,
                                             String field,
                                             boolean caseSensitive)
     {
-        ArrayList<String> nameVals = new ArrayList<String>();
-        int len = propertyNodes.getLength();
+        List<String> names = scanner.getPropertyNames();
+        List<String> values = scanner.getPropertyValues();
+        String[] propertyNames = new String[names.size()];
+        String[] propertyValues = new String[propertyNames.length];
         boolean targetNodeFound = false;
-        for (int j = 0; j < len; j++)
+        for (int j = 0; j < propertyNames.length; j++)
         {
-            Node propertyNode = propertyNodes.item(j);
-            if (propertyNode.getNodeType() == Node.ELEMENT_NODE)
-            {
-                String nodeName = propertyNode.getNodeName();
-
-                Node nestedNode = propertyNode.getFirstChild();
-
-                if(nestedNode == null)
-                    continue;
+            String nodeName = names.get(j);
 
-                // Get nested TEXT node's value
-                String nodeValue = nestedNode.getNodeValue();
+            // unescape xml chars, we have escaped when writing values
+            String nodeValue = StringEscapeUtils.unescapeXml(values.get(j));
 
-                // unescape xml chars, we have escaped when writing values
-                nodeValue = StringEscapeUtils.unescapeXml(nodeValue);
-
-                if(field != null && field.equals(nodeName))
-                {
-                    targetNodeFound = true;
-
-                    if(!matchKeyword(nodeValue, keywords, caseSensitive))
-                        return null; // doesn't match the given keyword(s)
-                                    // so return nothing
-                }
-
-                nameVals.add(nodeName);
-                // Get nested TEXT node's value
-                nameVals.add(nodeValue);
+            if(field != null && field.equals(nodeName))
+            {
+                targetNodeFound = true;
 
+                if(!matchKeyword(nodeValue, keywords, caseSensitive))
+                    return null; // doesn't match the given keyword(s)
+                                // so return nothing
             }
+
+            propertyNames[j] = nodeName;
+            propertyValues[j] = nodeValue;
         }
 
         // if we need to find a particular record but the target node is not
@@ -726,15 +726,31 @@ static HistoryRecord filterByKeyword(   NodeList propertyNodes,
             return null;
         }
 
-        String[] propertyNames = new String[nameVals.size() / 2];
-        String[] propertyValues = new String[propertyNames.length];
-        for (int j = 0; j < propertyNames.length; j++)
-        {
-            propertyNames[j] = nameVals.get(j * 2);
-            propertyValues[j] = nameVals.get(j * 2 + 1);
-        }
+        return new HistoryRecord(propertyNames, propertyValues,
+            new Date(scanner.getTimestamp()));
+    }
+
+    /**
+     * Returns the HistoryRecord corresponding the current record of the given
+     * scanner, or null if the record is broken, i.e. has an empty property.
+     *
+     * @param scanner the scanner positioned on the record
+     * @return HistoryRecord
+     */
+    private static HistoryRecord createRecord(HistoryRecordScanner scanner)
+    {
+        scanner.readProperties();
+
+        if(scanner.hasEmptyProperty())
+            return null;
 
-        return new HistoryRecord(propertyNames, propertyValues, timestamp);
+        List<String> names = scanner.getPropertyNames();
+        List<String> values = scanner.getPropertyValues();
+
+        return new HistoryRecord(
+            names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]),
+            new Date(scanner.getTimestamp()));
     }
 
     /**
@@ -944,7 +960,9 @@ public void removeSearchProgressListener(HistorySearchProgressListener
 
     /**
      * Count the number of messages that a search will return
-     * Actually only the last file is parsed and its nodes are counted.
+     * The record counts of the time index are summed when it is enabled,
+     * without parsing any file. Otherwise only the last file is parsed and
+     * its nodes are counted.
      * We accept that the other files are full with max records,
      * this way we escape parsing all files which will significantly
      * slow the process and for one search will parse the files twice.
@@ -957,9 +975,21 @@ public void removeSearchProgressListener(HistorySearchProgressListener
     public int countRecords()
         throws UnsupportedOperationException
     {
+        // records queued by the writer are read from disk
+        this.historyImpl.flushPendingWrites();
+
         int result = 0;
         String lastFile = null;
         Iterator<String> filelistIter = this.historyImpl.getFileList();
+
+        TimeIndex timeIndex = this.historyImpl.getTimeIndex();
+        if (timeIndex != null)
+        {
+            while (filelistIter.hasNext())
+                result += timeIndex.getEntry(filelistIter.next()).getCount();
+            timeIndex.flush();
+            return result;
+        }
         while (filelistIter.hasNext())
         {
             lastFile = filelistIter.next();
@@ -969,14 +999,16 @@ public int countRecords()
         if(lastFile == null)
             return result;
 
-        Document doc = this.historyImpl.getDocumentForFile(lastFile);
-
-        if(doc == null)
-            return result;
-
-        NodeList nodes = doc.getElementsByTagName("record");
-
-        result += nodes.getLength();
+        HistoryRecordScanner scanner = this.historyImpl.createScanner(lastFile);
+        try
+        {
+            while (scanner.next())
+                result++;
+        }
+        finally
+        {
+            scanner.close();
+        }
 
         return result;
     }
@@ -985,7 +1017,7 @@ public int countRecords()
      * Used to compare HistoryRecords
      * ant to be ordered in TreeSet
      */
-    private static class HistoryRecordComparator
+    static class HistoryRecordComparator
         implements Comparator<HistoryRecord>
     {
         public int compare(HistoryRecord h1, HistoryRecord h2)
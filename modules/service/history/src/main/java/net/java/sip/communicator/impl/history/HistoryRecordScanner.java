@@ -0,0 +1,592 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.text.*;
+import java.util.*;
+
+import javax.xml.stream.*;
+
+import lombok.extern.slf4j.*;
+
+import org.w3c.dom.*;
+
+/**
+ * Walks the <tt>record</tt> elements of one history document in file order.
+ * <p>
+ * In streaming mode the document is read with a StAX pull parser, so only
+ * the current record is held in memory and records which are not needed are
+ * skipped without building their property strings. Timestamps are parsed
+ * without a <tt>SimpleDateFormat</tt>. If the file can't be streamed, for
+ * example because it is corrupted, the scanner continues on the DOM document
+ * of <tt>HistoryImpl</tt>, which also tries to fix the file.
+ * <p>
+ * Usage: call {@link #next()} until it returns <tt>false</tt>, and
+ * {@link #readProperties()} for the records whose properties are needed.
+ * The scanner must be closed.
+ */
+@Slf4j
+class HistoryRecordScanner
+    implements Closeable
+{
+    /**
+     * The factory of the pull parsers, configured once as it is thread-safe
+     * to use afterwards.
+     */
+    private static final XMLInputFactory INPUT_FACTORY;
+
+    static
+    {
+        INPUT_FACTORY = XMLInputFactory.newInstance();
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_COALESCING, true);
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(
+            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final HistoryImpl historyImpl;
+
+    private final String filename;
+
+    private final boolean streaming;
+
+    private InputStream in;
+
+    private XMLStreamReader reader;
+
+    /**
+     * The records of the DOM document when not streaming.
+     */
+    private NodeList nodes;
+
+    /**
+     * The number of records returned by {@link #next()} so far.
+     */
+    private int index = 0;
+
+    /**
+     * Whether the scanner was moved by {@link #seek} and the first record
+     * returned still has to be checked.
+     */
+    private boolean seeking = false;
+
+    /**
+     * The expected timestamp of the record the scanner was moved to.
+     */
+    private long seekTimestamp;
+
+    /**
+     * Whether the pull parser returned a record since the file was opened.
+     */
+    private boolean recordOpen = false;
+
+    /**
+     * Whether the properties of the current record were read.
+     */
+    private boolean propertiesRead;
+
+    private long timestamp;
+
+    /**
+     * The names of the non-empty properties of the current record.
+     */
+    private final List<String> names = new ArrayList<String>();
+
+    /**
+     * The raw values of the non-empty properties of the current record.
+     */
+    private final List<String> values = new ArrayList<String>();
+
+    /**
+     * Whether the current record has a property without a value.
+     */
+    private boolean hasEmptyProperty;
+
+    /**
+     * Creates a scanner over a document of <tt>historyImpl</tt>.
+     *
+     * @param historyImpl the history
+     * @param filename the name of the document
+     * @param streaming whether to stream the file or to use the DOM document
+     */
+    HistoryRecordScanner(HistoryImpl historyImpl,
+                         String filename,
+                         boolean streaming)
+    {
+        this.historyImpl = historyImpl;
+        this.filename = filename;
+        this.streaming = streaming;
+
+        if (streaming)
+            open(0);
+    }
+
+    /**
+     * Moves the scanner to a record known from the time index, so the
+     * records before it are not read. Must be called before {@link #next()}.
+     * If the record found at the offset is not the expected one, the scanner
+     * silently starts over from the first record.
+     *
+     * @param position the position of the record in the document
+     * @param offset the byte offset of the <tt>record</tt> element in the
+     * file
+     * @param timestamp the timestamp of the record
+     */
+    void seek(int position, long offset, long timestamp)
+    {
+        if (reader != null)
+        {
+            close();
+            if (!open(offset))
+            {
+                open(0);
+                return;
+            }
+        }
+
+        index = position;
+        seekTimestamp = timestamp;
+        seeking = true;
+    }
+
+    /**
+     * Opens the file for streaming. A file opened at an offset other than 0
+     * is read as if the <tt>history</tt> element started right before the
+     * offset.
+     *
+     * @param offset the offset of a <tt>record</tt> element or 0
+     * @return <tt>true</tt> if the file is streamed
+     */
+    private boolean open(long offset)
+    {
+        try
+        {
+            InputStream file = new FileInputStream(
+                new File(historyImpl.getDirectory(), filename));
+            in = file;
+            if (offset > 0)
+            {
+                long skipped = 0;
+                while (skipped < offset)
+                {
+                    long n = file.skip(offset - skipped);
+                    if (n <= 0)
+                        throw new EOFException("Cannot seek to " + offset);
+                    skipped += n;
+                }
+                in = new SequenceInputStream(
+                    new ByteArrayInputStream(
+                        "<history>".getBytes(StandardCharsets.UTF_8)),
+                    file);
+            }
+
+            in = new BufferedInputStream(in);
+            recordOpen = false;
+            if (offset > 0)
+                reader = INPUT_FACTORY.createXMLStreamReader(in, "UTF-8");
+            else
+                reader = INPUT_FACTORY.createXMLStreamReader(in);
+            return true;
+        }
+        catch (IOException | XMLStreamException e)
+        {
+            logger.debug("Cannot stream history " + filename, e);
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Advances to the next record.
+     *
+     * @return <tt>false</tt> if there are no more records
+     */
+    boolean next()
+    {
+        if (!nextRecord())
+            return false;
+
+        if (seeking)
+        {
+            seeking = false;
+            if (timestamp != seekTimestamp)
+            {
+                logger.debug("Time index of history " + filename
+                    + " is outdated, reading from the first record");
+
+                close();
+                nodes = null;
+                index = 0;
+                if (streaming)
+                    open(0);
+                return nextRecord();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Advances to the next record, streaming or on the DOM document.
+     *
+     * @return <tt>false</tt> if there are no more records
+     */
+    private boolean nextRecord()
+    {
+        if (reader != null)
+        {
+            try
+            {
+                if (nextStreamed())
+                {
+                    index++;
+                    return true;
+                }
+                close();
+                return false;
+            }
+            catch (XMLStreamException | RuntimeException e)
+            {
+                logger.warn("Error streaming history " + filename
+                    + ", continuing on its DOM document", e);
+                close();
+            }
+        }
+
+        if (nodes == null)
+        {
+            Document doc = historyImpl.getDocumentForFile(filename);
+            if (doc == null)
+                return false;
+
+            nodes = doc.getElementsByTagName("record");
+        }
+
+        if (index >= nodes.getLength())
+            return false;
+
+        Element node = (Element) nodes.item(index++);
+        timestamp = parseTimestamp(node.getAttribute("timestamp"));
+        readProperties(node);
+        return true;
+    }
+
+    /**
+     * Returns the timestamp of the current record.
+     *
+     * @return the timestamp in milliseconds
+     */
+    long getTimestamp()
+    {
+        return timestamp;
+    }
+
+    /**
+     * Returns the position of the current record in the document.
+     *
+     * @return the position, starting from 0
+     */
+    int getRecordIndex()
+    {
+        return index - 1;
+    }
+
+    /**
+     * Reads the properties of the current record, if not read yet.
+     */
+    void readProperties()
+    {
+        if (propertiesRead || reader == null)
+            return;
+
+        names.clear();
+        values.clear();
+        hasEmptyProperty = false;
+
+        try
+        {
+            while (reader.hasNext())
+            {
+                int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT)
+                {
+                    String name = reader.getLocalName();
+                    String value = reader.getElementText();
+                    if (value.length() == 0)
+                    {
+                        hasEmptyProperty = true;
+                    }
+                    else
+                    {
+                        names.add(name);
+                        values.add(value);
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT)
+                {
+                    break;
+                }
+            }
+        }
+        catch (XMLStreamException e)
+        {
+            logger.warn("Error reading record of history " + filename, e);
+            close();
+
+            // continue with the same record in the DOM document
+            index--;
+            next();
+        }
+
+        propertiesRead = true;
+    }
+
+    /**
+     * Returns the names of the non-empty properties of the current record.
+     *
+     * @return the property names
+     */
+    List<String> getPropertyNames()
+    {
+        return names;
+    }
+
+    /**
+     * Returns the raw values of the non-empty properties of the current
+     * record.
+     *
+     * @return the property values, still escaped as they were written
+     */
+    List<String> getPropertyValues()
+    {
+        return values;
+    }
+
+    /**
+     * Returns whether the current record has a property without a value.
+     *
+     * @return <tt>true</tt> if a property of the record is empty
+     */
+    boolean hasEmptyProperty()
+    {
+        return hasEmptyProperty;
+    }
+
+    /**
+     * Stops reading the file.
+     */
+    public void close()
+    {
+        if (reader != null)
+        {
+            try
+            {
+                reader.close();
+            }
+            catch (XMLStreamException e)
+            {
+                // ignore, we are done with the file
+            }
+            reader = null;
+        }
+        if (in != null)
+        {
+            try
+            {
+                in.close();
+            }
+            catch (IOException e)
+            {
+                // ignore, we are done with the file
+            }
+            in = null;
+        }
+    }
+
+    /**
+     * Advances the pull parser to the start of the next record, skipping
+     * the unread properties of the current one.
+     *
+     * @return <tt>false</tt> if there are no more records
+     * @throws XMLStreamException if the document is malformed
+     */
+    private boolean nextStreamed()
+        throws XMLStreamException
+    {
+        int depth = 0;
+        if (recordOpen && !propertiesRead)
+            depth = 1;
+
+        while (reader.hasNext())
+        {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT)
+            {
+                if (depth == 0 && "record".equals(reader.getLocalName()))
+                {
+                    timestamp = parseTimestamp(
+                        reader.getAttributeValue(null, "timestamp"));
+                    propertiesRead = false;
+                    recordOpen = true;
+                    return true;
+                }
+                if (depth > 0)
+                    depth++;
+            }
+            else if (event == XMLStreamConstants.END_ELEMENT && depth > 0)
+            {
+                depth--;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the properties of a DOM record the way <tt>HistoryReaderImpl</tt>
+     * does.
+     *
+     * @param node the record element
+     */
+    private void readProperties(Element node)
+    {
+        names.clear();
+        values.clear();
+        hasEmptyProperty = false;
+
+        NodeList propertyNodes = node.getChildNodes();
+        int len = propertyNodes.getLength();
+        for (int j = 0; j < len; j++)
+        {
+            Node propertyNode = propertyNodes.item(j);
+            if (propertyNode.getNodeType() != Node.ELEMENT_NODE)
+                continue;
+
+            Node nestedNode = propertyNode.getFirstChild();
+            if (nestedNode == null)
+            {
+                hasEmptyProperty = true;
+                continue;
+            }
+
+            names.add(propertyNode.getNodeName());
+            values.add(nestedNode.getNodeValue());
+        }
+
+        propertiesRead = true;
+    }
+
+    /**
+     * Parses a record timestamp written with
+     * {@link net.java.sip.communicator.service.history.HistoryService#DATE_FORMAT}
+     * like <tt>2015-03-04T12:34:56.789+0200</tt>, without allocating a
+     * <tt>SimpleDateFormat</tt> per call. Timestamps in other formats fall
+     * back to <tt>SimpleDateFormat</tt> and to plain milliseconds.
+     *
+     * @param ts the timestamp attribute
+     * @return the timestamp in milliseconds
+     */
+    static long parseTimestamp(String ts)
+    {
+        if (ts.length() == 28
+            && ts.charAt(4) == '-' && ts.charAt(7) == '-'
+            && ts.charAt(10) == 'T' && ts.charAt(13) == ':'
+            && ts.charAt(16) == ':' && ts.charAt(19) == '.'
+            && (ts.charAt(23) == '+' || ts.charAt(23) == '-'))
+        {
+            int year = digits(ts, 0, 4);
+            int month = digits(ts, 5, 2);
+            int day = digits(ts, 8, 2);
+            int hour = digits(ts, 11, 2);
+            int minute = digits(ts, 14, 2);
+            int second = digits(ts, 17, 2);
+            int millis = digits(ts, 20, 3);
+            int offsetHours = digits(ts, 24, 2);
+            int offsetMinutes = digits(ts, 26, 2);
+
+            if ((year | month | day | hour | minute | second | millis
+                    | offsetHours | offsetMinutes) >= 0)
+            {
+                int offset = (offsetHours * 60 + offsetMinutes) * 60000;
+                if (ts.charAt(23) == '-')
+                    offset = -offset;
+
+                return daysFromCivil(year, month, day) * 86400000L
+                    + hour * 3600000L
+                    + minute * 60000L
+                    + second * 1000L
+                    + millis
+                    - offset;
+            }
+        }
+
+        try
+        {
+            return new SimpleDateFormat(DATE_FORMAT).parse(ts).getTime();
+        }
+        catch (ParseException e)
+        {
+            return Long.parseLong(ts);
+        }
+    }
+
+    /**
+     * Parses a fixed number of decimal digits.
+     *
+     * @param s the string
+     * @param start the index of the first digit
+     * @param count the number of digits
+     * @return the value or -1 if a character is not a digit
+     */
+    private static int digits(String s, int start, int count)
+    {
+        int value = 0;
+        for (int i = start; i < start + count; i++)
+        {
+            int digit = s.charAt(i) - '0';
+            if (digit < 0 || digit > 9)
+                return -1;
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+
+    /**
+     * Returns the number of days since 1970-01-01 of a date in the proleptic
+     * Gregorian calendar.
+     *
+     * @param year the year
+     * @param month the month, 1 to 12
+     * @param day the day of the month
+     * @return the days since the epoch
+     */
+    private static long daysFromCivil(int year, int month, int day)
+    {
+        year -= month <= 2 ? 1 : 0;
+        long era = (year >= 0 ? year : year - 399) / 400;
+        long yearOfEra = year - era * 400;
+        long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5
+            + day - 1;
+        long dayOfEra
+            = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+}
@@ -19,6 +19,7 @@
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.xml.parsers.*;
 
@@ -63,6 +64,104 @@
 
     private final boolean cacheEnabled;
 
+    /**
+     * The cache of parsed documents shared by all histories, used when
+     * <tt>cacheEnabled</tt>.
+     */
+    private final DocumentCache documentCache;
+
+    /**
+     * Whether XML documents are streamed instead of loaded as DOM trees
+     * when reading.
+     */
+    private final boolean streamingEnabled;
+
+    /**
+     * Whether histories are stored in segments instead of XML documents.
+     */
+    private final boolean segmentBackend;
+
+    /**
+     * Whether keyword searches use and maintain keyword indexes.
+     */
+    private final boolean keywordIndexEnabled;
+
+    /**
+     * Whether date searches and record counts use the time indexes.
+     */
+    private final boolean timeIndexEnabled;
+
+    /**
+     * The maximum time in milliseconds records are queued before being
+     * written, 0 if they are written as they are added.
+     */
+    private final int writeBehindLatency;
+
+    /**
+     * The single background thread building keyword indexes.
+     */
+    private final ExecutorService indexExecutor
+        = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "HistoryKeywordIndexer");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+    /**
+     * The single background thread writing the queued records of all
+     * histories.
+     */
+    private final ScheduledExecutorService writeExecutor
+        = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "HistoryWriter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+    /**
+     * The writers which have queued records, in the order they queued their
+     * first one.
+     */
+    private final Set<HistoryWriterImpl> pendingWriters
+        = new LinkedHashSet<HistoryWriterImpl>();
+
+    /**
+     * Whether a write of the pending writers is scheduled.
+     */
+    private boolean writeScheduled = false;
+
+    /**
+     * The number of consecutive writes of the pending writers which failed,
+     * guarded by <tt>pendingWriters</tt>.
+     */
+    private int writeFailures = 0;
+
+    /**
+     * The number of milliseconds a failed write is first retried after.
+     */
+    private static final long RETRY_DELAY = 100;
+
+    /**
+     * The maximum number of milliseconds a failed write is retried after,
+     * the delay doubling with every consecutive failure up to it.
+     */
+    private static final long MAX_RETRY_DELAY = 60000;
+
+    /**
+     * Serializes the writes of the pending writers, so a write completes
+     * before the files are removed or moved.
+     */
+    private final Object flushLock = new Object();
+
     /**
      *  Characters and their replacement in created folder names
      */
@@ -93,6 +192,18 @@ public HistoryServiceImpl(ConfigurationService configService,
             DocumentBuilderFactory.newInstance().newDocumentBuilder();
         this.cacheEnabled = configService.getBoolean(
                 CACHE_ENABLED_PROPERTY, false);
+        this.documentCache = new DocumentCache(configService.getLong(
+                CACHE_SIZE_PROPERTY, DEFAULT_CACHE_SIZE));
+        this.streamingEnabled = configService.getBoolean(
+                STREAMING_READER_PROPERTY, true);
+        this.segmentBackend = BACKEND_SEGMENT.equalsIgnoreCase(
+                configService.getString(BACKEND_PROPERTY, BACKEND_XML));
+        this.keywordIndexEnabled = configService.getBoolean(
+                KEYWORD_INDEX_PROPERTY, true);
+        this.timeIndexEnabled = configService.getBoolean(
+                TIME_INDEX_PROPERTY, true);
+        this.writeBehindLatency = Math.max(0, configService.getInt(
+                WRITE_BEHIND_LATENCY_PROPERTY, 0));
         this.fileAccessService = fas;
     }
 
@@ -185,8 +296,7 @@ public History createHistory(
             else
             {
                 File dir = this.createHistoryDirectories(id);
-                HistoryImpl history = new HistoryImpl(id, dir, recordStructure,
-                        this);
+                History history = createHistoryImpl(id, dir, recordStructure);
 
                 File dbDatFile = new File(dir, HistoryServiceImpl.DATA_FILE);
                 DBStructSerializer dbss = new DBStructSerializer(this);
@@ -200,6 +310,39 @@ public History createHistory(
         return retVal;
     }
 
+    /**
+     * Creates the <tt>History</tt> implementation of the configured backend
+     * for a history directory. When the segment backend is used and the
+     * directory still holds XML documents, they are migrated first.
+     *
+     * @param id the identifier of the history
+     * @param dir the history directory
+     * @param recordStructure the structure of the records
+     * @return the history
+     */
+    History createHistoryImpl(HistoryID id, File dir,
+                              HistoryRecordStructure recordStructure)
+    {
+        if (!segmentBackend)
+            return new HistoryImpl(id, dir, recordStructure, this);
+
+        if (XmlHistoryMigrator.needsMigration(dir))
+        {
+            try
+            {
+                new XmlHistoryMigrator(this).migrate(dir);
+            }
+            catch (IOException e)
+            {
+                logger.error("Could not migrate history " + dir
+                    + ", keeping the XML backend for it", e);
+                return new HistoryImpl(id, dir, recordStructure, this);
+            }
+        }
+
+        return new SegmentHistoryImpl(id, dir, recordStructure, this);
+    }
+
     protected FileAccessService getFileAccessService()
     {
         return this.fileAccessService;
@@ -314,6 +457,236 @@ protected boolean isCacheEnabled()
         return cacheEnabled;
     }
 
+    /**
+     * Returns the cache of parsed documents shared by all histories.
+     * @return the document cache
+     */
+    DocumentCache getDocumentCache()
+    {
+        return documentCache;
+    }
+
+    /**
+     * Returns whether XML documents are streamed when reading.
+     * @return boolean
+     */
+    protected boolean isStreamingEnabled()
+    {
+        return streamingEnabled;
+    }
+
+    /**
+     * Returns whether keyword searches use keyword indexes.
+     * @return boolean
+     */
+    protected boolean isKeywordIndexEnabled()
+    {
+        return keywordIndexEnabled;
+    }
+
+    /**
+     * Returns whether date searches and record counts use time indexes.
+     * @return boolean
+     */
+    protected boolean isTimeIndexEnabled()
+    {
+        return timeIndexEnabled;
+    }
+
+    /**
+     * Runs a keyword indexing task in the background.
+     * @param task the task
+     * @return <tt>false</tt> if the service is stopped and the task won't run
+     */
+    boolean scheduleIndexing(Runnable task)
+    {
+        try
+        {
+            indexExecutor.execute(task);
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the maximum time records are queued before being written.
+     * @return the latency in milliseconds, 0 if write-behind is disabled
+     */
+    protected int getWriteBehindLatency()
+    {
+        return writeBehindLatency;
+    }
+
+    /**
+     * Schedules the write of the records queued by a writer. The records of
+     * all writers queued until the write runs are written together, at most
+     * the write-behind latency after the first of them was queued.
+     * @param writer the writer with queued records
+     * @return <tt>false</tt> if the service is stopped and the writer has to
+     * write its records itself
+     */
+    boolean scheduleWrite(HistoryWriterImpl writer)
+    {
+        synchronized (pendingWriters)
+        {
+            pendingWriters.add(writer);
+            if (writeScheduled || schedulePendingWrites(writeBehindLatency))
+                return true;
+
+            pendingWriters.remove(writer);
+            return false;
+        }
+    }
+
+    /**
+     * Schedules the retry of a writer which failed to write its records
+     * itself, as writers do with write-behind disabled.
+     * @param writer the writer with queued records
+     */
+    void scheduleRetry(HistoryWriterImpl writer)
+    {
+        synchronized (pendingWriters)
+        {
+            pendingWriters.add(writer);
+            if (!writeScheduled)
+                schedulePendingWrites(getRetryDelay());
+        }
+    }
+
+    /**
+     * Returns the delay of the next retry of a failed write and counts the
+     * failure. To be called while holding the lock of
+     * <tt>pendingWriters</tt>.
+     * @return the delay in milliseconds
+     */
+    private long getRetryDelay()
+    {
+        long delay = Math.min(MAX_RETRY_DELAY,
+            RETRY_DELAY << Math.min(writeFailures, 16));
+
+        writeFailures++;
+        return delay;
+    }
+
+    /**
+     * Schedules a write of the pending writers. To be called while holding
+     * the lock of <tt>pendingWriters</tt>.
+     * @param delay the delay of the write in milliseconds
+     * @return <tt>false</tt> if the service is stopped
+     */
+    private boolean schedulePendingWrites(long delay)
+    {
+        try
+        {
+            writeExecutor.schedule(new Runnable()
+            {
+                public void run()
+                {
+                    flushPendingWriters(false);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+            writeScheduled = true;
+            return true;
+        }
+        catch (RejectedExecutionException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Writes the queued records of all writers. The writers which fail to
+     * write their records are queued again, ahead of those queued in the
+     * meantime, and retried with an exponential backoff.
+     * @param sync whether to force the written files to the storage device
+     * @return <tt>true</tt> if all queued records were written
+     */
+    private boolean flushPendingWriters(boolean sync)
+    {
+        synchronized (flushLock)
+        {
+            List<HistoryWriterImpl> writers;
+            synchronized (pendingWriters)
+            {
+                writers = new ArrayList<HistoryWriterImpl>(pendingWriters);
+                pendingWriters.clear();
+                writeScheduled = false;
+            }
+
+            List<HistoryWriterImpl> failed = new ArrayList<HistoryWriterImpl>();
+            IOException error = null;
+            for (HistoryWriterImpl writer : writers)
+            {
+                try
+                {
+                    writer.flush(sync);
+                }
+                catch (IOException e)
+                {
+                    failed.add(writer);
+                    error = e;
+                }
+            }
+
+            synchronized (pendingWriters)
+            {
+                if (failed.isEmpty())
+                {
+                    writeFailures = 0;
+                    return true;
+                }
+
+                Set<HistoryWriterImpl> queued
+                    = new LinkedHashSet<HistoryWriterImpl>(failed);
+                queued.addAll(pendingWriters);
+                pendingWriters.clear();
+                pendingWriters.addAll(queued);
+
+                long delay = getRetryDelay();
+                if (writeScheduled || schedulePendingWrites(delay))
+                {
+                    logger.error("Could not write the records of "
+                        + failed.size() + " histories, retrying in "
+                        + delay + "ms", error);
+                }
+                else
+                {
+                    logger.error("Could not write the records of "
+                        + failed.size() + " histories while stopping", error);
+                }
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Stops the background work of this service, writing the records which
+     * are still queued. A failed write is retried once before the records
+     * are given up.
+     */
+    void stop()
+    {
+        indexExecutor.shutdownNow();
+
+        writeExecutor.shutdown();
+        if (flushPendingWriters(true))
+            return;
+
+        try
+        {
+            Thread.sleep(RETRY_DELAY);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (!flushPendingWriters(true))
+            logger.error("Lost history records which could not be written");
+    }
+
     /**
      * Permamently removes local stored History
      *
@@ -323,11 +696,15 @@ protected boolean isCacheEnabled()
     public void purgeLocallyStoredHistory(HistoryID id)
         throws IOException
     {
+        // don't let queued records recreate the removed files
+        flushPendingWriters(false);
+
         // get the history directory corresponding the given id
         File dir = this.createHistoryDirectories(id);
         if (logger.isTraceEnabled())
             logger.trace("Removing history directory " + dir);
         deleteDirAndContent(dir);
+        documentCache.removeAll(dir);
 
         History history = histories.remove(id);
         if(history == null)
@@ -355,6 +732,7 @@ public void purgeLocallyStoredHistory(HistoryID id)
     public void purgeLocallyCachedHistories()
     {
         histories.clear();
+        documentCache.clear();
     }
 
     /**
@@ -443,6 +821,8 @@ public void moveHistory(HistoryID oldId, HistoryID newId)
         if(!isHistoryCreated(oldId))// || !isHistoryExisting(newId))
             return;
 
+        flushPendingWriters(false);
+
         File oldDir = this.createHistoryDirectories(oldId);
         File newDir = getDirForHistory(newId);
 
@@ -457,6 +837,7 @@ public void moveHistory(HistoryID oldId, HistoryID newId)
         }
 
         histories.remove(oldId);
+        documentCache.removeAll(oldDir);
     }
 
     /**
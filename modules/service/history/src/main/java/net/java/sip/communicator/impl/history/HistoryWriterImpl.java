@@ -21,6 +21,8 @@
     net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
 
 import java.io.*;
+import java.nio.channels.*;
+import java.nio.file.*;
 import java.security.*;
 import java.text.*;
 import java.util.*;
@@ -44,7 +46,7 @@
      */
     public static final int MAX_RECORDS_PER_FILE = 150;
 
-    private static final String CDATA_SUFFIX = "_CDATA";
+    static final String CDATA_SUFFIX = "_CDATA";
 
     private Object docCreateLock = new Object();
 
@@ -60,6 +62,13 @@
 
     private int currentDocElements = -1;
 
+    /**
+     * The records appended to documents which were not written yet, in the
+     * order they were added.
+     */
+    private final List<PendingRecord> pendingRecords
+        = new ArrayList<PendingRecord>();
+
     protected HistoryWriterImpl(HistoryImpl historyImpl)
     {
         this.historyImpl = historyImpl;
@@ -116,6 +125,10 @@ public void addRecord(String[] propertyValues,
      * Adds new record to the current history document
      * when the record property name ends with _CDATA this is removed from the
      * property name and a CDATA text node is created to store the text value
+     * <p>
+     * With write-behind enabled the document is written later, together with
+     * the records added in the meantime. Records which fail to be written
+     * stay queued and are written again with a growing delay.
      *
      * @param propertyNames String[]
      * @param propertyValues String[]
@@ -131,6 +144,9 @@ private void addRecord(String[] propertyNames,
                            int maxNumberOfRecords)
         throws InvalidParameterException, IOException
     {
+        Document doc;
+        String filename;
+
         // Synchronized to assure that two concurrent threads can insert records
         // safely.
         synchronized (this.docCreateLock)
@@ -140,13 +156,18 @@ private void addRecord(String[] propertyNames,
             {
                 this.createNewDoc(date, this.currentDoc == null);
             }
+
+            doc = this.currentDoc;
+            filename = this.currentFile;
         }
 
-        synchronized (this.currentDoc)
+        synchronized (doc)
         {
-            Node root = this.currentDoc.getFirstChild();
+            Node root = doc.getFirstChild();
             synchronized (root)
             {
+                boolean removed = false;
+
                 // if we have setting for max number of records,
                 // check the number and when exceed them, remove the first one
                 if( maxNumberOfRecords > -1
@@ -154,25 +175,185 @@ private void addRecord(String[] propertyNames,
                 {
                     // lets remove the first one
                     removeFirstRecord(root);
+                    removed = true;
                 }
 
                 Element elem = createRecord(
-                    this.currentDoc, propertyNames, propertyValues, date);
+                    doc, propertyNames, propertyValues, date);
+                int position = ((Element) root)
+                    .getElementsByTagName("record").getLength();
                 root.appendChild(elem);
                 this.currentDocElements++;
+
+                // queued while the document is locked, so a write of the
+                // document always writes the records queued before it
+                synchronized (this.pendingRecords)
+                {
+                    this.pendingRecords.add(new PendingRecord(
+                        filename, doc, elem, position, date.getTime(),
+                        removed));
+                }
             }
         }
 
-        // write changes
+        HistoryServiceImpl historyService = historyImpl.getHistoryServiceImpl();
+        if (historyService.getWriteBehindLatency() == 0
+            || !historyService.scheduleWrite(this))
+        {
+            try
+            {
+                flush(false);
+            }
+            catch (IOException e)
+            {
+                historyService.scheduleRetry(this);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Writes the documents with queued records and updates the indexes of
+     * the history with the written records.
+     *
+     * @param sync whether to force the written files to the storage device
+     * @throws IOException if writing a document fails, in which case its
+     * records stay queued
+     */
+    void flush(boolean sync)
+        throws IOException
+    {
         synchronized (this.docWriteLock)
         {
-            if(historyImpl.getHistoryServiceImpl().isCacheEnabled())
-                this.historyImpl.writeFile(this.currentFile);
-            else
-                this.historyImpl.writeFile(this.currentFile, this.currentDoc);
+            List<Document> docs = new ArrayList<Document>();
+            synchronized (this.pendingRecords)
+            {
+                for (PendingRecord record : this.pendingRecords)
+                {
+                    if (!docs.contains(record.doc))
+                        docs.add(record.doc);
+                }
+            }
+
+            IOException error = null;
+            for (Document doc : docs)
+            {
+                try
+                {
+                    write(doc, sync);
+                }
+                catch (IOException e)
+                {
+                    error = e;
+                }
+            }
+
+            if (error != null)
+                throw error;
         }
     }
 
+    /**
+     * Writes a document with queued records and updates the indexes with
+     * them. Records appended while the document is written are written too,
+     * they stay queued for the indexes. If writing fails, the records are
+     * queued again ahead of those appended in the meantime.
+     *
+     * @param doc the document
+     * @param sync whether to force the written file to the storage device
+     * @throws IOException if writing fails
+     */
+    private void write(Document doc, boolean sync)
+        throws IOException
+    {
+        String filename = null;
+        List<PendingRecord> records = new ArrayList<PendingRecord>();
+        synchronized (this.pendingRecords)
+        {
+            for (Iterator<PendingRecord> i = this.pendingRecords.iterator();
+                    i.hasNext();)
+            {
+                PendingRecord record = i.next();
+                if (record.doc == doc)
+                {
+                    filename = record.filename;
+                    records.add(record);
+                    i.remove();
+                }
+            }
+        }
+        if (records.isEmpty())
+            return;
+
+        List<KeywordIndex> indexes = historyImpl.getKeywordIndexes();
+        TimeIndex timeIndex = historyImpl.getTimeIndex();
+        boolean indexed = !indexes.isEmpty() || timeIndex != null;
+        File file = new File(historyImpl.getDirectory(), filename);
+        long previousLength = indexed ? file.length() : 0;
+        long previousModified = indexed ? file.lastModified() : 0;
+
+        try
+        {
+            this.historyImpl.writeFile(filename, doc);
+            if (sync)
+            {
+                try (FileChannel channel
+                        = FileChannel.open(
+                            file.toPath(), StandardOpenOption.WRITE))
+                {
+                    channel.force(true);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            synchronized (this.pendingRecords)
+            {
+                this.pendingRecords.addAll(0, records);
+            }
+            throw e;
+        }
+
+        for (PendingRecord record : records)
+        {
+            if (record.removed)
+            {
+                documentChanged(filename);
+                break;
+            }
+
+            for (KeywordIndex index : indexes)
+            {
+                index.recordAdded(filename, record.position,
+                    previousLength, previousModified, record.elem);
+            }
+            if (timeIndex != null)
+            {
+                timeIndex.recordAdded(filename, record.position,
+                    previousLength, previousModified, record.timestamp);
+            }
+
+            // the following records were written at the same time
+            previousLength = indexed ? file.length() : 0;
+            previousModified = indexed ? file.lastModified() : 0;
+        }
+    }
+
+    /**
+     * Lets the keyword and time indexes know that a document was changed in
+     * a way other than appending a record.
+     * @param filename the name of the changed document
+     */
+    private void documentChanged(String filename)
+    {
+        for (KeywordIndex index : historyImpl.getKeywordIndexes())
+            index.documentChanged(filename);
+
+        TimeIndex timeIndex = historyImpl.getTimeIndex();
+        if (timeIndex != null)
+            timeIndex.documentChanged(filename);
+    }
+
     /**
      * Creates a record element for the supplied <tt>doc</tt> and populates it
      * with the property names from <tt>propertyNames</tt> and corresponding
@@ -299,6 +480,9 @@ public void insertRecord(
             String[] propertyValues, Date timestamp, String timestampProperty)
         throws IOException
     {
+        // the document is changed as it is on disk
+        flush(false);
+
         SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         Iterator<String> fileIterator
             = HistoryReaderImpl.filterFilesByDate(
@@ -363,6 +547,7 @@ public void insertRecord(
                 synchronized (this.docWriteLock)
                 {
                     this.historyImpl.writeFile(filename, doc);
+                    documentChanged(filename);
                 }
 
                 // this prevents that the current writer, which holds
@@ -442,6 +627,9 @@ public void updateRecord(String idProperty, String idValue,
             String property, String newValue)
         throws IOException
     {
+        // the document is changed as it is on disk
+        flush(false);
+
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
         while (fileIterator.hasNext())
@@ -513,6 +701,7 @@ public void updateRecord(String idProperty, String idValue,
                 synchronized (this.docWriteLock)
                 {
                     this.historyImpl.writeFile(filename, doc);
+                    documentChanged(filename);
                 }
 
                 // this prevents that the current writer, which holds
@@ -536,6 +725,9 @@ public void updateRecord(String idProperty, String idValue,
      */
     public void updateRecord(HistoryRecordUpdater updater) throws IOException
     {
+        // the document is changed as it is on disk
+        flush(false);
+
         Iterator<String> fileIterator = this.historyImpl.getFileList();
         String filename = null;
         while (fileIterator.hasNext())
@@ -587,6 +779,7 @@ public void updateRecord(HistoryRecordUpdater updater) throws IOException
                 synchronized (this.docWriteLock)
                 {
                     this.historyImpl.writeFile(filename, doc);
+                    documentChanged(filename);
                 }
 
                 // this prevents that the current writer, which holds
@@ -629,4 +822,40 @@ private HistoryRecord createHistoryRecordFromNode(Node node)
 
         return new HistoryRecord(structure, propertyValues);
     }
+
+    /**
+     * A record appended to a document which was not written yet.
+     */
+    private static class PendingRecord
+    {
+        private final String filename;
+
+        private final Document doc;
+
+        private final Element elem;
+
+        /**
+         * The position of the record in the document.
+         */
+        private final int position;
+
+        private final long timestamp;
+
+        /**
+         * Whether the oldest record of the document was removed to make room
+         * for this one.
+         */
+        private final boolean removed;
+
+        PendingRecord(String filename, Document doc, Element elem,
+                      int position, long timestamp, boolean removed)
+        {
+            this.filename = filename;
+            this.doc = doc;
+            this.elem = elem;
+            this.position = position;
+            this.timestamp = timestamp;
+            this.removed = removed;
+        }
+    }
 }
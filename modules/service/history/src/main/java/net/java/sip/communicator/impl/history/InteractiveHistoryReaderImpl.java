@@ -17,18 +17,12 @@
  */
 package net.java.sip.communicator.impl.history;
 
-import static
-    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
-
-import java.text.*;
 import java.util.*;
 
 import net.java.sip.communicator.service.history.*;
 import net.java.sip.communicator.service.history.event.*;
 import net.java.sip.communicator.service.history.records.*;
 
-import org.w3c.dom.*;
-
 /**
  * The <tt>InteractiveHistoryReaderImpl</tt> is an implementation of the
  * <tt>InteractiveHistoryReader</tt> interface. It allows to search in the
@@ -150,57 +144,88 @@ private void find(  Date startDate,
                         int resultCount,
                         HistoryQueryImpl query)
     {
+        // records queued by the writer are read from disk
+        history.flushPendingWrites();
+
         Vector<String> filelist
             = HistoryReaderImpl.filterFilesByDate(  history.getFileList(),
                                                     startDate, endDate, true);
+        Map<String, int[]> candidates
+            = history.findKeywordCandidates(keywords, field, filelist);
+        TimeIndex timeIndex = startDate == null && endDate == null
+            ? null : history.getTimeIndex();
         Iterator<String> fileIterator = filelist.iterator();
 
-        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
         while (fileIterator.hasNext() && resultCount > 0 && !query.isCanceled())
         {
             String filename = fileIterator.next();
-            Document doc = history.getDocumentForFile(filename);
+            int[] positions
+                = candidates == null ? null : candidates.get(filename);
 
-            if(doc == null)
+            // files without candidates in the keyword index are not read
+            if(positions != null && positions.length == 0)
                 continue;
 
-            NodeList nodes = doc.getElementsByTagName("record");
+            // neither are files without records in the period
+            TimeIndex.Entry entry
+                = timeIndex == null ? null : timeIndex.getEntry(filename);
+            if(entry != null && !entry.overlaps(startDate, endDate))
+                continue;
 
-            for ( int i = nodes.getLength() - 1;
-                  i >= 0 && !query.isCanceled();
-                  i--)
-            {
-                Node node = nodes.item(i);
-                Date timestamp;
-                String ts = node.getAttributes().getNamedItem("timestamp")
-                        .getNodeValue();
-                try
-                {
-                    timestamp = sdf.parse(ts);
-                }
-                catch (ParseException e)
-                {
-                    timestamp = new Date(Long.parseLong(ts));
-                }
+            // files are streamed from their start while results are
+            // returned newest first
+            List<HistoryRecord> fileRecords = new ArrayList<HistoryRecord>();
 
-                if(HistoryReaderImpl.isInPeriod(timestamp, startDate, endDate))
+            HistoryRecordScanner scanner = history.createScanner(filename);
+            if(entry != null && startDate != null)
+                entry.seek(scanner,
+                    entry.getPositionBefore(startDate.getTime()));
+            try
+            {
+                while (!query.isCanceled() && scanner.next())
                 {
-                    NodeList propertyNodes = node.getChildNodes();
+                    // the following records of an ordered file are all
+                    // after the period
+                    if(endDate != null
+                        && scanner.getTimestamp() >= endDate.getTime()
+                        && entry != null
+                        && entry.isOrdered())
+                        break;
+
+                    if(!HistoryReaderImpl.isInPeriod(
+                            scanner.getTimestamp(), startDate, endDate)
+                        || !KeywordIndex.isCandidate(
+                            positions, scanner.getRecordIndex()))
+                        continue;
+
+                    scanner.readProperties();
 
                     HistoryRecord record =
                         HistoryReaderImpl
-                            .filterByKeyword(propertyNodes, timestamp,
+                            .filterByKeyword(scanner,
                                         keywords, field, caseSensitive);
 
                     if(record != null)
-                    {
-                        query.addHistoryRecord(record);
-                        resultCount--;
-                    }
+                        fileRecords.add(record);
                 }
             }
+            finally
+            {
+                scanner.close();
+            }
+
+            for ( int i = fileRecords.size() - 1;
+                  i >= 0 && !query.isCanceled();
+                  i--)
+            {
+                query.addHistoryRecord(fileRecords.get(i));
+                resultCount--;
+            }
         }
 
+        if (timeIndex != null)
+            timeIndex.flush();
+
         if (query.isCanceled())
             query.setStatus(HistoryQueryStatusEvent.QUERY_CANCELED);
         else
@@ -0,0 +1,1115 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+import lombok.extern.slf4j.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.apache.commons.text.*;
+import org.w3c.dom.*;
+
+/**
+ * An inverted index over one field of the records of a {@link HistoryImpl},
+ * used to answer keyword searches without reading every record.
+ * <p>
+ * Keywords are matched as substrings, so the terms of the index are the
+ * trigrams of the field values, folded to lower case, and every term points
+ * to the document and the position of the records having it. A record can
+ * only match a keyword of {@link #TERM_LENGTH} or more characters if it has
+ * all trigrams of the keyword. Such candidate records are still matched by
+ * the readers, so the same index serves case sensitive and case insensitive
+ * searches and the results are exactly those of a full scan. Searches with
+ * shorter keywords only don't use the index.
+ * <p>
+ * The index is kept next to the history documents as an append-only log of
+ * framed and checksummed entries: <tt>RESET</tt> holds all records of a
+ * document which was (re)indexed, <tt>ADD</tt> a record appended by the
+ * <tt>HistoryWriterImpl</tt> and <tt>DROP</tt> forgets a document which was
+ * changed in another way. Entries carry the size and the modification time of
+ * their document, so documents changed behind the back of the index are not
+ * trusted. Documents which are not indexed are scanned by the readers and
+ * reindexed in the background. The log is loaded on the first search and is
+ * compacted once it holds more stale than live data.
+ */
+@Slf4j
+class KeywordIndex
+{
+    /**
+     * The file name extension of keyword index logs.
+     */
+    static final String INDEX_FILETYPE = ".kwidx";
+
+    /**
+     * The number of characters of a term.
+     */
+    static final int TERM_LENGTH = 3;
+
+    /**
+     * The magic at the start of every index log ("JKW1").
+     */
+    private static final int HEADER_MAGIC = 0x4A4B5731;
+
+    /**
+     * The size of the framing around an entry payload - length and CRC32.
+     */
+    private static final int FRAME_OVERHEAD = 8;
+
+    private static final byte ENTRY_RESET = 1;
+
+    private static final byte ENTRY_ADD = 2;
+
+    private static final byte ENTRY_DROP = 3;
+
+    /**
+     * The number of stale postings below which the index is never
+     * compacted.
+     */
+    private static final long MIN_COMPACTION_POSTINGS = 4096;
+
+    private final HistoryImpl historyImpl;
+
+    private final String field;
+
+    /**
+     * The log of this index.
+     */
+    private final File file;
+
+    /**
+     * Whether the log was read into memory.
+     */
+    private boolean loaded = false;
+
+    /**
+     * The indexed documents by name.
+     */
+    private final Map<String, IndexedDocument> documents
+        = new HashMap<String, IndexedDocument>();
+
+    /**
+     * The indexed documents by their id in the postings.
+     */
+    private final Map<Integer, IndexedDocument> documentsById
+        = new HashMap<Integer, IndexedDocument>();
+
+    /**
+     * The postings of every term, each one being the id of a document in the
+     * upper and the position of a record in the lower 32 bits.
+     */
+    private final Map<Long, Postings> postings = new HashMap<Long, Postings>();
+
+    private int nextDocumentId = 0;
+
+    /**
+     * The number of postings of the indexed documents.
+     */
+    private long livePostings = 0;
+
+    /**
+     * The number of postings of documents which are no longer indexed.
+     */
+    private long deadPostings = 0;
+
+    /**
+     * The documents waiting to be reindexed.
+     */
+    private final Set<String> pending = new HashSet<String>();
+
+    /**
+     * Creates the index of <tt>field</tt> in <tt>historyImpl</tt>. The log
+     * is read or created on first use.
+     *
+     * @param historyImpl the history
+     * @param field the indexed field
+     */
+    KeywordIndex(HistoryImpl historyImpl, String field)
+    {
+        this.historyImpl = historyImpl;
+        this.field = field;
+        this.file
+            = new File(historyImpl.getDirectory(), field + INDEX_FILETYPE);
+    }
+
+    /**
+     * Checks whether a field name can be used as the name of an index log.
+     *
+     * @param field the field name
+     * @return <tt>true</tt> if the field can be indexed
+     */
+    static boolean isIndexable(String field)
+    {
+        if (field == null || field.length() == 0)
+            return false;
+
+        for (int i = 0; i < field.length(); i++)
+        {
+            char c = field.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '_' && c != '-')
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Checks whether a record is a candidate of a search.
+     *
+     * @param positions the sorted positions of the candidates in a document
+     * or <tt>null</tt> if the document is not indexed
+     * @param position the position of the record in the document
+     * @return <tt>true</tt> if the record must be matched
+     */
+    static boolean isCandidate(int[] positions, int position)
+    {
+        return positions == null
+            || Arrays.binarySearch(positions, position) >= 0;
+    }
+
+    /**
+     * Finds the records of <tt>documents</tt> which may contain all
+     * <tt>keywords</tt>. Documents which are not indexed or changed since
+     * they were indexed are left out of the result, to be scanned by the
+     * caller, and get reindexed in the background.
+     *
+     * @param keywords the keywords of the search
+     * @param filenames the names of the documents to search
+     * @return the sorted positions of the candidate records by document name
+     * or <tt>null</tt> if the index can't be used for these keywords
+     */
+    synchronized Map<String, int[]> findCandidates(String[] keywords,
+                                                   Collection<String> filenames)
+    {
+        List<String> keywordList = new ArrayList<String>();
+        for (String keyword : keywords)
+        {
+            if (keyword != null && keyword.length() >= TERM_LENGTH)
+                keywordList.add(keyword);
+        }
+        if (keywordList.isEmpty() || !load())
+            return null;
+
+        long[] matches = intersect(terms(keywordList));
+
+        Map<String, int[]> result = new HashMap<String, int[]>();
+        List<String> unindexed = new ArrayList<String>();
+        for (String filename : filenames)
+        {
+            IndexedDocument document = documents.get(filename);
+            if (document == null || !isCurrent(document))
+            {
+                unindexed.add(filename);
+                continue;
+            }
+
+            int from = lowerBound(matches, (long) document.id << 32);
+            int to = lowerBound(matches, (long) (document.id + 1) << 32);
+            int[] positions = new int[to - from];
+            for (int i = from; i < to; i++)
+                positions[i - from] = (int) matches[i];
+            result.put(filename, positions);
+        }
+
+        scheduleReindex(unindexed);
+        return result;
+    }
+
+    /**
+     * Indexes a record which was appended to a document and written to disk
+     * by the <tt>HistoryWriterImpl</tt>.
+     *
+     * @param filename the name of the document
+     * @param position the position of the record in the document
+     * @param previousLength the size of the document before it was written
+     * @param previousModified the modification time of the document before
+     * it was written
+     * @param record the record element as it was written
+     */
+    synchronized void recordAdded(String filename, int position,
+                                  long previousLength, long previousModified,
+                                  Element record)
+    {
+        File document = new File(historyImpl.getDirectory(), filename);
+        long length = document.length();
+        long modified = document.lastModified();
+        long[] terms = terms(getValues(record));
+
+        if (loaded)
+        {
+            boolean indexed = documents.containsKey(filename);
+            if (!applyAdd(filename, position, previousLength,
+                    previousModified, length, modified, terms))
+            {
+                scheduleReindex(Collections.singletonList(filename));
+
+                // the log already ignores this document
+                if (!indexed)
+                    return;
+            }
+        }
+
+        append(encodeAdd(filename, position, previousLength,
+            previousModified, length, modified, terms));
+    }
+
+    /**
+     * Forgets a document which was changed in a way other than appending a
+     * record, e.g. because a record was inserted, updated or removed.
+     *
+     * @param filename the name of the document
+     */
+    synchronized void documentChanged(String filename)
+    {
+        if (loaded)
+        {
+            untrack(filename);
+            scheduleReindex(Collections.singletonList(filename));
+        }
+
+        append(encodeDrop(filename));
+    }
+
+    /**
+     * Reads the log into memory if not done yet, creating it if missing or
+     * starting over if it can't be read.
+     *
+     * @return <tt>true</tt> if the index can be used
+     */
+    private boolean load()
+    {
+        if (loaded)
+            return true;
+
+        try
+        {
+            if (file.exists())
+                read();
+            else
+                writeLog();
+
+            loaded = true;
+            compactIfNeeded();
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not read keyword index " + file
+                + ", rebuilding it", e);
+
+            clear();
+            try
+            {
+                writeLog();
+                loaded = true;
+            }
+            catch (IOException ex)
+            {
+                logger.error("Could not create keyword index " + file, ex);
+            }
+        }
+
+        return loaded;
+    }
+
+    /**
+     * Replays the log, cutting it off at the first entry which is incomplete
+     * or fails its checksum.
+     *
+     * @throws IOException if the log can't be read
+     */
+    private void read()
+        throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            long length = raf.length();
+            if (length < 4 || raf.readInt() != HEADER_MAGIC)
+                throw new IOException("Not a keyword index");
+
+            byte[] data = new byte[(int) (length - 4)];
+            raf.readFully(data);
+
+            int position = 0;
+            CRC32 crc = new CRC32();
+            while (position + FRAME_OVERHEAD <= data.length)
+            {
+                int payloadLength = readInt(data, position);
+                if (payloadLength < 1
+                    || payloadLength > data.length - position - FRAME_OVERHEAD)
+                {
+                    break;
+                }
+
+                crc.reset();
+                crc.update(data, position + 4, payloadLength);
+                if ((int) crc.getValue()
+                        != readInt(data, position + 4 + payloadLength))
+                {
+                    break;
+                }
+
+                try
+                {
+                    replay(new DataInputStream(new ByteArrayInputStream(
+                        data, position + 4, payloadLength)));
+                }
+                catch (IOException e)
+                {
+                    break;
+                }
+
+                position += FRAME_OVERHEAD + payloadLength;
+            }
+
+            if (position < data.length)
+            {
+                logger.warn("Truncating damaged keyword index " + file
+                    + " at " + (4 + position) + " of " + length);
+                raf.setLength(4 + position);
+            }
+        }
+    }
+
+    /**
+     * Applies a log entry to the in-memory index.
+     *
+     * @param in the entry payload
+     * @throws IOException if the entry is malformed
+     */
+    private void replay(DataInputStream in)
+        throws IOException
+    {
+        byte type = in.readByte();
+        String filename = in.readUTF();
+        switch (type)
+        {
+        case ENTRY_RESET:
+            long length = in.readLong();
+            long modified = in.readLong();
+            int count = in.readInt();
+            List<long[]> records = new ArrayList<long[]>(count);
+            for (int i = 0; i < count; i++)
+                records.add(readTerms(in));
+
+            applyReset(filename, length, modified, records);
+            break;
+        case ENTRY_ADD:
+            int position = in.readInt();
+            long previousLength = in.readLong();
+            long previousModified = in.readLong();
+            long newLength = in.readLong();
+            long newModified = in.readLong();
+            long[] terms = readTerms(in);
+
+            applyAdd(filename, position, previousLength, previousModified,
+                newLength, newModified, terms);
+            break;
+        case ENTRY_DROP:
+            untrack(filename);
+            break;
+        default:
+            throw new IOException("Unknown keyword index entry " + type);
+        }
+    }
+
+    /**
+     * Indexes all records of a document, replacing what was indexed for it.
+     *
+     * @param filename the name of the document
+     * @param length the size of the document
+     * @param modified the modification time of the document
+     * @param records the terms of every record of the document
+     */
+    private void applyReset(String filename, long length, long modified,
+                            List<long[]> records)
+    {
+        IndexedDocument document = track(filename);
+        document.length = length;
+        document.modified = modified;
+        for (long[] terms : records)
+            addPostings(document, terms);
+    }
+
+    /**
+     * Indexes a record appended to a document if the document is indexed up
+     * to that record and was not changed otherwise since, or if the record is
+     * the first of a new document. Otherwise the document is no longer
+     * indexed.
+     *
+     * @param filename the name of the document
+     * @param position the position of the record in the document
+     * @param previousLength the size of the document before the record
+     * @param previousModified the modification time of the document before
+     * the record
+     * @param length the size of the document with the record
+     * @param modified the modification time of the document with the record
+     * @param terms the distinct terms of the record
+     * @return <tt>true</tt> if the record was indexed
+     */
+    private boolean applyAdd(String filename, int position,
+                             long previousLength, long previousModified,
+                             long length, long modified, long[] terms)
+    {
+        IndexedDocument document = documents.get(filename);
+        if (position == 0 && previousLength == 0 && previousModified == 0)
+        {
+            document = track(filename);
+        }
+        else if (document == null
+            || document.count != position
+            || document.length != previousLength
+            || document.modified != previousModified)
+        {
+            untrack(filename);
+            return false;
+        }
+
+        addPostings(document, terms);
+        document.length = length;
+        document.modified = modified;
+        return true;
+    }
+
+    /**
+     * Starts indexing a document from scratch.
+     *
+     * @param filename the name of the document
+     * @return the document without records
+     */
+    private IndexedDocument track(String filename)
+    {
+        untrack(filename);
+
+        IndexedDocument document
+            = new IndexedDocument(filename, nextDocumentId++);
+        documents.put(filename, document);
+        documentsById.put(document.id, document);
+        return document;
+    }
+
+    /**
+     * Stops indexing a document. Its postings stay in memory until the index
+     * is compacted but are not returned any more.
+     *
+     * @param filename the name of the document
+     */
+    private void untrack(String filename)
+    {
+        IndexedDocument document = documents.remove(filename);
+        if (document != null)
+        {
+            documentsById.remove(document.id);
+            livePostings -= document.postings;
+            deadPostings += document.postings;
+        }
+    }
+
+    /**
+     * Adds the next record of a document to the postings of its terms.
+     *
+     * @param document the document
+     * @param terms the distinct terms of the record
+     */
+    private void addPostings(IndexedDocument document, long[] terms)
+    {
+        long posting = ((long) document.id << 32) | document.count;
+        for (long term : terms)
+        {
+            Postings termPostings = postings.get(term);
+            if (termPostings == null)
+            {
+                termPostings = new Postings();
+                postings.put(term, termPostings);
+            }
+            termPostings.add(posting);
+        }
+
+        document.count++;
+        document.postings += terms.length;
+        livePostings += terms.length;
+    }
+
+    /**
+     * Drops everything held in memory.
+     */
+    private void clear()
+    {
+        documents.clear();
+        documentsById.clear();
+        postings.clear();
+        livePostings = 0;
+        deadPostings = 0;
+    }
+
+    /**
+     * Returns the postings having all given terms.
+     *
+     * @param terms the terms
+     * @return the sorted postings
+     */
+    private long[] intersect(long[] terms)
+    {
+        Postings[] lists = new Postings[terms.length];
+        for (int i = 0; i < terms.length; i++)
+        {
+            lists[i] = postings.get(terms[i]);
+            if (lists[i] == null)
+                return new long[0];
+            lists[i].sort();
+        }
+
+        // start with the rarest term to do the fewest lookups
+        Arrays.sort(lists, new Comparator<Postings>()
+        {
+            public int compare(Postings p1, Postings p2)
+            {
+                return Integer.compare(p1.size, p2.size);
+            }
+        });
+
+        long[] result = Arrays.copyOf(lists[0].items, lists[0].size);
+        int size = result.length;
+        for (int i = 1; i < lists.length && size > 0; i++)
+        {
+            int matched = 0;
+            for (int j = 0; j < size; j++)
+            {
+                if (Arrays.binarySearch(
+                        lists[i].items, 0, lists[i].size, result[j]) >= 0)
+                {
+                    result[matched++] = result[j];
+                }
+            }
+            size = matched;
+        }
+
+        return Arrays.copyOf(result, size);
+    }
+
+    /**
+     * Checks whether a document is unchanged since it was last indexed.
+     *
+     * @param document the indexed document
+     * @return <tt>true</tt> if the index of the document can be used
+     */
+    private boolean isCurrent(IndexedDocument document)
+    {
+        File f = new File(historyImpl.getDirectory(), document.name);
+        return f.length() == document.length
+            && f.lastModified() == document.modified;
+    }
+
+    /**
+     * Schedules the given documents to be reindexed in the background, unless
+     * they already are.
+     *
+     * @param filenames the names of the documents
+     */
+    private void scheduleReindex(Collection<String> filenames)
+    {
+        for (final String filename : filenames)
+        {
+            if (!pending.add(filename))
+                continue;
+
+            boolean scheduled = historyImpl.getHistoryServiceImpl()
+                .scheduleIndexing(new Runnable()
+                {
+                    public void run()
+                    {
+                        reindex(filename);
+                    }
+                });
+            if (!scheduled)
+                pending.remove(filename);
+        }
+    }
+
+    /**
+     * Indexes all records of a document. The document is read without
+     * holding the lock of the index.
+     *
+     * @param filename the name of the document
+     */
+    private void reindex(String filename)
+    {
+        try
+        {
+            File document = new File(historyImpl.getDirectory(), filename);
+
+            // take the stamp first, so changes made while reading the
+            // document make it outdated
+            long length = document.length();
+            long modified = document.lastModified();
+            if (length == 0 && modified == 0)
+                return;
+
+            List<long[]> records = new ArrayList<long[]>();
+            List<String> values = new ArrayList<String>();
+            HistoryRecordScanner scanner = historyImpl.createScanner(filename);
+            try
+            {
+                while (scanner.next())
+                {
+                    scanner.readProperties();
+
+                    values.clear();
+                    List<String> names = scanner.getPropertyNames();
+                    for (int i = 0; i < names.size(); i++)
+                    {
+                        if (field.equals(names.get(i)))
+                        {
+                            values.add(StringEscapeUtils.unescapeXml(
+                                scanner.getPropertyValues().get(i)));
+                        }
+                    }
+                    records.add(terms(values));
+                }
+            }
+            finally
+            {
+                scanner.close();
+            }
+
+            synchronized (this)
+            {
+                applyReset(filename, length, modified, records);
+                append(encodeReset(filename, length, modified, records));
+                compactIfNeeded();
+            }
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Could not index history document " + filename, e);
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                pending.remove(filename);
+            }
+        }
+    }
+
+    /**
+     * Compacts the index if stale postings outweigh the live ones or if the
+     * log grew much larger than its live data.
+     */
+    private void compactIfNeeded()
+    {
+        long liveSize = livePostings * 8 + documents.size() * 64L;
+        if (deadPostings > Math.max(livePostings, MIN_COMPACTION_POSTINGS)
+            || file.length()
+                > 2 * liveSize + MIN_COMPACTION_POSTINGS * 8)
+        {
+            try
+            {
+                compact();
+            }
+            catch (IOException e)
+            {
+                logger.warn("Could not compact keyword index " + file, e);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log with a single <tt>RESET</tt> entry per indexed
+     * document and rebuilds the in-memory index without stale postings.
+     *
+     * @throws IOException if the log can't be written
+     */
+    private void compact()
+        throws IOException
+    {
+        // regroup the live postings by record
+        Map<Integer, Postings[]> recordTerms = new HashMap<Integer, Postings[]>();
+        for (IndexedDocument document : documents.values())
+        {
+            Postings[] records = new Postings[document.count];
+            for (int i = 0; i < records.length; i++)
+                records[i] = new Postings();
+            recordTerms.put(document.id, records);
+        }
+        for (Map.Entry<Long, Postings> entry : postings.entrySet())
+        {
+            Postings termPostings = entry.getValue();
+            for (int i = 0; i < termPostings.size; i++)
+            {
+                long posting = termPostings.items[i];
+                Postings[] records = recordTerms.get((int) (posting >>> 32));
+                if (records != null)
+                    records[(int) posting].add(entry.getKey());
+            }
+        }
+
+        List<IndexedDocument> live
+            = new ArrayList<IndexedDocument>(documents.values());
+        Map<String, List<long[]>> resets
+            = new LinkedHashMap<String, List<long[]>>();
+        for (IndexedDocument document : live)
+        {
+            List<long[]> records = new ArrayList<long[]>(document.count);
+            for (Postings terms : recordTerms.get(document.id))
+            {
+                terms.sort();
+                records.add(Arrays.copyOf(terms.items, terms.size));
+            }
+            resets.put(document.name, records);
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp))
+        {
+            out.write(header());
+            for (IndexedDocument document : live)
+            {
+                out.write(frame(encodeReset(document.name, document.length,
+                    document.modified, resets.get(document.name))));
+            }
+        }
+        FileUtils.replaceFile(tmp, file);
+
+        clear();
+        for (IndexedDocument document : live)
+        {
+            applyReset(document.name, document.length, document.modified,
+                resets.get(document.name));
+        }
+    }
+
+    /**
+     * Writes a new log holding no documents.
+     *
+     * @throws IOException if the log can't be written
+     */
+    private void writeLog()
+        throws IOException
+    {
+        try (FileOutputStream out = new FileOutputStream(file))
+        {
+            out.write(header());
+        }
+    }
+
+    /**
+     * Appends an entry to the log. Failures are only logged, as the entries
+     * of the documents which follow will then not match the log and these
+     * documents will be reindexed.
+     *
+     * @param payload the entry payload
+     */
+    private void append(byte[] payload)
+    {
+        // never recreate a removed log without its header
+        if (!file.exists())
+            return;
+
+        // a single write, so a concurrent reader never sees half an entry
+        try (FileOutputStream out = new FileOutputStream(file, true))
+        {
+            out.write(frame(payload));
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not write keyword index " + file, e);
+        }
+    }
+
+    private static byte[] header()
+    {
+        return new byte[]
+            {
+                (byte) (HEADER_MAGIC >>> 24),
+                (byte) (HEADER_MAGIC >>> 16),
+                (byte) (HEADER_MAGIC >>> 8),
+                (byte) HEADER_MAGIC
+            };
+    }
+
+    /**
+     * Frames an entry payload with its length and CRC32.
+     *
+     * @param payload the payload
+     * @return the framed entry
+     */
+    private static byte[] frame(byte[] payload)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        ByteArrayOutputStream bytes
+            = new ByteArrayOutputStream(payload.length + FRAME_OVERHEAD);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc.getValue());
+        }
+        catch (IOException e)
+        {
+            // can't happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeReset(String filename, long length,
+                                      long modified, List<long[]> records)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(ENTRY_RESET);
+            out.writeUTF(filename);
+            out.writeLong(length);
+            out.writeLong(modified);
+            out.writeInt(records.size());
+            for (long[] terms : records)
+                writeTerms(out, terms);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeAdd(String filename, int position,
+                                    long previousLength, long previousModified,
+                                    long length, long modified, long[] terms)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(ENTRY_ADD);
+            out.writeUTF(filename);
+            out.writeInt(position);
+            out.writeLong(previousLength);
+            out.writeLong(previousModified);
+            out.writeLong(length);
+            out.writeLong(modified);
+            writeTerms(out, terms);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] encodeDrop(String filename)
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try
+        {
+            out.writeByte(ENTRY_DROP);
+            out.writeUTF(filename);
+        }
+        catch (IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeTerms(DataOutputStream out, long[] terms)
+        throws IOException
+    {
+        out.writeInt(terms.length);
+        for (long term : terms)
+            out.writeLong(term);
+    }
+
+    private static long[] readTerms(DataInputStream in)
+        throws IOException
+    {
+        int count = in.readInt();
+        if (count < 0 || count > in.available() / 8)
+            throw new IOException("Invalid term count " + count);
+
+        long[] terms = new long[count];
+        for (int i = 0; i < count; i++)
+            terms[i] = in.readLong();
+        return terms;
+    }
+
+    private static int readInt(byte[] data, int offset)
+    {
+        return ((data[offset] & 0xFF) << 24)
+            | ((data[offset + 1] & 0xFF) << 16)
+            | ((data[offset + 2] & 0xFF) << 8)
+            | (data[offset + 3] & 0xFF);
+    }
+
+    /**
+     * Returns the index of the first element of a sorted array which is not
+     * less than <tt>value</tt>.
+     */
+    private static int lowerBound(long[] sorted, long value)
+    {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high)
+        {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] < value)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        return low;
+    }
+
+    /**
+     * Returns the values of the indexed field of a record element, read the
+     * way the readers do.
+     *
+     * @param record the record element
+     * @return the unescaped values
+     */
+    private List<String> getValues(Element record)
+    {
+        List<String> values = new ArrayList<String>();
+        NodeList propertyNodes = record.getChildNodes();
+        for (int i = 0; i < propertyNodes.getLength(); i++)
+        {
+            Node propertyNode = propertyNodes.item(i);
+            if (propertyNode.getNodeType() != Node.ELEMENT_NODE
+                || !field.equals(propertyNode.getNodeName()))
+            {
+                continue;
+            }
+
+            Node nestedNode = propertyNode.getFirstChild();
+            if (nestedNode != null)
+            {
+                values.add(
+                    StringEscapeUtils.unescapeXml(nestedNode.getNodeValue()));
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Returns the distinct terms of some values.
+     *
+     * @param values the values
+     * @return the sorted terms
+     */
+    static long[] terms(Collection<String> values)
+    {
+        int capacity = 0;
+        for (String value : values)
+            capacity += Math.max(0, value.length() - TERM_LENGTH + 1);
+
+        long[] terms = new long[capacity];
+        int count = 0;
+        for (String value : values)
+        {
+            for (int i = 0; i + TERM_LENGTH <= value.length(); i++)
+            {
+                terms[count++]
+                    = ((long) Character.toLowerCase(value.charAt(i)) << 32)
+                    | ((long) Character.toLowerCase(value.charAt(i + 1)) << 16)
+                    | Character.toLowerCase(value.charAt(i + 2));
+            }
+        }
+
+        Arrays.sort(terms, 0, count);
+        int distinct = 0;
+        for (int i = 0; i < count; i++)
+        {
+            if (distinct == 0 || terms[distinct - 1] != terms[i])
+                terms[distinct++] = terms[i];
+        }
+        return Arrays.copyOf(terms, distinct);
+    }
+
+    /**
+     * A document known to the index.
+     */
+    private static class IndexedDocument
+    {
+        final String name;
+
+        final int id;
+
+        /**
+         * The number of indexed records.
+         */
+        int count = 0;
+
+        /**
+         * The size of the document when it was last indexed.
+         */
+        long length;
+
+        /**
+         * The modification time of the document when it was last indexed.
+         */
+        long modified;
+
+        /**
+         * The number of postings of the document.
+         */
+        long postings = 0;
+
+        IndexedDocument(String name, int id)
+        {
+            this.name = name;
+            this.id = id;
+        }
+    }
+
+    /**
+     * A growable list of postings, sorted when searched.
+     */
+    private static class Postings
+    {
+        long[] items = new long[4];
+
+        int size = 0;
+
+        boolean sorted = true;
+
+        void add(long posting)
+        {
+            if (size == items.length)
+                items = Arrays.copyOf(items, size * 2);
+            if (size > 0 && items[size - 1] > posting)
+                sorted = false;
+            items[size++] = posting;
+        }
+
+        void sort()
+        {
+            if (!sorted)
+            {
+                Arrays.sort(items, 0, size);
+                sorted = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,697 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.zip.*;
+
+import lombok.extern.slf4j.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * A single append-only segment of a history stored by the segment backend.
+ * <p>
+ * A segment starts with a four byte magic header, followed by the records.
+ * Every record is framed as its payload length, the payload itself and the
+ * CRC32 of the payload, so a record torn by a crash is detected and cut off
+ * the next time the segment is opened. Once a segment is full it is sealed by
+ * appending a footer holding the timestamp and offset of every record, which
+ * lets the segment be opened without scanning it. The segment which is still
+ * being appended to has no footer, and its index is rebuilt by scanning it.
+ * <p>
+ * A record payload holds the timestamp, followed by the names and the values
+ * of the properties which are set. Names are stored as they are returned by
+ * the readers, i.e. without the <tt>_CDATA</tt> suffix used by the writers.
+ */
+@Slf4j
+class SegmentFile
+{
+    /**
+     * The file name extension of segment files.
+     */
+    static final String SEGMENT_FILETYPE = ".seg";
+
+    /**
+     * The magic at the start of every segment ("JHS1").
+     */
+    private static final int HEADER_MAGIC = 0x4A485331;
+
+    /**
+     * The magic at the very end of a sealed segment ("JHSF").
+     */
+    private static final int FOOTER_MAGIC = 0x4A485346;
+
+    /**
+     * The size of the footer trailer - the footer offset and the magic.
+     */
+    private static final int FOOTER_TRAILER_SIZE = 12;
+
+    /**
+     * The size of the framing around a record payload - length and CRC32.
+     */
+    private static final int FRAME_OVERHEAD = 8;
+
+    /**
+     * The file backing this segment.
+     */
+    private File file;
+
+    /**
+     * The timestamps of the records in this segment in the order they are
+     * stored.
+     */
+    private long[] timestamps = new long[16];
+
+    /**
+     * The offsets of the records in this segment.
+     */
+    private long[] offsets = new long[16];
+
+    /**
+     * The number of records in this segment.
+     */
+    private int count = 0;
+
+    /**
+     * The end of the record data, i.e. the position of the footer for sealed
+     * segments or the position of the next append.
+     */
+    private long dataEnd;
+
+    /**
+     * Whether this segment has its footer written and accepts no appends.
+     */
+    private boolean sealed = false;
+
+    /**
+     * Whether the timestamps of the records are in non-decreasing order,
+     * which allows lookups by timestamp to use binary search.
+     */
+    private boolean ordered = true;
+
+    /**
+     * Creates a <tt>SegmentFile</tt> for the given file. Use {@link #open}
+     * or {@link #create} to obtain instances.
+     *
+     * @param file the file backing the segment
+     */
+    private SegmentFile(File file)
+    {
+        this.file = file;
+    }
+
+    /**
+     * Creates a new and empty segment in <tt>directory</tt>, named after the
+     * timestamp of its first record.
+     *
+     * @param directory the history directory
+     * @param firstTimestamp the timestamp of the first record
+     * @return the new segment
+     * @throws IOException if the segment could not be created
+     */
+    static SegmentFile create(File directory, long firstTimestamp)
+        throws IOException
+    {
+        File file = new File(directory, firstTimestamp + SEGMENT_FILETYPE);
+
+        // never override an existing segment
+        while (file.exists())
+        {
+            firstTimestamp++;
+            file = new File(directory, firstTimestamp + SEGMENT_FILETYPE);
+        }
+
+        SegmentFile segment = new SegmentFile(file);
+        try (DataOutputStream out = new DataOutputStream(
+            new FileOutputStream(file)))
+        {
+            out.writeInt(HEADER_MAGIC);
+        }
+        segment.dataEnd = 4;
+
+        return segment;
+    }
+
+    /**
+     * Opens an existing segment, loading its footer index when it is sealed
+     * or scanning its records otherwise. A torn record at the end of an
+     * unsealed segment is cut off.
+     *
+     * @param file the segment file
+     * @return the opened segment
+     * @throws IOException if the file is not a segment or can't be read
+     */
+    static SegmentFile open(File file)
+        throws IOException
+    {
+        SegmentFile segment = new SegmentFile(file);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw"))
+        {
+            if (raf.length() < 4 || raf.readInt() != HEADER_MAGIC)
+            {
+                throw new IOException("Not a history segment: " + file);
+            }
+
+            if (!segment.loadFooter(raf))
+            {
+                segment.scan(raf);
+            }
+        }
+
+        return segment;
+    }
+
+    /**
+     * Writes the given records as a new content of <tt>file</tt>. The records
+     * are first written to a temporary file which then replaces the target,
+     * so a crash leaves either the old or the new content.
+     *
+     * @param file the segment file to write
+     * @param records the records to store
+     * @param seal whether to append a footer to the written segment
+     * @return the written segment
+     * @throws IOException if writing fails
+     */
+    static SegmentFile write(File file,
+                             List<HistoryRecord> records,
+                             boolean seal)
+        throws IOException
+    {
+        File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+        SegmentFile segment = new SegmentFile(tmp);
+
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(tmp))))
+        {
+            out.writeInt(HEADER_MAGIC);
+            segment.dataEnd = 4;
+
+            for (HistoryRecord record : records)
+            {
+                segment.writeFrame(out, record);
+            }
+
+            if (seal)
+            {
+                segment.writeFooter(out);
+            }
+        }
+
+        Files.move(tmp.toPath(), file.toPath(),
+            StandardCopyOption.REPLACE_EXISTING);
+
+        segment.file = file;
+        segment.sealed = seal;
+        return segment;
+    }
+
+    /**
+     * Returns the file backing this segment.
+     *
+     * @return the file backing this segment
+     */
+    File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Returns the number of records in this segment.
+     *
+     * @return the number of records in this segment
+     */
+    synchronized int getRecordCount()
+    {
+        return count;
+    }
+
+    /**
+     * Returns whether this segment is sealed.
+     *
+     * @return <tt>true</tt> if this segment accepts no more appends
+     */
+    synchronized boolean isSealed()
+    {
+        return sealed;
+    }
+
+    /**
+     * Returns whether the records of this segment are ordered by timestamp.
+     *
+     * @return <tt>true</tt> if the records are ordered by timestamp
+     */
+    synchronized boolean isOrdered()
+    {
+        return ordered;
+    }
+
+    /**
+     * Returns the timestamp of the record at <tt>index</tt>.
+     *
+     * @param index the index of the record
+     * @return the timestamp of the record in milliseconds
+     */
+    synchronized long getTimestamp(int index)
+    {
+        return timestamps[index];
+    }
+
+    /**
+     * Returns the smallest timestamp in this segment.
+     *
+     * @return the smallest timestamp or <tt>Long.MAX_VALUE</tt> if empty
+     */
+    synchronized long getMinTimestamp()
+    {
+        if (ordered)
+            return count == 0 ? Long.MAX_VALUE : timestamps[0];
+
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < count; i++)
+            min = Math.min(min, timestamps[i]);
+        return min;
+    }
+
+    /**
+     * Returns the greatest timestamp in this segment.
+     *
+     * @return the greatest timestamp or <tt>Long.MIN_VALUE</tt> if empty
+     */
+    synchronized long getMaxTimestamp()
+    {
+        if (ordered)
+            return count == 0 ? Long.MIN_VALUE : timestamps[count - 1];
+
+        long max = Long.MIN_VALUE;
+        for (int i = 0; i < count; i++)
+            max = Math.max(max, timestamps[i]);
+        return max;
+    }
+
+    /**
+     * Returns the index of the first record with timestamp not before
+     * <tt>timestamp</tt>. Only meaningful for ordered segments.
+     *
+     * @param timestamp the timestamp to look for
+     * @return the index of the first record at or after <tt>timestamp</tt>
+     */
+    synchronized int lowerBound(long timestamp)
+    {
+        int low = 0;
+        int high = count;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] < timestamp)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Appends a record to this segment.
+     *
+     * @param record the record to append
+     * @throws IOException if the segment is sealed or writing fails
+     */
+    synchronized void append(HistoryRecord record)
+        throws IOException
+    {
+        append(Collections.singletonList(record));
+    }
+
+    /**
+     * Appends records to this segment with a single write.
+     *
+     * @param records the records to append
+     * @throws IOException if the segment is sealed or writing fails
+     */
+    synchronized void append(List<HistoryRecord> records)
+        throws IOException
+    {
+        if (sealed)
+            throw new IOException("History segment is sealed: " + file);
+
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file, true))))
+        {
+            for (HistoryRecord record : records)
+            {
+                writeFrame(out, record);
+            }
+        }
+    }
+
+    /**
+     * Appends the footer index to this segment so it can be opened without
+     * scanning. No records can be appended afterwards.
+     *
+     * @throws IOException if writing fails
+     */
+    synchronized void seal()
+        throws IOException
+    {
+        if (sealed)
+            return;
+
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(new FileOutputStream(file, true))))
+        {
+            writeFooter(out);
+        }
+        sealed = true;
+    }
+
+    /**
+     * Reads the record at <tt>index</tt>.
+     *
+     * @param raf the open segment file
+     * @param index the index of the record
+     * @return the record
+     * @throws IOException if reading fails
+     */
+    synchronized HistoryRecord read(RandomAccessFile raf, int index)
+        throws IOException
+    {
+        // the file may have been rewritten since this index was loaded, so
+        // never trust the framing before its checksum was verified
+        long offset = offsets[index];
+        raf.seek(offset);
+        int length = raf.readInt();
+        if (length < 8 || offset + FRAME_OVERHEAD + length > raf.length())
+        {
+            throw new IOException("Invalid history record at " + offset
+                + " in " + file);
+        }
+
+        byte[] payload = new byte[length];
+        raf.readFully(payload);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != raf.readInt())
+        {
+            throw new IOException("Corrupt history record at " + offset
+                + " in " + file);
+        }
+
+        return decode(payload);
+    }
+
+    /**
+     * Reads all records of this segment in their stored order.
+     *
+     * @return the records of this segment
+     * @throws IOException if reading fails
+     */
+    synchronized List<HistoryRecord> readAll()
+        throws IOException
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>(count);
+        try (RandomAccessFile raf = openForReading())
+        {
+            for (int i = 0; i < count; i++)
+            {
+                records.add(read(raf, i));
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Opens the segment file for reading records with {@link #read}.
+     *
+     * @return the open file, to be closed by the caller
+     * @throws IOException if the file can't be opened
+     */
+    RandomAccessFile openForReading()
+        throws IOException
+    {
+        return new RandomAccessFile(file, "r");
+    }
+
+    /**
+     * Loads the footer index if this segment is sealed.
+     *
+     * @param raf the open segment file
+     * @return <tt>true</tt> if the footer was found and loaded
+     * @throws IOException if reading fails
+     */
+    private boolean loadFooter(RandomAccessFile raf)
+        throws IOException
+    {
+        long length = raf.length();
+        if (length < 4 + FOOTER_TRAILER_SIZE)
+            return false;
+
+        raf.seek(length - FOOTER_TRAILER_SIZE);
+        long footerOffset = raf.readLong();
+        if (raf.readInt() != FOOTER_MAGIC
+            || footerOffset < 4
+            || footerOffset > length - FOOTER_TRAILER_SIZE - 4)
+        {
+            return false;
+        }
+
+        raf.seek(footerOffset);
+        int footerCount = raf.readInt();
+        if (footerCount < 0
+            || footerOffset + 4 + footerCount * 16L
+                != length - FOOTER_TRAILER_SIZE)
+        {
+            return false;
+        }
+
+        byte[] index = new byte[footerCount * 16];
+        raf.readFully(index);
+        DataInputStream in
+            = new DataInputStream(new ByteArrayInputStream(index));
+        for (int i = 0; i < footerCount; i++)
+        {
+            addToIndex(in.readLong(), in.readLong());
+        }
+
+        dataEnd = footerOffset;
+        sealed = true;
+        return true;
+    }
+
+    /**
+     * Rebuilds the index by scanning all records, cutting off the segment at
+     * the first record which is incomplete or fails its checksum.
+     *
+     * @param raf the open segment file
+     * @throws IOException if reading fails
+     */
+    private void scan(RandomAccessFile raf)
+        throws IOException
+    {
+        long length = raf.length();
+        long position = 4;
+        CRC32 crc = new CRC32();
+
+        while (position + FRAME_OVERHEAD <= length)
+        {
+            raf.seek(position);
+            int payloadLength = raf.readInt();
+            if (payloadLength < 8
+                || position + FRAME_OVERHEAD + payloadLength > length)
+            {
+                break;
+            }
+
+            byte[] payload = new byte[payloadLength];
+            raf.readFully(payload);
+            crc.reset();
+            crc.update(payload);
+            if ((int) crc.getValue() != raf.readInt())
+                break;
+
+            long timestamp = ((payload[0] & 0xFFL) << 56)
+                | ((payload[1] & 0xFFL) << 48)
+                | ((payload[2] & 0xFFL) << 40)
+                | ((payload[3] & 0xFFL) << 32)
+                | ((payload[4] & 0xFFL) << 24)
+                | ((payload[5] & 0xFFL) << 16)
+                | ((payload[6] & 0xFFL) << 8)
+                | (payload[7] & 0xFFL);
+            addToIndex(timestamp, position);
+
+            position += FRAME_OVERHEAD + payloadLength;
+        }
+
+        if (position < length)
+        {
+            logger.warn("Truncating damaged history segment " + file
+                + " at " + position + " of " + length);
+            raf.setLength(position);
+        }
+
+        dataEnd = position;
+    }
+
+    /**
+     * Writes a framed record to <tt>out</tt>, which must be positioned at the
+     * end of the record data, and adds it to the index.
+     *
+     * @param out the stream to write to
+     * @param record the record to write
+     * @throws IOException if writing fails
+     */
+    private void writeFrame(DataOutputStream out, HistoryRecord record)
+        throws IOException
+    {
+        byte[] payload = encode(record);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeInt((int) crc.getValue());
+
+        addToIndex(record.getTimestamp().getTime(), dataEnd);
+        dataEnd += FRAME_OVERHEAD + payload.length;
+    }
+
+    /**
+     * Writes the footer index to <tt>out</tt>, which must be positioned at
+     * the end of the record data.
+     *
+     * @param out the stream to write to
+     * @throws IOException if writing fails
+     */
+    private void writeFooter(DataOutputStream out)
+        throws IOException
+    {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++)
+        {
+            out.writeLong(timestamps[i]);
+            out.writeLong(offsets[i]);
+        }
+        out.writeLong(dataEnd);
+        out.writeInt(FOOTER_MAGIC);
+    }
+
+    /**
+     * Adds a record to the in-memory index.
+     *
+     * @param timestamp the timestamp of the record
+     * @param offset the offset of the record frame
+     */
+    private void addToIndex(long timestamp, long offset)
+    {
+        if (count == timestamps.length)
+        {
+            timestamps = Arrays.copyOf(timestamps, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+
+        if (count > 0 && timestamps[count - 1] > timestamp)
+            ordered = false;
+
+        timestamps[count] = timestamp;
+        offsets[count] = offset;
+        count++;
+    }
+
+    /**
+     * Serializes a record payload.
+     *
+     * @param record the record
+     * @return the payload bytes
+     * @throws IOException never in practice
+     */
+    private static byte[] encode(HistoryRecord record)
+        throws IOException
+    {
+        String[] names = record.getPropertyNames();
+        String[] values = record.getPropertyValues();
+
+        int present = 0;
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] != null)
+                present++;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(record.getTimestamp().getTime());
+        out.writeShort(present);
+        for (int i = 0; i < names.length; i++)
+        {
+            if (values[i] == null)
+                continue;
+
+            String name = names[i];
+            if (name.endsWith(HistoryWriterImpl.CDATA_SUFFIX))
+            {
+                name = name.substring(
+                    0, name.length() - HistoryWriterImpl.CDATA_SUFFIX.length());
+            }
+            out.writeUTF(name);
+
+            byte[] value = values[i].getBytes(StandardCharsets.UTF_8);
+            out.writeInt(value.length);
+            out.write(value);
+        }
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deserializes a record payload.
+     *
+     * @param payload the payload bytes
+     * @return the record
+     * @throws IOException if the payload is malformed
+     */
+    private static HistoryRecord decode(byte[] payload)
+        throws IOException
+    {
+        DataInputStream in
+            = new DataInputStream(new ByteArrayInputStream(payload));
+        long timestamp = in.readLong();
+        int present = in.readUnsignedShort();
+
+        String[] names = new String[present];
+        String[] values = new String[present];
+        for (int i = 0; i < present; i++)
+        {
+            names[i] = in.readUTF();
+
+            int length = in.readInt();
+            if (length < 0 || length > in.available())
+                throw new IOException("Malformed history record payload");
+
+            byte[] value = new byte[length];
+            in.readFully(value);
+            values[i] = new String(value, StandardCharsets.UTF_8);
+        }
+
+        return new HistoryRecord(names, values, new Date(timestamp));
+    }
+}
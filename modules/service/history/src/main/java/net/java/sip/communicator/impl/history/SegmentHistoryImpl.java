@@ -0,0 +1,387 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import lombok.extern.slf4j.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * A <tt>History</tt> stored in append-only binary segments instead of XML
+ * documents. New records are appended to the last segment of the history,
+ * and when it holds {@link #MAX_RECORDS_PER_SEGMENT} records it gets sealed
+ * with a footer index and a new segment is started. Records are only
+ * rewritten in place when they are updated or inserted in the past, which is
+ * rare compared to appends.
+ *
+ * @see SegmentFile
+ */
+@Slf4j
+public class SegmentHistoryImpl
+    implements History
+{
+    /**
+     * Maximum records per segment.
+     */
+    public static final int MAX_RECORDS_PER_SEGMENT = 5000;
+
+    private final HistoryID id;
+
+    private HistoryRecordStructure historyRecordStructure;
+
+    private final HistoryServiceImpl historyServiceImpl;
+
+    private final File directory;
+
+    private HistoryReader reader;
+
+    private InteractiveHistoryReader interactiveReader;
+
+    private HistoryWriter writer;
+
+    /**
+     * The segments of this history ordered from oldest to newest.
+     */
+    private final List<SegmentFile> segments = new ArrayList<SegmentFile>();
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryImpl</tt> by specifying the
+     * history identifier, the directory, the <tt>HistoryRecordStructure</tt>
+     * to use and the parent <tt>HistoryServiceImpl</tt>.
+     * @param id the identifier
+     * @param directory the directory
+     * @param historyRecordStructure the structure
+     * @param historyServiceImpl the parent history service
+     */
+    protected SegmentHistoryImpl(HistoryID id, File directory,
+            HistoryRecordStructure historyRecordStructure,
+            HistoryServiceImpl historyServiceImpl)
+    {
+        this.id = id;
+        this.directory = directory;
+        this.historyServiceImpl = historyServiceImpl;
+        this.historyRecordStructure = historyRecordStructure;
+
+        this.reloadSegmentList();
+    }
+
+    /**
+     * Returns the identifier of this history.
+     * @return the identifier of this history
+     */
+    public HistoryID getID()
+    {
+        return this.id;
+    }
+
+    /**
+     * Returns the current <tt>HistoryRecordStructure</tt>.
+     * @return the current <tt>HistoryRecordStructure</tt>
+     */
+    public HistoryRecordStructure getHistoryRecordsStructure()
+    {
+        return this.historyRecordStructure;
+    }
+
+    /**
+     * Sets the given <tt>structure</tt> to be the new history records
+     * structure used in this history implementation.
+     * @param structure the new <tt>HistoryRecordStructure</tt> to use
+     */
+    public void setHistoryRecordsStructure(HistoryRecordStructure structure)
+    {
+        this.historyRecordStructure = structure;
+
+        try
+        {
+            File dbDatFile = new File(directory, HistoryServiceImpl.DATA_FILE);
+            DBStructSerializer dbss = new DBStructSerializer(historyServiceImpl);
+            dbss.writeHistory(dbDatFile, this);
+        }
+        catch (IOException e)
+        {
+            logger.debug("Could not create new history structure");
+        }
+    }
+
+    public synchronized HistoryReader getReader()
+    {
+        if (this.reader == null)
+            this.reader = new SegmentHistoryReaderImpl(this);
+
+        return this.reader;
+    }
+
+    /**
+     * Returns an object that can be used to read and query this history. The
+     * <tt>InteractiveHistoryReader</tt> differs from the <tt>HistoryReader</tt>
+     * in the way it manages query results. It allows to cancel a search at
+     * any time and to track history results through a
+     * <tt>HistoryQueryListener</tt>.
+     * @return an object that can be used to read and query this history
+     */
+    public synchronized InteractiveHistoryReader getInteractiveReader()
+    {
+        if (interactiveReader == null)
+        {
+            interactiveReader
+                = new SegmentInteractiveHistoryReaderImpl(this);
+        }
+        return interactiveReader;
+    }
+
+    public synchronized HistoryWriter getWriter()
+    {
+        if (writer == null)
+            writer = new SegmentHistoryWriterImpl(this);
+        return writer;
+    }
+
+    /**
+     * Returns the directory of this history.
+     * @return the directory of this history
+     */
+    File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Returns a snapshot of the segments of this history ordered from oldest
+     * to newest.
+     * @return the segments of this history
+     */
+    List<SegmentFile> getSegments()
+    {
+        synchronized (segments)
+        {
+            return new ArrayList<SegmentFile>(segments);
+        }
+    }
+
+    /**
+     * Appends records to the last segment, sealing it and starting a new one
+     * whenever it gets full.
+     *
+     * @param records the records to append in order
+     * @param maxNumberOfRecords the maximum number of records to keep in the
+     * last segment or -1 to ignore this param
+     * @throws IOException if writing fails
+     */
+    void append(List<HistoryRecord> records, int maxNumberOfRecords)
+        throws IOException
+    {
+        synchronized (segments)
+        {
+            int i = 0;
+            while (i < records.size())
+            {
+                SegmentFile last = getAppendableSegment(
+                    records.get(i).getTimestamp().getTime());
+
+                if (maxNumberOfRecords > -1
+                    && last.getRecordCount() >= maxNumberOfRecords)
+                {
+                    last = removeOldestRecord(last);
+                }
+
+                int room = MAX_RECORDS_PER_SEGMENT - last.getRecordCount();
+                if (maxNumberOfRecords > -1)
+                    room = Math.min(room, 1);
+
+                int end = Math.min(records.size(), i + room);
+                last.append(records.subList(i, end));
+                i = end;
+            }
+        }
+    }
+
+    /**
+     * Reads the records of <tt>segment</tt>, lets <tt>modifier</tt> change
+     * them and rewrites the segment with the result. The whole sequence holds
+     * the lock used by {@link #append}, so no record appended in the meantime
+     * gets lost by the rewrite.
+     *
+     * @param segment the segment to modify
+     * @param modifier changes the records of the segment
+     * @return <tt>true</tt> if the segment was rewritten, <tt>false</tt> if
+     * <tt>modifier</tt> left it unchanged or it is no longer part of this
+     * history
+     * @throws IOException if reading or writing fails
+     */
+    boolean modify(SegmentFile segment, SegmentModifier modifier)
+        throws IOException
+    {
+        synchronized (segments)
+        {
+            if (!segments.contains(segment))
+                return false;
+
+            List<HistoryRecord> records = segment.readAll();
+            if (!modifier.modify(records))
+                return false;
+
+            rewrite(segment, records);
+            return true;
+        }
+    }
+
+    /**
+     * Replaces the records of <tt>segment</tt> with <tt>records</tt>. Must
+     * be called with the lock on {@link #segments} held.
+     *
+     * @param segment the segment to rewrite
+     * @param records the new content of the segment
+     * @throws IOException if writing fails
+     */
+    private void rewrite(SegmentFile segment, List<HistoryRecord> records)
+        throws IOException
+    {
+        int index = segments.indexOf(segment);
+        if (index < 0)
+            return;
+
+        segments.set(index, SegmentFile.write(
+            segment.getFile(), records, segment.isSealed()));
+    }
+
+    /**
+     * Changes the records of a segment in place, see {@link #modify}.
+     */
+    interface SegmentModifier
+    {
+        /**
+         * Changes <tt>records</tt>, the current content of the segment.
+         *
+         * @param records the records of the segment in their stored order
+         * @return <tt>true</tt> if <tt>records</tt> was changed and the
+         * segment has to be rewritten
+         */
+        boolean modify(List<HistoryRecord> records);
+    }
+
+    /**
+     * Returns the last segment if it accepts appends or seals it and creates
+     * a new one otherwise.
+     *
+     * @param timestamp the timestamp of the next record
+     * @return the segment to append to
+     * @throws IOException if a new segment could not be created
+     */
+    private SegmentFile getAppendableSegment(long timestamp)
+        throws IOException
+    {
+        SegmentFile last
+            = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+
+        if (last != null
+            && !last.isSealed()
+            && last.getRecordCount() < MAX_RECORDS_PER_SEGMENT)
+        {
+            return last;
+        }
+
+        if (last != null)
+            last.seal();
+
+        SegmentFile segment = SegmentFile.create(directory, timestamp);
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Removes the oldest record of <tt>segment</tt> by rewriting it.
+     *
+     * @param segment the segment
+     * @return the rewritten segment
+     * @throws IOException if writing fails
+     */
+    private SegmentFile removeOldestRecord(SegmentFile segment)
+        throws IOException
+    {
+        List<HistoryRecord> records = segment.readAll();
+        if (records.isEmpty())
+            return segment;
+
+        int oldest = 0;
+        for (int i = 1; i < records.size(); i++)
+        {
+            if (records.get(i).getTimestamp().before(
+                    records.get(oldest).getTimestamp()))
+            {
+                oldest = i;
+            }
+        }
+        records.remove(oldest);
+
+        rewrite(segment, records);
+        return segments.get(segments.size() - 1);
+    }
+
+    /**
+     * Loads the segments found in the history directory.
+     */
+    private void reloadSegmentList()
+    {
+        synchronized (segments)
+        {
+            segments.clear();
+
+            File[] files = directory.listFiles();
+            if (files == null)
+                return;
+
+            SortedMap<Long, File> sorted = new TreeMap<Long, File>();
+            for (File file : files)
+            {
+                String filename = file.getName();
+                if (file.isDirectory()
+                    || !filename.endsWith(SegmentFile.SEGMENT_FILETYPE))
+                {
+                    continue;
+                }
+
+                try
+                {
+                    sorted.put(Long.parseLong(filename.substring(0,
+                        filename.length()
+                            - SegmentFile.SEGMENT_FILETYPE.length())), file);
+                }
+                catch (NumberFormatException e)
+                {
+                    logger.warn("Ignoring unknown history file " + file);
+                }
+            }
+
+            for (File file : sorted.values())
+            {
+                try
+                {
+                    segments.add(SegmentFile.open(file));
+                }
+                catch (IOException e)
+                {
+                    logger.error("Could not open history segment " + file, e);
+                }
+            }
+        }
+    }
+}
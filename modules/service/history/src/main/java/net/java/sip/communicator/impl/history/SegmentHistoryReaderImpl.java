@@ -0,0 +1,380 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import lombok.extern.slf4j.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.event.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryReader</tt> of a {@link SegmentHistoryImpl}. Segments are
+ * selected by the timestamps in their index and, as records within a segment
+ * are usually ordered, the first record of a period is found with a binary
+ * search. Only the records which are returned or matched against keywords
+ * are read from disk.
+ */
+@Slf4j
+public class SegmentHistoryReaderImpl
+    implements HistoryReader
+{
+    private final SegmentHistoryImpl historyImpl;
+
+    private final Vector<HistorySearchProgressListener> progressListeners
+        = new Vector<HistorySearchProgressListener>();
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryReaderImpl</tt>.
+     * @param historyImpl the parent History implementation
+     */
+    protected SegmentHistoryReaderImpl(SegmentHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+    }
+
+    public QueryResultSet<HistoryRecord> findByStartDate(Date startDate)
+        throws RuntimeException
+    {
+        return find(startDate, null, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByEndDate(Date endDate)
+        throws RuntimeException
+    {
+        return find(null, endDate, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate)
+        throws RuntimeException
+    {
+        return find(startDate, endDate, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeyword(String keyword,
+                                                       String field,
+                                                       boolean caseSensitive)
+        throws RuntimeException
+    {
+        return findByKeywords(new String[] { keyword }, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByKeywords(String[] keywords,
+                                                        String field,
+                                                        boolean caseSensitive)
+        throws RuntimeException
+    {
+        return find(null, null, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findByPeriod(Date startDate,
+                                                      Date endDate,
+                                                      String[] keywords,
+                                                      String field,
+                                                      boolean caseSensitive)
+        throws UnsupportedOperationException
+    {
+        return find(startDate, endDate, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findLast(int count)
+        throws RuntimeException
+    {
+        return findLast(count, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findLast(int count,
+                                                  String[] keywords,
+                                                  String field,
+                                                  boolean caseSensitive)
+        throws RuntimeException
+    {
+        return collect(null, null, true, count, keywords, field, caseSensitive);
+    }
+
+    public QueryResultSet<HistoryRecord> findFirstRecordsAfter(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        return collect(date, null, false, count, null, null, false);
+    }
+
+    public QueryResultSet<HistoryRecord> findLastRecordsBefore(Date date,
+                                                               int count)
+        throws RuntimeException
+    {
+        return collect(null, date, true, count, null, null, false);
+    }
+
+    /**
+     * Returns the exact number of records, which is known from the segment
+     * indexes without reading any record.
+     *
+     * @return the number of records in this history
+     */
+    public int countRecords()
+        throws UnsupportedOperationException
+    {
+        int result = 0;
+        for (SegmentFile segment : historyImpl.getSegments())
+            result += segment.getRecordCount();
+        return result;
+    }
+
+    /**
+     * Adding progress listener for monitoring progress of search process
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void addSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        progressListeners.add(listener);
+    }
+
+    /**
+     * Removing progress listener
+     *
+     * @param listener HistorySearchProgressListener
+     */
+    public void removeSearchProgressListener(
+        HistorySearchProgressListener listener)
+    {
+        progressListeners.remove(listener);
+    }
+
+    /**
+     * Finds all records in a period matching the given keywords, reporting
+     * progress per segment.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    private QueryResultSet<HistoryRecord> find(
+        Date startDate, Date endDate,
+        String[] keywords, String field, boolean caseSensitive)
+    {
+        final TreeSet<HistoryRecord> result = new TreeSet<HistoryRecord>(
+            new HistoryReaderImpl.HistoryRecordComparator());
+
+        List<SegmentFile> segments = historyImpl.getSegments();
+        double progressStep = HistorySearchProgressListener
+            .PROGRESS_MAXIMUM_VALUE / Math.max(1, segments.size());
+        double progress
+            = HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE;
+
+        fireProgressStateChanged(startDate, endDate, keywords,
+            HistorySearchProgressListener.PROGRESS_MINIMUM_VALUE);
+
+        for (SegmentFile segment : segments)
+        {
+            scanSegment(segment, startDate, endDate, false,
+                keywords, field, caseSensitive, result, Integer.MAX_VALUE);
+
+            progress += progressStep;
+            fireProgressStateChanged(
+                startDate, endDate, keywords, (int) progress);
+        }
+
+        if ((int) progress
+                < HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE)
+        {
+            fireProgressStateChanged(startDate, endDate, keywords,
+                HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Collects up to <tt>count</tt> records of a period, starting from the
+     * oldest or from the newest end of it.
+     *
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param newestFirst whether to collect from the newest end
+     * @param count the maximum number of records
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the found records
+     */
+    private QueryResultSet<HistoryRecord> collect(
+        Date startDate, Date endDate, boolean newestFirst, int count,
+        String[] keywords, String field, boolean caseSensitive)
+    {
+        TreeSet<HistoryRecord> result = new TreeSet<HistoryRecord>(
+            new HistoryReaderImpl.HistoryRecordComparator());
+
+        List<SegmentFile> segments = historyImpl.getSegments();
+        if (newestFirst)
+            Collections.reverse(segments);
+
+        int left = count;
+        for (SegmentFile segment : segments)
+        {
+            if (left <= 0)
+                break;
+
+            left -= scanSegment(segment, startDate, endDate, newestFirst,
+                keywords, field, caseSensitive, result, left);
+        }
+
+        return new OrderedQueryResultSet<HistoryRecord>(result);
+    }
+
+    /**
+     * Reads the records of a segment which are in a period and match the
+     * given keywords.
+     *
+     * @param segment the segment to read
+     * @param startDate the start of the period or <tt>null</tt>
+     * @param endDate the end of the period or <tt>null</tt>
+     * @param newestFirst whether to read the segment backwards
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @param result where to add the found records
+     * @param limit the maximum number of records to add
+     * @return the number of records which were found
+     */
+    static int scanSegment(SegmentFile segment,
+                           Date startDate, Date endDate, boolean newestFirst,
+                           String[] keywords, String field,
+                           boolean caseSensitive,
+                           Collection<HistoryRecord> result, int limit)
+    {
+        long start = startDate == null ? Long.MIN_VALUE : startDate.getTime();
+        long end = endDate == null ? Long.MAX_VALUE : endDate.getTime();
+
+        if (segment.getRecordCount() == 0
+            || segment.getMaxTimestamp() < start
+            || segment.getMinTimestamp() >= end)
+        {
+            return 0;
+        }
+
+        int from = 0;
+        int to = segment.getRecordCount();
+        if (segment.isOrdered())
+        {
+            from = segment.lowerBound(start);
+            to = segment.lowerBound(end);
+        }
+
+        int found = 0;
+        try (RandomAccessFile raf = segment.openForReading())
+        {
+            for (int n = 0; n < to - from && found < limit; n++)
+            {
+                int i = newestFirst ? to - 1 - n : from + n;
+
+                long timestamp = segment.getTimestamp(i);
+                if (timestamp < start || timestamp >= end)
+                    continue;
+
+                HistoryRecord record = segment.read(raf, i);
+                if (matches(record, keywords, field, caseSensitive))
+                {
+                    result.add(record);
+                    found++;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Could not read history segment "
+                + segment.getFile(), e);
+        }
+
+        return found;
+    }
+
+    /**
+     * Checks whether a record matches a keyword search the way
+     * <tt>HistoryReaderImpl.filterByKeyword</tt> does for XML records.
+     *
+     * @param record the record
+     * @param keywords the keywords to match or <tt>null</tt>
+     * @param field the field where to look for the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return <tt>true</tt> if the record should be returned
+     */
+    static boolean matches(HistoryRecord record, String[] keywords,
+                           String field, boolean caseSensitive)
+    {
+        if (keywords == null || keywords.length == 0)
+            return true;
+
+        String[] names = record.getPropertyNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(field))
+            {
+                return HistoryReaderImpl.matchKeyword(
+                    record.getPropertyValues()[i], keywords, caseSensitive);
+            }
+        }
+
+        // the target field is not present
+        return false;
+    }
+
+    private void fireProgressStateChanged(Date startDate, Date endDate,
+                                          String[] keywords, int progress)
+    {
+        ProgressEvent event =
+            new ProgressEvent(this, startDate, endDate, keywords, progress);
+
+        synchronized (progressListeners)
+        {
+            for (HistorySearchProgressListener listener : progressListeners)
+                listener.progressChanged(event);
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.util.*;
+
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+/**
+ * The <tt>HistoryWriter</tt> of a {@link SegmentHistoryImpl}. Adding records
+ * only appends them to the last segment; inserting and updating records
+ * rewrites the single segment holding them.
+ */
+public class SegmentHistoryWriterImpl
+    implements HistoryWriter
+{
+    private final SegmentHistoryImpl historyImpl;
+
+    private final String[] structPropertyNames;
+
+    /**
+     * Creates an instance of <tt>SegmentHistoryWriterImpl</tt>.
+     * @param historyImpl the parent History implementation
+     */
+    protected SegmentHistoryWriterImpl(SegmentHistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+        this.structPropertyNames
+            = historyImpl.getHistoryRecordsStructure().getPropertyNames();
+    }
+
+    public void addRecord(HistoryRecord record)
+        throws IOException
+    {
+        addRecord(
+            record.getPropertyNames(),
+            record.getPropertyValues(),
+            record.getTimestamp(),
+            -1);
+    }
+
+    public void addRecord(String[] propertyValues)
+        throws IOException
+    {
+        addRecord(structPropertyNames, propertyValues, new Date(), -1);
+    }
+
+    public void addRecord(String[] propertyValues, Date timestamp)
+        throws IOException
+    {
+        addRecord(structPropertyNames, propertyValues, timestamp, -1);
+    }
+
+    public void addRecord(String[] propertyValues, int maxNumberOfRecords)
+        throws IOException
+    {
+        addRecord(
+            structPropertyNames,
+            propertyValues,
+            new Date(),
+            maxNumberOfRecords);
+    }
+
+    /**
+     * Appends a new record to the history.
+     *
+     * @param propertyNames the names of the properties
+     * @param propertyValues the values of the properties
+     * @param date the timestamp of the record
+     * @param maxNumberOfRecords the maximum number of records to keep or
+     * value of -1 to ignore this param.
+     * @throws IOException if writing fails
+     */
+    private void addRecord(String[] propertyNames,
+                           String[] propertyValues,
+                           Date date,
+                           int maxNumberOfRecords)
+        throws IOException
+    {
+        historyImpl.append(
+            Collections.singletonList(
+                new HistoryRecord(propertyNames, propertyValues, date)),
+            maxNumberOfRecords);
+    }
+
+    /**
+     * Inserts a record at its position by timestamp, rewriting the segment
+     * which covers <tt>timestamp</tt>. Records newer than all existing ones
+     * are simply appended.
+     *
+     * @param propertyValues The values of the record.
+     * @param timestamp The timestamp of the record.
+     * @param timestampProperty the property name for the timestamp of the
+     * record, unused as segments index the record timestamps directly
+     *
+     * @throws IOException if writing fails
+     */
+    public void insertRecord(
+            String[] propertyValues, Date timestamp, String timestampProperty)
+        throws IOException
+    {
+        final HistoryRecord newRecord
+            = new HistoryRecord(structPropertyNames, propertyValues, timestamp);
+
+        synchronized (historyImpl)
+        {
+            List<SegmentFile> segments = historyImpl.getSegments();
+            long time = timestamp.getTime();
+
+            SegmentFile target = null;
+            for (SegmentFile segment : segments)
+            {
+                if (segment.getRecordCount() == 0
+                    || segment.getMinTimestamp() > time)
+                {
+                    break;
+                }
+                target = segment;
+            }
+            if (target == null && !segments.isEmpty())
+                target = segments.get(0);
+
+            if (target == null
+                || target.getMaxTimestamp() <= time
+                || !historyImpl.modify(target,
+                        new SegmentHistoryImpl.SegmentModifier()
+                        {
+                            public boolean modify(List<HistoryRecord> records)
+                            {
+                                int index = 0;
+                                while (index < records.size()
+                                    && !records.get(index).getTimestamp()
+                                            .after(newRecord.getTimestamp()))
+                                {
+                                    index++;
+                                }
+                                records.add(index, newRecord);
+                                return true;
+                            }
+                        }))
+            {
+                addRecord(structPropertyNames, propertyValues, timestamp, -1);
+            }
+        }
+    }
+
+    /**
+     * Updates a record by searching for record with idProperty which have
+     * idValue and updating/creating the property with newValue.
+     *
+     * @param idProperty name of the id property
+     * @param idValue value of the id property
+     * @param property the property to change
+     * @param newValue the value of the changed property.
+     */
+    public void updateRecord(final String idProperty, final String idValue,
+            String property, String newValue)
+        throws IOException
+    {
+        final Map<String, String> changes
+            = Collections.singletonMap(property, newValue);
+        SegmentHistoryImpl.SegmentModifier modifier
+            = new SegmentHistoryImpl.SegmentModifier()
+            {
+                public boolean modify(List<HistoryRecord> records)
+                {
+                    for (int i = 0; i < records.size(); i++)
+                    {
+                        HistoryRecord record = records.get(i);
+                        if (idValue.equals(getValue(record, idProperty)))
+                        {
+                            records.set(i, applyChanges(record, changes, true));
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+            };
+
+        synchronized (historyImpl)
+        {
+            for (SegmentFile segment : historyImpl.getSegments())
+            {
+                if (historyImpl.modify(segment, modifier))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Updates history record using given <tt>HistoryRecordUpdater</tt> instance
+     * to find which is the record to be updated and to get the new values for
+     * the fields
+     * @param updater the <tt>HistoryRecordUpdater</tt> instance.
+     */
+    public void updateRecord(final HistoryRecordUpdater updater)
+        throws IOException
+    {
+        final HistoryRecordStructure structure
+            = historyImpl.getHistoryRecordsStructure();
+        SegmentHistoryImpl.SegmentModifier modifier
+            = new SegmentHistoryImpl.SegmentModifier()
+            {
+                public boolean modify(List<HistoryRecord> records)
+                {
+                    boolean changed = false;
+                    for (int i = 0; i < records.size(); i++)
+                    {
+                        HistoryRecord record = records.get(i);
+                        updater.setHistoryRecord(
+                            toStructure(record, structure));
+                        if (!updater.isMatching())
+                            continue;
+
+                        HistoryRecord updated = applyChanges(
+                            record, updater.getUpdateChanges(), false);
+                        if (updated != record)
+                        {
+                            records.set(i, updated);
+                            changed = true;
+                        }
+                    }
+                    return changed;
+                }
+            };
+
+        synchronized (historyImpl)
+        {
+            for (SegmentFile segment : historyImpl.getSegments())
+            {
+                if (historyImpl.modify(segment, modifier))
+                    return;
+            }
+        }
+    }
+
+    /**
+     * Returns the value of a property of a stored record.
+     *
+     * @param record the record
+     * @param name the name of the property
+     * @return the value or <tt>null</tt> if the property is not set
+     */
+    private static String getValue(HistoryRecord record, String name)
+    {
+        String[] names = record.getPropertyNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(name))
+                return record.getPropertyValues()[i];
+        }
+        return null;
+    }
+
+    /**
+     * Creates a record with the values of a stored record aligned to the
+     * given structure, as expected by <tt>HistoryRecordUpdater</tt>s.
+     *
+     * @param record the stored record
+     * @param structure the history structure
+     * @return the record aligned to <tt>structure</tt>
+     */
+    private static HistoryRecord toStructure(HistoryRecord record,
+                                             HistoryRecordStructure structure)
+    {
+        String[] names = structure.getPropertyNames();
+        String[] values = new String[names.length];
+        for (int i = 0; i < names.length; i++)
+        {
+            String name = names[i];
+            if (name.endsWith(HistoryWriterImpl.CDATA_SUFFIX))
+            {
+                name = name.substring(0,
+                    name.length() - HistoryWriterImpl.CDATA_SUFFIX.length());
+            }
+            values[i] = getValue(record, name);
+        }
+        return new HistoryRecord(structure, values);
+    }
+
+    /**
+     * Applies property changes to a record, stamping it with the current time
+     * to reflect there was a change.
+     *
+     * @param record the record to change
+     * @param changes the new values by property name
+     * @param addMissing whether properties not set in the record get added
+     * @return the changed record or <tt>record</tt> if nothing changed
+     */
+    private static HistoryRecord applyChanges(HistoryRecord record,
+                                              Map<String, String> changes,
+                                              boolean addMissing)
+    {
+        List<String> names
+            = new ArrayList<String>(Arrays.asList(record.getPropertyNames()));
+        List<String> values
+            = new ArrayList<String>(Arrays.asList(record.getPropertyValues()));
+        boolean changed = false;
+
+        for (Map.Entry<String, String> change : changes.entrySet())
+        {
+            int index = names.indexOf(change.getKey());
+            if (index > -1)
+            {
+                values.set(index, change.getValue());
+                changed = true;
+            }
+            else if (addMissing)
+            {
+                names.add(change.getKey());
+                values.add(change.getValue());
+                changed = true;
+            }
+        }
+
+        if (!changed)
+            return record;
+
+        return new HistoryRecord(
+            names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]),
+            new Date());
+    }
+}
@@ -0,0 +1,717 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import lombok.extern.slf4j.*;
+
+import net.java.sip.communicator.util.*;
+
+/**
+ * A sparse index of the record timestamps of the documents of a
+ * {@link HistoryImpl}, stored next to its <tt>dbstruct.dat</tt>.
+ * <p>
+ * For every document the index holds the number of records, the first and
+ * the last timestamp and, every {@link #CHECKPOINT_INTERVAL} records, the
+ * timestamp and the byte offset of a record. Readers use it to skip whole
+ * documents outside of a period, to start reading a document at the
+ * checkpoint closest to the records they need and to count records without
+ * parsing any XML. Records are only looked up by timestamp in documents
+ * whose records are ordered by timestamp, which is not the case anymore once
+ * a record was updated.
+ * <p>
+ * The entry of a document is rebuilt from a plain byte scan of the file
+ * whenever the size or the modification time of the file changed since it
+ * was indexed. Records appended by the <tt>HistoryWriterImpl</tt> update the
+ * entry in memory. The index is only written to disk after entries were
+ * rebuilt, so a lost index costs a scan of the documents and nothing else.
+ */
+@Slf4j
+class TimeIndex
+{
+    /**
+     * The name of the index file in the history directory.
+     */
+    static final String INDEX_FILE = "timeindex.dat";
+
+    /**
+     * The number of records between two checkpoints of a document.
+     */
+    static final int CHECKPOINT_INTERVAL = 16;
+
+    /**
+     * The magic at the start of the index file ("JTI1").
+     */
+    private static final int HEADER_MAGIC = 0x4A544931;
+
+    private static final byte[] RECORD_START
+        = "<record".getBytes(StandardCharsets.US_ASCII);
+
+    private static final byte[] TIMESTAMP_ATTRIBUTE
+        = "timestamp".getBytes(StandardCharsets.US_ASCII);
+
+    private final HistoryImpl historyImpl;
+
+    private final File file;
+
+    /**
+     * Whether the index file was read.
+     */
+    private boolean loaded = false;
+
+    /**
+     * Whether entries changed since the index file was written.
+     */
+    private boolean dirty = false;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    /**
+     * Creates the time index of a history. The index file is read on first
+     * use.
+     *
+     * @param historyImpl the history
+     */
+    TimeIndex(HistoryImpl historyImpl)
+    {
+        this.historyImpl = historyImpl;
+        this.file = new File(historyImpl.getDirectory(), INDEX_FILE);
+    }
+
+    /**
+     * Returns the up to date entry of a document, rebuilding it if the
+     * document changed since it was indexed. Call {@link #flush()} when done
+     * with the entries of a query.
+     *
+     * @param filename the name of the document
+     * @return the entry of the document
+     */
+    synchronized Entry getEntry(String filename)
+    {
+        load();
+
+        File document = new File(historyImpl.getDirectory(), filename);
+        long length = document.length();
+        long modified = document.lastModified();
+
+        Entry entry = entries.get(filename);
+        if (entry == null
+            || entry.length != length
+            || entry.modified != modified)
+        {
+            entry = scan(document);
+            if (entry == null)
+                entry = scan(filename, length, modified);
+
+            entries.put(filename, entry);
+            dirty = true;
+        }
+
+        return entry;
+    }
+
+    /**
+     * Writes the index file if entries were rebuilt.
+     */
+    synchronized void flush()
+    {
+        if (!dirty)
+            return;
+
+        // forget the documents which are gone
+        for (Iterator<String> i = entries.keySet().iterator(); i.hasNext();)
+        {
+            if (!new File(historyImpl.getDirectory(), i.next()).exists())
+                i.remove();
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp))))
+            {
+                out.writeInt(HEADER_MAGIC);
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet())
+                {
+                    out.writeUTF(e.getKey());
+                    e.getValue().write(out);
+                }
+            }
+            FileUtils.replaceFile(tmp, file);
+            dirty = false;
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not write time index " + file, e);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Updates the entry of a document after a record was appended to it and
+     * the document was written to disk by the <tt>HistoryWriterImpl</tt>.
+     * The entry is dropped, to be rebuilt on next use, if it did not match
+     * the document before the write or if the record needs a checkpoint.
+     *
+     * @param filename the name of the document
+     * @param position the position of the record in the document
+     * @param previousLength the size of the document before it was written
+     * @param previousModified the modification time of the document before
+     * it was written
+     * @param timestamp the timestamp of the record
+     */
+    synchronized void recordAdded(String filename, int position,
+                                  long previousLength, long previousModified,
+                                  long timestamp)
+    {
+        if (!loaded)
+            return;
+
+        Entry entry = entries.remove(filename);
+        if (entry == null
+            || position % CHECKPOINT_INTERVAL == 0
+            || entry.count != position
+            || entry.length != previousLength
+            || entry.modified != previousModified)
+        {
+            return;
+        }
+
+        File document = new File(historyImpl.getDirectory(), filename);
+        entries.put(filename, new Entry(
+            document.length(),
+            document.lastModified(),
+            entry.count + 1,
+            Math.min(entry.minTimestamp, timestamp),
+            Math.max(entry.maxTimestamp, timestamp),
+            entry.ordered && timestamp >= entry.maxTimestamp,
+            entry.checkpointPositions,
+            entry.checkpointTimestamps,
+            entry.checkpointOffsets));
+    }
+
+    /**
+     * Drops the entry of a document which was changed in a way other than
+     * appending a record.
+     *
+     * @param filename the name of the document
+     */
+    synchronized void documentChanged(String filename)
+    {
+        if (entries.remove(filename) != null)
+            dirty = true;
+    }
+
+    /**
+     * Reads the index file if not done yet. An unreadable index file is
+     * ignored, the entries get rebuilt.
+     */
+    private void load()
+    {
+        if (loaded)
+            return;
+        loaded = true;
+
+        if (!file.exists())
+            return;
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file))))
+        {
+            if (in.readInt() != HEADER_MAGIC)
+                throw new IOException("Not a time index");
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String filename = in.readUTF();
+                entries.put(filename, Entry.read(in));
+            }
+        }
+        catch (IOException e)
+        {
+            logger.warn("Could not read time index " + file
+                + ", rebuilding it", e);
+            entries.clear();
+            dirty = true;
+        }
+    }
+
+    /**
+     * Builds the entry of a document by scanning its bytes for
+     * <tt>record</tt> start tags, without parsing the XML.
+     *
+     * @param document the document file
+     * @return the entry or <tt>null</tt> if the file does not look like a
+     * history document written by <tt>HistoryWriterImpl</tt>
+     */
+    private static Entry scan(File document)
+    {
+        long length = document.length();
+        long modified = document.lastModified();
+        byte[] data;
+        try
+        {
+            data = Files.readAllBytes(document.toPath());
+        }
+        catch (IOException e)
+        {
+            logger.debug("Cannot read history document " + document, e);
+            return null;
+        }
+
+        // the size changed while reading, let the caller use the scanner
+        if (data.length != length)
+            return null;
+
+        EntryBuilder builder = new EntryBuilder();
+        int i = 0;
+        while ((i = indexOf(data, (byte) '<', i)) >= 0)
+        {
+            if (startsWith(data, i, "<![CDATA["))
+            {
+                i = indexOf(data, "]]>", i);
+            }
+            else if (startsWith(data, i, "<!--"))
+            {
+                i = indexOf(data, "-->", i);
+            }
+            else if (startsWith(data, i, RECORD_START)
+                && i + RECORD_START.length < data.length
+                && isTagDelimiter(data[i + RECORD_START.length]))
+            {
+                String timestamp = getTimestamp(data, i + RECORD_START.length);
+                if (timestamp == null)
+                    return null;
+
+                try
+                {
+                    builder.add(
+                        HistoryRecordScanner.parseTimestamp(timestamp), i);
+                }
+                catch (NumberFormatException e)
+                {
+                    return null;
+                }
+                i += RECORD_START.length;
+            }
+            else
+            {
+                i++;
+            }
+
+            // unterminated section
+            if (i < 0)
+                return null;
+        }
+
+        return builder.build(length, modified);
+    }
+
+    /**
+     * Builds the entry of a document without checkpoints by reading its
+     * records, used when the document can't be scanned as bytes.
+     *
+     * @param filename the name of the document
+     * @param length the size of the document
+     * @param modified the modification time of the document
+     * @return the entry
+     */
+    private Entry scan(String filename, long length, long modified)
+    {
+        EntryBuilder builder = new EntryBuilder();
+        HistoryRecordScanner scanner = historyImpl.createScanner(filename);
+        try
+        {
+            while (scanner.next())
+                builder.add(scanner.getTimestamp(), -1);
+        }
+        catch (RuntimeException e)
+        {
+            logger.error("Could not index history document " + filename, e);
+        }
+        finally
+        {
+            scanner.close();
+        }
+
+        return builder.build(length, modified);
+    }
+
+    /**
+     * Returns the value of the <tt>timestamp</tt> attribute of a start tag.
+     *
+     * @param data the document bytes
+     * @param start the offset of the attributes of the tag
+     * @return the timestamp or <tt>null</tt> if the tag has none
+     */
+    private static String getTimestamp(byte[] data, int start)
+    {
+        int end = indexOf(data, (byte) '>', start);
+        if (end < 0)
+            return null;
+
+        for (int i = start; i < end; i++)
+        {
+            if (!startsWith(data, i, TIMESTAMP_ATTRIBUTE))
+                continue;
+
+            int j = i + TIMESTAMP_ATTRIBUTE.length;
+            while (j < end && data[j] != '=')
+                j++;
+            j++;
+            while (j < end && data[j] != '"' && data[j] != '\'')
+                j++;
+            if (j >= end)
+                return null;
+
+            byte quote = data[j];
+            int valueEnd = j + 1;
+            while (valueEnd < end && data[valueEnd] != quote)
+                valueEnd++;
+            if (valueEnd >= end)
+                return null;
+
+            return new String(data, j + 1, valueEnd - j - 1,
+                StandardCharsets.ISO_8859_1);
+        }
+        return null;
+    }
+
+    private static boolean isTagDelimiter(byte b)
+    {
+        return b == ' ' || b == '\t' || b == '\r' || b == '\n'
+            || b == '>' || b == '/';
+    }
+
+    private static int indexOf(byte[] data, byte b, int from)
+    {
+        for (int i = from; i < data.length; i++)
+        {
+            if (data[i] == b)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the offset right after the next occurrence of an ASCII string.
+     */
+    private static int indexOf(byte[] data, String s, int from)
+    {
+        byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+        for (int i = from; i <= data.length - bytes.length; i++)
+        {
+            if (startsWith(data, i, bytes))
+                return i + bytes.length;
+        }
+        return -1;
+    }
+
+    private static boolean startsWith(byte[] data, int offset, String s)
+    {
+        return startsWith(data, offset, s.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static boolean startsWith(byte[] data, int offset, byte[] bytes)
+    {
+        if (offset + bytes.length > data.length)
+            return false;
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            if (data[offset + i] != bytes[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The indexed timestamps of one document.
+     */
+    static class Entry
+    {
+        /**
+         * The size of the document when it was indexed.
+         */
+        private final long length;
+
+        /**
+         * The modification time of the document when it was indexed.
+         */
+        private final long modified;
+
+        private final int count;
+
+        private final long minTimestamp;
+
+        private final long maxTimestamp;
+
+        /**
+         * Whether the timestamps of the records never decrease.
+         */
+        private final boolean ordered;
+
+        private final int[] checkpointPositions;
+
+        private final long[] checkpointTimestamps;
+
+        private final long[] checkpointOffsets;
+
+        private Entry(long length, long modified, int count,
+                      long minTimestamp, long maxTimestamp, boolean ordered,
+                      int[] checkpointPositions, long[] checkpointTimestamps,
+                      long[] checkpointOffsets)
+        {
+            this.length = length;
+            this.modified = modified;
+            this.count = count;
+            this.minTimestamp = minTimestamp;
+            this.maxTimestamp = maxTimestamp;
+            this.ordered = ordered;
+            this.checkpointPositions = checkpointPositions;
+            this.checkpointTimestamps = checkpointTimestamps;
+            this.checkpointOffsets = checkpointOffsets;
+        }
+
+        /**
+         * Returns the number of records of the document.
+         *
+         * @return the number of records
+         */
+        int getCount()
+        {
+            return count;
+        }
+
+        /**
+         * Returns whether the records of the document are ordered by
+         * timestamp, so reading can stop at the end of a period.
+         *
+         * @return <tt>true</tt> if the timestamps never decrease
+         */
+        boolean isOrdered()
+        {
+            return ordered;
+        }
+
+        /**
+         * Checks whether the document may have records in a period.
+         *
+         * @param startDate the start of the period or <tt>null</tt>
+         * @param endDate the end of the period or <tt>null</tt>, exclusive
+         * @return <tt>false</tt> if the document can be skipped
+         */
+        boolean overlaps(Date startDate, Date endDate)
+        {
+            return count > 0
+                && (startDate == null || maxTimestamp >= startDate.getTime())
+                && (endDate == null || minTimestamp < endDate.getTime());
+        }
+
+        /**
+         * Returns the position of the last record before a timestamp,
+         * estimated from the checkpoints, so the records from there on are
+         * all the records with this timestamp or later.
+         *
+         * @param timestamp the timestamp
+         * @return the position of the checkpoint to start reading at or 0
+         */
+        int getPositionBefore(long timestamp)
+        {
+            int checkpoint = getCheckpointBefore(timestamp);
+            return checkpoint < 0 ? 0 : checkpointPositions[checkpoint];
+        }
+
+        /**
+         * Moves a scanner over the document to the closest checkpoint at or
+         * before a record.
+         *
+         * @param scanner the scanner which was not advanced yet
+         * @param position the position of the first record to read
+         */
+        void seek(HistoryRecordScanner scanner, int position)
+        {
+            if (checkpointOffsets == null)
+                return;
+
+            int checkpoint = -1;
+            for (int i = 0; i < checkpointPositions.length; i++)
+            {
+                if (checkpointPositions[i] > position)
+                    break;
+                checkpoint = i;
+            }
+
+            // nothing to skip at the first record
+            if (checkpoint > 0 && checkpointOffsets[checkpoint] > 0)
+            {
+                scanner.seek(checkpointPositions[checkpoint],
+                    checkpointOffsets[checkpoint],
+                    checkpointTimestamps[checkpoint]);
+            }
+        }
+
+        /**
+         * Returns the last checkpoint with a timestamp before
+         * <tt>timestamp</tt> in an ordered document.
+         *
+         * @param timestamp the timestamp
+         * @return the index of the checkpoint or -1
+         */
+        private int getCheckpointBefore(long timestamp)
+        {
+            if (!ordered || checkpointTimestamps == null)
+                return -1;
+
+            int checkpoint = -1;
+            for (int i = 0; i < checkpointTimestamps.length; i++)
+            {
+                if (checkpointTimestamps[i] >= timestamp)
+                    break;
+                checkpoint = i;
+            }
+            return checkpoint;
+        }
+
+        /**
+         * Returns the number of records before a timestamp in an ordered
+         * document, as a lower bound known from the checkpoints.
+         *
+         * @param timestamp the timestamp
+         * @return the minimum number of records before <tt>timestamp</tt>
+         */
+        int getMinimumCountBefore(long timestamp)
+        {
+            if (ordered && maxTimestamp < timestamp)
+                return count;
+
+            int checkpoint = getCheckpointBefore(timestamp);
+            return checkpoint < 0 ? 0 : checkpointPositions[checkpoint] + 1;
+        }
+
+        private void write(DataOutputStream out)
+            throws IOException
+        {
+            out.writeLong(length);
+            out.writeLong(modified);
+            out.writeInt(count);
+            out.writeLong(minTimestamp);
+            out.writeLong(maxTimestamp);
+            out.writeBoolean(ordered);
+
+            int checkpoints = checkpointPositions == null
+                ? 0 : checkpointPositions.length;
+            out.writeInt(checkpoints);
+            for (int i = 0; i < checkpoints; i++)
+            {
+                out.writeInt(checkpointPositions[i]);
+                out.writeLong(checkpointTimestamps[i]);
+                out.writeLong(checkpointOffsets[i]);
+            }
+        }
+
+        private static Entry read(DataInputStream in)
+            throws IOException
+        {
+            long length = in.readLong();
+            long modified = in.readLong();
+            int count = in.readInt();
+            long minTimestamp = in.readLong();
+            long maxTimestamp = in.readLong();
+            boolean ordered = in.readBoolean();
+
+            int checkpoints = in.readInt();
+            if (checkpoints < 0 || checkpoints > count)
+                throw new IOException("Invalid checkpoint count");
+
+            int[] positions = new int[checkpoints];
+            long[] timestamps = new long[checkpoints];
+            long[] offsets = new long[checkpoints];
+            for (int i = 0; i < checkpoints; i++)
+            {
+                positions[i] = in.readInt();
+                timestamps[i] = in.readLong();
+                offsets[i] = in.readLong();
+            }
+
+            return new Entry(length, modified, count,
+                minTimestamp, maxTimestamp, ordered,
+                positions, timestamps, offsets);
+        }
+    }
+
+    /**
+     * Collects the timestamps of the records of a document in file order.
+     */
+    private static class EntryBuilder
+    {
+        private int count = 0;
+
+        private long minTimestamp = Long.MAX_VALUE;
+
+        private long maxTimestamp = Long.MIN_VALUE;
+
+        private boolean ordered = true;
+
+        private final List<long[]> checkpoints = new ArrayList<long[]>();
+
+        /**
+         * Adds the next record.
+         *
+         * @param timestamp the timestamp of the record
+         * @param offset the byte offset of the record or -1 if unknown
+         */
+        void add(long timestamp, long offset)
+        {
+            if (timestamp < maxTimestamp)
+                ordered = false;
+
+            if (offset >= 0 && count % CHECKPOINT_INTERVAL == 0)
+                checkpoints.add(new long[] { count, timestamp, offset });
+
+            minTimestamp = Math.min(minTimestamp, timestamp);
+            maxTimestamp = Math.max(maxTimestamp, timestamp);
+            count++;
+        }
+
+        Entry build(long length, long modified)
+        {
+            int[] positions = new int[checkpoints.size()];
+            long[] timestamps = new long[positions.length];
+            long[] offsets = new long[positions.length];
+            for (int i = 0; i < positions.length; i++)
+            {
+                long[] checkpoint = checkpoints.get(i);
+                positions[i] = (int) checkpoint[0];
+                timestamps[i] = checkpoint[1];
+                offsets[i] = checkpoint[2];
+            }
+
+            return new Entry(length, modified, count,
+                minTimestamp, maxTimestamp, ordered,
+                positions, timestamps, offsets);
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import static
+    net.java.sip.communicator.service.history.HistoryService.DATE_FORMAT;
+
+import java.io.*;
+import java.text.*;
+import java.util.*;
+
+import lombok.extern.slf4j.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.apache.commons.text.*;
+import org.w3c.dom.*;
+
+/**
+ * Converts the XML documents of a history directory to segments of the
+ * segment backend. The migration runs once per history, the first time it is
+ * loaded with the segment backend enabled. Migrated XML documents are kept
+ * with a {@link #MIGRATED_SUFFIX} so they are not picked up again.
+ */
+@Slf4j
+class XmlHistoryMigrator
+{
+    /**
+     * The suffix appended to the names of migrated XML documents.
+     */
+    static final String MIGRATED_SUFFIX = ".migrated";
+
+    private final HistoryServiceImpl historyService;
+
+    /**
+     * Creates a migrator.
+     *
+     * @param historyService the history service used to parse documents
+     */
+    XmlHistoryMigrator(HistoryServiceImpl historyService)
+    {
+        this.historyService = historyService;
+    }
+
+    /**
+     * Checks whether the history in <tt>directory</tt> still has XML
+     * documents and no segments.
+     *
+     * @param directory the history directory
+     * @return <tt>true</tt> if {@link #migrate} has work to do
+     */
+    static boolean needsMigration(File directory)
+    {
+        File[] files = directory.listFiles();
+        if (files == null)
+            return false;
+
+        boolean hasXml = false;
+        for (File file : files)
+        {
+            if (file.isDirectory())
+                continue;
+
+            String filename = file.getName();
+            if (filename.endsWith(SegmentFile.SEGMENT_FILETYPE))
+                return false;
+            if (filename.endsWith(HistoryImpl.SUPPORTED_FILETYPE))
+                hasXml = true;
+        }
+        return hasXml;
+    }
+
+    /**
+     * Converts all XML documents in <tt>directory</tt> to segments. Documents
+     * which can't be parsed are left in place and logged.
+     *
+     * @param directory the history directory
+     * @throws IOException if writing the segments fails, in which case the
+     * XML documents are left untouched
+     */
+    void migrate(File directory)
+        throws IOException
+    {
+        SortedMap<Long, File> documents = new TreeMap<Long, File>();
+        for (File file : directory.listFiles())
+        {
+            String filename = file.getName();
+            if (file.isDirectory()
+                || !filename.endsWith(HistoryImpl.SUPPORTED_FILETYPE))
+            {
+                continue;
+            }
+
+            try
+            {
+                documents.put(Long.parseLong(filename.substring(
+                    0, filename.length() - 4)), file);
+            }
+            catch (NumberFormatException e)
+            {
+                logger.warn("Not migrating unknown history file " + file);
+            }
+        }
+
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        List<File> migrated = new ArrayList<File>();
+        SimpleDateFormat sdf = new SimpleDateFormat(DATE_FORMAT);
+        for (File file : documents.values())
+        {
+            Document doc;
+            try
+            {
+                doc = historyService.parse(file);
+            }
+            catch (Exception e)
+            {
+                logger.error("Cannot migrate history document " + file, e);
+                continue;
+            }
+
+            NodeList nodes = doc.getElementsByTagName("record");
+            for (int i = 0; i < nodes.getLength(); i++)
+            {
+                HistoryRecord record
+                    = readRecord((Element) nodes.item(i), sdf);
+                if (record == null)
+                {
+                    logger.warn("Skipping history record with malformed "
+                        + "timestamp in " + file);
+                    continue;
+                }
+                records.add(record);
+            }
+            migrated.add(file);
+        }
+
+        List<File> written = new ArrayList<File>();
+        try
+        {
+            writeSegments(directory, records, written);
+        }
+        catch (IOException e)
+        {
+            // don't leave partial segments which would hide the XML documents
+            for (File file : written)
+                file.delete();
+            throw e;
+        }
+
+        for (File file : migrated)
+        {
+            if (!file.renameTo(
+                    new File(directory, file.getName() + MIGRATED_SUFFIX)))
+            {
+                logger.warn("Could not rename migrated history " + file);
+            }
+        }
+
+        logger.info("Migrated " + records.size() + " history records from "
+            + migrated.size() + " documents in " + directory);
+    }
+
+    /**
+     * Writes records to as many segments as needed, sealing all but the last.
+     *
+     * @param directory the history directory
+     * @param records the records to write
+     * @param written where to add the written segment files
+     * @throws IOException if writing fails
+     */
+    private static void writeSegments(File directory,
+                                      List<HistoryRecord> records,
+                                      List<File> written)
+        throws IOException
+    {
+        for (int i = 0; i < records.size();
+             i += SegmentHistoryImpl.MAX_RECORDS_PER_SEGMENT)
+        {
+            int end = Math.min(records.size(),
+                i + SegmentHistoryImpl.MAX_RECORDS_PER_SEGMENT);
+            long name = records.get(i).getTimestamp().getTime();
+            File segment
+                = new File(directory, name + SegmentFile.SEGMENT_FILETYPE);
+            while (segment.exists())
+            {
+                name++;
+                segment
+                    = new File(directory, name + SegmentFile.SEGMENT_FILETYPE);
+            }
+
+            written.add(segment);
+            SegmentFile.write(
+                segment, records.subList(i, end), end < records.size());
+        }
+    }
+
+    /**
+     * Reads a record element the way <tt>HistoryReaderImpl</tt> does,
+     * unescaping the property values.
+     *
+     * @param node the record element
+     * @param sdf the format of the record timestamps
+     * @return the record or <tt>null</tt> if its timestamp can't be parsed
+     */
+    private static HistoryRecord readRecord(Element node, SimpleDateFormat sdf)
+    {
+        Date timestamp;
+        String ts = node.getAttribute("timestamp");
+        try
+        {
+            timestamp = sdf.parse(ts);
+        }
+        catch (ParseException e)
+        {
+            try
+            {
+                timestamp = new Date(Long.parseLong(ts));
+            }
+            catch (NumberFormatException nfe)
+            {
+                return null;
+            }
+        }
+
+        List<String> names = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        NodeList propertyNodes = node.getChildNodes();
+        for (int j = 0; j < propertyNodes.getLength(); j++)
+        {
+            Node propertyNode = propertyNodes.item(j);
+            if (propertyNode.getNodeType() != Node.ELEMENT_NODE)
+                continue;
+
+            Node nestedNode = propertyNode.getFirstChild();
+            if (nestedNode == null)
+                continue;
+
+            names.add(propertyNode.getNodeName());
+            values.add(
+                StringEscapeUtils.unescapeXml(nestedNode.getNodeValue()));
+        }
+
+        return new HistoryRecord(
+            names.toArray(new String[names.size()]),
+            values.toArray(new String[values.size()]),
+            timestamp);
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.service.history;
+
+/**
+ * Statistics of the cache of parsed history documents shared by all
+ * histories, used to size it with
+ * {@link HistoryService#CACHE_SIZE_PROPERTY}. The cache is only used when
+ * {@link HistoryService#CACHE_ENABLED_PROPERTY} is set.
+ */
+public interface HistoryCacheService
+{
+    /**
+     * Returns the number of documents found in the cache.
+     *
+     * @return the number of hits, including the soft hits
+     */
+    public long getHitCount();
+
+    /**
+     * Returns the number of documents found in the cache after they were
+     * evicted, because the garbage collector did not reclaim them yet.
+     *
+     * @return the number of soft hits
+     */
+    public long getSoftHitCount();
+
+    /**
+     * Returns the number of documents which had to be parsed because they
+     * were not in the cache.
+     *
+     * @return the number of misses
+     */
+    public long getMissCount();
+
+    /**
+     * Returns the number of documents evicted to stay within the size of the
+     * cache.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictionCount();
+
+    /**
+     * Returns the estimated memory used by the documents in the cache.
+     *
+     * @return the size in bytes
+     */
+    public long getSize();
+
+    /**
+     * Returns the maximum memory the documents in the cache may use.
+     *
+     * @return the size in bytes
+     */
+    public long getMaxSize();
+
+    /**
+     * Returns the number of documents in the cache, not counting the evicted
+     * ones.
+     *
+     * @return the number of documents
+     */
+    public int getDocumentCount();
+}
@@ -41,6 +41,71 @@ public interface HistoryService {
     public static String CACHE_ENABLED_PROPERTY =
         "net.java.sip.communicator.service.history.CACHE_ENABLED";
 
+    /**
+     * Property used to set the maximum memory in bytes of the documents
+     * cached when {@link #CACHE_ENABLED_PROPERTY} is set. The cache is shared
+     * by all histories, its statistics are available from the
+     * {@link HistoryCacheService}.
+     */
+    public static final String CACHE_SIZE_PROPERTY =
+        "net.java.sip.communicator.service.history.CACHE_SIZE";
+
+    /**
+     * The default value of {@link #CACHE_SIZE_PROPERTY}, 16 MB.
+     */
+    public static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * Property used to disable the streaming of XML history documents when
+     * reading, in which case every document is loaded as a whole DOM tree.
+     */
+    public static final String STREAMING_READER_PROPERTY =
+        "net.java.sip.communicator.service.history.STREAMING_READER";
+
+    /**
+     * Property used to disable the keyword indexes, which let keyword
+     * searches skip the records which can't match instead of reading every
+     * record of a history.
+     */
+    public static final String KEYWORD_INDEX_PROPERTY =
+        "net.java.sip.communicator.service.history.KEYWORD_INDEX";
+
+    /**
+     * Property used to disable the time index, which lets date searches skip
+     * the documents and records outside of the searched period and lets
+     * records be counted without reading the documents.
+     */
+    public static final String TIME_INDEX_PROPERTY =
+        "net.java.sip.communicator.service.history.TIME_INDEX";
+
+    /**
+     * Property used to enable write-behind for XML histories. Its value is
+     * the maximum time in milliseconds a new record is kept in memory before
+     * it is written to disk, together with the other records added in the
+     * meantime. The default of 0 writes every record as it is added.
+     */
+    public static final String WRITE_BEHIND_LATENCY_PROPERTY =
+        "net.java.sip.communicator.service.history.WRITE_BEHIND_LATENCY";
+
+    /**
+     * Property used to select the storage backend of newly loaded histories,
+     * one of {@link #BACKEND_XML} (the default) or {@link #BACKEND_SEGMENT}.
+     */
+    public static final String BACKEND_PROPERTY =
+        "net.java.sip.communicator.service.history.BACKEND";
+
+    /**
+     * Backend storing every history as XML documents of a limited number of
+     * records.
+     */
+    public static final String BACKEND_XML = "xml";
+
+    /**
+     * Backend storing every history as append-only binary segments with a
+     * footer index. Existing XML histories are migrated when first loaded.
+     */
+    public static final String BACKEND_SEGMENT = "segment";
+
     /**
      * Date format used in the XML history database.
      */
@@ -0,0 +1,205 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+
+/**
+ * Tests that the records the XML history writer fails to write stay queued
+ * and are written once the documents can be written again.
+ */
+public class TestHistoryWriteBehind
+    extends TestCase
+{
+    private static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(new String[] { "id", "msg" });
+
+    private File directory;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("write-behind").toFile();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        delete(directory);
+    }
+
+    /**
+     * A record which can't be written when it is added is written by a
+     * retry once its document can be written.
+     */
+    public void testFailedWriteIsRetried()
+        throws Exception
+    {
+        HistoryServiceImpl service = createHistoryService(0);
+        HistoryImpl history = createHistory(service);
+        HistoryWriter writer = history.getWriter();
+        writer.addRecord(new String[] { "1", "first" }, new Date(1000));
+
+        File file = new File(directory, "1000.xml");
+        breakFile(file);
+        try
+        {
+            writer.addRecord(new String[] { "2", "second" }, new Date(2000));
+            fail("the failed write was not reported");
+        }
+        catch (IOException expected)
+        {
+        }
+
+        assertTrue(file.delete());
+        for (int i = 0; i < 50 && !contains(file, "second"); i++)
+            Thread.sleep(100);
+        assertTrue("the record was not written again",
+            contains(file, "second"));
+
+        List<HistoryRecord> records = readAll(createHistory(service));
+        assertEquals(2, records.size());
+        service.stop();
+    }
+
+    /**
+     * The records a background write failed to write are written when the
+     * service stops.
+     */
+    public void testStopWritesRequeuedRecords()
+        throws Exception
+    {
+        HistoryServiceImpl service = createHistoryService(50);
+        HistoryWriter writer = createHistory(service).getWriter();
+        File file = new File(directory, "1000.xml");
+
+        writer.addRecord(new String[] { "1", "first" }, new Date(1000));
+        for (int i = 0; i < 50 && !file.isFile(); i++)
+            Thread.sleep(100);
+        assertTrue(file.isFile());
+
+        breakFile(file);
+        writer.addRecord(new String[] { "2", "second" }, new Date(2000));
+        writer.addRecord(new String[] { "3", "third" }, new Date(3000));
+
+        // let the background write fail
+        Thread.sleep(200);
+        assertTrue(file.delete());
+
+        service.stop();
+        String content = read(file);
+        assertTrue(content.contains("first"));
+        assertTrue(content.contains("second"));
+        assertTrue(content.contains("third"));
+    }
+
+    /**
+     * Replaces a document with a directory, which can't be written as a
+     * file.
+     */
+    private static void breakFile(File file)
+    {
+        assertTrue(file.delete());
+        assertTrue(file.mkdir());
+    }
+
+    private static String read(File file)
+        throws IOException
+    {
+        return new String(Files.readAllBytes(file.toPath()),
+            StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Checks whether a document was written with a text, the document being
+     * missing or written at the moment otherwise.
+     */
+    private static boolean contains(File file, String text)
+        throws IOException
+    {
+        return file.isFile() && read(file).contains(text);
+    }
+
+    private HistoryImpl createHistory(HistoryServiceImpl service)
+    {
+        return new HistoryImpl(
+            HistoryID.createFromRawID(new String[] { "test" }),
+            directory, STRUCTURE, service);
+    }
+
+    /**
+     * Creates a history service with the default configuration, except for
+     * the write-behind latency.
+     */
+    private static HistoryServiceImpl createHistoryService(
+        final int writeBehindLatency)
+        throws Exception
+    {
+        ConfigurationService config = (ConfigurationService) Proxy
+            .newProxyInstance(
+                ConfigurationService.class.getClassLoader(),
+                new Class<?>[] { ConfigurationService.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method,
+                                         Object[] args)
+                    {
+                        if (args != null && args[0].equals(
+                                HistoryService.WRITE_BEHIND_LATENCY_PROPERTY))
+                            return writeBehindLatency;
+                        // return the default value of the getters
+                        return (args != null && args.length == 2)
+                            ? args[1]
+                            : null;
+                    }
+                });
+        return new HistoryServiceImpl(config, null);
+    }
+
+    private static List<HistoryRecord> readAll(HistoryImpl history)
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        Iterator<HistoryRecord> iter
+            = history.getReader().findByStartDate(new Date(0));
+        while (iter.hasNext())
+            records.add(iter.next());
+        return records;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.history;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.history.*;
+import net.java.sip.communicator.service.history.records.*;
+
+import org.jitsi.service.configuration.*;
+
+/**
+ * Tests the segment backend of the history service without an OSGi
+ * framework, working on a temporary history directory.
+ */
+public class TestSegmentHistory
+    extends TestCase
+{
+    private static final HistoryRecordStructure STRUCTURE
+        = new HistoryRecordStructure(new String[] { "id", "msg_CDATA" });
+
+    private File directory;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        directory = Files.createTempDirectory("segment-history").toFile();
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        delete(directory);
+    }
+
+    /**
+     * Appended, inserted and updated records are all read back in timestamp
+     * order, with the updated values.
+     */
+    public void testAppendInsertUpdate()
+        throws Exception
+    {
+        SegmentHistoryImpl history = createHistory();
+        HistoryWriter writer = history.getWriter();
+
+        writer.addRecord(new String[] { "1", "first" }, new Date(1000));
+        writer.addRecord(new String[] { "3", "third" }, new Date(3000));
+        writer.insertRecord(new String[] { "2", "second" }, new Date(2000),
+            null);
+        writer.updateRecord("id", "3", "msg", "changed");
+
+        List<HistoryRecord> records = readAll(history);
+        assertEquals(3, records.size());
+        assertEquals(3, history.getReader().countRecords());
+        assertEquals("first", getValue(records.get(0), "msg"));
+        assertEquals("second", getValue(records.get(1), "msg"));
+        assertEquals("changed", getValue(records.get(2), "msg"));
+
+        // and they survive reopening the history
+        records = readAll(createHistory());
+        assertEquals(3, records.size());
+        assertEquals("changed", getValue(records.get(2), "msg"));
+    }
+
+    /**
+     * A record torn at the end of the last segment is cut off when the
+     * history is reopened, keeping the complete records before it and
+     * accepting new appends after them.
+     */
+    public void testReopenAfterTruncatedTail()
+        throws Exception
+    {
+        SegmentHistoryImpl history = createHistory();
+        HistoryWriter writer = history.getWriter();
+        writer.addRecord(new String[] { "1", "first" }, new Date(1000));
+        writer.addRecord(new String[] { "2", "second" }, new Date(2000));
+
+        File segment = history.getSegments().get(0).getFile();
+        long complete = segment.length();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw"))
+        {
+            raf.setLength(complete - 3);
+        }
+
+        history = createHistory();
+        List<HistoryRecord> records = readAll(history);
+        assertEquals(1, records.size());
+        assertEquals("first", getValue(records.get(0), "msg"));
+
+        history.getWriter().addRecord(
+            new String[] { "3", "third" }, new Date(3000));
+        records = readAll(createHistory());
+        assertEquals(2, records.size());
+        assertEquals("third", getValue(records.get(1), "msg"));
+    }
+
+    /**
+     * A reader holding an index loaded before its segment was rewritten gets
+     * an <tt>IOException</tt> rather than garbage or a runtime exception.
+     */
+    public void testReadStaleIndex()
+        throws Exception
+    {
+        SegmentHistoryImpl history = createHistory();
+        HistoryWriter writer = history.getWriter();
+        writer.addRecord(new String[] { "1", "a" }, new Date(1000));
+        writer.addRecord(new String[] { "2", "b" }, new Date(2000));
+
+        SegmentFile stale = history.getSegments().get(0);
+        writer.updateRecord("id", "1", "msg", "a much longer message text");
+
+        try (RandomAccessFile raf = stale.openForReading())
+        {
+            stale.read(raf, 1);
+            fail("a record read through a stale index must be rejected");
+        }
+        catch (IOException expected)
+        {
+        }
+    }
+
+    /**
+     * XML documents are migrated to segments and renamed, and a record with
+     * a malformed timestamp is skipped instead of failing the migration.
+     */
+    public void testMigrateXml()
+        throws Exception
+    {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<history>"
+            + "<record timestamp=\"1000\"><id>1</id><msg>one</msg></record>"
+            + "<record timestamp=\"garbage\"><id>2</id><msg>two</msg></record>"
+            + "<record timestamp=\"3000\"><id>3</id><msg>a &amp; b</msg>"
+            + "</record>"
+            + "</history>";
+        File document = new File(directory, "1.xml");
+        Files.write(document.toPath(), xml.getBytes(StandardCharsets.UTF_8));
+
+        assertTrue(XmlHistoryMigrator.needsMigration(directory));
+        new XmlHistoryMigrator(createHistoryService()).migrate(directory);
+        assertFalse(XmlHistoryMigrator.needsMigration(directory));
+
+        assertFalse(document.exists());
+        assertTrue(new File(directory,
+            "1.xml" + XmlHistoryMigrator.MIGRATED_SUFFIX).exists());
+
+        List<HistoryRecord> records = readAll(createHistory());
+        assertEquals(2, records.size());
+        assertEquals(1000, records.get(0).getTimestamp().getTime());
+        assertEquals("one", getValue(records.get(0), "msg"));
+        assertEquals("a & b", getValue(records.get(1), "msg"));
+    }
+
+    private SegmentHistoryImpl createHistory()
+    {
+        return new SegmentHistoryImpl(
+            HistoryID.createFromRawID(new String[] { "test" }),
+            directory, STRUCTURE, null);
+    }
+
+    /**
+     * Creates a history service with the default configuration, which is all
+     * the migrator needs for parsing documents.
+     */
+    private static HistoryServiceImpl createHistoryService()
+        throws Exception
+    {
+        ConfigurationService config = (ConfigurationService) Proxy
+            .newProxyInstance(
+                ConfigurationService.class.getClassLoader(),
+                new Class<?>[] { ConfigurationService.class },
+                new InvocationHandler()
+                {
+                    public Object invoke(Object proxy, Method method,
+                                         Object[] args)
+                    {
+                        // return the default value of the getters
+                        return (args != null && args.length == 2)
+                            ? args[1]
+                            : null;
+                    }
+                });
+        return new HistoryServiceImpl(config, null);
+    }
+
+    private static List<HistoryRecord> readAll(SegmentHistoryImpl history)
+    {
+        List<HistoryRecord> records = new ArrayList<HistoryRecord>();
+        Iterator<HistoryRecord> iter
+            = history.getReader().findByStartDate(new Date(0));
+        while (iter.hasNext())
+            records.add(iter.next());
+        return records;
+    }
+
+    private static String getValue(HistoryRecord record, String name)
+    {
+        String[] names = record.getPropertyNames();
+        for (int i = 0; i < names.length; i++)
+        {
+            if (names[i].equals(name))
+                return record.getPropertyValues()[i];
+        }
+        return null;
+    }
+
+    private static void delete(File file)
+    {
+        File[] children = file.listFiles();
+        if (children != null)
+        {
+            for (File child : children)
+                delete(child);
+        }
+        file.delete();
+    }
+}
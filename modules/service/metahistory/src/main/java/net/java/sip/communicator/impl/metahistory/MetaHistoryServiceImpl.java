@@ -18,6 +18,8 @@
 package net.java.sip.communicator.impl.metahistory;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 import net.java.sip.communicator.service.callhistory.*;
 import net.java.sip.communicator.service.callhistory.event.*;
@@ -37,6 +39,10 @@
  * The Meta History Service is wrapper around the other known
  * history services. Query them all at once, sort the result and return all
  * merged records in one collection.
+ * <p>
+ * The wrapped services are queried in parallel and, as each of them returns
+ * its records already ordered, their results are merged rather than sorted
+ * again.
  *
  * @author Damian Minkov
  */
@@ -49,6 +55,13 @@
      */
     private static final org.slf4j.Logger logger = org.slf4j.LoggerFactory.getLogger(MetaHistoryServiceImpl.class);
 
+    /**
+     * The maximum number of history services queried at the same time. There
+     * are three kinds of history services, so a single search never waits for
+     * a thread.
+     */
+    private static final int MAX_PARALLEL_QUERIES = 3;
+
     /**
      * The BundleContext that we got from the OSGI bus.
      */
@@ -62,6 +75,12 @@
     private final List<HistorySearchProgressListener> progressListeners
         = new ArrayList<HistorySearchProgressListener>();
 
+    /**
+     * The executor querying the wrapped services in parallel, <tt>null</tt>
+     * when the service is not started.
+     */
+    private volatile ExecutorService queryExecutor = null;
+
     /**
      * Returns all the records for the descriptor after the given date.
      *
@@ -75,55 +94,38 @@
      */
     @Override
     public Collection<Object> findByStartDate(Class<?>[] services,
-            Object descriptor, Date startDate)
+            Object descriptor, final Date startDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
+                {
+                    return mhs.findByStartDate(contact, startDate);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((MetaContact)descriptor, startDate));
+                    return mhs.findByStartDate(room, startDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByStartDate((ChatRoom)descriptor, startDate));
+                    return fhs.findByStartDate(contact, startDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByStartDate(
-                        (MetaContact)descriptor, startDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(chs.findByStartDate(startDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(startDate, null, null);
 
-        return result;
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findByStartDate(startDate);
+                }
+            });
+        fireLastProgress(startDate, null, null);
+
+        return merge(results, true, false, Integer.MAX_VALUE);
     }
 
     /**
@@ -139,56 +141,38 @@ else if(serv instanceof CallHistoryService)
      */
     @Override
     public Collection<Object> findByEndDate(Class<?>[] services,
-            Object descriptor, Date endDate)
+            Object descriptor, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
+                {
+                    return mhs.findByEndDate(contact, endDate);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((MetaContact)descriptor, endDate));
+                    return mhs.findByEndDate(room, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByEndDate((ChatRoom)descriptor, endDate));
+                    return fhs.findByEndDate(contact, endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByEndDate(
-                        (MetaContact)descriptor, endDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByEndDate(endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(null, endDate, null);
 
-        return result;
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findByEndDate(endDate);
+                }
+            });
+        fireLastProgress(null, endDate, null);
+
+        return merge(results, true, false, Integer.MAX_VALUE);
     }
 
     /**
@@ -205,59 +189,38 @@ else if(serv instanceof CallHistoryService)
      */
     @Override
     public Collection<Object> findByPeriod(Class<?>[] services,
-            Object descriptor, Date startDate, Date endDate)
+            Object descriptor, final Date startDate, final Date endDate)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        LinkedList<Object> result = new LinkedList<Object>();
-        for (int i = 0; i < services.length; i++)
-        {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
+                {
+                    return mhs.findByPeriod(contact, startDate, endDate);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor, startDate, endDate));
+                    return mhs.findByPeriod(room, startDate, endDate);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor, startDate, endDate));
+                    return fhs.findByPeriod(contact, startDate, endDate);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor, startDate, endDate));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findByPeriod(startDate, endDate));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(startDate, endDate, null);
 
-        Collections.sort(result, new RecordsComparator());
-        return result;
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findByPeriod(startDate, endDate);
+                }
+            });
+        fireLastProgress(startDate, endDate, null);
+
+        return merge(results, false, false, Integer.MAX_VALUE);
     }
 
     /**
@@ -299,75 +262,44 @@ public Collection<Object> findByPeriod(Class<?>[] services,
      */
     @Override
     public Collection<Object> findByPeriod(Class<?>[] services,
-            Object descriptor, Date startDate, Date endDate,
-            String[] keywords, boolean caseSensitive)
+            Object descriptor, final Date startDate, final Date endDate,
+            final String[] keywords, final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (MetaContact)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
+                    return mhs.findByPeriod(
+                        contact, startDate, endDate, keywords, caseSensitive);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByPeriod(
-                            (ChatRoom)descriptor,
-                            startDate, endDate,
-                            keywords, caseSensitive));
+                    return mhs.findByPeriod(
+                        room, startDate, endDate, keywords, caseSensitive);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByPeriod(
-                        (MetaContact)descriptor,
-                        startDate, endDate,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                Collection<CallRecord> cs =
-                    chs.findByPeriod(startDate, endDate);
 
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    CallRecord callRecord = iter.next();
+                    return fhs.findByPeriod(
+                        contact, startDate, endDate, keywords, caseSensitive);
+                }
 
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return filterCalls(
+                        chs.findByPeriod(startDate, endDate),
+                        keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(startDate, endDate, keywords);
+            });
+        fireLastProgress(startDate, endDate, keywords);
 
-        return result;
+        return merge(results, true, false, Integer.MAX_VALUE);
     }
 
     /**
@@ -443,72 +375,41 @@ public Collection<Object> findByKeywords(Class<?>[] services,
      */
     @Override
     public Collection<Object> findByKeywords(Class<?>[] services,
-            Object descriptor, String[] keywords, boolean caseSensitive)
+            Object descriptor, final String[] keywords,
+            final boolean caseSensitive)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (MetaContact)descriptor, keywords, caseSensitive));
+                    return mhs.findByKeywords(contact, keywords, caseSensitive);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findByKeywords(
-                            (ChatRoom)descriptor,
-                            keywords, caseSensitive));
+                    return mhs.findByKeywords(room, keywords, caseSensitive);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findByKeywords(
-                        (MetaContact)descriptor,
-                        keywords, caseSensitive));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-
-                // this will get all call records
-                Collection<CallRecord> cs =
-                    chs.findByEndDate(new Date());
 
-                Iterator<CallRecord> iter = cs.iterator();
-                while (iter.hasNext())
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    CallRecord callRecord = iter.next();
+                    return fhs.findByKeywords(contact, keywords, caseSensitive);
+                }
 
-                    if(matchCallPeer(
-                            callRecord.getPeerRecords(), keywords, caseSensitive))
-                        result.add(callRecord);
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    // this will get all call records
+                    return filterCalls(
+                        chs.findByEndDate(new Date()), keywords, caseSensitive);
                 }
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(null, null, keywords);
+            });
+        fireLastProgress(null, null, keywords);
 
-        return result;
+        return merge(results, true, false, Integer.MAX_VALUE);
     }
 
     /**
@@ -524,67 +425,38 @@ else if(serv instanceof CallHistoryService)
      */
     @Override
     public Collection<Object> findLast(Class<?>[] services,
-            Object descriptor, int count)
+            Object descriptor, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findLast(
-                            (MetaContact)descriptor,
-                            count));
+                    return mhs.findLast(contact, count);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findLast(
-                            (ChatRoom)descriptor,
-                            count));
+                    return mhs.findLast(room, count);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findLast(
-                        (MetaContact)descriptor,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
-                result.addAll(
-                    chs.findLast(count));
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(null, null, null);
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
+                {
+                    return fhs.findLast(contact, count);
+                }
 
-        if(startIndex < 0)
-            startIndex = 0;
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findLast(count);
+                }
+            });
+        fireLastProgress(null, null, null);
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        return merge(results, true, true, count);
     }
 
     /**
@@ -601,79 +473,38 @@ else if(serv instanceof CallHistoryService)
      */
     @Override
     public Collection<Object> findFirstMessagesAfter(Class<?>[] services,
-            Object descriptor, Date date, int count)
+            Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
-
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
+                    return mhs.findFirstMessagesAfter(contact, date, count);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findFirstMessagesAfter(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
+                    return mhs.findFirstMessagesAfter(room, date, count);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findFirstRecordsAfter(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
 
-                Collection<CallRecord> col = chs.findByStartDate(date);
-                if(col.size() > count)
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    // before we make a sublist make sure there are sorted in the
-                    // right order
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    Collections.sort(l, new RecordsComparator());
-                    result.addAll(l.subList(0, count));
+                    return fhs.findFirstRecordsAfter(contact, date, count);
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
-            }
-        }
-        listenWrapper.fireLastProgress(date, null, null);
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
 
-        int toIndex = count;
-        if(toIndex > resultAsList.size())
-            toIndex = resultAsList.size();
+                Collection<?> findCalls(CallHistoryService chs)
+                {
+                    return chs.findFirstCallsAfter(date, count);
+                }
+            });
+        fireLastProgress(date, null, null);
 
-        return resultAsList.subList(0, toIndex);
+        return merge(results, true, false, count);
     }
 
     /**
@@ -690,77 +521,263 @@ else if(serv instanceof CallHistoryService)
      */
     @Override
     public Collection<Object> findLastMessagesBefore(Class<?>[] services,
-            Object descriptor, Date date, int count)
+            Object descriptor, final Date date, final int count)
         throws RuntimeException
     {
-        MessageProgressWrapper listenWrapper
-            = new MessageProgressWrapper(services.length);
-
-        TreeSet<Object> result = new TreeSet<Object>(new RecordsComparator());
-        for (int i = 0; i < services.length; i++)
-        {
-            Class<?> name = services[i];
-            Object serv = getService(name);
-            if(serv instanceof MessageHistoryService)
+        List<List<Object>> results = query(services, descriptor,
+            new HistoryQuery()
             {
-                MessageHistoryService mhs =
-                    (MessageHistoryService)serv;
-                listenWrapper.setIx(i);
-                mhs.addSearchProgressListener(listenWrapper);
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, MetaContact contact)
+                {
+                    return mhs.findLastMessagesBefore(contact, date, count);
+                }
 
-                if(descriptor instanceof MetaContact)
+                Collection<?> findMessages(
+                    MessageHistoryService mhs, ChatRoom room)
                 {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (MetaContact)descriptor,
-                            date,
-                            count));
+                    return mhs.findLastMessagesBefore(room, date, count);
                 }
-                else if(descriptor instanceof ChatRoom)
+
+                Collection<?> findFiles(
+                    FileHistoryService fhs, MetaContact contact)
                 {
-                    result.addAll(
-                        mhs.findLastMessagesBefore(
-                            (ChatRoom)descriptor,
-                            date,
-                            count));
+                    return fhs.findLastRecordsBefore(contact, date, count);
                 }
-                mhs.removeSearchProgressListener(listenWrapper);
-            }
-            else if(serv instanceof FileHistoryService
-                    && descriptor instanceof MetaContact)
-            {
-                result.addAll(
-                    ((FileHistoryService)serv).findLastRecordsBefore(
-                        (MetaContact)descriptor,
-                        date,
-                        count));
-            }
-            else if(serv instanceof CallHistoryService)
-            {
-                CallHistoryService chs = (CallHistoryService)serv;
-                listenWrapper.setIx(i);
-                chs.addSearchProgressListener(listenWrapper);
 
-                Collection<CallRecord> col = chs.findByEndDate(date);
-                if(col.size() > count)
+                Collection<?> findCalls(CallHistoryService chs)
                 {
-                    List<CallRecord> l = new LinkedList<CallRecord>(col);
-                    result.addAll(l.subList(l.size() - count, l.size()));
+                    return chs.findLastCallsBefore(date, count);
                 }
-                else
-                    result.addAll(col);
-                chs.removeSearchProgressListener(listenWrapper);
+            });
+        fireLastProgress(date, null, null);
+
+        return merge(results, true, true, count);
+    }
+
+    /**
+     * Queries the wrapped services in parallel.
+     *
+     * @param services the services classnames we will query
+     * @param descriptor CallPeer address(String),
+     *  MetaContact or ChatRoom.
+     * @param query the query to run against each service
+     * @return the records returned by each service, each list sorted with
+     * <tt>RecordsComparator</tt>
+     * @throws RuntimeException if one of the services fails
+     */
+    private List<List<Object>> query(
+            Class<?>[] services, Object descriptor, HistoryQuery query)
+        throws RuntimeException
+    {
+        double[] progress = new double[services.length];
+        List<Callable<List<Object>>> tasks
+            = new ArrayList<Callable<List<Object>>>(services.length);
+
+        for (int i = 0; i < services.length; i++)
+        {
+            tasks.add(
+                new ServiceQueryTask(
+                    getService(services[i]),
+                    descriptor,
+                    query,
+                    new MessageProgressWrapper(progress, i)));
+        }
+
+        List<List<Object>> results
+            = new ArrayList<List<Object>>(tasks.size());
+        ExecutorService executor = queryExecutor;
+
+        // there is nothing to gain from another thread for a single service
+        if (tasks.size() < 2 || executor == null)
+        {
+            for (Callable<List<Object>> task : tasks)
+                results.add(call(task));
+            return results;
+        }
+
+        List<Future<List<Object>>> futures
+            = new ArrayList<Future<List<Object>>>(tasks.size());
+        try
+        {
+            for (Callable<List<Object>> task : tasks)
+                futures.add(executor.submit(task));
+            for (Future<List<Object>> future : futures)
+                results.add(future.get());
+        }
+        catch (RejectedExecutionException ex)
+        {
+            // we are being stopped, finish the search on this thread
+            results.clear();
+            for (int i = 0; i < tasks.size(); i++)
+            {
+                results.add(
+                    (i < futures.size())
+                        ? getUninterruptibly(futures.get(i))
+                        : call(tasks.get(i)));
             }
         }
-        listenWrapper.fireLastProgress(date, null, null);
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("History search interrupted", ex);
+        }
+        catch (ExecutionException ex)
+        {
+            throw toRuntimeException(ex.getCause());
+        }
+        finally
+        {
+            // nobody will read the remaining results if we failed
+            for (Future<List<Object>> future : futures)
+                future.cancel(true);
+        }
+        return results;
+    }
+
+    /**
+     * Runs a service query on the current thread.
+     *
+     * @param task the query
+     * @return the records returned by the query
+     */
+    private static List<Object> call(Callable<List<Object>> task)
+    {
+        try
+        {
+            return task.call();
+        }
+        catch (Exception ex)
+        {
+            throw toRuntimeException(ex);
+        }
+    }
+
+    /**
+     * Waits for the result of a query which has already been submitted.
+     *
+     * @param future the query
+     * @return the records returned by the query
+     */
+    private static List<Object> getUninterruptibly(
+        Future<List<Object>> future)
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("History search interrupted", ex);
+        }
+        catch (ExecutionException ex)
+        {
+            throw toRuntimeException(ex.getCause());
+        }
+    }
 
-        LinkedList<Object> resultAsList = new LinkedList<Object>(result);
-        int startIndex = resultAsList.size() - count;
+    /**
+     * Returns the exception to rethrow for the failure of a service query.
+     *
+     * @param cause the failure
+     * @return <tt>cause</tt> if it's a <tt>RuntimeException</tt>, or a
+     * <tt>RuntimeException</tt> wrapping it
+     */
+    private static RuntimeException toRuntimeException(Throwable cause)
+    {
+        if (cause instanceof RuntimeException)
+            return (RuntimeException) cause;
+        if (cause instanceof Error)
+            throw (Error) cause;
+        return new RuntimeException(cause);
+    }
 
-        if(startIndex < 0)
-            startIndex = 0;
+    /**
+     * Merges the sorted records returned by the services.
+     *
+     * @param results the records of each service, sorted with
+     * <tt>RecordsComparator</tt>
+     * @param distinct whether only the first of the records with the same
+     * timestamp is kept, as a <tt>TreeSet</tt> would do
+     * @param last whether the last <tt>count</tt> records are returned rather
+     * than the first ones
+     * @param count the maximum number of records to return
+     * @return the merged records in ascending order
+     */
+    static List<Object> merge(
+        List<List<Object>> results, boolean distinct, boolean last, int count)
+    {
+        List<Object> merged = new ArrayList<Object>(
+            Math.min(count, RecordsMerger.size(results)));
+        Iterator<Object> iter = new RecordsMerger(results, distinct, last);
+
+        while (merged.size() < count && iter.hasNext())
+            merged.add(iter.next());
 
-        return resultAsList.subList(startIndex, resultAsList.size());
+        if (last)
+            Collections.reverse(merged);
+        return merged;
+    }
+
+    /**
+     * Returns the call records having a peer which matches all the keywords.
+     *
+     * @param calls the call records
+     * @param keywords the keywords
+     * @param caseSensitive is keywords search case sensitive
+     * @return the matching records
+     */
+    private List<CallRecord> filterCalls(
+        Collection<CallRecord> calls, String[] keywords, boolean caseSensitive)
+    {
+        List<CallRecord> result = new ArrayList<CallRecord>();
+
+        for (CallRecord callRecord : calls)
+        {
+            if(matchCallPeer(
+                    callRecord.getPeerRecords(), keywords, caseSensitive))
+                result.add(callRecord);
+        }
+        return result;
+    }
+
+    /**
+     * Fires the progress event which ends a search.
+     *
+     * @param startDate the start date of the search
+     * @param endDate the end date of the search
+     * @param keywords the keywords of the search
+     */
+    private void fireLastProgress(
+        Date startDate, Date endDate, String[] keywords)
+    {
+        ProgressEvent ev = new ProgressEvent(
+            MetaHistoryServiceImpl.this,
+            startDate,
+            endDate,
+            keywords);
+        ev.setProgress(HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+
+        fireEvent(ev);
+    }
+
+    /**
+     * Delivers a progress event to the registered listeners.
+     *
+     * @param ev the event
+     */
+    private void fireEvent(ProgressEvent ev)
+    {
+        Iterable<HistorySearchProgressListener> listeners;
+        synchronized(progressListeners)
+        {
+            listeners
+                = new ArrayList<HistorySearchProgressListener>(
+                        progressListeners);
+        }
+        for (HistorySearchProgressListener listener : listeners)
+            listener.progressChanged(ev);
     }
 
     /**
@@ -890,6 +907,25 @@ public void start(BundleContext bc)
 
         services.clear();
 
+        final AtomicInteger threadCount = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(
+            MAX_PARALLEL_QUERIES, MAX_PARALLEL_QUERIES,
+            60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(
+                        r, "MetaHistoryQuery-" + threadCount.incrementAndGet());
+
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        executor.allowCoreThreadTimeOut(true);
+        queryExecutor = executor;
+
         // start listening for newly register or removed services
         bc.addServiceListener(this);
     }
@@ -903,6 +939,109 @@ public void stop(BundleContext bc)
     {
         bc.removeServiceListener(this);
         services.clear();
+
+        ExecutorService executor = queryExecutor;
+        queryExecutor = null;
+        if (executor != null)
+            executor.shutdown();
+    }
+
+    /**
+     * The query run against each of the wrapped services, for the kinds of
+     * records and descriptors they support.
+     */
+    private static abstract class HistoryQuery
+    {
+        abstract Collection<?> findMessages(
+            MessageHistoryService mhs, MetaContact contact);
+
+        abstract Collection<?> findMessages(
+            MessageHistoryService mhs, ChatRoom room);
+
+        abstract Collection<?> findFiles(
+            FileHistoryService fhs, MetaContact contact);
+
+        abstract Collection<?> findCalls(CallHistoryService chs);
+    }
+
+    /**
+     * Runs a <tt>HistoryQuery</tt> against one of the wrapped services and
+     * returns its records sorted.
+     */
+    private static class ServiceQueryTask
+        implements Callable<List<Object>>
+    {
+        private final Object serv;
+
+        private final Object descriptor;
+
+        private final HistoryQuery query;
+
+        private final MessageProgressWrapper listenWrapper;
+
+        ServiceQueryTask(Object serv, Object descriptor, HistoryQuery query,
+            MessageProgressWrapper listenWrapper)
+        {
+            this.serv = serv;
+            this.descriptor = descriptor;
+            this.query = query;
+            this.listenWrapper = listenWrapper;
+        }
+
+        public List<Object> call()
+        {
+            Collection<?> records = null;
+
+            if(serv instanceof MessageHistoryService)
+            {
+                MessageHistoryService mhs =
+                    (MessageHistoryService)serv;
+                mhs.addSearchProgressListener(listenWrapper);
+                try
+                {
+                    if(descriptor instanceof MetaContact)
+                        records = query.findMessages(
+                            mhs, (MetaContact)descriptor);
+                    else if(descriptor instanceof ChatRoom)
+                        records = query.findMessages(
+                            mhs, (ChatRoom)descriptor);
+                }
+                finally
+                {
+                    mhs.removeSearchProgressListener(listenWrapper);
+                }
+            }
+            else if(serv instanceof FileHistoryService
+                    && descriptor instanceof MetaContact)
+            {
+                records = query.findFiles(
+                    (FileHistoryService)serv, (MetaContact)descriptor);
+            }
+            else if(serv instanceof CallHistoryService)
+            {
+                CallHistoryService chs = (CallHistoryService)serv;
+                chs.addSearchProgressListener(listenWrapper);
+                try
+                {
+                    records = query.findCalls(chs);
+                }
+                finally
+                {
+                    chs.removeSearchProgressListener(listenWrapper);
+                }
+            }
+
+            if (records == null || records.isEmpty())
+                return Collections.emptyList();
+
+            List<Object> sorted = new ArrayList<Object>(records);
+
+            // the services return their records ordered, so this is only a
+            // check unless one of them does not
+            if (!RecordsComparator.isSorted(sorted))
+                Collections.sort(sorted, RecordsComparator.INSTANCE);
+            return sorted;
+        }
     }
 
     /**
@@ -912,6 +1051,8 @@ public void stop(BundleContext bc)
     private static class RecordsComparator
         implements Comparator<Object>
     {
+        static final RecordsComparator INSTANCE = new RecordsComparator();
+
         private Date getDate(Object o)
         {
             Date date = new Date(0);
@@ -937,60 +1078,188 @@ public int compare(Object o1, Object o2)
 
             return date1.compareTo(date2);
         }
+
+        /**
+         * Determines whether records are in ascending order.
+         *
+         * @param records the records
+         * @return <tt>true</tt> if no record is before the one preceding it
+         */
+        static boolean isSorted(List<Object> records)
+        {
+            for (int i = 1; i < records.size(); i++)
+            {
+                if (INSTANCE.compare(records.get(i - 1), records.get(i)) > 0)
+                    return false;
+            }
+            return true;
+        }
     }
 
-    private class MessageProgressWrapper
-        implements MessageHistorySearchProgressListener,
-        CallHistorySearchProgressListener
+    /**
+     * Lazily merges lists of records sorted with <tt>RecordsComparator</tt>,
+     * from their first or from their last records, by keeping the next record
+     * of each list in a priority queue.
+     * <p>
+     * Records with the same timestamp come in the order of their lists. When
+     * only distinct records are requested, the first of the records with the
+     * same timestamp in ascending order is returned for all of them, which is
+     * what adding them one list after the other to a <tt>TreeSet</tt> did.
+     */
+    static class RecordsMerger
+        implements Iterator<Object>
     {
-        private final int count;
+        /**
+         * The position in a list of records.
+         */
+        private static class Cursor
+        {
+            final List<Object> records;
+
+            final int source;
+
+            int position;
+
+            Cursor(List<Object> records, int source, int position)
+            {
+                this.records = records;
+                this.source = source;
+                this.position = position;
+            }
+
+            Object current()
+            {
+                return records.get(position);
+            }
+        }
+
+        private final PriorityQueue<Cursor> cursors;
 
-        private int ix;
+        private final boolean distinct;
 
-        public MessageProgressWrapper(int count)
+        /**
+         * The direction in which the lists are read, <tt>1</tt> from their
+         * first records and <tt>-1</tt> from their last ones.
+         */
+        private final int step;
+
+        RecordsMerger(
+            List<List<Object>> results, boolean distinct, boolean last)
         {
-            this.count = count;
+            this.distinct = distinct;
+            this.step = last ? -1 : 1;
+            this.cursors = new PriorityQueue<Cursor>(
+                Math.max(1, results.size()),
+                new Comparator<Cursor>()
+                {
+                    public int compare(Cursor c1, Cursor c2)
+                    {
+                        int c = step * RecordsComparator.INSTANCE.compare(
+                            c1.current(), c2.current());
+
+                        return (c != 0) ? c : (c1.source - c2.source);
+                    }
+                });
+
+            for (int i = 0; i < results.size(); i++)
+            {
+                List<Object> records = results.get(i);
+
+                if (!records.isEmpty())
+                {
+                    cursors.add(new Cursor(
+                        records, i, last ? records.size() - 1 : 0));
+                }
+            }
         }
 
-        public void setIx(int ix)
+        /**
+         * Returns the total number of records of lists.
+         *
+         * @param results the lists
+         * @return the number of records
+         */
+        static int size(List<List<Object>> results)
         {
-            this.ix = ix;
+            int size = 0;
+
+            for (List<Object> records : results)
+                size += records.size();
+            return size;
         }
 
-        private void fireProgress(int origProgress, int maxVal,
-            Date startDate, Date endDate, String[] keywords)
+        public boolean hasNext()
         {
-            ProgressEvent ev = new ProgressEvent(
-                MetaHistoryServiceImpl.this,
-                startDate,
-                endDate,
-                keywords);
+            return !cursors.isEmpty();
+        }
 
-            double part1 = origProgress/
-                ((double)maxVal*count);
-            double convProgress =
-                part1*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE +
-                ix*HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE/count;
+        public Object next()
+        {
+            Cursor cursor = cursors.poll();
 
-            ev.setProgress((int)convProgress);
+            if (cursor == null)
+                throw new NoSuchElementException();
 
-            fireEvent(ev);
+            Object record = cursor.current();
+            int source = cursor.source;
+            int position = cursor.position;
+
+            advance(cursor);
+            if (distinct)
+            {
+                while (!cursors.isEmpty()
+                    && RecordsComparator.INSTANCE.compare(
+                            cursors.peek().current(), record) == 0)
+                {
+                    Cursor same = cursors.poll();
+
+                    if (same.source < source
+                        || (same.source == source && same.position < position))
+                    {
+                        record = same.current();
+                        source = same.source;
+                        position = same.position;
+                    }
+                    advance(same);
+                }
+            }
+            return record;
         }
 
-        private void fireEvent(ProgressEvent ev)
+        private void advance(Cursor cursor)
         {
-            Iterable<HistorySearchProgressListener> listeners;
-            synchronized(progressListeners)
+            cursor.position += step;
+            if (cursor.position >= 0
+                && cursor.position < cursor.records.size())
             {
-                listeners
-                    = new ArrayList<HistorySearchProgressListener>(
-                            progressListeners);
+                cursors.add(cursor);
             }
-            for (HistorySearchProgressListener listener : listeners)
-                listener.progressChanged(ev);
         }
+    }
 
-        public void fireLastProgress(
+    /**
+     * Forwards the progress of the search of one of the wrapped services as
+     * its share of the progress of the whole search.
+     */
+    private class MessageProgressWrapper
+        implements MessageHistorySearchProgressListener,
+        CallHistorySearchProgressListener
+    {
+        /**
+         * The progress of each of the services of the search, shared by their
+         * wrappers.
+         */
+        private final double[] progress;
+
+        private final int ix;
+
+        public MessageProgressWrapper(double[] progress, int ix)
+        {
+            this.progress = progress;
+            this.ix = ix;
+        }
+
+        private void fireProgress(int origProgress, int maxVal,
             Date startDate, Date endDate, String[] keywords)
         {
             ProgressEvent ev = new ProgressEvent(
@@ -998,7 +1267,18 @@ public void fireLastProgress(
                 startDate,
                 endDate,
                 keywords);
-            ev.setProgress(HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE);
+
+            double total = 0;
+            synchronized(progress)
+            {
+                progress[ix] = origProgress/(double)maxVal;
+                for (double p : progress)
+                    total += p;
+            }
+            double convProgress = total/progress.length
+                *HistorySearchProgressListener.PROGRESS_MAXIMUM_VALUE;
+
+            ev.setProgress((int)convProgress);
 
             fireEvent(ev);
         }
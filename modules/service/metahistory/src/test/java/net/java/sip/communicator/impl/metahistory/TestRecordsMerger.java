@@ -0,0 +1,216 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.impl.metahistory;
+
+import java.util.*;
+
+import junit.framework.*;
+import net.java.sip.communicator.service.callhistory.*;
+import net.java.sip.communicator.service.filehistory.*;
+
+/**
+ * Tests the merging of the sorted records of the wrapped services by
+ * <tt>MetaHistoryServiceImpl</tt> against adding all of them to a
+ * <tt>TreeSet</tt>, as the service did before.
+ */
+public class TestRecordsMerger
+    extends TestCase
+{
+    /**
+     * Orders the test records by date.
+     */
+    private static final Comparator<Object> BY_DATE = new Comparator<Object>()
+    {
+        public int compare(Object o1, Object o2)
+        {
+            return getDate(o1).compareTo(getDate(o2));
+        }
+    };
+
+    /**
+     * Overlapping lists with many records of the same timestamp, in a list
+     * and across lists, merged in full and cut to their first and last
+     * records.
+     */
+    public void testAgainstTreeSet()
+    {
+        Random random = new Random(42);
+
+        for (int run = 0; run < 200; run++)
+        {
+            List<List<Object>> results = createResults(random);
+            int size = 0;
+
+            for (List<Object> records : results)
+                size += records.size();
+
+            for (int count : new int[] { 0, 1, 5, size / 2, size, size + 3 })
+            {
+                assertSameRecords(
+                    first(sortAll(results, true), count),
+                    MetaHistoryServiceImpl.merge(results, true, false, count));
+                assertSameRecords(
+                    last(sortAll(results, true), count),
+                    MetaHistoryServiceImpl.merge(results, true, true, count));
+                assertSameRecords(
+                    first(sortAll(results, false), count),
+                    MetaHistoryServiceImpl.merge(results, false, false, count));
+            }
+        }
+    }
+
+    /**
+     * Of the records with the same timestamp only the first one of the first
+     * list is kept, whichever end the lists are read from.
+     */
+    public void testDuplicateTimestamps()
+    {
+        Object call1 = createCall(10);
+        Object call2 = createCall(10);
+        Object file1 = createFile(10);
+        Object file2 = createFile(20);
+        Object call3 = createCall(20);
+        List<List<Object>> results = Arrays.asList(
+            Arrays.asList(call1, call2, call3),
+            Arrays.asList(file1, file2));
+
+        assertSameRecords(Arrays.asList(call1, call3),
+            MetaHistoryServiceImpl.merge(results, true, false, 10));
+        assertSameRecords(Arrays.asList(call1, call3),
+            MetaHistoryServiceImpl.merge(results, true, true, 10));
+        assertSameRecords(Arrays.asList(call3),
+            MetaHistoryServiceImpl.merge(results, true, true, 1));
+        assertSameRecords(Arrays.asList(call1, call2, file1, call3, file2),
+            MetaHistoryServiceImpl.merge(results, false, false, 10));
+        assertSameRecords(Arrays.asList(call1, call2),
+            MetaHistoryServiceImpl.merge(results, false, false, 2));
+    }
+
+    /**
+     * The count limits the merged records, which are in ascending order when
+     * the last ones are requested too.
+     */
+    public void testCountLimit()
+    {
+        Object call1 = createCall(10);
+        Object file1 = createFile(15);
+        Object call2 = createCall(20);
+        Object file2 = createFile(25);
+        List<List<Object>> results = Arrays.asList(
+            Arrays.asList(call1, call2),
+            Arrays.asList(file1, file2),
+            Collections.emptyList());
+
+        assertSameRecords(Arrays.asList(call1, file1, call2),
+            MetaHistoryServiceImpl.merge(results, true, false, 3));
+        assertSameRecords(Arrays.asList(file1, call2, file2),
+            MetaHistoryServiceImpl.merge(results, true, true, 3));
+        assertTrue(MetaHistoryServiceImpl.merge(results, true, true, 0)
+            .isEmpty());
+        assertTrue(MetaHistoryServiceImpl.merge(
+                new ArrayList<List<Object>>(), true, false, 3)
+            .isEmpty());
+    }
+
+    /**
+     * Creates up to five lists of sorted call and file records with
+     * timestamps in a short range, so that they overlap and repeat.
+     */
+    private static List<List<Object>> createResults(Random random)
+    {
+        List<List<Object>> results = new ArrayList<List<Object>>();
+        int lists = random.nextInt(6);
+
+        for (int i = 0; i < lists; i++)
+        {
+            List<Object> records = new ArrayList<Object>();
+            int size = random.nextInt(20);
+
+            for (int j = 0; j < size; j++)
+            {
+                long time = random.nextInt(30);
+
+                records.add(random.nextBoolean()
+                    ? createCall(time)
+                    : createFile(time));
+            }
+            Collections.sort(records, BY_DATE);
+            results.add(records);
+        }
+        return results;
+    }
+
+    /**
+     * Sorts all the records the way the service did before merging: adding
+     * them one list after the other to a <tt>TreeSet</tt>, or to a list
+     * sorted afterwards when the records with the same timestamp are all
+     * kept.
+     */
+    private static List<Object> sortAll(
+        List<List<Object>> results, boolean distinct)
+    {
+        Collection<Object> all = distinct
+            ? new TreeSet<Object>(BY_DATE)
+            : new ArrayList<Object>();
+
+        for (List<Object> records : results)
+            all.addAll(records);
+
+        List<Object> sorted = new ArrayList<Object>(all);
+        Collections.sort(sorted, BY_DATE);
+        return sorted;
+    }
+
+    private static List<Object> first(List<Object> records, int count)
+    {
+        return records.subList(0, Math.min(count, records.size()));
+    }
+
+    private static List<Object> last(List<Object> records, int count)
+    {
+        return records.subList(
+            Math.max(0, records.size() - count), records.size());
+    }
+
+    private static void assertSameRecords(
+        List<Object> expected, List<Object> actual)
+    {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertSame("record " + i, expected.get(i), actual.get(i));
+    }
+
+    private static Object createCall(long time)
+    {
+        return new CallRecord(CallRecord.OUT, new Date(time), new Date(time));
+    }
+
+    private static Object createFile(long time)
+    {
+        return new FileRecord(
+            "id" + time, null, FileRecord.OUT, new Date(time), null,
+            FileRecord.COMPLETED);
+    }
+
+    private static Date getDate(Object record)
+    {
+        return (record instanceof CallRecord)
+            ? ((CallRecord) record).getStartTime()
+            : ((FileRecord) record).getDate();
+    }
+}
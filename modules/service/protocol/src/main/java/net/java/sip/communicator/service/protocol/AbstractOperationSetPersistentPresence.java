@@ -212,6 +212,49 @@ public void fireContactPresenceStatusChangeEvent(Contact source,
             listener.contactPresenceStatusChanged(evt);
     }
 
+    /**
+     * Notifies all registered listeners of a batch of contact status changes.
+     * <tt>ContactPresenceStatusBatchListener</tt>s receive the whole batch at
+     * once, the other listeners receive the events one by one.
+     *
+     * @param evts the events describing the status changes, at most one per
+     * contact.
+     */
+    public void fireContactPresenceStatusChangeEvents(
+        List<ContactPresenceStatusChangeEvent> evts)
+    {
+        if (evts.isEmpty())
+            return;
+
+        Collection<ContactPresenceStatusListener> listeners;
+        synchronized (contactPresenceStatusListeners)
+        {
+            listeners =
+                new ArrayList<ContactPresenceStatusListener>(
+                        contactPresenceStatusListeners);
+        }
+
+        if (logger.isDebugEnabled())
+            logger.debug(
+            "Dispatching Contact Status Changes. Listeners=" + listeners.size()
+                + " evts=" + evts.size());
+
+        evts = Collections.unmodifiableList(evts);
+        for (ContactPresenceStatusListener listener : listeners)
+        {
+            if (listener instanceof ContactPresenceStatusBatchListener)
+            {
+                ((ContactPresenceStatusBatchListener) listener)
+                    .contactPresenceStatusesChanged(evts);
+            }
+            else
+            {
+                for (ContactPresenceStatusChangeEvent evt : evts)
+                    listener.contactPresenceStatusChanged(evt);
+            }
+        }
+    }
+
     /**
      * Notify all subscription listeners of the corresponding contact property
      * change event.
@@ -0,0 +1,42 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.java.sip.communicator.service.protocol.event;
+
+import java.util.*;
+
+/**
+ * A <tt>ContactPresenceStatusListener</tt> which is able to handle the status
+ * changes of many contacts at once. Presence operation sets which coalesce
+ * the changes of their contacts, e.g. when a large contact list comes online,
+ * deliver each batch of changes to such listeners in a single call, so that
+ * they can for instance update the user interface once per batch rather than
+ * once per contact. Other listeners are called once per change.
+ */
+public interface ContactPresenceStatusBatchListener
+    extends ContactPresenceStatusListener
+{
+    /**
+     * Called when the <tt>PresenceStatus</tt> of several of the contacts that
+     * we have subscribed for have changed.
+     *
+     * @param evts the <tt>ContactPresenceStatusChangeEvent</tt>s describing
+     * the status changes, in the order they occurred, at most one per contact.
+     */
+    public void contactPresenceStatusesChanged(
+                            List<ContactPresenceStatusChangeEvent> evts);
+}
@@ -18,6 +18,7 @@
 package net.java.sip.communicator.util;
 
 import java.io.*;
+import java.nio.file.*;
 
 import javax.swing.*;
 import javax.swing.filechooser.*;
@@ -96,4 +97,29 @@ public static Icon getIcon(File file)
 
         return fileIcon;
     }
+
+    /**
+     * Replaces a file with another one, such as a temporary file holding its
+     * new content. The file is replaced atomically where the file system
+     * allows it, so that readers see either the old or the new content.
+     *
+     * @param source the file holding the new content.
+     * @param target the file to replace.
+     * @throws IOException if the file cannot be replaced.
+     */
+    public static void replaceFile(File source, File target)
+        throws IOException
+    {
+        try
+        {
+            Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+        catch (AtomicMoveNotSupportedException e)
+        {
+            Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
 }